@@ -0,0 +1,131 @@
+package tooltwist.fip;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Compare the time taken to scan a directory tree using the original java.io.File
+ * scanner (listFiles, then isDirectory, length and lastModified for every file), and
+ * the NIO scanner used by {@link FipDirectoryWalker}.
+ *
+ * If the directory does not exist, a synthetic tree is created containing the requested
+ * number of small files, 100 files per directory, 100 directories per level.
+ *
+ * Both scanners are timed against an up-to-date manifest, so no checksums are calculated
+ * and the figures show only the cost of reading the directories and file attributes.
+ *
+ * usage: FipScannerBenchmark directory [numFiles] [rounds]
+ *
+ * @author philipcallender
+ *
+ */
+public class FipScannerBenchmark
+{
+	private static final int FILES_PER_DIRECTORY = 100;
+	private static final int DIRECTORIES_PER_LEVEL = 100;
+
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length < 1)
+		{
+			System.err.println("usage: FipScannerBenchmark directory [numFiles] [rounds]");
+			System.exit(1);
+		}
+		File root = new File(args[0]);
+		int numFiles = (args.length > 1) ? Integer.parseInt(args[1]) : 1000000;
+		int rounds = (args.length > 2) ? Integer.parseInt(args[2]) : 3;
+
+		// Create the synthetic tree
+		if ( !root.exists())
+		{
+			System.out.println("Creating " + numFiles + " files in " + root + "...");
+			long start = System.currentTimeMillis();
+			createTree(root, numFiles);
+			System.out.println(" - created in " + (System.currentTimeMillis() - start) + "ms.");
+		}
+
+		// Build the manifest, so the timed runs only compare attributes.
+		System.out.println("Building the manifest...");
+		long start = System.currentTimeMillis();
+		FipList list = new FipList();
+		list.syncWithRealFiles(root);
+		System.out.println(" - " + list.numFiles() + " files in " + (System.currentTimeMillis() - start) + "ms.");
+		HashMap<String, Long> lastModifiedTimes = new HashMap<String, Long>(list.numFiles() * 2);
+		for (FipFile f : list.files())
+			lastModifiedTimes.put(f.getSourceRelativePath(), f.getLastModified());
+
+		int processors = Runtime.getRuntime().availableProcessors();
+		for (int round = 1; round <= rounds; round++)
+		{
+			System.out.println("Round " + round + ":");
+
+			start = System.currentTimeMillis();
+			int cnt = legacyScan(root.getAbsolutePath() + "/", root, lastModifiedTimes);
+			System.out.println("   java.io scanner:             " + (System.currentTimeMillis() - start) + "ms (" + cnt + " files)");
+
+			start = System.currentTimeMillis();
+			list.syncWithRealFiles(root, 1, 1);
+			System.out.println("   NIO scanner, 1 thread:       " + (System.currentTimeMillis() - start) + "ms (" + list.numFiles() + " files)");
+
+			start = System.currentTimeMillis();
+			list.syncWithRealFiles(root, processors, processors);
+			System.out.println("   NIO scanner, " + processors + " threads:      " + (System.currentTimeMillis() - start) + "ms (" + list.numFiles() + " files)");
+		}
+	}
+
+	/**
+	 * The scanning part of the original FipList.loadDirectory_recursive.
+	 */
+	private static int legacyScan(String rootPath, File directory, HashMap<String, Long> lastModifiedTimes)
+	{
+		int cnt = 0;
+		for (File file : directory.listFiles())
+		{
+			String name = file.getName();
+			if (name.startsWith(Fip.PREFIX))
+				continue;
+			if (file.isDirectory())
+			{
+				cnt += legacyScan(rootPath, file, lastModifiedTimes);
+				continue;
+			}
+			String path = file.getAbsolutePath();
+			String relativePath = path.substring(rootPath.length());
+			long length = file.length();
+			long lastModified = file.lastModified();
+			Long existing = lastModifiedTimes.get(relativePath);
+			if (existing == null || existing.longValue() != lastModified || length < 0)
+				throw new RuntimeException("Tree changed during the benchmark: " + relativePath);
+			cnt++;
+		}
+		return cnt;
+	}
+
+	private static void createTree(File root, int numFiles) throws IOException
+	{
+		byte[] contents = new byte[100];
+		int cnt = 0;
+		for (int top = 0; cnt < numFiles; top++)
+		{
+			for (int middle = 0; middle < DIRECTORIES_PER_LEVEL && cnt < numFiles; middle++)
+			{
+				File dir = new File(root, "dir" + top + "/sub" + middle);
+				dir.mkdirs();
+				for (int i = 0; i < FILES_PER_DIRECTORY && cnt < numFiles; i++, cnt++)
+				{
+					contents[0] = (byte) cnt;
+					contents[1] = (byte) (cnt >> 8);
+					contents[2] = (byte) (cnt >> 16);
+					FileOutputStream os = new FileOutputStream(new File(dir, "file" + i + ".txt"));
+					try {
+						os.write(contents);
+					} finally {
+						os.close();
+					}
+				}
+			}
+		}
+	}
+}
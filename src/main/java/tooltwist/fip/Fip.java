@@ -8,11 +8,19 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.text.DecimalFormat;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Vector;
-import java.util.zip.CRC32;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,6 +28,7 @@ import org.slf4j.LoggerFactory;
 import tooltwist.fip.FipDelta.Type;
 import tooltwist.fip.FipRule.Op;
 import tooltwist.fip.FipBatchOfUpdates.BufferStatus;
+import tooltwist.fip.FipRequest.RequestType;
 
 /*
  * TODO
@@ -126,8 +135,38 @@ public class Fip
 {
 	private static Logger logger = LoggerFactory.getLogger(Fip.class);
 	public static byte MAJOR_VERSION_NUMBER = 0x01;
-	public static byte MINOR_VERSION_NUMBER = 0x05;	
+	public static byte MINOR_VERSION_NUMBER = 0x0a;	
 	private Vector<FipRule> rules = new Vector<FipRule>();
+	private int indexParallelism = FipList.defaultIndexParallelism();
+
+	/**
+	 * Changed files at least this large are sent as changes to the destination's copy, rather
+	 * than as the whole file. This can be turned off by setting the <code>fip.deltaTransfer</code>
+	 * system property to false.
+	 */
+	static final long MIN_PATCH_SIZE = 64 * 1024;
+	public static final String DELTA_TRANSFER_PROPERTY = "fip.deltaTransfer";
+	private boolean deltaTransfer = !"false".equals(System.getProperty(DELTA_TRANSFER_PROPERTY));
+
+	/**
+	 * The number of times a batch containing part of a large file is sent before giving up.
+	 */
+	static final int RANGE_ATTEMPTS = 3;
+
+	/**
+	 * The number of lanes the changes are split into, each sending batches at the same time
+	 * as the others. Set using the <code>fip.lanes</code> system property (default 1).
+	 */
+	public static final String LANES_PROPERTY = "fip.lanes";
+
+	/**
+	 * Comparing directory hashes asks the source and destination about each directory that differs. If
+	 * more than this many requests are needed, the full file lists are compared instead. Set using the
+	 * <code>fip.maxDirectoryRequests</code> system property.
+	 */
+	public static final String MAX_DIRECTORY_REQUESTS_PROPERTY = "fip.maxDirectoryRequests";
+	private static final int DEFAULT_MAX_DIRECTORY_REQUESTS = 200;
+	private int directoryRequests;
 
 	/**
 	 * The prefix used by all fip's files.
@@ -171,54 +210,96 @@ public class Fip
 		rules.add(rule);
 	}
 
-	public void installFiles(String sourceUrl, String destinationUrl, String rulesFile, boolean debugMessages, boolean verbose, boolean listOnly) throws FipException, IOException, FipCorruptionException
+	/**
+	 * Set the number of threads used to index sources and destinations on this machine.
+	 */
+	public void setIndexParallelism(int indexParallelism)
 	{
-		FipServerProxy source = getServerProxy(sourceUrl);
-		FipServerProxy destination = getServerProxy(destinationUrl);
-		
-		// Load the rules
-		if (rulesFile != null && !rulesFile.equals("")) {
-			loadRules(this, rulesFile);
-		}
-		
-		// Verify the machines can talk:
-		// Get uuid from the source.
-		// Get uuid from the destination, and open a transaction (unless in listOnly mode).
-		String sourceUuid = source.askForUuid();
-		NewTransactionReply reply = destination.startNewTransaction(sourceUuid);
-		String destinationUuid = reply.getDestinationUuid();
-		String txId = reply.getTxId();
-		String salt = reply.getSalt();
-		
-		
+		this.indexParallelism = indexParallelism;
+	}
 
+	/**
+	 * Compare the file lists from the source and destination, after applying the rules. Only
+	 * the destination files in buckets that differ from the source are fetched, unless the
+	 * destination does not support bucket summaries (see {@link FipBucketSummary}), or we
+	 * kept the destination's list last time, in which case just the changes since then are
+	 * fetched.
+	 */
+	private FipDeltaList getDeltaUsingFileLists(FipServerProxy source, FipServerProxy destination, boolean debugMessages) throws FipException, IOException, FipCorruptionException
+	{
 		// Load existing definition from the source.
 //		logger.info("\nClient list=");
+		// If the destination is known to need a different checksum algorithm, index the source with it
 		logger.info("Indexing source...");
-		FipList filesAtSource = source.askForFileList(false);
+		FipList filesAtSource = source.askForFileList(false, destination.getKnownChecksumAlgorithm());
+		applyRules(filesAtSource);
+		return getDeltaUsingFileLists(source, destination, filesAtSource, debugMessages);
+	}
 
-		// Check the rules against each source file.
-		if ( !rules.isEmpty())
+	/**
+	 * Compare a list of the files at the source, with the rules already applied, with the
+	 * destination. The list is not changed, so it can be compared with several destinations.
+	 */
+	private FipDeltaList getDeltaUsingFileLists(FipServerProxy source, FipServerProxy destination, FipList filesAtSource, boolean debugMessages) throws FipException, IOException, FipCorruptionException
+	{
+		String checksumAlgorithm = filesAtSource.getChecksumAlgorithm().getName();
+
+		// Compare the bucket hashes of the files to be installed with those at the destination, and
+		// get just the destination files in the buckets that differ.
+		FipList filesAtDestination = null;
+		int numBuckets = 0;
+		BitSet buckets = null;
+		if ( !debugMessages && !destination.hasCachedFileList(true))
 		{
-			
-			for (FipFile f : filesAtSource.files())
-			{
-				f.setOp(Op.EXCLUDE); // Exclude it until told otherwise.
-				for (FipRule r : rules)
+			numBuckets = FipBucketSummary.bucketsFor(filesAtSource.numIncludedFiles());
+			try {
+				logger.info("Indexing destination...");
+				FipBucketSummary destinationSummary = destination.askForBucketSummary(true, checksumAlgorithm, numBuckets);
+				if (destinationSummary.getChecksumAlgorithm().equals(checksumAlgorithm) && destinationSummary.getNumBuckets() == numBuckets)
 				{
-					r.setRuleParametersForFile(f);
+					buckets = filesAtSource.getBucketSummary(numBuckets).differences(destinationSummary);
+
+					// The destination is up to date, so it can use the default algorithm next time
+					if (destination.getKnownChecksumAlgorithm() != null)
+						destination.setKnownChecksumAlgorithm(null);
+					logger.info("Fetching " + buckets.cardinality() + " of " + numBuckets + " buckets from the destination...");
+					if (buckets.isEmpty())
+						filesAtDestination = new FipList(filesAtSource.getChecksumAlgorithm());
+					else
+						filesAtDestination = destination.askForBucketEntries(true, checksumAlgorithm, numBuckets, buckets, destinationSummary.getSnapshotId());
 				}
+			} catch (FipException e) {
+				logger.info("Bucket summaries are not supported, fetching the full file list.");
+			}
+			if (filesAtDestination == null)
+				buckets = null;
+		}
+
+		// Get the existing files at the destination, with checksums calculated the same way as at the source.
+		if (filesAtDestination == null)
+		{
+			logger.info("Indexing destination...");
+			filesAtDestination = destination.askForFileList(true, checksumAlgorithm);
+			String destinationChecksumAlgorithm = filesAtDestination.getChecksumAlgorithm().getName();
+			if ( !destinationChecksumAlgorithm.equals(checksumAlgorithm))
+			{
+				// The destination could not use the source's algorithm (probably an older version of FIP),
+				// so ask the source to use the destination's algorithm instead.
+				// Remember it, so next time the source is only indexed once.
+				logger.info("Destination uses " + destinationChecksumAlgorithm + " checksums. Indexing source again...");
+				filesAtSource = source.askForFileList(false, destinationChecksumAlgorithm);
+				if ( !filesAtSource.getChecksumAlgorithm().getName().equals(destinationChecksumAlgorithm))
+					throw new FipException("The source and destination could not agree on a checksum algorithm (" + checksumAlgorithm + ", " + destinationChecksumAlgorithm + ")");
+				applyRules(filesAtSource);
+				destination.setKnownChecksumAlgorithm(destinationChecksumAlgorithm);
 			}
 		}
+
 		if (debugMessages)
 		{
 			String list = filesAtSource.serialize(true);
 			logger.info("Files at source:\n" + list);
 		}
-		
-		// Get the existing files at the destination
-		logger.info("Indexing destination...");
-		FipList filesAtDestination = destination.askForFileList(true);
 		if (debugMessages)
 		{
 			String list = filesAtDestination.serialize(false);
@@ -238,7 +319,196 @@ public class Fip
 
 
 		logger.info("Comparing...");
-		FipDeltaList deltaList = filesAtSource.getDelta(filesAtDestination);
+		return filesAtSource.getDelta(filesAtDestination, numBuckets, buckets);
+	}
+
+	/**
+	 * Check the rules against each source file.
+	 */
+	private void applyRules(FipList filesAtSource)
+	{
+		if ( !rules.isEmpty())
+		{
+			
+			for (FipFile f : filesAtSource.files())
+			{
+				f.setOp(Op.EXCLUDE); // Exclude it until told otherwise.
+				for (FipRule r : rules)
+				{
+					r.setRuleParametersForFile(f);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compare the source and destination using their directory hashes, starting at the root and only
+	 * looking inside directories whose hashes differ. Returns null if either end does not support
+	 * directory summaries, or they could not agree on a checksum algorithm.
+	 */
+	private FipDeltaList getDeltaUsingDirectoryHashes(FipServerProxy source, FipServerProxy destination) throws FipException, IOException, FipCorruptionException
+	{
+		FipDirectorySummary sourceRoot;
+		FipDirectorySummary destinationRoot;
+		try {
+			logger.info("Indexing source...");
+			sourceRoot = source.askForDirectorySummary(false, null, "", null);
+			logger.info("Indexing destination...");
+			destinationRoot = destination.askForDirectorySummary(true, sourceRoot.getChecksumAlgorithm(), "", null);
+			if ( !destinationRoot.getChecksumAlgorithm().equals(sourceRoot.getChecksumAlgorithm()))
+			{
+				logger.info("Destination uses " + destinationRoot.getChecksumAlgorithm() + " checksums. Indexing source again...");
+				sourceRoot = source.askForDirectorySummary(false, destinationRoot.getChecksumAlgorithm(), "", null);
+				if ( !sourceRoot.getChecksumAlgorithm().equals(destinationRoot.getChecksumAlgorithm()))
+					return null;
+			}
+		} catch (FipException e) {
+			logger.info("Directory hashes are not supported, comparing the full file lists.");
+			return null;
+		}
+
+		logger.info("Comparing...");
+		FipDeltaList deltaList = new FipDeltaList();
+		if (sourceRoot.sameAs(destinationRoot))
+			return deltaList;
+		FipDeltaList deleteList = new FipDeltaList();
+		HashMap<String, String> unchangedFiles = new HashMap<String, String>();
+		directoryRequests = 0;
+		try {
+			compareDirectories(source, destination, sourceRoot, destinationRoot, sourceRoot.getSnapshotId(), destinationRoot.getSnapshotId(), deltaList, deleteList, unchangedFiles);
+		} catch (TooManyDirectoryRequestsException e) {
+			logger.info("Too many directories differ, comparing the full file lists.");
+			return null;
+		}
+
+		// Deletes go after the installs, the same as when comparing the file lists
+		for (FipDelta d : deleteList.list())
+			deltaList.addDelta(d.getSourceRelativePath(), d.getDestinationRelativePath(), d.getFilesize(), d.getType(), d.getChecksum());
+
+		// New files might be copies of files being deleted, or of unchanged files in the directories we looked at
+		deltaList.findCopies(unchangedFiles);
+		return deltaList;
+	}
+
+	/**
+	 * Compare a directory at the source and destination. Either summary may be null, if the
+	 * directory only exists at one end, in which case the other end's summary lists every file
+	 * below the directory. The summaries of sub-directories are taken from the same snapshots
+	 * as the root summaries.
+	 */
+	private void compareDirectories(FipServerProxy source, FipServerProxy destination, FipDirectorySummary sourceSummary, FipDirectorySummary destinationSummary, String sourceSnapshotId, String destinationSnapshotId, FipDeltaList deltaList, FipDeltaList deleteList, HashMap<String, String> unchangedFiles) throws FipException, IOException, FipCorruptionException
+	{
+		String directoryPath = (sourceSummary != null) ? sourceSummary.getDirectoryPath() : destinationSummary.getDirectoryPath();
+		if (sourceSummary != null)
+		{
+			for (FipDirectorySummary.Entry entry : sourceSummary.entries())
+			{
+				String relativePath = directoryPath + entry.getName();
+				if (entry.isDirectory())
+				{
+					// Only look inside directories that differ
+					FipDirectorySummary.Entry other = (destinationSummary == null) ? null : destinationSummary.getSubdirectory(entry.getName());
+					if (entry.sameAs(other))
+						continue;
+					FipDirectorySummary destinationChild = null;
+					FipDirectorySummary sourceChild;
+					if (other == null)
+						sourceChild = askForDirectorySummary(source, false, sourceSummary.getChecksumAlgorithm(), relativePath + "/", sourceSnapshotId, true);
+					else
+					{
+						destinationChild = askForDirectorySummary(destination, true, sourceSummary.getChecksumAlgorithm(), relativePath + "/", destinationSnapshotId, false);
+						sourceChild = askForDirectorySummary(source, false, sourceSummary.getChecksumAlgorithm(), relativePath + "/", sourceSnapshotId, false);
+					}
+					compareDirectories(source, destination, sourceChild, destinationChild, sourceSnapshotId, destinationSnapshotId, deltaList, deleteList, unchangedFiles);
+				}
+				else
+				{
+					FipDirectorySummary.Entry other = (destinationSummary == null) ? null : destinationSummary.getFile(entry.getName());
+					if (other == null)
+						deltaList.addDelta(relativePath, relativePath, entry.getSize(), Type.NEW, entry.getChecksum());
+					else if ( !entry.sameAs(other))
+						deltaList.addDelta(relativePath, relativePath, entry.getSize(), Type.CHANGE, entry.getChecksum());
+					else if (entry.getSize() >= FipDeltaList.MIN_COPY_SIZE)
+						unchangedFiles.put(FipDeltaList.contentKey(entry.getSize(), entry.getChecksum()), relativePath);
+				}
+			}
+		}
+
+		// Anything only at the destination needs to be deleted
+		if (destinationSummary != null)
+		{
+			for (FipDirectorySummary.Entry entry : destinationSummary.entries())
+			{
+				String relativePath = directoryPath + entry.getName();
+				if (entry.isDirectory())
+				{
+					if (sourceSummary == null || sourceSummary.getSubdirectory(entry.getName()) == null)
+						compareDirectories(source, destination, null, askForDirectorySummary(destination, true, destinationSummary.getChecksumAlgorithm(), relativePath + "/", destinationSnapshotId, true), sourceSnapshotId, destinationSnapshotId, deltaList, deleteList, unchangedFiles);
+				}
+				else if (sourceSummary == null || sourceSummary.getFile(entry.getName()) == null)
+					deleteList.addDelta(relativePath, relativePath, entry.getSize(), Type.DELETE, entry.getChecksum());
+			}
+		}
+	}
+
+	/**
+	 * Ask for the summary of a directory below the root, or of the whole subtree if the directory only exists
+	 * at one end, giving up once too many requests have been made.
+	 */
+	private FipDirectorySummary askForDirectorySummary(FipServerProxy server, boolean isDestination, String checksumAlgorithm, String directoryPath, String snapshotId, boolean wholeSubtree) throws IOException, FipCorruptionException, FipException
+	{
+		if (++directoryRequests > Integer.getInteger(MAX_DIRECTORY_REQUESTS_PROPERTY, DEFAULT_MAX_DIRECTORY_REQUESTS))
+			throw new TooManyDirectoryRequestsException();
+		if (wholeSubtree)
+			return server.askForSubtreeSummary(isDestination, checksumAlgorithm, directoryPath, snapshotId);
+		return server.askForDirectorySummary(isDestination, checksumAlgorithm, directoryPath, snapshotId);
+	}
+
+	/**
+	 * Thrown when comparing directory hashes needs too many requests.
+	 */
+	private static class TooManyDirectoryRequestsException extends FipException
+	{
+		private static final long serialVersionUID = 1L;
+
+		TooManyDirectoryRequestsException()
+		{
+			super("Too many directories differ");
+		}
+	}
+
+	public void installFiles(String sourceUrl, String destinationUrl, String rulesFile, boolean debugMessages, boolean verbose, boolean listOnly) throws FipException, IOException, FipCorruptionException
+	{
+		final FipServerProxy source = getServerProxy(sourceUrl);
+		final FipServerProxy destination = getServerProxy(destinationUrl);
+		
+		// Load the rules
+		if (rulesFile != null && !rulesFile.equals("")) {
+			loadRules(this, rulesFile);
+		}
+		
+		// Verify the machines can talk:
+		// Get uuid from the source.
+		// Get uuid from the destination, and open a transaction (unless in listOnly mode).
+		String sourceUuid = source.askForUuid();
+		NewTransactionReply reply = destination.startNewTransaction(sourceUuid);
+		final String destinationUuid = reply.getDestinationUuid();
+		final String txId = reply.getTxId();
+		final String salt = reply.getSalt();
+		final int destinationVersion = reply.getProtocolVersion();
+		if (destinationVersion < MINOR_VERSION_NUMBER)
+			logger.info("The destination uses FIP protocol " + MAJOR_VERSION_NUMBER + "." + destinationVersion + ", so only the operations it understands will be sent.");
+		
+
+		// Without any rules, the source and destination can be compared a directory at a time
+		// using their directory hashes, so the full file lists don't need to be transferred.
+		FipDeltaList deltaList = null;
+		if (rules.isEmpty() && !debugMessages)
+			deltaList = getDeltaUsingDirectoryHashes(source, destination);
+		if (deltaList == null)
+			deltaList = getDeltaUsingFileLists(source, destination, debugMessages);
+		if (destinationVersion < FipBatchOfUpdates.FIRST_MINOR_VERSION_WITH_COPIES)
+			deltaList.forgetCopies();
 //		if (verbose || listOnly)
 		{
 			String deltaDesc = deltaList.listDeltas();
@@ -256,143 +526,90 @@ System.out.println("Delta:\n" + deltaDesc);
 //		String salt = deltaList.getInitialSalt();
 		
 		// Calculate the approximate total size of the updates
-		logger.info("Calculating size...");
-		FipBufferCapacityCalculator bcc = new FipBufferCapacityCalculator();
-		long estimatedTotalSize = bcc.spaceRequiredAtStartOfBuffer();
-//int cnt = 1;
-		for (FipDelta d : deltaList.list())
+		boolean patches = (destinationVersion >= FipBatchOfUpdates.FIRST_MINOR_VERSION_WITH_PATCHES);
+		long estimatedTotalSize = estimateTotalSize(deltaList, patches);
+		logger.info("Starting transmission...");
+
+		// The changes are split into lanes, each sending it's own batches, so several batches can be
+		// sent at once. Files with the same contents go in the same lane, so a file can be installed
+		// from one with the same contents sent earlier in the transaction.
+		int numLanes = Math.max(1, Integer.getInteger(LANES_PROPERTY, 1));
+		final AtomicLong totalSent = new AtomicLong();
+		FipPipeline.Fetcher fetcher = new FipPipeline.Fetcher() {
+			public FipBatchOfUpdates fetch(FipRequestList requestList) throws FipException, IOException, FipCorruptionException
+			{
+				return fetchUpdates(source, destination, requestList, destinationUuid, txId, salt);
+			}
+		};
+		FipPipeline.Installer installer = new FipPipeline.Installer() {
+			public void install(FipBatchOfUpdates updates) throws FipException
+			{
+				destination.sendUpdates(txId, updates);
+			}
+		};
+		FipBufferCapacityCalculator measurements = new FipBufferCapacityCalculator();
+		Lane[] lanes = new Lane[numLanes];
+		for (int i = 0; i < numLanes; i++)
 		{
-//			String sourceRelativePath = d.getSourceRelativePath();
-			String destinationRelativePath = d.getDestinationRelativePath();
-			long fileLen = d.getFilesize();
-
-			// See how much space is required in the buffer
-			long spaceRequiredInBuffer = 0;
-			if (d.getType() == Type.NEW || d.getType() == Type.CHANGE)
-				spaceRequiredInBuffer = bcc.spaceRequiredForUpdate(destinationRelativePath, fileLen);
-			else if (d.getType() == Type.DELETE)
-				spaceRequiredInBuffer = bcc.spaceRequiredForDelete(destinationRelativePath);
-			estimatedTotalSize += spaceRequiredInBuffer;
-//bcc.willItFit(spaceRequiredInBuffer);
-//logger.info("  after1 " + cnt++ + " total is " + estimatedTotalSize + " --- " + bcc.getSpaceUsed());
-//if (cnt==72)
-//{
-//bcc.resetCounter();
-//estimatedTotalSize = 0;
-//}
+			FipBufferCapacityCalculator bcc = new FipBufferCapacityCalculator(measurements);
+			lanes[i] = new Lane(lanes, i, new FipPipeline(txId, fetcher, installer, bcc, numLanes), bcc, estimatedTotalSize, totalSent, patches, destinationVersion, verbose);
 		}
-		int estimatedBatches = (int) (estimatedTotalSize / FipBatchOfUpdates.PREFERRED_MAX_TRANSMISSION) + 1;
-		estimatedTotalSize += estimatedBatches * (bcc.spaceRequiredAtStartOfBuffer() + bcc.spaceRequiredForCommit());
-		if (estimatedTotalSize > 5000)
-			logger.info("Estimated total size of updates = "+sizeFmt(estimatedTotalSize));
-		logger.info("Starting transmission...");
+		for (FipDelta d : deltaList.list())
+			lanes[laneFor(d, numLanes)].deltas.add(d);
 
-		// Loop around, getting updates from the source and sending them to the destination, until there are none left
-		FipRequestList requestList = new FipRequestList();
-//		Vector<String> deleteList = new Vector<String>();
-		long totalSent = 0;
-//long zzz = 0;
-//cnt = 1;
-		boolean areChanges = false;
 		try {
-			bcc = new FipBufferCapacityCalculator();
-			int cntInstall = 0;
-			int cntDelete = 0;
-			int cntBundle = 1;
-			for (FipDelta d : deltaList.list())
+			if (numLanes == 1)
 			{
-				String sourceRelativePath = d.getSourceRelativePath();
-				String destinationRelativePath = d.getDestinationRelativePath();
-				long fileLen = d.getFilesize();
-	
-				// See how much space is required in the buffer
-				long spaceRequiredInBuffer = 0;
-				if (d.getType() == Type.NEW || d.getType() == Type.CHANGE)
-					spaceRequiredInBuffer = bcc.spaceRequiredForUpdate(destinationRelativePath, fileLen);
-				else if (d.getType() == Type.DELETE)
-					spaceRequiredInBuffer = bcc.spaceRequiredForDelete(destinationRelativePath);
-
-
-				// If this update won't fit in the buffer, send what we have so far.
-				BufferStatus willItFit = bcc.willItFit(spaceRequiredInBuffer);
-//zzz += spaceRequiredInBuffer;
-//logger.info("  after2 " + cnt++ + " total is " + zzz + " --- " + bcc.getSpaceUsed());
-				switch (willItFit)
-				{
-				case WILL_FIT:
-					// Cool.
-					break;
-					
-				case WILL_NOT_FIT:
-					// This file won't fit on top of what's already there, so send the buffer, then add it.
-					// Get a list of updates from the source.
-					// Add on the deletes.
-					// Send to the destination server.
-//					int usedInThisBundle = bcc.getSpaceUsed();
-					int used = bcc.getSpaceUsed();
-					logger.info("  Bundle " + cntBundle++ + " (" + sizeFmt(used) + " = " + cntInstall + " installs, " + cntDelete + " deletes)");
-					processUpdatesAndDeletes(source, destination, requestList, destinationUuid, txId, salt, false);
-					cntInstall = 0;
-					cntDelete = 0;
-					
-//					totalSent += bcc.getSpaceUsed();
-					long perc = (100 * totalSent) / estimatedTotalSize;
-					if (verbose)
-						System.out.print("\n  Total sent="+ sizeFmt(totalSent));
-					logger.info("  ..."+perc +"%");
-					if (verbose)
-						logger.info("");
-//logger.info("Total sent so far = "+ totalSent);
-
-					bcc.resetCounter();
-					bcc.willItFit(spaceRequiredInBuffer); // We already know the answer, but this is needed to increment the buffer position.
-					break;
-					
-				case IMPOSSIBLE_TO_SEND_BIGGER_THAN_BUFFER:
-					// This file can never be sent - bomb out
-					throw new FipException("File is too large to be downloaded: " + sourceRelativePath);
-				}
-	
-				// Now add the operation to the buffer
-				if (d.getType() == Type.NEW || d.getType() == Type.CHANGE)
-				{
-					requestList.addRequestForInstall(sourceRelativePath, destinationRelativePath);
-					areChanges = true;
-					totalSent += spaceRequiredInBuffer;
-					cntInstall++;
-				}
-				else if (d.getType() == Type.DELETE)
-				{
-					//NOTE: TO BE SECURE, THIS DELETE MUST BE ADDED TO THE INSTRUCTIONS FROM THE SOURCE SERVER. SO:
-					// 1. THIS PROGRAM MUST SEND A REQUEST TO THE SOURCE SERVER TO ADD THE DELETE COMMAND, SIMILAR TO THE INSTALL OPERATIONS.
-					// 2. THE SOURCE SHOULD CONFIRM THAT THE FILE HAS ACTUALLY BEEN DELETED.
-					requestList.addRequestForDelete(destinationRelativePath);
-					areChanges = true;
-					totalSent += spaceRequiredInBuffer;
-					cntDelete++;
-				}
-				else
+				// Anything left over goes in the same batch as the end of transaction marker
+				lanes[0].sendUpdates(false);
+			}
+			else
+			{
+				Thread[] threads = new Thread[numLanes];
+				for (int i = 0; i < numLanes; i++)
 				{
-					// This should not happen
-					logger.info("WHAT TYPE IS THIS?");
+					final Lane lane = lanes[i];
+					threads[i] = new Thread("fip-lane " + i) {
+						@Override
+						public void run()
+						{
+							try {
+								lane.sendUpdates(true);
+							} catch (Exception e) {
+								lane.error = e;
+							}
+						}
+					};
+					threads[i].start();
 				}
-
+				for (Thread thread : threads)
+					thread.join();
+				for (Lane lane : lanes)
+					if (lane.error != null && !(lane.error instanceof LaneStoppedException))
+						throw lane.error;
 			}
-			
+
+			// The end of transaction marker can only be sent once everything else has been installed
+			FipRequestList requestList = (numLanes == 1) ? lanes[0].requestList : new FipRequestList();
+			requestList.setDestinationVersion(destinationVersion);
+			boolean areChanges = false;
+			for (Lane lane : lanes)
+				areChanges |= lane.areChanges;
 			requestList.addRequestForEndOfTransactionMarker();
 			
 			if (requestList.size() > 0)
 			{
-				int used = bcc.getSpaceUsed();
-				logger.info("  Bundle " + cntBundle++ + " (" + sizeFmt(used) + " = "+ cntInstall + " installs, " + cntDelete + " deletes)");
+				int used = lanes[0].bcc.getSpaceUsed();
+				logger.info("  Bundle " + lanes[0].cntBundle++ + " (" + sizeFmt(used) + " = "+ lanes[0].cntInstall + " installs, " + lanes[0].cntDelete + " deletes)");
 				processUpdatesAndDeletes(source, destination, requestList, destinationUuid, txId, salt, areChanges);
-				bcc.resetCounter();
 //				logger.info("  ...100%");
-				logger.info("Total sent = "+ sizeFmt(totalSent));
+				logger.info("Total sent = "+ sizeFmt(totalSent.get()));
 			}
 		}
 		catch (Exception e)
 		{
+			for (Lane lane : lanes)
+				lane.pipeline.close();
 			try {
 				destination.abortTransaction(txId);
 			} catch (Exception e2) {
@@ -408,6 +625,570 @@ System.out.println("Delta:\n" + deltaDesc);
 		}
 	}
 
+	/**
+	 * Install the files from one source at several destinations. The source is indexed once, and
+	 * compared with each destination. Destinations that need the same changes are sent them together:
+	 * each batch is read (and for remote destinations, compressed) once, sealed for each destination's
+	 * transaction, and installed at all of them at the same time (see {@link FipSharedBatch}).
+	 *
+	 * A destination that fails has it's transaction aborted, without stopping the others. If any
+	 * destinations fail, an exception listing them is thrown once the others have finished.
+	 */
+	public void installFilesToMany(String sourceUrl, Vector<String> destinationUrls, String rulesFile, boolean debugMessages, boolean verbose) throws FipException, IOException, FipCorruptionException
+	{
+		FipServerProxy source = getServerProxy(sourceUrl);
+		
+		// Load the rules
+		if (rulesFile != null && !rulesFile.equals("")) {
+			loadRules(this, rulesFile);
+		}
+		String sourceUuid = source.askForUuid();
+		Vector<Target> targets = new Vector<Target>();
+		for (String destinationUrl : destinationUrls)
+		{
+			Target target = new Target(destinationUrl);
+			targets.add(target);
+			try {
+				target.destination = getServerProxy(destinationUrl);
+			} catch (Exception e) {
+				target.fail(e);
+			}
+		}
+
+		// If the destinations are all known to need a different checksum algorithm, index the source with it
+		String checksumAlgorithm = null;
+		for (int i = 0; i < targets.size(); i++)
+		{
+			Target target = targets.get(i);
+			String known = (target.destination == null) ? null : target.destination.getKnownChecksumAlgorithm();
+			if (i == 0)
+				checksumAlgorithm = known;
+			else if (checksumAlgorithm != null && !checksumAlgorithm.equals(known))
+				checksumAlgorithm = null;
+		}
+		logger.info("Indexing source...");
+		FipList filesAtSource = source.askForFileList(false, checksumAlgorithm);
+		applyRules(filesAtSource);
+
+		// Open a transaction at each destination, and find the changes it needs. Destinations
+		// needing the same changes are grouped together.
+		LinkedHashMap<String, Vector<Target>> groups = new LinkedHashMap<String, Vector<Target>>();
+		for (Target target : targets)
+		{
+			if (target.destination == null)
+				continue;
+			String destinationUrl = target.url;
+			try {
+				NewTransactionReply reply = target.destination.startNewTransaction(sourceUuid);
+				target.destinationUuid = reply.getDestinationUuid();
+				target.txId = reply.getTxId();
+				target.salt = reply.getSalt();
+				target.destinationVersion = reply.getProtocolVersion();
+
+				logger.info("Comparing with " + destinationUrl + "...");
+				target.deltaList = getDeltaUsingFileLists(source, target.destination, filesAtSource, debugMessages);
+				if (target.destinationVersion < FipBatchOfUpdates.FIRST_MINOR_VERSION_WITH_COPIES)
+					target.deltaList.forgetCopies();
+				String deltaDesc = target.deltaList.listDeltas();
+				logger.info("Delta for " + destinationUrl + ":\n" + deltaDesc);
+				if ( !target.deltaList.areChanges())
+				{
+					target.endUnchanged();
+					continue;
+				}
+
+				// Destinations in a group also understand the same operations
+				String key = target.destinationVersion + "\n" + deltaKey(target.deltaList);
+				Vector<Target> group = groups.get(key);
+				if (group == null)
+				{
+					group = new Vector<Target>();
+					groups.put(key, group);
+				}
+				group.add(target);
+			} catch (Exception e) {
+				target.fail(e);
+			}
+		}
+
+		for (Vector<Target> group : groups.values())
+		{
+			if (group.size() > 1)
+				logger.info("Installing at " + group.size() + " destinations together...");
+			installFilesToGroup(source, group, group.get(0).deltaList, verbose);
+		}
+
+		StringBuffer failed = new StringBuffer();
+		for (Target target : targets)
+			if (target.error != null)
+				failed.append("\n  " + target.url + ": " + target.error.toString());
+		if (failed.length() > 0)
+			throw new FipException("Could not install at some destinations:" + failed);
+	}
+
+	/**
+	 * Send the same changes to a group of destinations. Each destination's copy of a file can be
+	 * different, so changes are sent as whole files rather than patches.
+	 */
+	private void installFilesToGroup(final FipServerProxy source, final Vector<Target> group, FipDeltaList deltaList, boolean verbose)
+	{
+		long estimatedTotalSize = estimateTotalSize(deltaList, false);
+		logger.info("Starting transmission...");
+		final ExecutorService executor = Executors.newFixedThreadPool(group.size());
+		FipPipeline.Fetcher fetcher = new FipPipeline.Fetcher() {
+			public FipBatchOfUpdates fetch(FipRequestList requestList) throws FipException, IOException, FipCorruptionException
+			{
+				Vector<String> destinationUuids = new Vector<String>();
+				Vector<String> txIds = new Vector<String>();
+				Vector<String> salts = new Vector<String>();
+				for (Target target : group)
+				{
+					if (target.error != null)
+						continue;
+					destinationUuids.add(target.destinationUuid);
+					txIds.add(target.txId);
+					salts.add(target.salt);
+				}
+				if (destinationUuids.isEmpty())
+					throw new FipException("All the destinations have failed");
+				return source.askForSharedUpdates(requestList, destinationUuids, txIds, salts);
+			}
+		};
+		FipPipeline.Installer installer = new FipPipeline.Installer() {
+			public void install(FipBatchOfUpdates updates) throws FipException
+			{
+				installSharedUpdates((FipSharedBatch) updates, group, executor);
+			}
+		};
+		Lane[] lanes = new Lane[1];
+		FipBufferCapacityCalculator bcc = new FipBufferCapacityCalculator();
+		Lane lane = new Lane(lanes, 0, new FipPipeline(group.get(0).txId, fetcher, installer, bcc, 1), bcc, estimatedTotalSize, new AtomicLong(), false, group.get(0).destinationVersion, verbose);
+		lanes[0] = lane;
+		for (FipDelta d : deltaList.list())
+			lane.deltas.add(d);
+
+		try {
+			// Anything left over goes in the same batch as the end of transaction marker
+			lane.sendUpdates(false);
+			FipRequestList requestList = lane.requestList;
+			requestList.addRequestForEndOfTransactionMarker();
+			int used = lane.bcc.getSpaceUsed();
+			logger.info("  Bundle " + lane.cntBundle++ + " (" + sizeFmt(used) + " = "+ lane.cntInstall + " installs, " + lane.cntDelete + " deletes)");
+			installer.install(fetcher.fetch(requestList));
+			logger.info("Total sent = "+ sizeFmt(lane.totalSent.get()));
+		}
+		catch (Exception e)
+		{
+			lane.pipeline.close();
+			for (Target target : group)
+				target.fail(e);
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Install a batch at each of the destinations in a group that have not failed, at the same time.
+	 * Destinations that fail are dropped from the group, unless they all fail.
+	 */
+	private void installSharedUpdates(final FipSharedBatch batch, Vector<Target> group, ExecutorService executor) throws FipException
+	{
+		Vector<Target> installing = new Vector<Target>();
+		Vector<Future<Void>> results = new Vector<Future<Void>>();
+		for (final Target target : group)
+		{
+			final int destinationNo = (target.error == null) ? batch.indexOf(target.txId) : -1;
+			if (destinationNo < 0)
+				continue;
+			installing.add(target);
+			results.add(executor.submit(new Callable<Void>() {
+				public Void call() throws FipException
+				{
+					target.destination.sendSharedUpdates(target.txId, batch, destinationNo);
+					return null;
+				}
+			}));
+		}
+
+		int installed = 0;
+		for (int i = 0; i < installing.size(); i++)
+		{
+			try {
+				results.get(i).get();
+				installed++;
+			} catch (ExecutionException e) {
+				installing.get(i).fail((e.getCause() instanceof Exception) ? (Exception) e.getCause() : e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new FipException("Interrupted while installing updates");
+			}
+		}
+		if (installed == 0)
+			throw new FipException("Could not install the updates at any of the destinations");
+	}
+
+	/**
+	 * A key that is the same for two lists of changes only if they are the same.
+	 */
+	private static String deltaKey(FipDeltaList deltaList)
+	{
+		StringBuffer key = new StringBuffer();
+		for (FipDelta d : deltaList.list())
+			key.append(d.getType().getCode() + "\0" + d.getSourceRelativePath() + "\0" + d.getDestinationRelativePath() + "\0" + d.getFilesize() + "\0" + d.getChecksum() + "\0" + d.getCopyFromRelativePath() + "\n");
+		return key.toString();
+	}
+
+	/**
+	 * Calculate the approximate total size of the updates for a list of changes. If <code>patches</code>
+	 * is not set, the changes will all be sent as whole files.
+	 */
+	private long estimateTotalSize(FipDeltaList deltaList, boolean patches)
+	{
+		logger.info("Calculating size...");
+		FipBufferCapacityCalculator bcc = new FipBufferCapacityCalculator();
+		long estimatedTotalSize = bcc.spaceRequiredAtStartOfBuffer();
+//int cnt = 1;
+		for (FipDelta d : deltaList.list())
+			estimatedTotalSize += spaceRequiredFor(bcc, d, patches);
+		int estimatedBatches = (int) (estimatedTotalSize / FipBatchOfUpdates.PREFERRED_MAX_TRANSMISSION) + 1;
+		estimatedTotalSize += estimatedBatches * (bcc.spaceRequiredAtStartOfBuffer() + bcc.spaceRequiredForCommit());
+		if (estimatedTotalSize > 5000)
+			logger.info("Estimated total size of updates = "+sizeFmt(estimatedTotalSize));
+		return estimatedTotalSize;
+	}
+
+	/**
+	 * The space a change needs in a batch, before we know if it's contents have already been sent.
+	 */
+	private long spaceRequiredFor(FipBufferCapacityCalculator bcc, FipDelta d, boolean patches)
+	{
+		String destinationRelativePath = d.getDestinationRelativePath();
+		long fileLen = d.getFilesize();
+		if (sendAsPatch(d, patches))
+			return bcc.spaceRequiredForPatch(destinationRelativePath, fileLen);
+		else if (d.getType() == Type.COPY)
+			return bcc.spaceRequiredForCopy(destinationRelativePath, d.getCopyFromRelativePath());
+		else if (d.getType() == Type.NEW || d.getType() == Type.CHANGE)
+			return bcc.spaceRequiredForUpdate(destinationRelativePath, fileLen);
+		else if (d.getType() == Type.DELETE)
+			return bcc.spaceRequiredForDelete(destinationRelativePath);
+		return 0;
+	}
+
+	/**
+	 * The lane a change is sent in. Files with the same contents always go in the same lane.
+	 */
+	private static int laneFor(FipDelta d, int numLanes)
+	{
+		String key = (d.getChecksum() == null) ? d.getDestinationRelativePath() : FipDeltaList.contentKey(d.getFilesize(), d.getChecksum());
+		return (key.hashCode() & 0x7fffffff) % numLanes;
+	}
+
+	/**
+	 * Thrown in a lane when it stops because another lane has failed.
+	 */
+	private static class LaneStoppedException extends FipException
+	{
+		private static final long serialVersionUID = 1L;
+
+		LaneStoppedException()
+		{
+			super("Stopped because another lane failed");
+		}
+	}
+
+	/**
+	 * One of the destinations when installing at several, and it's transaction.
+	 */
+	private static class Target
+	{
+		private String url;
+		private FipServerProxy destination = null;
+		private String destinationUuid;
+		private String txId = null;
+		private String salt;
+		private int destinationVersion;
+		private FipDeltaList deltaList;
+		private volatile Exception error = null;
+
+		Target(String url)
+		{
+			this.url = url;
+		}
+
+		/**
+		 * Stop installing at this destination, and abort it's transaction.
+		 */
+		synchronized void fail(Exception e)
+		{
+			if (error != null)
+				return;
+			error = e;
+			logger.error("Installing at " + url + " failed: " + e.toString());
+			if (txId == null)
+				return;
+			try {
+				destination.abortTransaction(txId);
+			} catch (Exception e2) {
+				logger.error("Unable to abort transaction at " + url);
+			}
+		}
+
+		/**
+		 * Nothing needs to be installed at this destination, so it's transaction is not needed.
+		 */
+		void endUnchanged()
+		{
+			try {
+				destination.abortTransaction(txId);
+			} catch (Exception e) {
+				logger.error("Unable to end transaction at " + url + ": " + e.toString());
+			}
+		}
+	}
+
+	/**
+	 * A share of the changes, sent in batches of their own. Each lane has it's own pipeline, and
+	 * fetches and installs it's batches independently of the other lanes.
+	 */
+	private class Lane
+	{
+		private Lane[] lanes;
+		private String name;
+		private FipPipeline pipeline;
+		private long estimatedTotalSize;
+		private AtomicLong totalSent;
+		private boolean patches;
+		private boolean references;
+		private boolean ranges;
+		private boolean verbose;
+		private Vector<FipDelta> deltas = new Vector<FipDelta>();
+		private FipRequestList requestList = new FipRequestList();
+		private FipBufferCapacityCalculator bcc;
+		private int cntInstall = 0;
+		private int cntDelete = 0;
+		private int cntBundle = 1;
+		private boolean areChanges = false;
+		private volatile Exception error = null;
+
+		// Files sent in this transaction, by their size and checksum. A file with the same contents as one
+		// already sent is installed from the earlier file, rather than the contents being sent again.
+		private HashMap<String, String> sentFiles = new HashMap<String, String>();
+
+		/**
+		 * Changes are only sent as patches if <code>patches</code> is set, and files are only installed from
+		 * earlier files or sent in parts if the destination's version understands those operations.
+		 */
+		Lane(Lane[] lanes, int laneNo, FipPipeline pipeline, FipBufferCapacityCalculator bcc, long estimatedTotalSize, AtomicLong totalSent, boolean patches, int destinationVersion, boolean verbose)
+		{
+			this.lanes = lanes;
+			this.name = (lanes.length == 1) ? "Bundle " : "Lane " + laneNo + ", bundle ";
+			this.pipeline = pipeline;
+			this.bcc = bcc;
+			this.estimatedTotalSize = estimatedTotalSize;
+			this.totalSent = totalSent;
+			this.patches = patches;
+			this.references = (destinationVersion >= FipBatchOfUpdates.FIRST_MINOR_VERSION_WITH_REFERENCES);
+			this.ranges = (destinationVersion >= FipBatchOfUpdates.FIRST_MINOR_VERSION_WITH_RANGES);
+			this.verbose = verbose;
+			requestList.setDestinationVersion(destinationVersion);
+		}
+
+		/**
+		 * Loop around, getting updates from the source and sending them to the destination, until there
+		 * are none left. If <code>sendLastBatch</code> is not set, the requests that did not fill a batch are
+		 * left in the request list. The changes are sent in the order that fills each batch best (see
+		 * {@link FipDeltaPacker}).
+		 */
+		void sendUpdates(boolean sendLastBatch) throws FipException, IOException, FipCorruptionException
+		{
+			try {
+				FipDeltaPacker packer = new FipDeltaPacker();
+				for (FipDelta d : deltas)
+					packer.add(d, spaceRequiredFor(bcc, d, patches));
+				for (FipDelta d = packer.next(bcc.getSpaceLeft()); d != null; d = packer.next(bcc.getSpaceLeft()))
+				{
+					for (Lane lane : lanes)
+						if (lane.error != null)
+							throw new LaneStoppedException();
+
+					String sourceRelativePath = d.getSourceRelativePath();
+					String destinationRelativePath = d.getDestinationRelativePath();
+					long fileLen = d.getFilesize();
+	
+					// See if the same contents have already been sent
+					String contentKey = (d.getChecksum() == null) ? null : FipDeltaList.contentKey(fileLen, d.getChecksum());
+					String earlierDestinationRelativePath = null;
+					if (references && contentKey != null && (d.getType() == Type.NEW || d.getType() == Type.CHANGE))
+					{
+						earlierDestinationRelativePath = sentFiles.get(contentKey);
+						if (earlierDestinationRelativePath != null && fileLen <= bcc.spaceRequiredForCopy(destinationRelativePath, earlierDestinationRelativePath))
+							earlierDestinationRelativePath = null;
+					}
+
+					// A changed file is sent as the changes to the destination's copy, however large it is
+					boolean patch = (earlierDestinationRelativePath == null) && sendAsPatch(d, patches);
+
+					// Any other file too large for a batch is sent in parts, each in it's own batch
+					if (ranges && earlierDestinationRelativePath == null && !patch && (d.getType() == Type.NEW || d.getType() == Type.CHANGE) && bcc.needsRanges(destinationRelativePath, fileLen))
+					{
+						if (requestList.size() > 0)
+						{
+							int used = bcc.getSpaceUsed();
+							logger.info("  " + name + cntBundle++ + " (" + sizeFmt(used) + " = " + cntInstall + " installs, " + cntDelete + " deletes)");
+							pipeline.send(requestList, false);
+							requestList.clear();
+							cntInstall = 0;
+							cntDelete = 0;
+						}
+						for (long offset = 0; offset < fileLen; )
+						{
+							// The size of each part follows the target size of a batch
+							int rangeLength = (int) Math.min(bcc.getRangeLength(), fileLen - offset);
+							long spaceRequiredForRange = bcc.spaceRequiredForRange(destinationRelativePath, rangeLength);
+							requestList.addRequestForRange(sourceRelativePath, destinationRelativePath, offset, rangeLength);
+							logger.info("  " + name + cntBundle++ + " (" + sizeFmt(spaceRequiredForRange) + " = part of " + destinationRelativePath + ")");
+							pipeline.send(requestList, true);
+							requestList.clear();
+							totalSent.addAndGet(spaceRequiredForRange);
+							logger.info("  ..."+((100 * totalSent.get()) / estimatedTotalSize) +"%");
+							offset += rangeLength;
+						}
+						bcc.resetCounter();
+						areChanges = true;
+
+						// Remember where these contents were installed
+						if (contentKey != null && !sentFiles.containsKey(contentKey))
+							sentFiles.put(contentKey, destinationRelativePath);
+						continue;
+					}
+
+					// See how much space is required in the buffer
+					long spaceRequiredInBuffer = 0;
+					if (earlierDestinationRelativePath != null)
+						spaceRequiredInBuffer = bcc.spaceRequiredForCopy(destinationRelativePath, earlierDestinationRelativePath);
+					else if (patch)
+						spaceRequiredInBuffer = bcc.spaceRequiredForPatch(destinationRelativePath, fileLen);
+					else if (d.getType() == Type.COPY)
+						spaceRequiredInBuffer = bcc.spaceRequiredForCopy(destinationRelativePath, d.getCopyFromRelativePath());
+					else if (d.getType() == Type.NEW || d.getType() == Type.CHANGE)
+						spaceRequiredInBuffer = bcc.spaceRequiredForUpdate(destinationRelativePath, fileLen);
+					else if (d.getType() == Type.DELETE)
+						spaceRequiredInBuffer = bcc.spaceRequiredForDelete(destinationRelativePath);
+
+
+					// If this update won't fit in the buffer, send what we have so far.
+					BufferStatus willItFit = bcc.willItFit(spaceRequiredInBuffer);
+	//zzz += spaceRequiredInBuffer;
+	//logger.info("  after2 " + cnt++ + " total is " + zzz + " --- " + bcc.getSpaceUsed());
+					switch (willItFit)
+					{
+					case WILL_FIT:
+						// Cool.
+						break;
+					
+					case WILL_NOT_FIT:
+						// This file won't fit on top of what's already there, so send the buffer, then add it.
+						// Get a list of updates from the source.
+						// Add on the deletes.
+						// Send to the destination server.
+	//					int usedInThisBundle = bcc.getSpaceUsed();
+						int used = bcc.getSpaceUsed();
+						logger.info("  " + name + cntBundle++ + " (" + sizeFmt(used) + " = " + cntInstall + " installs, " + cntDelete + " deletes)");
+						pipeline.send(requestList, false);
+						requestList.clear();
+						cntInstall = 0;
+						cntDelete = 0;
+					
+	//					totalSent += bcc.getSpaceUsed();
+						long perc = (100 * totalSent.get()) / estimatedTotalSize;
+						if (verbose)
+							System.out.print("\n  Total sent="+ sizeFmt(totalSent.get()));
+						logger.info("  ..."+perc +"%");
+						if (verbose)
+							logger.info("");
+	//logger.info("Total sent so far = "+ totalSent);
+
+						bcc.resetCounter();
+						bcc.willItFit(spaceRequiredInBuffer); // We already know the answer, but this is needed to increment the buffer position.
+						break;
+					
+					case IMPOSSIBLE_TO_SEND_BIGGER_THAN_BUFFER:
+						// This file can never be sent - bomb out
+						throw new FipException("File is too large to be downloaded: " + sourceRelativePath);
+					}
+	
+					// Now add the operation to the buffer
+					if (earlierDestinationRelativePath != null)
+					{
+						requestList.addRequestForReference(sourceRelativePath, destinationRelativePath, earlierDestinationRelativePath);
+						areChanges = true;
+						totalSent.addAndGet(spaceRequiredInBuffer);
+						cntInstall++;
+					}
+					else if (patch)
+					{
+						requestList.addRequestForPatch(sourceRelativePath, destinationRelativePath);
+						areChanges = true;
+						totalSent.addAndGet(spaceRequiredInBuffer);
+						cntInstall++;
+					}
+					else if (d.getType() == Type.COPY)
+					{
+						requestList.addRequestForCopy(sourceRelativePath, destinationRelativePath, d.getCopyFromRelativePath());
+						areChanges = true;
+						totalSent.addAndGet(spaceRequiredInBuffer);
+						cntInstall++;
+					}
+					else if (d.getType() == Type.NEW || d.getType() == Type.CHANGE)
+					{
+						requestList.addRequestForInstall(sourceRelativePath, destinationRelativePath);
+						areChanges = true;
+						totalSent.addAndGet(spaceRequiredInBuffer);
+						cntInstall++;
+					}
+					else if (d.getType() == Type.DELETE)
+					{
+						//NOTE: TO BE SECURE, THIS DELETE MUST BE ADDED TO THE INSTRUCTIONS FROM THE SOURCE SERVER. SO:
+						// 1. THIS PROGRAM MUST SEND A REQUEST TO THE SOURCE SERVER TO ADD THE DELETE COMMAND, SIMILAR TO THE INSTALL OPERATIONS.
+						// 2. THE SOURCE SHOULD CONFIRM THAT THE FILE HAS ACTUALLY BEEN DELETED.
+						requestList.addRequestForDelete(destinationRelativePath);
+						areChanges = true;
+						totalSent.addAndGet(spaceRequiredInBuffer);
+						cntDelete++;
+					}
+					else
+					{
+						// This should not happen
+						logger.info("WHAT TYPE IS THIS?");
+					}
+
+					// Remember where these contents were installed
+					if (contentKey != null && d.getType() != Type.DELETE && !sentFiles.containsKey(contentKey))
+						sentFiles.put(contentKey, destinationRelativePath);
+
+				}
+			
+
+				if (sendLastBatch && requestList.size() > 0)
+				{
+					int used = bcc.getSpaceUsed();
+					logger.info("  " + name + cntBundle++ + " (" + sizeFmt(used) + " = " + cntInstall + " installs, " + cntDelete + " deletes)");
+					pipeline.send(requestList, false);
+					requestList.clear();
+					cntInstall = 0;
+					cntDelete = 0;
+					bcc.resetCounter();
+				}
+				pipeline.finish();
+			} finally {
+				pipeline.close();
+			}
+		}
+	}
+
 	private void loadRules(Fip fip, String rulesFile) throws FipException {
 		
 		try{
@@ -585,7 +1366,9 @@ System.out.println("Delta:\n" + deltaDesc);
 			File dir = new File(url);
 			if ( !dir.exists() || !dir.isDirectory())
 				throw new FipException("Unknown directory " + url);
-			return new FipThisMachineServerProxy(url);
+			FipThisMachineServerProxy proxy = new FipThisMachineServerProxy(url);
+			proxy.setIndexParallelism(indexParallelism);
+			return proxy;
 		}
 	}
 
@@ -596,18 +1379,63 @@ System.out.println("Delta:\n" + deltaDesc);
 	 * Step 1 - send the request list to the source
 	 * Step 2 - send the updates returned by the source to the destination.
 	 */
+	/**
+	 * Should a delta be sent as the changes to the destination's copy of the file? Never if
+	 * <code>patches</code> is not set, or if the file is too large to be mapped into memory.
+	 */
+	private boolean sendAsPatch(FipDelta d, boolean patches)
+	{
+		return patches && deltaTransfer && d.getType() == Type.CHANGE && d.getFilesize() >= MIN_PATCH_SIZE && d.getFilesize() <= Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Ask the destination for the signatures of the files to be sent as changes. If the destination
+	 * does not have a file, or can't provide signatures, the whole file is sent instead.
+	 */
+	private void addBlockSignatures(FipServerProxy destination, FipRequestList requestList)
+	{
+		Vector<String> paths = new Vector<String>();
+		for (FipRequest request : requestList.list())
+			if (request.getType() == RequestType.PATCH)
+				paths.add(request.getDestinationRelativePath());
+		if (paths.isEmpty())
+			return;
+
+		HashMap<String, FipBlockSignatures> signatures = new HashMap<String, FipBlockSignatures>();
+		try {
+			for (FipBlockSignatures s : destination.askForBlockSignatures(paths))
+				signatures.put(s.getRelativePath(), s);
+		} catch (FipException e) {
+			logger.info("The destination cannot provide block signatures, so whole files will be sent.");
+			deltaTransfer = false;
+		}
+		for (FipRequest request : requestList.list())
+			if (request.getType() == RequestType.PATCH)
+				request.setSignatures(signatures.get(request.getDestinationRelativePath()));
+	}
+
+	/**
+	 * Get the updates for a list of requests from the source.
+	 */
+	private FipBatchOfUpdates fetchUpdates(FipServerProxy source, FipServerProxy destination, FipRequestList requestList, String destinationUuid, String txId, String salt) throws FipException, IOException, FipCorruptionException
+	{
+		// Files being sent as changes need the destination's signatures
+		addBlockSignatures(destination, requestList);
+
+		if (requestList.size() > 0)
+			return source.askForUpdates(requestList, destinationUuid, txId, salt);
+		return new FipBatchOfUpdates();
+	}
+
 	private void processUpdatesAndDeletes(FipServerProxy source, FipServerProxy destination, FipRequestList requestList, String destinationUuid, String txId, String salt, boolean commitWillBeRequired) throws FipException, IOException, FipCorruptionException
 	{
 		// Get the actual updates from the source
-		FipBatchOfUpdates updateInstructions;
-		if (requestList.size() > 0)
-			updateInstructions = source.askForUpdates(requestList, destinationUuid, txId, salt);
-		else
-			updateInstructions = new FipBatchOfUpdates();
+		FipBatchOfUpdates updateInstructions = fetchUpdates(source, destination, requestList, destinationUuid, txId, salt);
 		
 		// Send this list of changes to the destination.
 		if (commitWillBeRequired || requestList.size() > 0)
 			destination.sendUpdates(txId, updateInstructions);
+		updateInstructions.release();
 		
 		// Reset the request list, and the download-buffer-size counter
 		requestList.clear();
@@ -651,30 +1479,17 @@ System.out.println("Delta:\n" + deltaDesc);
 	{
     	ZipInputStream zip = new ZipInputStream(is);
     	try {
-	    	for ( ; ; )
-	    	{
-	    		ZipEntry entry = zip.getNextEntry();
-	    		if (entry == null)
-	    			break;
-	    		String filePath = entry.getName();
-	    		if ( !filePath.equals(partName))
-	    			continue;
-	    		
-	    		// Found the right entry, read it now.
-	    		byte[] buf = new byte[4096];
-	    		ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-	    		for ( ; ; )
-	    		{
-		    		int len = zip.read(buf);
-	    			if (len <= 0)
-	    				break;
-	    			byteArrayOutputStream.write(buf, 0, len);
-	    		}
-    		
-	    		// Convert the buffer to a file list 
-	    		return byteArrayOutputStream.toByteArray();
-	    	}
-	    	throw new FipException("Zipped content does not contain expected entry '" + partName + "'");
+    		ZipEntry entry = findEntry(zip, partName);
+
+    		// If the size is known, read it straight into an array of the right size
+    		long size = entry.getSize();
+    		if (size >= 0 && size <= Integer.MAX_VALUE)
+    		{
+    			byte[] data = new byte[(int) size];
+    			readEntry(zip, data, (int) size);
+    			return data;
+    		}
+    		return readEntry(zip);
     	} catch (IOException e) {
 	    	throw new FipException("Error unzipping: " + e.toString());
 		} finally {
@@ -682,43 +1497,107 @@ System.out.println("Delta:\n" + deltaDesc);
 		}
 
 	}
-	
-	public static byte[] zipIt(byte[] byteArray, int length) throws IOException
+
+	/**
+	 * Unzip a batch of updates. If the size of the batch is in the zip (see {@link FipZip}), it is
+	 * read straight into the buffer of a batch that has been released, rather than a new array.
+	 */
+	public static FipBatchOfUpdates unzipBatch(InputStream is) throws FipException
 	{
-		// Zip this buffer
-		ByteArrayOutputStream os = new ByteArrayOutputStream();
-		ZipOutputStream zipoutputstream = new ZipOutputStream(os);
-		zipoutputstream.setMethod(ZipOutputStream.DEFLATED); // compressed
-	
-		// Add a single entry to the ZIP
+    	ZipInputStream zip = new ZipInputStream(is);
+    	try {
+    		ZipEntry entry = findEntry(zip, FipZip.ENTRY_NAME);
+    		long size = entry.getSize();
+    		if (size < 0)
+    			return new FipBatchOfUpdates(readEntry(zip));
+    		if (size > FipBatchOfUpdates.MAXIMUM_LENGTH)
+    			throw new FipException("Batch of updates is too large (" + size + " bytes)");
+    		byte[] data = FipBatchOfUpdates.spareBuffer((int) size);
+    		readEntry(zip, data, (int) size);
+    		return new FipBatchOfUpdates(data, (int) size);
+    	} catch (IOException e) {
+	    	throw new FipException("Error unzipping: " + e.toString());
+		} finally {
+			try { zip.close(); } catch (Exception e) { /* can't do much about it */ }
+		}
+	}
+
+	private static ZipEntry findEntry(ZipInputStream zip, String partName) throws IOException, FipException
+	{
+    	for ( ; ; )
+    	{
+    		ZipEntry entry = zip.getNextEntry();
+    		if (entry == null)
+    			break;
+    		String filePath = entry.getName();
+    		if (filePath.equals(partName))
+    			return entry;
+    	}
+    	throw new FipException("Zipped content does not contain expected entry '" + partName + "'");
+	}
+
+	/**
+	 * Read an entry of unknown size.
+	 */
+	private static byte[] readEntry(ZipInputStream zip) throws IOException
+	{
+		byte[] buf = new byte[4096];
+		ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+		for ( ; ; )
 		{
-			// Calculate the CRC-32 value.  This isn't strictly necessary
-			//   for deflated entries, but it doesn't hurt.
-			CRC32 crc32 = new CRC32();
-			crc32.update(byteArray, 0, length);
-	
-			// Create a zip entry.
-			ZipEntry zipentry = new ZipEntry("data");
-			zipentry.setSize(length);
-			zipentry.setTime(System.currentTimeMillis());
-			zipentry.setCrc(crc32.getValue());
-	
-			// Add the zip entry and associated data.
-			zipoutputstream.putNextEntry(zipentry);
-			zipoutputstream.write(byteArray, 0, length);
-			zipoutputstream.closeEntry();
+    		int len = zip.read(buf);
+			if (len <= 0)
+				break;
+			byteArrayOutputStream.write(buf, 0, len);
 		}
+		return byteArrayOutputStream.toByteArray();
+	}
+
+	/**
+	 * Read an entry of a known size. Reading past the end makes the zip check the entry's CRC.
+	 */
+	private static void readEntry(ZipInputStream zip, byte[] data, int size) throws IOException, FipException
+	{
+		for (int pos = 0; pos < size; )
+		{
+			int len = zip.read(data, pos, size - pos);
+			if (len < 0)
+				throw new FipException("Zipped content is shorter than expected");
+			pos += len;
+		}
+		if (zip.read() >= 0)
+			throw new FipException("Zipped content is longer than expected");
+	}
 	
-		// Return the ZIP
-		zipoutputstream.close();
-		os.close();
-		return os.toByteArray();
+	public static byte[] zipIt(byte[] byteArray, int length) throws IOException
+	{
+		return zipIt(byteArray, length, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * Zip a buffer at a given compression level. Contents that are already compressed can use
+	 * <code>Deflater.NO_COMPRESSION</code>, so they are only wrapped in the zip.
+	 */
+	public static byte[] zipIt(byte[] byteArray, int length, int level) throws IOException
+	{
+		FipZip zip = new FipZip();
+		zip.zip(byteArray, length, level);
+		return zip.toByteArray();
 	}
 
 	/**
 	 * Prepare the index in a source or destination directory.
 	 */
 	public static void prepareIndex(String rootDirectory, boolean verbose) throws IOException, FipCorruptionException, FipException
+	{
+		prepareIndex(rootDirectory, verbose, FipList.defaultIndexParallelism());
+	}
+
+	/**
+	 * Prepare the index in a source or destination directory, walking the directory with
+	 * the specified number of threads.
+	 */
+	public static void prepareIndex(String rootDirectory, boolean verbose, int parallelism) throws IOException, FipCorruptionException, FipException
 	{
 		// Get the file list
 		File rootDir = new File(rootDirectory);
@@ -731,16 +1610,32 @@ System.out.println("Delta:\n" + deltaDesc);
 		logger.info("Loading existing index...");
 		long time1 = System.currentTimeMillis();
 		FipList list = FipList.loadListFromFile(rootDir);
+		FipChecksum checksumAlgorithm = FipChecksum.getConfigured();
+		if (checksumAlgorithm != null)
+			list.useChecksumAlgorithm(checksumAlgorithm);
 		long time2 = System.currentTimeMillis();
 		long duration1 = time2 - time1;
 		logger.info(" - loaded " + list.numFiles() + " files in " + duration1 + "ms.");
-		logger.info("Updating index...");
+		logger.info("Updating index (" + parallelism + " threads)...");
 		long time3 = System.currentTimeMillis();
-		list.syncWithRealFiles(rootDir);
+		list.syncWithRealFiles(rootDir, parallelism);
 		long time4 = System.currentTimeMillis();
 		long duration2 = time4 - time3;
 		logger.info(" - updated " + list.numFiles() + " files in " + duration2 + "ms.");
 		
+		// Show the hashing throughput
+		long filesHashed = list.getFilesHashed();
+		long bytesHashed = list.getBytesHashed();
+		long hashingTime = list.getHashingTime();
+		if (filesHashed > 0)
+		{
+			double seconds = Math.max(hashingTime, 1) / 1000.0;
+			DecimalFormat format = new DecimalFormat("######0.0");
+			logger.info(" - hashed " + filesHashed + " files (" + format.format(bytesHashed / (1024.0 * 1024.0)) + "mb) in " + hashingTime + "ms: "
+					+ format.format(filesHashed / seconds) + " files/s, "
+					+ format.format(bytesHashed / (1024.0 * 1024.0) / seconds) + " mb/s.");
+		}
+		
 		long duration3 = duration1 + duration2;
 		Runtime runtime = Runtime.getRuntime();
 		long totalMemory = runtime.totalMemory() / 1024;
@@ -750,18 +1645,55 @@ System.out.println("Delta:\n" + deltaDesc);
 				+ "," + totalMemory + "/" + maxMemory);
 	}
 
+	/**
+	 * Run as an agent, keeping the index of a local directory up to date as files change. Other
+	 * FIP commands can then use the index without checking the files. This does not return.
+	 */
+	public static void runAgent(String rootDirectory, int parallelism) throws IOException, FipCorruptionException, FipException
+	{
+		File rootDir = new File(rootDirectory);
+		if ( !rootDir.exists() || !rootDir.isDirectory())
+		{
+			logger.error("Unknown source or destination folder: " + rootDirectory);
+			System.exit(1);
+		}
+
+		logger.info("Indexing " + rootDirectory + " (" + parallelism + " threads)...");
+		final FipLiveIndex liveIndex = new FipLiveIndex(rootDir, parallelism, true);
+		liveIndex.start();
+		FipChecksum checksumAlgorithm = FipChecksum.getConfigured();
+		if (checksumAlgorithm != null)
+			liveIndex.getFileList(checksumAlgorithm.getName());
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run()
+			{
+				liveIndex.stop();
+			}
+		});
+		logger.info("Watching " + rootDirectory + " for changes.");
+		try {
+			liveIndex.join();
+		} catch (InterruptedException e) {
+			liveIndex.stop();
+		}
+	}
+
 	public static void usage()
 	{
-		System.err.println("usage: fip [-l -v -p] source destination");
+		System.err.println("usage: fip [-l -v -p] [-t threads] source destination");
+		System.err.println("       fip [-v -p] [-t threads] source destination destination...");
 		System.err.println("       fip -s destination");
 		System.err.println("       fip -c destination");
 		System.err.println("       fip -a destination");
-		System.err.println("       fip -i location");
+		System.err.println("       fip -i [-t threads] location");
+		System.err.println("       fip -d [-t threads] location");
 		System.err.println("       fip -V");
 		System.err.println("");
 		System.err.println("  The 'source' and 'destination' locations can be either:");
 		System.err.println("   - the path of a directory on the current machine, or");
 		System.err.println("   - a URL similar to server1.acme.com:40001/home/slot1/server.");
+		System.err.println("  Destinations needing the same changes are sent them together.");
 		System.err.println("");
 		System.err.println("Options:");
 		System.err.println("  -l  List updates, but do not perform them on the destination.");
@@ -769,8 +1701,10 @@ System.out.println("Delta:\n" + deltaDesc);
 		System.err.println("  -s  Show the status, in particular, any previously incompleted transaction.");
 		System.err.println("  -i  Prepare the index but do not copy files (only on local machine).");
 		System.err.println("  -p  Use the index pre-prepared using the -i option.");
+		System.err.println("  -d  Run as an agent, keeping the index of a local directory up to date.");
 		System.err.println("  -c  Commit the current transaction");
 		System.err.println("  -a  Abort the current transaction");
+		System.err.println("  -t  Number of threads used to index directories on this machine.");
 		System.err.println("  -V  Show the version number");
 		System.exit(1);
 	}
@@ -792,11 +1726,13 @@ System.out.println("Delta:\n" + deltaDesc);
 		boolean listOnly = false;
 		boolean statusOnly = false;
 		boolean indexOnly = false;
+		boolean agentMode = false;
 		boolean preparedIndex = false; // Don't re-index
 //		boolean abortFlag = false;
 //		boolean commitFlag = false;
 		boolean debugMessages = false;
 		String rulesFile = null;
+		int indexParallelism = FipList.defaultIndexParallelism();
 		int numArgs = args.length;
 		int cntarg = 0;
 		int cntExclusiveArgs = 0;
@@ -812,6 +1748,20 @@ System.out.println("Delta:\n" + deltaDesc);
 				continue;
 			}
 
+			if (arg.equals("-t")) {// Number of indexing threads
+				cntarg++;
+				if (cntarg >= args.length)
+					usage();
+				try {
+					indexParallelism = Integer.parseInt(args[cntarg]);
+				} catch (NumberFormatException e) {
+					usage();
+				}
+				if (indexParallelism < 1)
+					usage();
+				continue;
+			}
+
 			
 			
 			
@@ -842,6 +1792,10 @@ System.out.println("Delta:\n" + deltaDesc);
                     indexOnly = true;
                     cntExclusiveArgs++;
                     break;
+                case 'd':
+                    agentMode = true;
+                    cntExclusiveArgs++;
+                    break;
                 case 'V':
    					logger.info("FIP version " + MAJOR_VERSION_NUMBER + "." + MINOR_VERSION_NUMBER);
    					System.exit(0);
@@ -864,6 +1818,7 @@ System.out.println("Delta:\n" + deltaDesc);
 
 		try {
 			Fip fip = new Fip();
+			fip.setIndexParallelism(indexParallelism);
 			if (statusOnly)
 			{
 				// Show the destaination's status
@@ -878,7 +1833,14 @@ System.out.println("Delta:\n" + deltaDesc);
 				if (numRemainingArgs != 1)
 					usage();
 				String localDirectory = args[cntarg];
-				prepareIndex(localDirectory, verbose);
+				prepareIndex(localDirectory, verbose, indexParallelism);
+			}
+			else if (agentMode)
+			{
+				if (numRemainingArgs != 1)
+					usage();
+				String localDirectory = args[cntarg];
+				runAgent(localDirectory, indexParallelism);
 			}
 //			else if (commitFlag)
 //			{
@@ -908,8 +1870,19 @@ System.out.println("Delta:\n" + deltaDesc);
 			else
 			{
 				// Normal transfer (default is to commit after all files are transferred)
-				if (numRemainingArgs != 2)
+				if (numRemainingArgs < 2 || (listOnly && numRemainingArgs > 2))
 					usage();
+				if (numRemainingArgs > 2)
+				{
+					String sourceUrl = args[cntarg];
+					Vector<String> destinationUrls = new Vector<String>();
+					for (int i = cntarg + 1; i < numArgs; i++)
+						destinationUrls.add(args[i]);
+					logger.info("Installing from " + sourceUrl + " to " + destinationUrls.size() + " destinations");
+					fip.installFilesToMany(sourceUrl, destinationUrls, rulesFile, debugMessages, verbose);
+					logger.info("Finished");
+					return;
+				}
 				String sourceUrl = args[cntarg];
 				String destinationUrl = args[cntarg + 1];
 	//sourceUrl = "/Controller/launchpads/test_webdesign/image";
@@ -1,15 +1,28 @@
 package tooltwist.fip;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
+import java.util.Vector;
 
 /**
  * This class is used to create batches of updates to be sent from the source
  * through to the destination. These updates are pushed into a byte buffer
  * which is later unpacked by class {@link FipServer_updateExecuter}.
+ *
+ * The buffer starts small and grows as updates are added, up to {@link #BUFFER_LENGTH}.
+ * Alternatively a batch can be written straight to an OutputStream as it is created (use
+ * <code>Channels.newOutputStream</code> for a channel), in which case only a small window
+ * is held in memory, and the seal is calculated as the data is written. The end of batch
+ * marker is then only written when the batch is sealed.
  * 
  * @author philipcallender
  *
@@ -28,12 +41,21 @@ public class FipBatchOfUpdates
 	public static final byte OP_COMMIT_TRANSACTION = 0x54;
 	public static final byte OP_ABORT_TRANSACTION = 0x55;
 	public static final byte OP_REQUEST_FILE = 0x71;
+	public static final byte OP_PATCH_FILE = 0x59;
+	public static final byte PATCH_END = 0x00;
+	public static final byte PATCH_COPY = 0x01;
+	public static final byte PATCH_LITERAL = 0x02;
+	public static final byte OP_COPY_FILE = 0x5a;
+	public static final byte OP_REFERENCE_FILE = 0x5c;
+	public static final byte OP_INSTALL_RANGE = 0x5d;
+	public static final byte OP_INSTALL_COMPRESSED = 0x5e;
 	public static final byte MAGIC_BEFORE_STRING = -0x7a;
 	public static final byte MAGIC_AFTER_STRING = 0x56;
 	public static final byte MAGIC_BEFORE_FILE_CONTENTS = -0x12;
 	public static final byte MAGIC_AFTER_FILE_CONTENTS = -0x57;
 	public static final byte MAGIC_AFTER_DELETE = 0x72;
 	public static final byte MAGIC_AFTER_REQUEST = 0x58;
+	public static final byte MAGIC_AFTER_COPY = 0x5b;
 	public static final int SEAL_LENGTH = 20; // The length of a SHA-1 hash placed on the end of the buffer
 	
 	// Return values
@@ -42,16 +64,43 @@ public class FipBatchOfUpdates
 	// Recommended
 	static int BUFFER_LENGTH = 50 * 1024 * 1024; // 50mb - absolute maximum file size.
 	static final int SMALL_ENOUGH_TO_PUT_BIG_FILE_ON_TOP = 100 * 1024; // If the amount in the buffer it's less than this, it's not really worth sending by itself.
-	static final int PREFERRED_MAX_TRANSMISSION = 1024*1024 * 8;	// 8mb - we'll try to keep the amount sent in each call to the server somewhere around this number.
+	static final int PREFERRED_MAX_TRANSMISSION = 1024*1024 * 8;	// 8mb - the size we start aiming for in each call to the server (see FipBufferCapacityCalculator).
 //	private static final int SMALL_ENOUGH_TO_PUT_BIG_FILE_ON_TOP = 10000;
 //	private static final int PREFERRED_MAX_TRANSMISSION = 100000;
 	protected static final byte FLAG_EXECUTABLE = 0x01;
 
-	private byte[] buf = new byte[BUFFER_LENGTH + 100000]; // An array of buffers. ZOZ Added extra to prevent crash
+	// The first minor version of destinations that understand each of the later operations
+	static final byte FIRST_MINOR_VERSION_WITH_PATCHES = 0x06; // OP_PATCH_FILE
+	static final byte FIRST_MINOR_VERSION_WITH_COPIES = 0x07; // OP_COPY_FILE
+	static final byte FIRST_MINOR_VERSION_WITH_REFERENCES = 0x08; // OP_REFERENCE_FILE
+	static final byte FIRST_MINOR_VERSION_WITH_RANGES = 0x0a; // OP_INSTALL_RANGE
+	static final byte FIRST_MINOR_VERSION_WITH_CODECS = 0x0a; // OP_INSTALL_COMPRESSED (see FipCodec)
+
+	private static final int INITIAL_BUFFER_LENGTH = 64 * 1024;
+	static final int MAXIMUM_LENGTH = BUFFER_LENGTH + 100000; // ZOZ Added extra to prevent crash
+	private static final int STREAM_WINDOW = 64 * 1024;
+	private static final int HEADER_LENGTH = 4;
+
+	// Buffers of batches that have been released, ready to be used for the next batch
+	private static final int MAX_SPARE_BUFFERS = 4;
+	private static final int RETAINED_BUFFER_LENGTH = PREFERRED_MAX_TRANSMISSION * 2;
+	private static Vector<byte[]> spareBuffers = new Vector<byte[]>();
+
+	private byte[] buf = null;
 	private int nextPos = 0;
+
+	// The digest for the seal is calculated as the updates are added, except for the terminator
+	private MessageDigest sealDigest = null;
+
+	// When writing to a stream, the terminator is not written until the batch is sealed
+	private OutputStream out = null;
+	private boolean terminated = false;
 	private int numInstallsInBuffer = 0;
 	private int numDeletesInBuffer = 0;
 	private boolean bufferIsSealed = false;
+
+	// File contents added without being compressed, that have not been judged incompressible
+	private long compressibleBytes = 0;
 	
 
 	protected FipBatchOfUpdates() throws FipException
@@ -62,43 +111,199 @@ public class FipBatchOfUpdates
 		initializeEmptyBuffer();
 	}
 	
+	/**
+	 * Wrap a batch that has been received. The array is used as is, rather than copied.
+	 */
 	public FipBatchOfUpdates(byte[] contents) throws FipException
 	{
-		if (contents.length > buf.length)
+		this(contents, contents.length);
+	}
+
+	/**
+	 * Wrap a batch that has been received into the start of an array (eg. from {@link #spareBuffer(int)}).
+	 */
+	public FipBatchOfUpdates(byte[] contents, int length) throws FipException
+	{
+		if (length > MAXIMUM_LENGTH || length > contents.length)
 			throw new FipException("Buffer initializer too long");
-		System.arraycopy(contents, 0, this.buf, 0, contents.length);
-		this.nextPos = contents.length;
+		this.buf = contents;
+		this.nextPos = length;
 		this.bufferIsSealed = true;
+
+		// Nothing is known about how the files in a batch that was received were added
+		this.compressibleBytes = length;
 		
 		// Count the updates and deletes
 	}
 
+	/**
+	 * A batch that is written to a stream as updates are added, rather than kept in memory.
+	 * The stream is flushed, but not closed, when the batch is sealed.
+	 */
+	public FipBatchOfUpdates(OutputStream out) throws FipException
+	{
+		this.out = new BufferedOutputStream(out, STREAM_WINDOW);
+		initializeEmptyBuffer();
+	}
+
+	/**
+	 * Start the batch again. The buffer is kept, unless it has grown very large.
+	 */
 	public void initializeEmptyBuffer() throws FipException
 	{
+		if (out != null && nextPos > 0)
+			throw new FipException("Internal error: Cannot restart a batch that has already been written");
+		if (out != null)
+			buf = null;
+		else if (buf == null || buf.length > RETAINED_BUFFER_LENGTH)
+			buf = spareBuffer(INITIAL_BUFFER_LENGTH);
 		nextPos = 0;
 		bufferIsSealed = false;
+		if (sealDigest == null)
+		{
+			try {
+				sealDigest = MessageDigest.getInstance("SHA-1");
+			} catch (Exception e) {
+				FipException fipException = new FipException("Could not create seal: " + e.toString());
+				fipException.setStackTrace(e.getStackTrace());
+				throw fipException;
+			}
+		}
+		sealDigest.reset();
 		addToBuffer(MAGIC_START_OF_TRANSFER_FILE);
 		addToBuffer(Fip.MAJOR_VERSION_NUMBER);
 		addToBuffer(Fip.MINOR_VERSION_NUMBER);
-		addToBuffer(MAGIC_END_OF_BATCH);
+		addTerminator();
 //		addStringToBuffer(destinationPath);
 //		addStringToBuffer(txId);
 		numInstallsInBuffer = 0;
 		numDeletesInBuffer = 0;
+		compressibleBytes = 0;
 	}
 
 	private void addToBuffer(byte b) throws FipException
 	{
 		if (bufferIsSealed)
 			throw new FipException("Internal error: Buffer is already sealed");
+		sealDigest.update(b);
+		if (out != null)
+		{
+			writeToStream(b);
+			nextPos++;
+			return;
+		}
+		makeRoom(1);
 		buf[nextPos++] = b;
 	}
 	private void addToBuffer(byte[] b, int length) throws FipException
 	{
 		if (bufferIsSealed)
 			throw new FipException("Internal error: Buffer is already sealed");
-		for (int i = 0; i < length; i++)
-			buf[nextPos++] = b[i];
+		sealDigest.update(b, 0, length);
+		if (out != null)
+		{
+			writeToStream(b, 0, length);
+			nextPos += length;
+			return;
+		}
+		makeRoom(length);
+		System.arraycopy(b, 0, buf, nextPos, length);
+		nextPos += length;
+	}
+
+	private void writeToStream(byte[] b, int offset, int length) throws FipException
+	{
+		try {
+			out.write(b, offset, length);
+		} catch (IOException e) {
+			throw streamError(e);
+		}
+	}
+
+	/**
+	 * Write a single byte. It goes straight into the stream's window, without an array being allocated.
+	 */
+	private void writeToStream(byte b) throws FipException
+	{
+		try {
+			out.write(b);
+		} catch (IOException e) {
+			throw streamError(e);
+		}
+	}
+
+	private static FipException streamError(IOException e)
+	{
+		FipException fipException = new FipException("Error writing batch: " + e.toString());
+		fipException.setStackTrace(e.getStackTrace());
+		return fipException;
+	}
+
+	/**
+	 * Make sure the buffer has room for more bytes, growing it if necessary.
+	 */
+	private void makeRoom(long length) throws FipException
+	{
+		long needed = nextPos + length;
+		if (needed <= buf.length)
+			return;
+		if (needed > MAXIMUM_LENGTH)
+			throw new FipException("Batch of updates is too large (" + needed + " bytes)");
+		long capacity = Math.min(MAXIMUM_LENGTH, Math.max(needed, buf.length * 2L));
+		byte[] newBuf = spareBuffer((int) capacity);
+		System.arraycopy(buf, 0, newBuf, 0, nextPos);
+		buf = newBuf;
+	}
+
+	/**
+	 * Add part of a file, starting at <code>offset</code>, either reading it into the buffer or copying it through to the stream.
+	 * It is read a window at a time, and each window is added to the seal's digest while it is still in the cache.
+	 */
+	private void addFileContentsToBuffer(File file, long offset, int length) throws IOException, FipException
+	{
+		if (bufferIsSealed)
+			throw new FipException("Internal error: Buffer is already sealed");
+		if (out == null)
+			makeRoom(length);
+		byte[] window = (out == null) ? buf : new byte[Math.min(length, STREAM_WINDOW)];
+		FileInputStream is = new FileInputStream(file);
+		try {
+			if (offset > 0)
+				is.getChannel().position(offset);
+			int remaining = length;
+			while (remaining > 0)
+			{
+				int pos = (out == null) ? nextPos : 0;
+				int cnt = is.read(window, pos, Math.min(remaining, STREAM_WINDOW));
+				if (cnt < 0)
+					throw new FipException("Error reading " + length + " bytes from: " + file.getAbsolutePath());
+				sealDigest.update(window, pos, cnt);
+				if (out != null)
+					writeToStream(window, 0, cnt);
+				nextPos += cnt;
+				remaining -= cnt;
+			}
+		} finally {
+			is.close();
+		}
+	}
+
+	private static byte[] readFile(File file, int length) throws IOException, FipException
+	{
+		byte[] contents = new byte[length];
+		FileInputStream is = new FileInputStream(file);
+		try {
+			for (int pos = 0; pos < length; )
+			{
+				int cnt = is.read(contents, pos, length - pos);
+				if (cnt < 0)
+					throw new FipException("Error reading " + length + " bytes from: " + file.getAbsolutePath());
+				pos += cnt;
+			}
+		} finally {
+			is.close();
+		}
+		return contents;
 	}
 
 	private void addFileLengthToBuffer(long length) throws FipException
@@ -118,6 +323,13 @@ public class FipBatchOfUpdates
 		addToBuffer(l1);
 	}
 
+	private void addLongToBuffer(long value) throws FipException
+	{
+		// Hi order bits first
+		addFileLengthToBuffer(value >>> 32);
+		addFileLengthToBuffer(value & 0xffffffffL);
+	}
+
 	private void addStringToBuffer(String string) throws FipException
 	{
 		byte[] bytes = string.getBytes();
@@ -134,7 +346,13 @@ public class FipBatchOfUpdates
 		addToBuffer(MAGIC_AFTER_STRING);
 	}
 
-	public void addInstallToBuffer(String sourceRoot, String sourceRelativePath, String destinationRelativePath) throws IOException, FipException, FipCorruptionException
+	/**
+	 * Add a file. If <code>compress</code> is set and it looks like it will shrink, the contents are compressed
+	 * (see {@link FipCodec}) and the operation is OP_INSTALL_COMPRESSED, which contains the destination path,
+	 * flags, the name of the codec, the length of the file, the length of the compressed contents, and then
+	 * the compressed contents.
+	 */
+	public void addInstallToBuffer(String sourceRoot, String sourceRelativePath, String destinationRelativePath, boolean compress) throws IOException, FipException, FipCorruptionException
 	{
 		String path = sourceRoot + File.separator + sourceRelativePath;
 		File file = new File(path);
@@ -142,35 +360,60 @@ public class FipBatchOfUpdates
 			throw new FipException("Unknown file: " + path);
 		if ( !file.isFile())
 			throw new FipException("Invalid file: " + path);
+		int length = (int) file.length();
+
+		// Compress the contents, unless they won't shrink by much
+		FipCodec codec = compress ? FipCodec.forFile(destinationRelativePath, length) : null;
+		byte[] contents = null;
+		byte[] compressed = null;
+		boolean incompressible = FipCodec.isCompressedFormat(destinationRelativePath);
+		if (codec != null)
+		{
+			// Sample the file before reading it all
+			incompressible = true;
+			if ( !FipCodec.looksIncompressible(file, length))
+			{
+				contents = readFile(file, length);
+				compressed = codec.encode(contents, 0, length);
+				if (compressed.length >= length - length / 16 - 32)
+					compressed = null;
+			}
+		}
 		
 //int pos1 = nextPos;
 		// Add the operation
 		removeTerminator();
-		addToBuffer(OP_INSTALL_FILE);
+		addToBuffer((compressed == null) ? OP_INSTALL_FILE : OP_INSTALL_COMPRESSED);
 		// Add the destination file path
 		addStringToBuffer(destinationRelativePath);
 		// Add the executable flag
 		byte flags = 0x0;
 		flags |= file.canExecute() ? FLAG_EXECUTABLE : 0;
 		addToBuffer(flags);
+		if (compressed != null)
+		{
+			// Add the codec, the file length and the compressed contents
+			addStringToBuffer(codec.getName());
+			addFileLengthToBuffer(length);
+			addFileLengthToBuffer(compressed.length);
+			addToBuffer(MAGIC_BEFORE_FILE_CONTENTS);
+			addToBuffer(compressed, compressed.length);
+			addToBuffer(MAGIC_AFTER_FILE_CONTENTS);
+			numInstallsInBuffer++;
+			addTerminator();
+			return;
+		}
 		// Add the file length
-		int length = (int) file.length();
 		addFileLengthToBuffer(length);
 		// Add the file contents
 		addToBuffer(MAGIC_BEFORE_FILE_CONTENTS);
-		FileInputStream is = new FileInputStream(file);
-//logger.info("buf.length=" + buf.length + ", nextPos=" + nextPos + ", length=" + length);
-//if (nextPos + length > buf.length) {
-//	logger.error("Buffer overrun");
-//	int abc = 123;
-//}
-		if (is.read(buf, nextPos, length) != length)
-		{
-			throw new FipException("Error reading " + length + " bytes from: " + file.getAbsolutePath());
-		}
-		is.close();
-		this.nextPos += length;
+		if (contents != null)
+			addToBuffer(contents, length);
+		else
+			addFileContentsToBuffer(file, 0, length);
 		addToBuffer(MAGIC_AFTER_FILE_CONTENTS);
+		if ( !incompressible)
+			compressibleBytes += length;
 		numInstallsInBuffer++;
 		addTerminator();
 //pos2 = nextPos;
@@ -178,6 +421,244 @@ public class FipBatchOfUpdates
 //logger.info(sourceRelativePath + " took up " + size);
 	}
 	
+	/**
+	 * Add part of a file that is too large to be sent in a single batch. The destination appends each
+	 * part to a partial file, and once the last part arrives checks the whole file has the checksum
+	 * calculated here before installing it. A part can be sent again (eg. after an error) as the
+	 * destination discards anything it already has from the offset onwards.
+	 *
+	 * The operation contains the destination path, flags, the length of the whole file (8 bytes), the
+	 * offset of this part (8 bytes), the length of this part, the checksum algorithm and the checksum,
+	 * and then the bytes.
+	 */
+	public void addRangeToBuffer(String sourceRoot, String sourceRelativePath, String destinationRelativePath, long offset, int length, FipChecksum checksumAlgorithm, String checksum) throws IOException, FipException
+	{
+		String path = sourceRoot + File.separator + sourceRelativePath;
+		File file = new File(path);
+		if ( !file.exists())
+			throw new FipException("Unknown file: " + path);
+		if ( !file.isFile())
+			throw new FipException("Invalid file: " + path);
+		long fileLength = file.length();
+		if (offset < 0 || length < 0 || offset + length > fileLength)
+			throw new FipException("Invalid range " + offset + "+" + length + " of " + path);
+
+		// The checksum is only used with the last part
+		boolean lastPart = (offset + length == fileLength);
+		if (checksum == null)
+			checksum = lastPart ? checksumAlgorithm.checksum(file.toPath()) : "";
+
+		// Add the operation
+		removeTerminator();
+		addToBuffer(OP_INSTALL_RANGE);
+		addStringToBuffer(destinationRelativePath);
+		byte flags = 0x0;
+		flags |= file.canExecute() ? FLAG_EXECUTABLE : 0;
+		addToBuffer(flags);
+		addLongToBuffer(fileLength);
+		addLongToBuffer(offset);
+		addFileLengthToBuffer(length);
+		addStringToBuffer(checksumAlgorithm.getName());
+		addStringToBuffer(checksum);
+		addToBuffer(MAGIC_BEFORE_FILE_CONTENTS);
+		addFileContentsToBuffer(file, offset, length);
+		addToBuffer(MAGIC_AFTER_FILE_CONTENTS);
+		if ( !FipCodec.isCompressedFormat(destinationRelativePath))
+			compressibleBytes += length;
+		numInstallsInBuffer++;
+		addTerminator();
+	}
+
+	/**
+	 * Add the changes to a file that the destination already has a copy of. The file is compared with the
+	 * signatures of the destination's copy, and encoded as instructions to copy blocks from the existing
+	 * file and to insert literal bytes (see {@link FipBlockSignatures}). The checksum of the whole file is
+	 * included, so the destination can check the file it rebuilds before installing it.
+	 *
+	 * The operation contains the destination path, flags, the checksum algorithm and the checksum, the
+	 * length of the new file, the block size, and then the instructions: PATCH_COPY followed by the
+	 * first block and the number of blocks, or PATCH_LITERAL followed by the length and the bytes,
+	 * finishing with PATCH_END.
+	 */
+	public void addPatchToBuffer(String sourceRoot, String sourceRelativePath, String destinationRelativePath, FipBlockSignatures signatures, FipChecksum checksumAlgorithm) throws IOException, FipException
+	{
+		String path = sourceRoot + File.separator + sourceRelativePath;
+		File file = new File(path);
+		if ( !file.exists())
+			throw new FipException("Unknown file: " + path);
+		if ( !file.isFile())
+			throw new FipException("Invalid file: " + path);
+		String checksum = checksumAlgorithm.checksum(file.toPath());
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		MappedByteBuffer data = null;
+		try {
+			FileChannel channel = raf.getChannel();
+			long fileLength = channel.size();
+			if (fileLength > Integer.MAX_VALUE)
+				throw new FipException("File is too large to be sent: " + path);
+			int length = (int) fileLength;
+			data = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+
+			// Add the operation
+			removeTerminator();
+			addToBuffer(OP_PATCH_FILE);
+			addStringToBuffer(destinationRelativePath);
+			byte flags = 0x0;
+			flags |= file.canExecute() ? FLAG_EXECUTABLE : 0;
+			addToBuffer(flags);
+			addStringToBuffer(checksumAlgorithm.getName());
+			addStringToBuffer(checksum);
+			addFileLengthToBuffer(length);
+			int blockSize = signatures.getBlockSize();
+			addFileLengthToBuffer(blockSize);
+			addToBuffer(MAGIC_BEFORE_FILE_CONTENTS);
+
+			// Slide a window over the file, looking for blocks the destination already has
+			FipChecksum.Hasher hasher = FipChecksum_xxh64.newHasher();
+			int literalStart = 0;
+			int copyStart = -1;
+			int copyCount = 0;
+			long literalBytes = 0;
+			int pos = 0;
+			int weak = (length >= blockSize) ? FipBlockSignatures.weakChecksum(data, 0, blockSize) : 0;
+			while (pos + blockSize <= length)
+			{
+				int block = signatures.findBlock(weak, hasher, data, pos);
+				if (block >= 0)
+				{
+					// Copy this block, joining it onto the previous copy if it follows on
+					if (literalStart < pos)
+					{
+						addCopyToBuffer(copyStart, copyCount);
+						copyCount = 0;
+						addLiteralToBuffer(data, literalStart, pos - literalStart, path);
+						literalBytes += pos - literalStart;
+					}
+					if (copyCount > 0 && block == copyStart + copyCount)
+						copyCount++;
+					else
+					{
+						addCopyToBuffer(copyStart, copyCount);
+						copyStart = block;
+						copyCount = 1;
+					}
+					pos += blockSize;
+					literalStart = pos;
+					if (pos + blockSize <= length)
+						weak = FipBlockSignatures.weakChecksum(data, pos, blockSize);
+				}
+				else
+				{
+					if (pos + blockSize < length)
+						weak = FipBlockSignatures.roll(weak, blockSize, data.get(pos) & 0xff, data.get(pos + blockSize) & 0xff);
+					pos++;
+				}
+			}
+			addCopyToBuffer(copyStart, copyCount);
+			if (literalStart < length)
+			{
+				addLiteralToBuffer(data, literalStart, length - literalStart, path);
+				literalBytes += length - literalStart;
+			}
+			addToBuffer(PATCH_END);
+			addToBuffer(MAGIC_AFTER_FILE_CONTENTS);
+			if ( !FipCodec.isCompressedFormat(destinationRelativePath))
+				compressibleBytes += literalBytes;
+			numInstallsInBuffer++;
+			addTerminator();
+		} finally {
+			FipChecksumCalculator.unmap(data);
+			raf.close();
+		}
+	}
+
+	private void addCopyToBuffer(int firstBlock, int numBlocks) throws FipException
+	{
+		if (numBlocks == 0)
+			return;
+		addToBuffer(PATCH_COPY);
+		addFileLengthToBuffer(firstBlock);
+		addFileLengthToBuffer(numBlocks);
+	}
+
+	private void addLiteralToBuffer(MappedByteBuffer data, int offset, int length, String path) throws FipException
+	{
+		if (nextPos + (long) length + 100 > MAXIMUM_LENGTH)
+			throw new FipException("The changes are too large to be sent: " + path);
+		addToBuffer(PATCH_LITERAL);
+		addFileLengthToBuffer(length);
+		ByteBuffer literal = data.duplicate();
+		literal.position(offset);
+		if (out == null)
+			makeRoom(length);
+		byte[] window = (out == null) ? buf : new byte[Math.min(length, STREAM_WINDOW)];
+		for (int remaining = length; remaining > 0; )
+		{
+			int cnt = Math.min(remaining, STREAM_WINDOW);
+			if (out == null)
+			{
+				literal.get(window, nextPos, cnt);
+				sealDigest.update(window, nextPos, cnt);
+				nextPos += cnt;
+			}
+			else
+			{
+				literal.get(window, 0, cnt);
+				addToBuffer(window, cnt);
+			}
+			remaining -= cnt;
+		}
+	}
+
+	/**
+	 * Tell the destination to install a file by copying a file it already has, rather than sending the
+	 * contents. The checksum of the source file is included, so the destination can check the copy.
+	 *
+	 * The operation contains the destination path, the path of the file to copy, flags, and the
+	 * checksum algorithm and checksum.
+	 */
+	public void addCopyToBuffer(String sourceRoot, String sourceRelativePath, String destinationRelativePath, String copyFromRelativePath, FipChecksum checksumAlgorithm, String checksum) throws IOException, FipException
+	{
+		addCopyToBuffer(OP_COPY_FILE, sourceRoot, sourceRelativePath, destinationRelativePath, copyFromRelativePath, checksumAlgorithm, checksum);
+	}
+
+	/**
+	 * Tell the destination to install a file with the same contents as a file sent earlier in the
+	 * transaction. The operation has the same layout as {@link #addCopyToBuffer}, with the path of
+	 * the earlier file in place of the file to copy.
+	 */
+	public void addReferenceToBuffer(String sourceRoot, String sourceRelativePath, String destinationRelativePath, String earlierDestinationRelativePath, FipChecksum checksumAlgorithm, String checksum) throws IOException, FipException
+	{
+		addCopyToBuffer(OP_REFERENCE_FILE, sourceRoot, sourceRelativePath, destinationRelativePath, earlierDestinationRelativePath, checksumAlgorithm, checksum);
+	}
+
+	private void addCopyToBuffer(byte op, String sourceRoot, String sourceRelativePath, String destinationRelativePath, String copyFromRelativePath, FipChecksum checksumAlgorithm, String checksum) throws IOException, FipException
+	{
+		String path = sourceRoot + File.separator + sourceRelativePath;
+		File file = new File(path);
+		if ( !file.exists())
+			throw new FipException("Unknown file: " + path);
+		if ( !file.isFile())
+			throw new FipException("Invalid file: " + path);
+		if (checksum == null)
+			checksum = checksumAlgorithm.checksum(file.toPath());
+
+		// Add the operation
+		removeTerminator();
+		addToBuffer(op);
+		addStringToBuffer(destinationRelativePath);
+		addStringToBuffer(copyFromRelativePath);
+		byte flags = 0x0;
+		flags |= file.canExecute() ? FLAG_EXECUTABLE : 0;
+		addToBuffer(flags);
+		addStringToBuffer(checksumAlgorithm.getName());
+		addStringToBuffer(checksum);
+		addToBuffer(MAGIC_AFTER_COPY);
+		numInstallsInBuffer++;
+		addTerminator();
+	}
+
 	@Deprecated
 	public void addDeletes(Iterable<String> deleteList) throws FipException
 	{
@@ -228,11 +709,26 @@ public class FipBatchOfUpdates
 
 	private void addTerminator() throws FipException
 	{
-		addToBuffer(MAGIC_END_OF_BATCH);
+		if (out != null)
+		{
+			terminated = true;
+			return;
+		}
+
+		// Not added to the digest, as it will be removed if anything else is added
+		makeRoom(1);
+		buf[nextPos++] = MAGIC_END_OF_BATCH;
 	}
 
 	private void removeTerminator() throws FipException
 	{
+		if (out != null)
+		{
+			if ( !terminated)
+				throw new FipException("Update file missing end-of-transfer-marker");
+			terminated = false;
+			return;
+		}
 		if (buf[nextPos-1] != MAGIC_END_OF_BATCH)
 			throw new FipException("Update file missing end-of-transfer-marker");
 		nextPos--;
@@ -254,20 +750,63 @@ public class FipBatchOfUpdates
 
 	public void addAbortToBuffer() throws IOException, FipCorruptionException, FipException
 	{
-		initializeEmptyBuffer();
+		if (out != null && getLength() > HEADER_LENGTH)
+			throw new FipException("Internal error: Cannot abort a batch that has already been written");
+		if (out == null)
+			initializeEmptyBuffer();
 		removeTerminator();
 		addToBuffer(OP_ABORT_TRANSACTION);
 		addTerminator();
 	}
 	
+	/**
+	 * The buffer, or null if the batch was written to a stream. The buffer may be longer than the batch.
+	 */
 	public byte[] getBuffer()
 	{
 		return buf;
 	}
+
+	/**
+	 * Say the batch is no longer needed, so it's buffer can be used for another batch. The batch
+	 * cannot be used after this, unless it is initialized again.
+	 */
+	public void release()
+	{
+		if (out == null && buf != null && buf.length <= RETAINED_BUFFER_LENGTH)
+		{
+			synchronized (spareBuffers)
+			{
+				if (spareBuffers.size() < MAX_SPARE_BUFFERS)
+					spareBuffers.add(buf);
+			}
+		}
+		buf = null;
+		nextPos = 0;
+		bufferIsSealed = true;
+	}
+
+	/**
+	 * An array at least this long, using the buffer of a batch that was released if there is one.
+	 */
+	static byte[] spareBuffer(int minimumLength)
+	{
+		synchronized (spareBuffers)
+		{
+			for (int i = spareBuffers.size() - 1; i >= 0; i--)
+				if (spareBuffers.get(i).length >= minimumLength)
+					return spareBuffers.remove(i);
+		}
+		return new byte[minimumLength];
+	}
 	
+	/**
+	 * The number of bytes in the batch. When writing to a stream, this includes the terminator
+	 * that will be written when the batch is sealed.
+	 */
 	public int getLength()
 	{
-		return nextPos;
+		return (out != null && terminated) ? nextPos + 1 : nextPos;
 	}
 
 	public boolean containsUpdates()
@@ -275,7 +814,7 @@ public class FipBatchOfUpdates
 		if (numInstallsInBuffer > 0 && numDeletesInBuffer > 0)
 			return true;
 		// If there's more than an empty buffer, it must be some sort of instruction
-		if (nextPos > 4)
+		if (getLength() > HEADER_LENGTH)
 			return true;
 		return false;
 	}
@@ -292,14 +831,42 @@ public class FipBatchOfUpdates
 
 	public String toString()
 	{
-		return "Send buffer, " + nextPos + " bytes";
+		return "Send buffer, " + getLength() + " bytes";
 	}
 	
+	/**
+	 * Returns true if the contents of every file in the batch were either compressed as they were added,
+	 * or judged to be incompressible, so there is little point compressing the batch as a whole. A batch
+	 * that was received is assumed to be worth compressing.
+	 */
+	public boolean filesAreCompressed()
+	{
+		return compressibleBytes == 0;
+	}
+
 	public boolean isSealed()
 	{
 		return this.bufferIsSealed;
 	}
 
+	/**
+	 * A copy of the digest of the batch so far, including the terminator, for sealing it (see {@link FipSharedBatch}).
+	 */
+	MessageDigest digestOfContents() throws FipException
+	{
+		if (out != null || bufferIsSealed)
+			throw new FipException("Internal error: Cannot get the digest of this batch");
+		try {
+			MessageDigest m = (MessageDigest) sealDigest.clone();
+			m.update(MAGIC_END_OF_BATCH);
+			return m;
+		} catch (CloneNotSupportedException e) {
+			FipException fipException = new FipException("Could not copy digest: " + e.toString());
+			fipException.setStackTrace(e.getStackTrace());
+			throw fipException;
+		}
+	}
+
 	/**
 	 * Place a hash on the end of the buffer, based upon the data, the txId, the salt, and the passphrase.
 	 * @throws FipException 
@@ -310,8 +877,22 @@ public class FipBatchOfUpdates
 			throw new FipException("Internal error: Buffer is already sealed");
 
 		try {
-			MessageDigest m = MessageDigest.getInstance("SHA-1");
-			m.update(buf, 0, getLength());
+			// When writing to a stream, the digest of the data has already been calculated
+			MessageDigest m;
+			if (out != null)
+			{
+				if (terminated)
+				{
+					terminated = false;
+					addToBuffer(MAGIC_END_OF_BATCH);
+				}
+				m = sealDigest;
+			}
+			else
+			{
+				m = sealDigest;
+				m.update(MAGIC_END_OF_BATCH);
+			}
 			m.update(txId.getBytes("iso-8859-1"));
 			m.update(salt.getBytes("iso-8859-1"));
 			m.update(passphrase.getBytes("iso-8859-1"));
@@ -320,6 +901,8 @@ public class FipBatchOfUpdates
 				throw new FipException("Seal hash value is not the expected length");
 			addToBuffer(digest, SEAL_LENGTH);
 			this.bufferIsSealed  = true;
+			if (out != null)
+				out.flush();
 
 			// For debugging only
 			BigInteger bigInt = new BigInteger(1,digest);
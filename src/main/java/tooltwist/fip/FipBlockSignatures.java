@@ -0,0 +1,254 @@
+package tooltwist.fip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The block signatures of a file at the destination, used to send just the changes to a
+ * file rather than the whole file (see {@link FipBatchOfUpdates#addPatchToBuffer}).
+ *
+ * The file is split into blocks of equal size, and each complete block has a weak rolling
+ * checksum and a strong checksum (xxHash64). The source slides a window over it's version
+ * of the file, and wherever the weak checksum of the window matches a block, and then the strong
+ * checksum matches as well, the destination can copy that block from it's existing file. As in
+ * rsync, the weak checksum can be moved along one byte at a time without looking at the rest
+ * of the window.
+ *
+ * @author philipcallender
+ *
+ */
+public class FipBlockSignatures
+{
+	static final int MIN_BLOCK_SIZE = 2 * 1024;
+	static final int MAX_BLOCK_SIZE = 128 * 1024;
+
+	private String relativePath;
+	private long fileLength;
+	private int blockSize;
+	private int numBlocks;
+	private int[] weak;
+	private long[] strong;
+
+	// Hash table of (block number + 1) by weak checksum, with a chain for blocks with the same weak checksum
+	private int[] table = null;
+	private int[] nextBlock = null;
+
+	private FipBlockSignatures(String relativePath, long fileLength, int blockSize, int numBlocks)
+	{
+		this.relativePath = relativePath;
+		this.fileLength = fileLength;
+		this.blockSize = blockSize;
+		this.numBlocks = numBlocks;
+		this.weak = new int[numBlocks];
+		this.strong = new long[numBlocks];
+	}
+
+	/**
+	 * The block size for a file, about the square root of it's length.
+	 */
+	static int blockSizeFor(long fileLength)
+	{
+		long size = (long) Math.sqrt(fileLength);
+		size = (size + 1023) & ~1023L;
+		return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+	}
+
+	/**
+	 * Calculate the signatures of a file.
+	 */
+	public static FipBlockSignatures calculate(File file, String relativePath) throws IOException
+	{
+		long fileLength = file.length();
+		int blockSize = blockSizeFor(fileLength);
+		int numBlocks = (int) (fileLength / blockSize);
+		FipBlockSignatures signatures = new FipBlockSignatures(relativePath, fileLength, blockSize, numBlocks);
+		byte[] block = new byte[blockSize];
+		FipChecksum.Hasher hasher = FipChecksum_xxh64.newHasher();
+		InputStream is = new FileInputStream(file);
+		try {
+			for (int i = 0; i < numBlocks; i++)
+			{
+				int len = 0;
+				while (len < blockSize)
+				{
+					int cnt = is.read(block, len, blockSize - len);
+					if (cnt < 0)
+						throw new IOException("File changed while calculating signatures: " + file.getAbsolutePath());
+					len += cnt;
+				}
+				signatures.weak[i] = weakChecksum(block, 0, blockSize);
+				signatures.strong[i] = strongChecksum(hasher, ByteBuffer.wrap(block));
+			}
+		} finally {
+			try { is.close(); } catch (IOException e) { /* do nothing */ }
+		}
+		return signatures;
+	}
+
+	/**
+	 * The weak checksum of part of an array: the sum of the bytes in the low 16 bits, and the
+	 * sum of each byte multiplied by it's distance from the end in the high 16 bits.
+	 */
+	static int weakChecksum(byte[] data, int offset, int length)
+	{
+		return weakChecksum(ByteBuffer.wrap(data), offset, length);
+	}
+
+	/**
+	 * The weak checksum of part of a buffer, read without changing the buffer's position.
+	 */
+	static int weakChecksum(ByteBuffer data, int offset, int length)
+	{
+		int a = 0;
+		int b = 0;
+		for (int i = 0; i < length; i++)
+		{
+			int value = data.get(offset + i) & 0xff;
+			a += value;
+			b += (length - i) * value;
+		}
+		return (a & 0xffff) | (b << 16);
+	}
+
+	/**
+	 * Move the window one byte along, removing <code>out</code> from the start and adding <code>in</code> at the end.
+	 */
+	static int roll(int checksum, int length, int out, int in)
+	{
+		int a = checksum & 0xffff;
+		int b = checksum >>> 16;
+		a = (a - out + in) & 0xffff;
+		b = (b - length * out + a) & 0xffff;
+		return a | (b << 16);
+	}
+
+	/**
+	 * The strong checksum of the remaining bytes in a buffer.
+	 */
+	static long strongChecksum(FipChecksum.Hasher hasher, ByteBuffer data)
+	{
+		hasher.reset();
+		hasher.update(data);
+		return ByteBuffer.wrap(hasher.digest()).getLong();
+	}
+
+	/**
+	 * Find a block with the given checksums. Returns the block number, or -1 if there is none. The
+	 * strong checksum is only calculated (over the block size of <code>data</code>, starting at
+	 * <code>offset</code>) if a block's weak checksum matches.
+	 */
+	int findBlock(int weakChecksum, FipChecksum.Hasher hasher, ByteBuffer data, int offset)
+	{
+		if (table == null)
+			buildTable();
+		int block = table[slotFor(weakChecksum)] - 1;
+		boolean haveStrong = false;
+		long strongChecksum = 0;
+		for ( ; block >= 0; block = nextBlock[block])
+		{
+			if (weak[block] != weakChecksum)
+				continue;
+			if ( !haveStrong)
+			{
+				ByteBuffer window = data.duplicate();
+				window.limit(offset + blockSize);
+				window.position(offset);
+				strongChecksum = strongChecksum(hasher, window);
+				haveStrong = true;
+			}
+			if (strong[block] == strongChecksum)
+				return block;
+		}
+		return -1;
+	}
+
+	private void buildTable()
+	{
+		int size = 16;
+		while (size < numBlocks * 2)
+			size <<= 1;
+		table = new int[size];
+		nextBlock = new int[numBlocks];
+
+		// Add them in reverse, so the lowest numbered block is found first
+		for (int block = numBlocks - 1; block >= 0; block--)
+		{
+			int slot = slotFor(weak[block]);
+			nextBlock[block] = table[slot] - 1;
+			table[slot] = block + 1;
+		}
+	}
+
+	private int slotFor(int weakChecksum)
+	{
+		return (weakChecksum ^ (weakChecksum >>> 16)) & (table.length - 1);
+	}
+
+	public String getRelativePath()
+	{
+		return relativePath;
+	}
+
+	public long getFileLength()
+	{
+		return fileLength;
+	}
+
+	public int getBlockSize()
+	{
+		return blockSize;
+	}
+
+	public int getNumBlocks()
+	{
+		return numBlocks;
+	}
+
+	/**
+	 * The signatures as hex digits, for sending in a request.
+	 */
+	public String serialize() throws FipException
+	{
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + numBlocks * 12);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeLong(fileLength);
+			out.writeInt(blockSize);
+			out.writeInt(numBlocks);
+			for (int i = 0; i < numBlocks; i++)
+			{
+				out.writeInt(weak[i]);
+				out.writeLong(strong[i]);
+			}
+			out.close();
+			return FipChecksumCalculator.toHex(bytes.toByteArray());
+		} catch (IOException e) {
+			throw new FipException("Error serializing block signatures: " + e.toString());
+		}
+	}
+
+	public static FipBlockSignatures deserialize(String relativePath, String hex) throws FipException
+	{
+		byte[] data = FipChecksumCalculator.fromHex(hex);
+		if (data == null || data.length < 16)
+			throw new FipException("Invalid block signatures for " + relativePath);
+		ByteBuffer in = ByteBuffer.wrap(data);
+		long fileLength = in.getLong();
+		int blockSize = in.getInt();
+		int numBlocks = in.getInt();
+		if (blockSize < 1 || numBlocks < 0 || in.remaining() != numBlocks * 12L || fileLength < (long) numBlocks * blockSize)
+			throw new FipException("Invalid block signatures for " + relativePath);
+		FipBlockSignatures signatures = new FipBlockSignatures(relativePath, fileLength, blockSize, numBlocks);
+		for (int i = 0; i < numBlocks; i++)
+		{
+			signatures.weak[i] = in.getInt();
+			signatures.strong[i] = in.getLong();
+		}
+		return signatures;
+	}
+}
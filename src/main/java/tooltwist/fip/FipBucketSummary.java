@@ -0,0 +1,195 @@
+package tooltwist.fip;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.BitSet;
+
+/**
+ * A compact summary of a {@link FipList}, used to find which parts of two lists differ without
+ * transferring either list in full.
+ *
+ * Each file is placed in a bucket according to a hash of it's (destination) path, and each bucket
+ * has a hash of the paths, sizes and checksums of the files in it. Adding the hashes of the entries
+ * means the order of the files does not matter. If a bucket's hash is the same in two lists, the
+ * files in that bucket are the same, so only the entries in buckets that differ need to be fetched
+ * and compared (see {@link FipList#getBucketEntries(int, BitSet)}). The amount transferred is then
+ * proportional to the number of changes, plus eight bytes per bucket.
+ *
+ * @author philipcallender
+ *
+ */
+public class FipBucketSummary
+{
+	private static final String CHECKSUM_HEADER = "#checksum=";
+	private static final String BUCKETS_HEADER = "#buckets=";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The approximate number of files in each bucket.
+	 */
+	static final int FILES_PER_BUCKET = 16;
+	static final int MAX_BUCKETS = 1 << 20;
+
+	private String checksumAlgorithm;
+	private long[] hashes;
+	private String snapshotId = null;
+
+	FipBucketSummary(String checksumAlgorithm, int numBuckets)
+	{
+		this.checksumAlgorithm = checksumAlgorithm;
+		this.hashes = new long[numBuckets];
+	}
+
+	/**
+	 * The id of the server's snapshot of the list this summary was taken from, or null if not known.
+	 * It is passed back when asking for the entries in the buckets. It is not part of the serialized
+	 * summary, but is sent in an HTTP header (see {@link FipServer#SNAPSHOT_HEADER}).
+	 */
+	public String getSnapshotId()
+	{
+		return snapshotId;
+	}
+
+	void setSnapshotId(String snapshotId)
+	{
+		this.snapshotId = snapshotId;
+	}
+
+	/**
+	 * The number of buckets to use for a list of files. This is always a power of two.
+	 */
+	static int bucketsFor(int numFiles)
+	{
+		int numBuckets = 1;
+		while (numBuckets < MAX_BUCKETS && numBuckets * FILES_PER_BUCKET < numFiles)
+			numBuckets <<= 1;
+		return numBuckets;
+	}
+
+	/**
+	 * The bucket a path belongs in. This must give the same answer on every machine.
+	 */
+	static int bucketFor(String relativePath, int numBuckets)
+	{
+		int hash = relativePath.hashCode() * 0x9e3779b9;
+		return (hash ^ (hash >>> 16)) & (numBuckets - 1);
+	}
+
+	/**
+	 * Add a file to it's bucket.
+	 */
+	void addFile(FipChecksum.Hasher hasher, String relativePath, long size, byte[] digest)
+	{
+		byte[] path = relativePath.getBytes(UTF8);
+		ByteBuffer buf = ByteBuffer.allocate(path.length + 12 + ((digest == null) ? 0 : digest.length));
+		buf.put(path);
+		buf.putInt(-1); // Can't appear in a UTF-8 path
+		buf.putLong(size);
+		if (digest != null)
+			buf.put(digest);
+		buf.flip();
+		hasher.reset();
+		hasher.update(buf);
+		hashes[bucketFor(relativePath, hashes.length)] += ByteBuffer.wrap(hasher.digest()).getLong();
+	}
+
+	public String getChecksumAlgorithm()
+	{
+		return checksumAlgorithm;
+	}
+
+	public int getNumBuckets()
+	{
+		return hashes.length;
+	}
+
+	/**
+	 * The buckets whose hashes differ from another summary with the same number of buckets.
+	 */
+	public BitSet differences(FipBucketSummary summary)
+	{
+		if (summary.hashes.length != hashes.length)
+			throw new IllegalArgumentException("Bucket summaries have different numbers of buckets");
+		BitSet buckets = new BitSet(hashes.length);
+		for (int bucket = 0; bucket < hashes.length; bucket++)
+			if (hashes[bucket] != summary.hashes[bucket])
+				buckets.set(bucket);
+		return buckets;
+	}
+
+	public String serialize()
+	{
+		StringBuffer buf = new StringBuffer();
+		buf.append(CHECKSUM_HEADER + checksumAlgorithm + "\n");
+		buf.append(BUCKETS_HEADER + hashes.length + "\n");
+		for (long hash : hashes)
+			buf.append(Long.toHexString(hash) + "\n");
+		return buf.toString();
+	}
+
+	public static FipBucketSummary deserialize(BufferedReader in) throws IOException, FipCorruptionException
+	{
+		String line = in.readLine();
+		if (line == null || !line.startsWith(CHECKSUM_HEADER))
+			throw new FipCorruptionException(1, "missing checksum");
+		String checksumAlgorithm = line.substring(CHECKSUM_HEADER.length());
+		line = in.readLine();
+		if (line == null || !line.startsWith(BUCKETS_HEADER))
+			throw new FipCorruptionException(2, "missing buckets");
+		int numBuckets;
+		try {
+			numBuckets = Integer.parseInt(line.substring(BUCKETS_HEADER.length()));
+		} catch (NumberFormatException e) {
+			throw new FipCorruptionException(2, "non numeric value for buckets: " + line);
+		}
+		if (numBuckets < 1 || numBuckets > MAX_BUCKETS || Integer.bitCount(numBuckets) != 1)
+			throw new FipCorruptionException(2, "invalid number of buckets: " + line);
+
+		FipBucketSummary summary = new FipBucketSummary(checksumAlgorithm, numBuckets);
+		for (int bucket = 0; bucket < numBuckets; bucket++)
+		{
+			line = in.readLine();
+			if (line == null)
+				throw new FipCorruptionException(bucket + 3, "missing bucket");
+			try {
+				summary.hashes[bucket] = new BigInteger(line, 16).longValue();
+			} catch (NumberFormatException e) {
+				throw new FipCorruptionException(bucket + 3, "invalid bucket hash: " + line);
+			}
+		}
+		return summary;
+	}
+
+	/**
+	 * The bucket numbers in a set, one per line, for sending in a request.
+	 */
+	public static String serializeBuckets(BitSet buckets)
+	{
+		StringBuffer buf = new StringBuffer();
+		for (int bucket = buckets.nextSetBit(0); bucket >= 0; bucket = buckets.nextSetBit(bucket + 1))
+			buf.append(bucket + "\n");
+		return buf.toString();
+	}
+
+	public static BitSet deserializeBuckets(BufferedReader in, int numBuckets) throws IOException, FipCorruptionException
+	{
+		BitSet buckets = new BitSet(numBuckets);
+		int lineNo = 1;
+		for (String line = in.readLine(); line != null; line = in.readLine(), lineNo++)
+		{
+			int bucket;
+			try {
+				bucket = Integer.parseInt(line);
+			} catch (NumberFormatException e) {
+				throw new FipCorruptionException(lineNo, "non numeric bucket: " + line);
+			}
+			if (bucket < 0 || bucket >= numBuckets)
+				throw new FipCorruptionException(lineNo, "invalid bucket: " + line);
+			buckets.set(bucket);
+		}
+		return buckets;
+	}
+}
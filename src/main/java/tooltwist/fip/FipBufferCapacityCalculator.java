@@ -2,9 +2,43 @@ package tooltwist.fip;
 
 import tooltwist.fip.FipBatchOfUpdates.BufferStatus;
 
+/**
+ * Keeps track of how full a batch is, and decides when it should be sent.
+ *
+ * Batches aim for a target size, which starts at {@link FipBatchOfUpdates#PREFERRED_MAX_TRANSMISSION}
+ * and is adjusted from the time taken to fetch and install each batch (see {@link #batchSent}).
+ * The target is large enough that a batch takes a couple of seconds, and at least ten times the
+ * time taken by a batch regardless of it's size (the round trips), so the round trips are a small
+ * part of the total. It is halved when a batch fails, so batches are cheaper to retry over an
+ * unreliable connection. The <code>fip.batchMegabytes</code> system property sets a fixed target.
+ *
+ * The calculators for the lanes of a transfer share their measurements (see
+ * {@link #FipBufferCapacityCalculator(FipBufferCapacityCalculator)}).
+ */
 public class FipBufferCapacityCalculator
 {
+	public static final String BATCH_MEGABYTES_PROPERTY = "fip.batchMegabytes";
+	static final int MIN_TARGET_SIZE = 1024 * 1024;
+	static final int MAX_TARGET_SIZE = FipBatchOfUpdates.BUFFER_LENGTH / 2;
+	private static final long TARGET_BATCH_MILLIS = 2000;
+	private static final int MIN_SIZE_TO_MEASURE = 256 * 1024; // Smaller batches are mostly round trips
+	private static final double WEIGHT_OF_NEW_MEASUREMENT = 0.3;
+
 	private int spaceUsed = 0;
+	private Measurements measurements;
+
+	public FipBufferCapacityCalculator()
+	{
+		measurements = new Measurements();
+	}
+
+	/**
+	 * A calculator sharing the measurements, and so the target size, of another.
+	 */
+	public FipBufferCapacityCalculator(FipBufferCapacityCalculator shareWith)
+	{
+		measurements = shareWith.measurements;
+	}
 	
 	public void resetCounter()
 	{
@@ -17,8 +51,9 @@ public class FipBufferCapacityCalculator
 		if (requiredSpaceInBuffer >= FipBatchOfUpdates.BUFFER_LENGTH)
 			return BufferStatus.IMPOSSIBLE_TO_SEND_BIGGER_THAN_BUFFER;
 		
+		int targetSize = getTargetSize();
 		long newLength = spaceUsed + requiredSpaceInBuffer + 1; 
-		if (newLength < FipBatchOfUpdates.PREFERRED_MAX_TRANSMISSION)
+		if (newLength < targetSize)
 		{
 			// Fits within the preferred size, and there may be room for more.
 			spaceUsed += requiredSpaceInBuffer;
@@ -26,8 +61,9 @@ public class FipBufferCapacityCalculator
 		}
 		else
 		{
-			// It won't fit in the preferred size.
-			if (spaceUsed < FipBatchOfUpdates.SMALL_ENOUGH_TO_PUT_BIG_FILE_ON_TOP && newLength < FipBatchOfUpdates.BUFFER_LENGTH)
+			// It won't fit in the preferred size. What counts as almost empty scales with the target size.
+			long smallEnough = (long) FipBatchOfUpdates.SMALL_ENOUGH_TO_PUT_BIG_FILE_ON_TOP * targetSize / FipBatchOfUpdates.PREFERRED_MAX_TRANSMISSION;
+			if (spaceUsed < smallEnough && newLength < FipBatchOfUpdates.BUFFER_LENGTH)
 			{
 				// Larger than the preferred size, but not by much. This will be the last one in this transfer.
 				spaceUsed += requiredSpaceInBuffer;
@@ -46,6 +82,83 @@ public class FipBufferCapacityCalculator
 		return spaceUsed + 1; // One byte for commit
 	}
 
+	/**
+	 * The space left in the batch before it reaches the target size. This is negative if it already has.
+	 */
+	public long getSpaceLeft()
+	{
+		return getTargetSize() - getSpaceUsed();
+	}
+
+	/**
+	 * The size batches are aiming for.
+	 */
+	public int getTargetSize()
+	{
+		synchronized (measurements)
+		{
+			return measurements.targetSize;
+		}
+	}
+
+	/**
+	 * The size of each part of a file too large to send in one batch.
+	 */
+	public int getRangeLength()
+	{
+		return getTargetSize();
+	}
+
+	/**
+	 * Adjust the target size after a batch has been fetched and installed.
+	 */
+	public void batchSent(long length, long millis)
+	{
+		synchronized (measurements)
+		{
+			if (measurements.fixed)
+				return;
+			millis = Math.max(1, millis);
+			if (length >= MIN_SIZE_TO_MEASURE)
+			{
+				double transferMillis = Math.max(1, millis - Math.max(0, measurements.roundTripMillis));
+				measurements.bytesPerMilli = average(measurements.bytesPerMilli, length / transferMillis);
+			}
+			if (measurements.bytesPerMilli == 0)
+				return;
+
+			// Whatever isn't explained by the throughput is the time for the round trips
+			double roundTripMillis = Math.max(0, millis - length / measurements.bytesPerMilli);
+			measurements.roundTripMillis = (measurements.roundTripMillis < 0) ? roundTripMillis : average(measurements.roundTripMillis, roundTripMillis);
+			measurements.failurePenalty = Math.min(1, measurements.failurePenalty * 1.25);
+
+			double batchMillis = Math.max(TARGET_BATCH_MILLIS, 10 * measurements.roundTripMillis);
+			double targetSize = measurements.bytesPerMilli * batchMillis * measurements.failurePenalty;
+			measurements.targetSize = (int) Math.max(MIN_TARGET_SIZE, Math.min(MAX_TARGET_SIZE, targetSize));
+		}
+	}
+
+	/**
+	 * Make batches smaller after a batch has failed, so they are cheaper to send again.
+	 */
+	public void batchFailed()
+	{
+		synchronized (measurements)
+		{
+			if (measurements.fixed)
+				return;
+			measurements.failurePenalty = Math.max(0.01, measurements.failurePenalty / 2);
+			measurements.targetSize = Math.max(MIN_TARGET_SIZE, measurements.targetSize / 2);
+		}
+	}
+
+	private static double average(double previous, double measurement)
+	{
+		if (previous <= 0)
+			return measurement;
+		return previous + WEIGHT_OF_NEW_MEASUREMENT * (measurement - previous);
+	}
+
 	public int spaceRequiredAtStartOfBuffer()
 	{
 		return 4; // MAGIC_START_OF_TRANSFER_FILE, VERSION_MAJOR_NUMBER, VERSION_MINOR_NUMBER, MAGIC_END_OF_TRANSFER_FILE
@@ -63,6 +176,59 @@ public class FipBufferCapacityCalculator
 		return spaceRequired;
 	}
 
+	/**
+	 * Files too large to fit in a batch are sent in parts, each in a batch of it's own.
+	 */
+	public boolean needsRanges(String relativePath, long fileLen)
+	{
+		return spaceRequiredForUpdate(relativePath, fileLen) >= FipBatchOfUpdates.BUFFER_LENGTH;
+	}
+
+	public long spaceRequiredForRange(String relativePath, int rangeLength)
+	{
+		long spaceRequired = 1; // OP_INSTALL_RANGE
+		spaceRequired += 4 + relativePath.length(); // path
+		spaceRequired += 1; // flags
+		spaceRequired += 8 + 8 + 4; // file length, offset and range length
+		spaceRequired += 4 + 16; // checksum algorithm
+		spaceRequired += 4 + 64; // checksum
+		spaceRequired += 1; // MAGIC_BEFORE_FILE_CONTENTS
+		spaceRequired += rangeLength; // Part of the file
+		spaceRequired += 1; // MAGIC_AFTER_FILE_CONTENTS
+		return spaceRequired;
+	}
+
+	/**
+	 * The space for a patch isn't known until the file has been compared with the destination's
+	 * signatures. Allow for the whole file, but never more than the preferred size of a transfer,
+	 * so a large file with few changes is not rejected.
+	 */
+	public long spaceRequiredForPatch(String relativePath, long fileLen)
+	{
+		long spaceRequired = 1; // OP_PATCH_FILE
+		spaceRequired += 4 + relativePath.length(); // path
+		spaceRequired += 1; // flags
+		spaceRequired += 4 + 16; // checksum algorithm
+		spaceRequired += 4 + 64; // checksum
+		spaceRequired += 4 + 4; // file length and block size
+		spaceRequired += 1; // MAGIC_BEFORE_FILE_CONTENTS
+		spaceRequired += Math.min(fileLen, getTargetSize() / 2); // instructions
+		spaceRequired += 1; // MAGIC_AFTER_FILE_CONTENTS
+		return spaceRequired;
+	}
+
+	public long spaceRequiredForCopy(String relativePath, String copyFromRelativePath)
+	{
+		long spaceRequired = 1; // OP_COPY_FILE
+		spaceRequired += 4 + relativePath.length(); // path
+		spaceRequired += 4 + copyFromRelativePath.length(); // path of the file to copy
+		spaceRequired += 1; // flags
+		spaceRequired += 4 + 16; // checksum algorithm
+		spaceRequired += 4 + 64; // checksum
+		spaceRequired += 1; // MAGIC_AFTER_COPY
+		return spaceRequired;
+	}
+
 	public long spaceRequiredForDelete(String relativePath)
 	{
 		long spaceRequired = 1; // OP_DELETE_FILE
@@ -76,4 +242,26 @@ public class FipBufferCapacityCalculator
 		return 1; // OP_COMMIT_TRANSACTION
 	}
 
+	/**
+	 * The measurements of the batches sent so far, shared by the lanes of a transfer.
+	 */
+	private static class Measurements
+	{
+		private boolean fixed = false;
+		private int targetSize = FipBatchOfUpdates.PREFERRED_MAX_TRANSMISSION;
+		private double bytesPerMilli = 0;
+		private double roundTripMillis = -1;
+		private double failurePenalty = 1;
+
+		Measurements()
+		{
+			Integer megabytes = Integer.getInteger(BATCH_MEGABYTES_PROPERTY);
+			if (megabytes != null && megabytes > 0)
+			{
+				fixed = true;
+				targetSize = (int) Math.min(MAX_TARGET_SIZE, megabytes * 1024L * 1024L);
+			}
+		}
+	}
+
 }
@@ -0,0 +1,127 @@
+package tooltwist.fip;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.HashMap;
+
+/**
+ * A checksum algorithm used to detect changed files. The name of the algorithm is recorded
+ * in the manifest, and the source and destination must be using the same algorithm before
+ * their manifests can be compared.
+ *
+ * Algorithms are looked up by name. The built-in algorithms are:
+ * <ul>
+ * <li><code>md5</code> - the original algorithm, assumed for any manifest that does not name one.</li>
+ * <li><code>xxh64</code> - the non-cryptographic xxHash64, which is many times faster than MD5.</li>
+ * <li><code>xxh64-tree</code> - xxHash64, but large files are hashed in chunks on multiple
+ * 		threads (see {@link FipChecksum_xxh64Tree}). This is the default.</li>
+ * </ul>
+ * Other implementations can be added using {@link #register(FipChecksum)}.
+ *
+ * @author philipcallender
+ *
+ */
+public abstract class FipChecksum
+{
+	public static final String MD5 = "md5";
+	public static final String XXH64 = "xxh64";
+	public static final String XXH64_TREE = "xxh64-tree";
+
+	/**
+	 * The algorithm used for new manifests can be set using this system property.
+	 */
+	public static final String CHECKSUM_PROPERTY = "fip.checksum";
+	private static final String DEFAULT_ALGORITHM = XXH64_TREE;
+
+	private static HashMap<String, FipChecksum> algorithms = new HashMap<String, FipChecksum>();
+	static {
+		register(new FipChecksum_md5());
+		register(new FipChecksum_xxh64());
+		register(new FipChecksum_xxh64Tree());
+	}
+
+	/**
+	 * The state of a checksum calculation, fed a buffer at a time.
+	 */
+	public interface Hasher
+	{
+		/**
+		 * Add the remaining bytes in the buffer to the hash. On return, the buffer's position is at it's limit.
+		 */
+		public void update(ByteBuffer buf);
+
+		/**
+		 * Complete the calculation, returning the digest, and reset ready for the next file.
+		 */
+		public byte[] digest();
+
+		public void reset();
+	}
+
+	/**
+	 * The name recorded in the manifest.
+	 */
+	public abstract String getName();
+
+	/**
+	 * The length of the digest, in bytes.
+	 */
+	public abstract int getDigestLength();
+
+	/**
+	 * A Hasher that can only be used by the current thread.
+	 */
+	protected abstract Hasher getHasher();
+
+	/**
+	 * Calculate the checksum of a file, returned as hex digits.
+	 */
+	public String checksum(Path file) throws FipException
+	{
+		Hasher hasher = getHasher();
+		hasher.reset();
+		FipChecksumCalculator.digestFile(file, hasher, getName());
+		return FipChecksumCalculator.toHex(hasher.digest());
+	}
+
+	public String toString()
+	{
+		return getName();
+	}
+
+	/**
+	 * Add a checksum algorithm, so it can be found by name.
+	 */
+	public static synchronized void register(FipChecksum algorithm)
+	{
+		algorithms.put(algorithm.getName(), algorithm);
+	}
+
+	public static synchronized FipChecksum forName(String name) throws FipException
+	{
+		FipChecksum algorithm = algorithms.get(name);
+		if (algorithm == null)
+			throw new FipException("Unknown checksum algorithm: " + name);
+		return algorithm;
+	}
+
+	/**
+	 * The algorithm to be used for new manifests.
+	 */
+	public static FipChecksum getDefault() throws FipException
+	{
+		return forName(System.getProperty(CHECKSUM_PROPERTY, DEFAULT_ALGORITHM));
+	}
+
+	/**
+	 * The algorithm set using the <code>fip.checksum</code> system property,
+	 * or null if the property is not set.
+	 */
+	public static FipChecksum getConfigured() throws FipException
+	{
+		String name = System.getProperty(CHECKSUM_PROPERTY);
+		if (name == null || name.equals(""))
+			return null;
+		return forName(name);
+	}
+}
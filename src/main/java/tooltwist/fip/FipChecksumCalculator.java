@@ -0,0 +1,204 @@
+package tooltwist.fip;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import tooltwist.fip.FipChecksum.Hasher;
+
+/**
+ * Reads files for the checksum algorithms (see {@link FipChecksum}), using a {@link FileChannel}.
+ *
+ * Small and medium files are read into a direct buffer, which is reused by each thread.
+ * Files larger than {@link #MMAP_THRESHOLD} are memory mapped, a region at a time, so
+ * their contents are hashed straight from the page cache without being copied into the heap.
+ * Each region is unmapped as soon as it has been hashed (see {@link #unmap}), rather than
+ * waiting for the garbage collector, so the address space is released and the file is not
+ * left locked (on Windows a mapped file cannot be replaced).
+ *
+ * @author philipcallender
+ *
+ */
+final class FipChecksumCalculator
+{
+	static final int READ_BUFFER_SIZE = 1024 * 1024;
+	static final long MMAP_THRESHOLD = 64L * 1024 * 1024;
+	private static final long MMAP_REGION_SIZE = 256L * 1024 * 1024;
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private static final ThreadLocal<ByteBuffer> readBuffer = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue()
+		{
+			return ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+		}
+	};
+
+	// sun.misc.Unsafe.invokeCleaner, on Java 9 and later
+	private static Object unsafe = null;
+	private static Method invokeCleaner = null;
+	static
+	{
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method method = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = field.get(null);
+			invokeCleaner = method;
+		} catch (Exception e) {
+			// Before Java 9, the buffer's own cleaner is used
+		}
+	}
+
+	private FipChecksumCalculator()
+	{
+	}
+
+	/**
+	 * Pass the entire contents of a file through a Hasher.
+	 */
+	static void digestFile(Path file, Hasher hasher, String algorithmName) throws FipException
+	{
+		FileChannel channel = null;
+		try {
+			channel = FileChannel.open(file, StandardOpenOption.READ);
+			long size = channel.size();
+			if (size >= MMAP_THRESHOLD)
+			{
+				// Hash the file straight from the page cache
+				for (long position = 0; position < size; position += MMAP_REGION_SIZE)
+				{
+					long length = Math.min(MMAP_REGION_SIZE, size - position);
+					MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+					try {
+						hasher.update(region);
+					} finally {
+						unmap(region);
+					}
+				}
+			}
+			else
+			{
+				ByteBuffer buf = readBuffer.get();
+				for ( ; ; )
+				{
+					buf.clear();
+					int len = channel.read(buf);
+					if (len < 0)
+						break;
+					buf.flip();
+					hasher.update(buf);
+				}
+			}
+		} catch (IOException e) {
+			hasher.reset();
+			FipException ex = new FipException("Error calculating " + algorithmName + " hash: " + e.toString());
+			ex.setStackTrace(e.getStackTrace());
+			throw ex;
+		} finally {
+			if (channel != null)
+				try { channel.close(); } catch (IOException e) { /* do nothing */ }
+		}
+	}
+
+	/**
+	 * Release a mapped buffer now, rather than when it is garbage collected. There is no public API
+	 * for this, so the JVM's cleaner is called by reflection (sun.misc.Unsafe.invokeCleaner on
+	 * Java 9 and later, the buffer's cleaner before that). If neither is available the buffer is
+	 * left for the garbage collector. The buffer must not be used after this.
+	 */
+	static void unmap(MappedByteBuffer buffer)
+	{
+		if (buffer == null || !buffer.isDirect())
+			return;
+		try {
+			if (unsafe != null)
+			{
+				invokeCleaner.invoke(unsafe, buffer);
+				return;
+			}
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			if (cleaner != null)
+			{
+				Method clean = cleaner.getClass().getMethod("clean");
+				clean.setAccessible(true);
+				clean.invoke(cleaner);
+			}
+		} catch (Exception e) {
+			// Leave it for the garbage collector
+		}
+	}
+
+	/**
+	 * Pass part of a file through a Hasher. Positional reads are used, so the
+	 * channel may be shared by several threads.
+	 */
+	static void digestRange(FileChannel channel, long position, long length, Hasher hasher) throws IOException
+	{
+		ByteBuffer buf = readBuffer.get();
+		long end = position + length;
+		while (position < end)
+		{
+			buf.clear();
+			if (end - position < buf.capacity())
+				buf.limit((int) (end - position));
+			int len = channel.read(buf, position);
+			if (len < 0)
+				throw new IOException("Unexpected end of file");
+			position += len;
+			buf.flip();
+			hasher.update(buf);
+		}
+	}
+
+	/**
+	 * Convert a digest to lower case hex digits, two per byte.
+	 */
+	static String toHex(byte[] digest)
+	{
+		char[] hex = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++)
+		{
+			int b = digest[i] & 0xff;
+			hex[i * 2] = HEX_DIGITS[b >>> 4];
+			hex[i * 2 + 1] = HEX_DIGITS[b & 0x0f];
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * Convert lower case hex digits back to bytes. Returns null if the string is not valid hex.
+	 */
+	static byte[] fromHex(String hex)
+	{
+		if (hex == null || hex.length() == 0 || (hex.length() % 2) != 0)
+			return null;
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++)
+		{
+			int high = hexValue(hex.charAt(i * 2));
+			int low = hexValue(hex.charAt(i * 2 + 1));
+			if (high < 0 || low < 0)
+				return null;
+			bytes[i] = (byte) ((high << 4) | low);
+		}
+		return bytes;
+	}
+
+	private static int hexValue(char c)
+	{
+		if (c >= '0' && c <= '9')
+			return c - '0';
+		if (c >= 'a' && c <= 'f')
+			return c - 'a' + 10;
+		return -1;
+	}
+}
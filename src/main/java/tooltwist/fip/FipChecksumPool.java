@@ -0,0 +1,118 @@
+package tooltwist.fip;
+
+import java.io.File;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of threads used to calculate checksums while a directory is being indexed.
+ * The directory walker queues each new or modified file, and carries on walking while the
+ * checksums are calculated in the background. When the queue is full the walker calculates
+ * the checksum itself, which stops a fast walk from queuing up the entire directory tree.
+ *
+ * Each hashing thread reuses its own read buffer and Hasher (see {@link FipChecksumCalculator}).
+ *
+ * @author philipcallender
+ *
+ */
+class FipChecksumPool
+{
+	public static final String HASH_THREADS_PROPERTY = "fip.hashThreads";
+	private static final int QUEUED_FILES_PER_THREAD = 64;
+
+	private FipChecksum algorithm;
+	private ThreadPoolExecutor executor;
+	private AtomicLong filesHashed = new AtomicLong();
+	private AtomicLong bytesHashed = new AtomicLong();
+	private volatile FipException firstError = null;
+	private long startTime;
+	private long duration = 0;
+
+	FipChecksumPool(FipChecksum algorithm, int numThreads)
+	{
+		this.algorithm = algorithm;
+		if (numThreads < 1)
+			numThreads = 1;
+		this.executor = new ThreadPoolExecutor(numThreads, numThreads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(numThreads * QUEUED_FILES_PER_THREAD),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		this.startTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * The number of hashing threads, unless told otherwise. This can be set using
+	 * the <code>fip.hashThreads</code> system property.
+	 */
+	public static int defaultHashParallelism()
+	{
+		int parallelism = Integer.getInteger(HASH_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+		return (parallelism < 1) ? 1 : parallelism;
+	}
+
+	/**
+	 * Queue a file to have it's checksum calculated.
+	 */
+	void submit(final FipFile fipFile, final File file)
+	{
+		executor.execute(new Runnable() {
+			public void run()
+			{
+				if (firstError != null)
+					return;
+				try {
+					fipFile.calculateChecksum(file, algorithm);
+					filesHashed.incrementAndGet();
+					bytesHashed.addAndGet(fipFile.getFileSize());
+				} catch (FipException e) {
+					if (firstError == null)
+						firstError = e;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Wait for all the queued checksums to be calculated, then shut down the threads.
+	 */
+	void awaitCompletion() throws FipException
+	{
+		executor.shutdown();
+		try {
+			while ( !executor.awaitTermination(1, TimeUnit.SECONDS))
+			{
+				// Keep waiting
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			throw new FipException("Interrupted while calculating checksums");
+		}
+		this.duration = System.currentTimeMillis() - startTime;
+		if (firstError != null)
+			throw firstError;
+	}
+
+	/**
+	 * Stop the threads without waiting for queued files.
+	 */
+	void abort()
+	{
+		executor.shutdownNow();
+	}
+
+	long getFilesHashed()
+	{
+		return filesHashed.get();
+	}
+
+	long getBytesHashed()
+	{
+		return bytesHashed.get();
+	}
+
+	long getDuration()
+	{
+		return duration;
+	}
+}
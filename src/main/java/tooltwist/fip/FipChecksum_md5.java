@@ -0,0 +1,57 @@
+package tooltwist.fip;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * MD5, as used by all manifests before the checksum algorithm was recorded.
+ */
+public class FipChecksum_md5 extends FipChecksum
+{
+	private static final ThreadLocal<Hasher> hasher = new ThreadLocal<Hasher>() {
+		@Override
+		protected Hasher initialValue()
+		{
+			try {
+				final MessageDigest m = MessageDigest.getInstance("MD5");
+				return new Hasher() {
+					public void update(ByteBuffer buf)
+					{
+						m.update(buf);
+					}
+
+					public byte[] digest()
+					{
+						return m.digest();
+					}
+
+					public void reset()
+					{
+						m.reset();
+					}
+				};
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("Could not find MD5 implementation: " + e.toString());
+			}
+		}
+	};
+
+	@Override
+	public String getName()
+	{
+		return MD5;
+	}
+
+	@Override
+	public int getDigestLength()
+	{
+		return 16;
+	}
+
+	@Override
+	protected Hasher getHasher()
+	{
+		return hasher.get();
+	}
+}
@@ -0,0 +1,180 @@
+package tooltwist.fip;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A pure Java implementation of the xxHash64 algorithm (seed 0). The digest is the
+ * 64 bit hash value, high order byte first, which is the usual way of displaying it.
+ *
+ * See https://github.com/Cyan4973/xxHash for the specification.
+ */
+public class FipChecksum_xxh64 extends FipChecksum
+{
+	private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME64_3 = 0x165667B19E3779F9L;
+	private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+	private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+	private static final int STRIPE_LENGTH = 32;
+
+	private static final ThreadLocal<Hasher> hasher = new ThreadLocal<Hasher>() {
+		@Override
+		protected Hasher initialValue()
+		{
+			return new Xxh64Hasher();
+		}
+	};
+
+	@Override
+	public String getName()
+	{
+		return XXH64;
+	}
+
+	@Override
+	public int getDigestLength()
+	{
+		return 8;
+	}
+
+	@Override
+	protected Hasher getHasher()
+	{
+		return hasher.get();
+	}
+
+	/**
+	 * Create a new Hasher, for use by a single thread.
+	 */
+	static Hasher newHasher()
+	{
+		return new Xxh64Hasher();
+	}
+
+	private static long round(long acc, long input)
+	{
+		acc += input * PRIME64_2;
+		acc = Long.rotateLeft(acc, 31);
+		return acc * PRIME64_1;
+	}
+
+	private static long mergeRound(long acc, long val)
+	{
+		acc ^= round(0, val);
+		return acc * PRIME64_1 + PRIME64_4;
+	}
+
+	/**
+	 * The streaming form of xxHash64. Partial stripes are held in a small buffer
+	 * until enough data arrives to complete them.
+	 */
+	static class Xxh64Hasher implements Hasher
+	{
+		private long v1;
+		private long v2;
+		private long v3;
+		private long v4;
+		private long totalLength;
+		private ByteBuffer pending = ByteBuffer.allocate(STRIPE_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+
+		Xxh64Hasher()
+		{
+			reset();
+		}
+
+		public void reset()
+		{
+			v1 = PRIME64_1 + PRIME64_2;
+			v2 = PRIME64_2;
+			v3 = 0;
+			v4 = -PRIME64_1;
+			totalLength = 0;
+			pending.clear();
+		}
+
+		public void update(ByteBuffer buf)
+		{
+			ByteBuffer in = buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+			buf.position(buf.limit());
+			totalLength += in.remaining();
+
+			// Complete any partial stripe left over from the last call
+			if (pending.position() > 0)
+			{
+				while (pending.hasRemaining() && in.hasRemaining())
+					pending.put(in.get());
+				if (pending.hasRemaining())
+					return;
+				pending.flip();
+				stripe(pending);
+				pending.clear();
+			}
+
+			// Whole stripes
+			while (in.remaining() >= STRIPE_LENGTH)
+				stripe(in);
+
+			// Keep the rest for later
+			pending.put(in);
+		}
+
+		private void stripe(ByteBuffer in)
+		{
+			v1 = round(v1, in.getLong());
+			v2 = round(v2, in.getLong());
+			v3 = round(v3, in.getLong());
+			v4 = round(v4, in.getLong());
+		}
+
+		public byte[] digest()
+		{
+			long h;
+			if (totalLength >= STRIPE_LENGTH)
+			{
+				h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+				h = mergeRound(h, v1);
+				h = mergeRound(h, v2);
+				h = mergeRound(h, v3);
+				h = mergeRound(h, v4);
+			}
+			else
+				h = PRIME64_5;
+			h += totalLength;
+
+			// The remaining bytes
+			pending.flip();
+			while (pending.remaining() >= 8)
+			{
+				h ^= round(0, pending.getLong());
+				h = Long.rotateLeft(h, 27) * PRIME64_1 + PRIME64_4;
+			}
+			if (pending.remaining() >= 4)
+			{
+				h ^= (pending.getInt() & 0xffffffffL) * PRIME64_1;
+				h = Long.rotateLeft(h, 23) * PRIME64_2 + PRIME64_3;
+			}
+			while (pending.hasRemaining())
+			{
+				h ^= (pending.get() & 0xff) * PRIME64_5;
+				h = Long.rotateLeft(h, 11) * PRIME64_1;
+			}
+
+			// Avalanche
+			h ^= h >>> 33;
+			h *= PRIME64_2;
+			h ^= h >>> 29;
+			h *= PRIME64_3;
+			h ^= h >>> 32;
+
+			reset();
+			byte[] digest = new byte[8];
+			for (int i = 7; i >= 0; i--)
+			{
+				digest[i] = (byte) h;
+				h >>>= 8;
+			}
+			return digest;
+		}
+	}
+}
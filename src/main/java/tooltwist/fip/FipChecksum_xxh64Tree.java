@@ -0,0 +1,136 @@
+package tooltwist.fip;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * xxHash64 with tree hashing for large files.
+ *
+ * A file no larger than {@link #LEAF_SIZE} has the same checksum as it would using
+ * plain <code>xxh64</code>. A larger file is split into leaves of LEAF_SIZE bytes, and
+ * the leaves are hashed in parallel. The checksum is then the xxHash64 of the leaf
+ * digests followed by the file length (as 8 bytes, high order first). This lets a
+ * single multi-gigabyte file be hashed using every core, rather than just one.
+ */
+public class FipChecksum_xxh64Tree extends FipChecksum
+{
+	static final long LEAF_SIZE = 16L * 1024 * 1024;
+	private static final ForkJoinPool leafPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+	private static final ThreadLocal<Hasher> hasher = new ThreadLocal<Hasher>() {
+		@Override
+		protected Hasher initialValue()
+		{
+			return FipChecksum_xxh64.newHasher();
+		}
+	};
+
+	@Override
+	public String getName()
+	{
+		return XXH64_TREE;
+	}
+
+	@Override
+	public int getDigestLength()
+	{
+		return 8;
+	}
+
+	@Override
+	protected Hasher getHasher()
+	{
+		return hasher.get();
+	}
+
+	@Override
+	public String checksum(Path file) throws FipException
+	{
+		FileChannel channel = null;
+		try {
+			channel = FileChannel.open(file, StandardOpenOption.READ);
+			long size = channel.size();
+			if (size <= LEAF_SIZE)
+			{
+				channel.close();
+				channel = null;
+				return super.checksum(file);
+			}
+
+			// Hash the leaves in parallel
+			Vector<LeafTask> leaves = new Vector<LeafTask>();
+			for (long position = 0; position < size; position += LEAF_SIZE)
+				leaves.add(new LeafTask(channel, position, Math.min(LEAF_SIZE, size - position)));
+			for (LeafTask leaf : leaves)
+				leafPool.execute(leaf);
+
+			// Hash the leaf digests, followed by the file length
+			ByteBuffer tree = ByteBuffer.allocate(leaves.size() * 8 + 8);
+			for (LeafTask leaf : leaves)
+			{
+				byte[] digest = leaf.join();
+				if (digest == null)
+					throw new IOException(leaf.getError());
+				tree.put(digest);
+			}
+			tree.putLong(size);
+			tree.flip();
+			Hasher treeHasher = getHasher();
+			treeHasher.reset();
+			treeHasher.update(tree);
+			return FipChecksumCalculator.toHex(treeHasher.digest());
+		} catch (IOException e) {
+			FipException ex = new FipException("Error calculating " + getName() + " hash: " + e.toString());
+			ex.setStackTrace(e.getStackTrace());
+			throw ex;
+		} finally {
+			if (channel != null)
+				try { channel.close(); } catch (IOException e) { /* do nothing */ }
+		}
+	}
+
+	/**
+	 * Hash one leaf of the file, using positional reads so the channel can be shared.
+	 */
+	private static class LeafTask extends RecursiveTask<byte[]>
+	{
+		private static final long serialVersionUID = 1L;
+		private FileChannel channel;
+		private long position;
+		private long length;
+		private String error;
+
+		LeafTask(FileChannel channel, long position, long length)
+		{
+			this.channel = channel;
+			this.position = position;
+			this.length = length;
+		}
+
+		@Override
+		protected byte[] compute()
+		{
+			Hasher leafHasher = hasher.get();
+			leafHasher.reset();
+			try {
+				FipChecksumCalculator.digestRange(channel, position, length, leafHasher);
+			} catch (IOException e) {
+				leafHasher.reset();
+				this.error = e.toString();
+				return null;
+			}
+			return leafHasher.digest();
+		}
+
+		String getError()
+		{
+			return error;
+		}
+	}
+}
@@ -0,0 +1,211 @@
+package tooltwist.fip;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * A way of compressing the contents of a file in a batch of updates. The name of the codec
+ * is recorded with each compressed file, so the destination knows how to decompress it.
+ *
+ * Codecs are looked up by name. The built-in codecs are:
+ * <ul>
+ * <li><code>store</code> - files are sent as they are.</li>
+ * <li><code>deflate</code> - deflate, at the default level.</li>
+ * <li><code>deflate-fast</code> - deflate, at the fastest level. This is the default.</li>
+ * </ul>
+ * The codec used by the source can be set using the <code>fip.compression</code> system property.
+ * Other implementations can be added using {@link #register(FipCodec)}.
+ *
+ * Each file is only compressed if it looks like it will shrink. Very small files, files with
+ * names of formats that are already compressed (eg. JPEG or ZIP), and files whose contents look
+ * random are sent as they are. A file is compressed in memory, so files larger than
+ * {@link #MAX_SIZE_TO_COMPRESS} are also sent as they are.
+ *
+ * @author philipcallender
+ *
+ */
+public abstract class FipCodec
+{
+	public static final String STORE = "store";
+	public static final String DEFLATE = "deflate";
+	public static final String DEFLATE_FAST = "deflate-fast";
+
+	/**
+	 * The codec used by the source can be set using this system property.
+	 */
+	public static final String COMPRESSION_PROPERTY = "fip.compression";
+	private static final String DEFAULT_CODEC = DEFLATE_FAST;
+
+	/**
+	 * Files smaller than this aren't worth compressing.
+	 */
+	static final int MIN_SIZE_TO_COMPRESS = 512;
+
+	/**
+	 * Files larger than this are sent as they are, rather than holding them and their compressed
+	 * copy in memory.
+	 */
+	static final int MAX_SIZE_TO_COMPRESS = 8 * 1024 * 1024;
+
+	// Sampling the contents, to see if they look random
+	private static final int SAMPLE_LENGTH = 1024;
+	private static final double INCOMPRESSIBLE_BITS_PER_BYTE = 7.5;
+
+	private static final String[] COMPRESSED_FORMATS = {
+		"jpg", "jpeg", "png", "gif", "webp", "heic", "ico",
+		"mp3", "m4a", "ogg", "mp4", "m4v", "mov", "avi", "mkv", "webm",
+		"zip", "jar", "war", "ear", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "lz4",
+		"docx", "xlsx", "pptx", "odt", "ods", "woff", "woff2",
+	};
+	private static HashSet<String> compressedFormats = new HashSet<String>();
+	static {
+		for (String extension : COMPRESSED_FORMATS)
+			compressedFormats.add(extension);
+	}
+
+	private static HashMap<String, FipCodec> codecs = new HashMap<String, FipCodec>();
+	static {
+		register(new FipCodec_store());
+		register(new FipCodec_deflate(DEFLATE, java.util.zip.Deflater.DEFAULT_COMPRESSION));
+		register(new FipCodec_deflate(DEFLATE_FAST, java.util.zip.Deflater.BEST_SPEED));
+	}
+
+	/**
+	 * The name recorded with each compressed file.
+	 */
+	public abstract String getName();
+
+	/**
+	 * Compress some bytes.
+	 */
+	public abstract byte[] encode(byte[] data, int offset, int length) throws FipException;
+
+	/**
+	 * Decompress some bytes, which should expand to exactly <code>originalLength</code> bytes.
+	 */
+	public abstract byte[] decode(byte[] data, int offset, int length, int originalLength) throws FipException;
+
+	public String toString()
+	{
+		return getName();
+	}
+
+	/**
+	 * Add a codec, so it can be found by name.
+	 */
+	public static synchronized void register(FipCodec codec)
+	{
+		codecs.put(codec.getName(), codec);
+	}
+
+	public static synchronized FipCodec forName(String name) throws FipException
+	{
+		FipCodec codec = codecs.get(name);
+		if (codec == null)
+			throw new FipException("Unknown compression codec: " + name);
+		return codec;
+	}
+
+	/**
+	 * The codec set using the <code>fip.compression</code> system property.
+	 */
+	public static FipCodec getDefault() throws FipException
+	{
+		return forName(System.getProperty(COMPRESSION_PROPERTY, DEFAULT_CODEC));
+	}
+
+	/**
+	 * The codec to try on a file, or null if it should be sent as it is, judging by it's name and size.
+	 */
+	public static FipCodec forFile(String relativePath, long length) throws FipException
+	{
+		if (length < MIN_SIZE_TO_COMPRESS || length > MAX_SIZE_TO_COMPRESS)
+			return null;
+		if (isCompressedFormat(relativePath))
+			return null;
+		FipCodec codec = getDefault();
+		if (codec.getName().equals(STORE))
+			return null;
+		return codec;
+	}
+
+	/**
+	 * Returns true if the file's extension is a format that is already compressed (eg. images and archives).
+	 */
+	static boolean isCompressedFormat(String relativePath)
+	{
+		int dot = relativePath.lastIndexOf('.');
+		return dot > relativePath.lastIndexOf('/') && compressedFormats.contains(relativePath.substring(dot + 1).toLowerCase());
+	}
+
+	/**
+	 * Returns true if samples from the start, middle and end of the contents look random, so
+	 * compressing them would be a waste of time.
+	 */
+	public static boolean looksIncompressible(byte[] contents, int length)
+	{
+		int[] counts = new int[256];
+		int sampleLength = Math.min(SAMPLE_LENGTH, length);
+		for (long start : sampleStarts(length, sampleLength))
+		{
+			for (int i = (int) start; i < start + sampleLength; i++)
+				counts[contents[i] & 0xff]++;
+		}
+		return looksRandom(counts, sampleLength * 3);
+	}
+
+	/**
+	 * The same check as {@link #looksIncompressible(byte[], int)}, reading just the samples from a file.
+	 */
+	public static boolean looksIncompressible(File file, long length) throws IOException
+	{
+		int[] counts = new int[256];
+		int sampleLength = (int) Math.min(SAMPLE_LENGTH, length);
+		ByteBuffer sample = ByteBuffer.allocate(sampleLength);
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			for (long start : sampleStarts(length, sampleLength))
+			{
+				sample.clear();
+				while (sample.hasRemaining())
+				{
+					if (channel.read(sample, start + sample.position()) < 0)
+						throw new IOException("Error reading " + length + " bytes from: " + file.getAbsolutePath());
+				}
+				for (int i = 0; i < sampleLength; i++)
+					counts[sample.get(i) & 0xff]++;
+			}
+		} finally {
+			raf.close();
+		}
+		return looksRandom(counts, sampleLength * 3);
+	}
+
+	private static long[] sampleStarts(long length, int sampleLength)
+	{
+		return new long[] { 0, (length - sampleLength) / 2, length - sampleLength };
+	}
+
+	/**
+	 * Shannon entropy of the sampled bytes, in bits per byte, compared with what would be expected of random bytes.
+	 */
+	private static boolean looksRandom(int[] counts, int sampled)
+	{
+		double bits = 0;
+		for (int count : counts)
+		{
+			if (count == 0)
+				continue;
+			double p = (double) count / sampled;
+			bits -= p * Math.log(p);
+		}
+		bits /= Math.log(2);
+		return bits > INCOMPRESSIBLE_BITS_PER_BYTE;
+	}
+}
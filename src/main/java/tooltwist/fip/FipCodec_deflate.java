@@ -0,0 +1,78 @@
+package tooltwist.fip;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate (with the zlib header and checksum), at a given compression level.
+ */
+public class FipCodec_deflate extends FipCodec
+{
+	private String name;
+	private int level;
+
+	public FipCodec_deflate(String name, int level)
+	{
+		this.name = name;
+		this.level = level;
+	}
+
+	@Override
+	public String getName()
+	{
+		return name;
+	}
+
+	@Override
+	public byte[] encode(byte[] data, int offset, int length)
+	{
+		Deflater deflater = new Deflater(level);
+		try {
+			deflater.setInput(data, offset, length);
+			deflater.finish();
+			ByteArrayOutputStream os = new ByteArrayOutputStream(length / 2 + 64);
+			byte[] chunk = new byte[64 * 1024];
+			while ( !deflater.finished())
+			{
+				int cnt = deflater.deflate(chunk);
+				os.write(chunk, 0, cnt);
+			}
+			return os.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	@Override
+	public byte[] decode(byte[] data, int offset, int length, int originalLength) throws FipException
+	{
+		if (originalLength < 0 || originalLength > FipBatchOfUpdates.BUFFER_LENGTH)
+			throw new FipException("Invalid length for compressed contents: " + originalLength);
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data, offset, length);
+			byte[] contents = new byte[originalLength];
+			int pos = 0;
+			while (pos < originalLength)
+			{
+				int cnt = inflater.inflate(contents, pos, originalLength - pos);
+				if (cnt == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				pos += cnt;
+			}
+
+			// Make sure there's nothing more than we expected (this also reads the zlib checksum)
+			if (pos == originalLength && !inflater.finished() && inflater.inflate(new byte[1]) != 0)
+				throw new FipException("Compressed contents are longer than expected");
+			if (pos != originalLength || !inflater.finished() || inflater.getRemaining() != 0)
+				throw new FipException("Compressed contents are corrupt, or the wrong length");
+			return contents;
+		} catch (DataFormatException e) {
+			throw new FipException("Compressed contents are corrupt: " + e.getMessage());
+		} finally {
+			inflater.end();
+		}
+	}
+}
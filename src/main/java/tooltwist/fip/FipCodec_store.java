@@ -0,0 +1,29 @@
+package tooltwist.fip;
+
+/**
+ * No compression. The contents are sent as they are.
+ */
+public class FipCodec_store extends FipCodec
+{
+	@Override
+	public String getName()
+	{
+		return STORE;
+	}
+
+	@Override
+	public byte[] encode(byte[] data, int offset, int length)
+	{
+		byte[] copy = new byte[length];
+		System.arraycopy(data, offset, copy, 0, length);
+		return copy;
+	}
+
+	@Override
+	public byte[] decode(byte[] data, int offset, int length, int originalLength) throws FipException
+	{
+		if (length != originalLength)
+			throw new FipException("Stored contents are the wrong length (" + length + " bytes, expected " + originalLength + ")");
+		return encode(data, offset, length);
+	}
+}
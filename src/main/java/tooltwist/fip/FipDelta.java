@@ -3,7 +3,7 @@ package tooltwist.fip;
 public class FipDelta
 {
 	public enum Type {
-		START_BATCH("S"), NEW("N"), CHANGE("C"), DELETE("D"), END_BATCH("E"), ABORT_BATCH("A");
+		START_BATCH("S"), NEW("N"), CHANGE("C"), DELETE("D"), END_BATCH("E"), ABORT_BATCH("A"), COPY("Y");
 		
 		String code;
 		
@@ -27,6 +27,8 @@ public class FipDelta
 	private String destinationRelativePath;
 	private long filesize;
 	private Type type;
+	private String checksum = null;
+	private String copyFromRelativePath = null;
 	
 	public FipDelta(String sourceRelativePath, String destinationRelativePath, long fileSize2, Type type)
 	{
@@ -36,6 +38,12 @@ public class FipDelta
 		this.type = type;
 	}
 
+	public FipDelta(String sourceRelativePath, String destinationRelativePath, long fileSize2, Type type, String checksum)
+	{
+		this(sourceRelativePath, destinationRelativePath, fileSize2, type);
+		this.checksum = checksum;
+	}
+
 	public Type getType()
 	{
 		return type;
@@ -55,6 +63,8 @@ public class FipDelta
 		String str = type.getCode() + ":" + sourceRelativePath;
 		if ( !sourceRelativePath.equals(destinationRelativePath))
 			str += " -> " + destinationRelativePath;
+		if (copyFromRelativePath != null)
+			str += " (copy of " + copyFromRelativePath + ")";
 		return str;
 	}
 
@@ -62,5 +72,40 @@ public class FipDelta
 	{
 		return filesize;
 	}
+
+	/**
+	 * The checksum of the file at the source (or for a delete, at the destination), if known.
+	 * Not set for START_BATCH, END_BATCH or ABORT_BATCH.
+	 */
+	public String getChecksum()
+	{
+		return checksum;
+	}
+
+	/**
+	 * For a COPY, the file at the destination that already has the required contents.
+	 */
+	public String getCopyFromRelativePath()
+	{
+		return copyFromRelativePath;
+	}
+
+	/**
+	 * Change a new file into a copy of a file the destination already has.
+	 */
+	void copyFrom(String copyFromRelativePath)
+	{
+		this.copyFromRelativePath = copyFromRelativePath;
+		this.type = Type.COPY;
+	}
+
+	/**
+	 * Change a copy back into a new file, to be sent as a whole file.
+	 */
+	void sendWhole()
+	{
+		this.copyFromRelativePath = null;
+		this.type = Type.NEW;
+	}
 	
 }
@@ -1,11 +1,18 @@
 package tooltwist.fip;
 
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Vector;
 
 import tooltwist.fip.FipDelta.Type;
 
 public class FipDeltaList
 {
+	/**
+	 * Smaller files are sent, rather than copied from another file at the destination.
+	 */
+	static final long MIN_COPY_SIZE = 4 * 1024;
+
 	private Vector<FipDelta> list = new Vector<FipDelta>();
 	
 	public FipDeltaList()
@@ -17,6 +24,73 @@ public class FipDeltaList
 		FipDelta fipDelta = new FipDelta(sourceRelativePath, destinationRelativePath, fileSize, type);
 		list.add(fipDelta);
 	}
+
+	public void addDelta(String sourceRelativePath, String destinationRelativePath, long fileSize, Type type, String checksum)
+	{
+		FipDelta fipDelta = new FipDelta(sourceRelativePath, destinationRelativePath, fileSize, type, checksum);
+		list.add(fipDelta);
+	}
+
+	/**
+	 * The sizes of the new files that might be sent as copies, so the caller only
+	 * needs to look for existing files of these sizes.
+	 */
+	HashSet<Long> sizesOfNewFiles()
+	{
+		HashSet<Long> sizes = new HashSet<Long>();
+		for (FipDelta delta : list)
+			if (delta.getType() == Type.NEW && delta.getChecksum() != null && delta.getFilesize() >= MIN_COPY_SIZE)
+				sizes.add(delta.getFilesize());
+		return sizes;
+	}
+
+	/**
+	 * Change new files into copies of files the destination already has, so a moved or duplicated
+	 * file does not need to be sent again. A new file can be copied from a file being deleted, or from
+	 * an unchanged file, with the same size and checksum. The destination checks the copy's checksum
+	 * before installing it.
+	 *
+	 * @param unchangedFiles paths of destination files that are not being changed, by {@link #contentKey}.
+	 * @return the number of new files that will be copied
+	 */
+	int findCopies(HashMap<String, String> unchangedFiles)
+	{
+		HashMap<String, String> existingFiles = new HashMap<String, String>(unchangedFiles);
+		for (FipDelta delta : list)
+			if (delta.getType() == Type.DELETE && delta.getChecksum() != null && delta.getFilesize() >= MIN_COPY_SIZE)
+				existingFiles.put(contentKey(delta.getFilesize(), delta.getChecksum()), delta.getDestinationRelativePath());
+		if (existingFiles.isEmpty())
+			return 0;
+
+		int cnt = 0;
+		for (FipDelta delta : list)
+		{
+			if (delta.getType() != Type.NEW || delta.getChecksum() == null || delta.getFilesize() < MIN_COPY_SIZE)
+				continue;
+			String copyFrom = existingFiles.get(contentKey(delta.getFilesize(), delta.getChecksum()));
+			if (copyFrom != null)
+			{
+				delta.copyFrom(copyFrom);
+				cnt++;
+			}
+		}
+		return cnt;
+	}
+
+	/**
+	 * Change any copies back into new files, for a destination that can't copy files.
+	 */
+	void forgetCopies()
+	{
+		for (FipDelta delta : list)
+			if (delta.getType() == Type.COPY)
+				delta.sendWhole();
+	}
+
+	static String contentKey(long fileSize, String checksum)
+	{
+		return fileSize + ":" + checksum;
+	}
 	
 	public Iterable<FipDelta> list()
 	{
@@ -46,6 +120,8 @@ public class FipDeltaList
 					//buf.append("delete: " + sourceRelativePath);
 				} else if (code.equals("C")) {
 					buf.append("change: " + sourceRelativePath);
+				} else if (code.equals("Y")) {
+					buf.append("  copy: " + sourceRelativePath);
 				} else {
 					buf.append("      " + code + ": " + sourceRelativePath);
 				}
@@ -53,6 +129,8 @@ public class FipDeltaList
 //				buf.append(delta.getType().getCode() + ":" + delta.getFilesize() + ":" + sourceRelativePath);
 				if ( !sourceRelativePath.equals(destinationRelativePath))
 					buf.append(" -------> " + destinationRelativePath);
+				if (delta.getCopyFromRelativePath() != null)
+					buf.append(" (from " + delta.getCopyFromRelativePath() + ")");
 				buf.append("\n");
 			}
 		}
@@ -0,0 +1,62 @@
+package tooltwist.fip;
+
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+import tooltwist.fip.FipDelta.Type;
+
+/**
+ * Chooses the order changes are sent in, so each batch is filled close to it's target size.
+ *
+ * Each time a change is needed, the largest one that fits in the space left in the batch is
+ * chosen. If none fit, the largest of all is chosen, which starts the next batch. This packs the
+ * large files first, then fills the gaps with smaller ones, rather than sending them in the order
+ * they happened to be compared. Changes the same size are sent in the order they were added.
+ * Deletes are always sent last, after any copies of the files being deleted.
+ *
+ * @author philipcallender
+ *
+ */
+class FipDeltaPacker
+{
+	// The changes, by the space they need in a batch
+	private TreeMap<Long, LinkedList<FipDelta>> changesBySize = new TreeMap<Long, LinkedList<FipDelta>>();
+	private LinkedList<FipDelta> deletes = new LinkedList<FipDelta>();
+
+	/**
+	 * Add a change, needing about this much space in a batch.
+	 */
+	void add(FipDelta d, long spaceRequired)
+	{
+		if (d.getType() == Type.DELETE)
+		{
+			deletes.add(d);
+			return;
+		}
+		LinkedList<FipDelta> changes = changesBySize.get(spaceRequired);
+		if (changes == null)
+		{
+			changes = new LinkedList<FipDelta>();
+			changesBySize.put(spaceRequired, changes);
+		}
+		changes.add(d);
+	}
+
+	/**
+	 * The next change to send, given the space left in the batch, or null once they have all been sent.
+	 */
+	FipDelta next(long spaceLeft)
+	{
+		if (changesBySize.isEmpty())
+			return deletes.poll();
+		Map.Entry<Long, LinkedList<FipDelta>> entry = changesBySize.floorEntry(spaceLeft);
+		if (entry == null)
+			entry = changesBySize.lastEntry();
+		LinkedList<FipDelta> changes = entry.getValue();
+		FipDelta d = changes.removeFirst();
+		if (changes.isEmpty())
+			changesBySize.remove(entry.getKey());
+		return d;
+	}
+}
@@ -0,0 +1,229 @@
+package tooltwist.fip;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Vector;
+
+/**
+ * The contents of one directory in a {@link FipList}: each file with it's size and checksum,
+ * and each sub-directory with the number of files below it and it's directory hash.
+ *
+ * A directory hash is calculated from the names, sizes and checksums of everything below the
+ * directory (see {@link FipList#getDirectorySummary(String)}), so if the hashes of a directory at
+ * the source and destination match, nothing below it needs to be compared. The hash is null if
+ * any file below the directory does not have a checksum, in which case it never matches.
+ *
+ * This lets the source and destination be compared a directory at a time, starting from the
+ * root, without transferring the full file lists.
+ *
+ * @author philipcallender
+ *
+ */
+public class FipDirectorySummary
+{
+	private static final String CHECKSUM_HEADER = "#checksum=";
+	private static final String DIRECTORY_HEADER = "#directory=";
+	private static final String HASH_HEADER = "#hash=";
+	private static final String FILE = "F";
+	private static final String DIRECTORY = "D";
+
+	private String checksumAlgorithm;
+	private String directoryPath;
+	private String hash;
+	private String snapshotId = null;
+	private Vector<Entry> entries = new Vector<Entry>();
+	private HashMap<String, Entry> files = new HashMap<String, Entry>();
+	private HashMap<String, Entry> subdirectories = new HashMap<String, Entry>();
+
+	/**
+	 * A file or sub-directory within the directory.
+	 */
+	public static class Entry
+	{
+		private boolean isDirectory;
+		private String name;
+		private long size;
+		private String checksum;
+
+		Entry(boolean isDirectory, String name, long size, String checksum)
+		{
+			this.isDirectory = isDirectory;
+			this.name = name;
+			this.size = size;
+			this.checksum = checksum;
+		}
+
+		public boolean isDirectory()
+		{
+			return isDirectory;
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+
+		/**
+		 * For a file it's size, and for a directory the number of files below it.
+		 */
+		public long getSize()
+		{
+			return size;
+		}
+
+		/**
+		 * For a file it's checksum, and for a directory it's directory hash, as hex digits. Null if not known.
+		 */
+		public String getChecksum()
+		{
+			return checksum;
+		}
+
+		/**
+		 * Returns true if the entry is known to have the same contents as another entry.
+		 */
+		public boolean sameAs(Entry entry)
+		{
+			return entry != null && entry.isDirectory == isDirectory && entry.size == size
+					&& checksum != null && checksum.equals(entry.checksum);
+		}
+	}
+
+	FipDirectorySummary(String checksumAlgorithm, String directoryPath, String hash)
+	{
+		this.checksumAlgorithm = checksumAlgorithm;
+		this.directoryPath = directoryPath;
+		this.hash = hash;
+	}
+
+	void addFile(String name, long size, String checksum)
+	{
+		Entry entry = new Entry(false, name, size, checksum);
+		entries.add(entry);
+		files.put(name, entry);
+	}
+
+	void addDirectory(String name, long numFiles, String hash)
+	{
+		Entry entry = new Entry(true, name, numFiles, hash);
+		entries.add(entry);
+		subdirectories.put(name, entry);
+	}
+
+	public String getChecksumAlgorithm()
+	{
+		return checksumAlgorithm;
+	}
+
+	/**
+	 * The path of the directory, with a trailing '/'. The root is the empty string.
+	 */
+	public String getDirectoryPath()
+	{
+		return directoryPath;
+	}
+
+	/**
+	 * The directory hash as hex digits, or null if it is not known.
+	 */
+	public String getHash()
+	{
+		return hash;
+	}
+
+	/**
+	 * The id of the server's snapshot of the list this summary was taken from, or null if not known.
+	 * It is passed back when asking for the summaries of other directories. It is not part of the
+	 * serialized summary, but is sent in an HTTP header (see {@link FipServer#SNAPSHOT_HEADER}).
+	 */
+	public String getSnapshotId()
+	{
+		return snapshotId;
+	}
+
+	void setSnapshotId(String snapshotId)
+	{
+		this.snapshotId = snapshotId;
+	}
+
+	/**
+	 * Returns true if this directory is known to have the same contents as another directory.
+	 */
+	public boolean sameAs(FipDirectorySummary summary)
+	{
+		return hash != null && summary.checksumAlgorithm.equals(checksumAlgorithm) && hash.equals(summary.hash);
+	}
+
+	public Iterable<Entry> entries()
+	{
+		return entries;
+	}
+
+	public Entry getFile(String name)
+	{
+		return files.get(name);
+	}
+
+	public Entry getSubdirectory(String name)
+	{
+		return subdirectories.get(name);
+	}
+
+	public String serialize()
+	{
+		StringBuffer buf = new StringBuffer();
+		buf.append(CHECKSUM_HEADER + checksumAlgorithm + "\n");
+		buf.append(DIRECTORY_HEADER + directoryPath + "\n");
+		buf.append(HASH_HEADER + hash + "\n");
+		for (Entry entry : entries)
+		{
+			// Note that the name must be at the end, because it might contain the separator character.
+			buf.append((entry.isDirectory ? DIRECTORY : FILE) + ":" + entry.size + ":" + entry.checksum + ":" + entry.name + "\n");
+		}
+		return buf.toString();
+	}
+
+	public static FipDirectorySummary deserialize(BufferedReader in) throws IOException, FipCorruptionException
+	{
+		String checksumAlgorithm = readHeader(in, CHECKSUM_HEADER, 1);
+		String directoryPath = readHeader(in, DIRECTORY_HEADER, 2);
+		String hash = readHeader(in, HASH_HEADER, 3);
+		FipDirectorySummary summary = new FipDirectorySummary(checksumAlgorithm, directoryPath, nullIfNull(hash));
+		for (int lineNo = 4; ; lineNo++)
+		{
+			String line = in.readLine();
+			if (line == null)
+				break;
+			String[] fields = line.split(":", 4);
+			if (fields.length != 4)
+				throw new FipCorruptionException(lineNo, "invalid directory entry: " + line);
+			long size;
+			try {
+				size = Long.parseLong(fields[1]);
+			} catch (NumberFormatException e) {
+				throw new FipCorruptionException(lineNo, "non numeric value for size: " + line);
+			}
+			if (fields[0].equals(DIRECTORY))
+				summary.addDirectory(fields[3], size, nullIfNull(fields[2]));
+			else if (fields[0].equals(FILE))
+				summary.addFile(fields[3], size, nullIfNull(fields[2]));
+			else
+				throw new FipCorruptionException(lineNo, "unknown directory entry type: " + line);
+		}
+		return summary;
+	}
+
+	private static String readHeader(BufferedReader in, String prefix, int lineNo) throws IOException, FipCorruptionException
+	{
+		String line = in.readLine();
+		if (line == null || !line.startsWith(prefix))
+			throw new FipCorruptionException(lineNo, "missing " + prefix.substring(1, prefix.length() - 1));
+		return line.substring(prefix.length());
+	}
+
+	private static String nullIfNull(String value)
+	{
+		return value.equals("null") ? null : value;
+	}
+}
@@ -0,0 +1,214 @@
+package tooltwist.fip;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The directories used by a {@link FipList}, stored as a trie. Each directory is a node
+ * holding the id of it's parent and it's own name, so a directory prefix shared by many
+ * files is only stored once, no matter how deep it is. The root of the hierarchy is node
+ * zero, with an empty name.
+ *
+ * Directory paths are written with a trailing '/', (eg. <code>WEB-INF/lib/</code>), and
+ * the root is the empty string.
+ *
+ * @author philipcallender
+ *
+ */
+class FipDirectoryTree
+{
+	static final int ROOT = 0;
+
+	private int numDirectories = 1;
+	private int[] parents = new int[64];
+	private String[] names = new String[64];
+	private HashMap<ChildKey, Integer> children = new HashMap<ChildKey, Integer>();
+
+	// The most recently used directory path. Files are usually processed a directory at a time.
+	private CachedPath lastPath = new CachedPath(ROOT, "");
+
+	FipDirectoryTree()
+	{
+		parents[ROOT] = -1;
+		names[ROOT] = "";
+	}
+
+	/**
+	 * A copy of the tree, which can have directories added without affecting this tree.
+	 */
+	FipDirectoryTree copy()
+	{
+		FipDirectoryTree copy = new FipDirectoryTree();
+		copy.numDirectories = numDirectories;
+		copy.parents = parents.clone();
+		copy.names = names.clone();
+		copy.children = new HashMap<ChildKey, Integer>(children);
+		return copy;
+	}
+
+	int size()
+	{
+		return numDirectories;
+	}
+
+	int getParent(int directory)
+	{
+		return parents[directory];
+	}
+
+	String getName(int directory)
+	{
+		return names[directory];
+	}
+
+	/**
+	 * Find a sub-directory, optionally adding it. Returns -1 if it does not exist and <code>create</code> is false.
+	 */
+	int child(int parent, String name, boolean create)
+	{
+		ChildKey key = new ChildKey(parent, name);
+		Integer directory = children.get(key);
+		if (directory != null)
+			return directory;
+		if ( !create)
+			return -1;
+		if (numDirectories == parents.length)
+		{
+			parents = Arrays.copyOf(parents, numDirectories * 2);
+			names = Arrays.copyOf(names, numDirectories * 2);
+		}
+		int id = numDirectories++;
+		parents[id] = parent;
+		names[id] = name;
+		children.put(key, id);
+		return id;
+	}
+
+	/**
+	 * Find the node for a directory path, optionally adding it and any missing parents.
+	 * Returns -1 if it does not exist and <code>create</code> is false.
+	 */
+	int find(String directoryPath, boolean create)
+	{
+		CachedPath cached = lastPath;
+		if (cached.path.equals(directoryPath))
+			return cached.directory;
+
+		int directory = ROOT;
+		int start = 0;
+		for (int pos = directoryPath.indexOf('/'); pos >= 0 && directory >= 0; pos = directoryPath.indexOf('/', start))
+		{
+			directory = child(directory, directoryPath.substring(start, pos), create);
+			start = pos + 1;
+		}
+		if (start != directoryPath.length())
+			return -1; // No trailing '/'
+		if (directory >= 0)
+			lastPath = new CachedPath(directory, directoryPath);
+		return directory;
+	}
+
+	/**
+	 * The path of a directory, with a trailing '/'.
+	 */
+	String getPath(int directory)
+	{
+		CachedPath cached = lastPath;
+		if (cached.directory == directory)
+			return cached.path;
+		StringBuffer buf = new StringBuffer();
+		appendPath(buf, directory);
+		String path = buf.toString();
+		lastPath = new CachedPath(directory, path);
+		return path;
+	}
+
+	private void appendPath(StringBuffer buf, int directory)
+	{
+		if (directory == ROOT)
+			return;
+		appendPath(buf, parents[directory]);
+		buf.append(names[directory]);
+		buf.append('/');
+	}
+
+	/**
+	 * Check whether the first <code>length</code> characters of a path are the path of a directory.
+	 */
+	boolean pathEquals(int directory, String path, int length)
+	{
+		for ( ; directory != ROOT; directory = parents[directory])
+		{
+			String name = names[directory];
+			length -= name.length() + 1;
+			if (length < 0 || path.charAt(length + name.length()) != '/' || !path.startsWith(name, length))
+				return false;
+		}
+		return length == 0;
+	}
+
+	/**
+	 * Returns true if a directory is <code>ancestor</code>, or somewhere below it.
+	 */
+	boolean isWithin(int directory, int ancestor)
+	{
+		for ( ; directory >= 0; directory = parents[directory])
+			if (directory == ancestor)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Find the directory that a directory would become if the subtree starting at <code>from</code>
+	 * was moved to <code>to</code>. Any missing directories are added.
+	 */
+	int reparent(int directory, int from, int to)
+	{
+		if (directory == from)
+			return to;
+		int newParent = reparent(parents[directory], from, to);
+		return child(newParent, names[directory], true);
+	}
+
+	/**
+	 * Key for finding a sub-directory by name.
+	 */
+	private static class ChildKey
+	{
+		private int parent;
+		private String name;
+
+		ChildKey(int parent, String name)
+		{
+			this.parent = parent;
+			this.name = name;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return parent * 31 + name.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if ( !(obj instanceof ChildKey))
+				return false;
+			ChildKey key = (ChildKey) obj;
+			return key.parent == parent && key.name.equals(name);
+		}
+	}
+
+	private static class CachedPath
+	{
+		private final int directory;
+		private final String path;
+
+		CachedPath(int directory, String path)
+		{
+			this.directory = directory;
+			this.path = path;
+		}
+	}
+}
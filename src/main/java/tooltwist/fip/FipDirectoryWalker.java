@@ -0,0 +1,272 @@
+package tooltwist.fip;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * This class walks a directory hierarchy using multiple threads, comparing the files it
+ * finds against an existing {@link FipList}. The work is split by subdirectory, with each
+ * directory (and each large slice of a directory's files) handled by a separate fork/join task.
+ *
+ * Directories are read using a {@link DirectoryStream}, so a directory containing a huge
+ * number of entries is processed as it is read rather than loaded into an array first, and
+ * the type, size and modification time of each entry come from a single attribute read.
+ *
+ * Checksums are not calculated by the walker. New and modified files are queued on a
+ * {@link FipChecksumPool}, so hashing can proceed while the walk continues.
+ *
+ * Each file found is recorded in the list using {@link FipList#foundFile(String, long, long)},
+ * which is synchronized, as it may add entries to the list while other tasks are using it.
+ *
+ * @author philipcallender
+ *
+ */
+class FipDirectoryWalker
+{
+	/**
+	 * Directories containing more files than this are split into several tasks.
+	 */
+	private static final int FILES_PER_TASK = 512;
+
+	// Ignore files with these prefixes
+	private static final String[] IGNORED_PREFIXES = {
+		FipServer_updateExecuter.FIP_FILE_PREFIX,
+		FipServer_updateExecuter.UNDERSTUDY_PREFIX_NEW_FILE,
+		FipServer_updateExecuter.UNDERSTUDY_PREFIX_CHANGE_FILE,
+		FipServer_updateExecuter.UNDERSTUDY_PREFIX_DELETE_FILE,
+		FipServer_updateExecuter.ROLLBACK_FILE_PREFIX + FipServer_updateExecuter.UNDERSTUDY_PREFIX_NEW_FILE,
+		FipServer_updateExecuter.ROLLBACK_FILE_PREFIX + FipServer_updateExecuter.UNDERSTUDY_PREFIX_CHANGE_FILE,
+		FipServer_updateExecuter.ROLLBACK_FILE_PREFIX + FipServer_updateExecuter.UNDERSTUDY_PREFIX_DELETE_FILE,
+	};
+
+	private FipList fipList;
+	private FipChecksumPool checksumPool;
+	private Path rootDirectory;
+	private int parallelism;
+
+	FipDirectoryWalker(FipList fipList, FipChecksumPool checksumPool, File rootDirectory, int parallelism)
+	{
+		this.fipList = fipList;
+		this.checksumPool = checksumPool;
+		this.rootDirectory = rootDirectory.toPath();
+		this.parallelism = (parallelism < 1) ? 1 : parallelism;
+	}
+
+	/**
+	 * Walk the directory hierarchy, and wait until every task has completed. Checksums
+	 * may still be being calculated by the checksum pool when this returns.
+	 */
+	void walk() throws FipException
+	{
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			pool.invoke(new DirectoryTask(rootDirectory, ""));
+		} catch (WalkFailure e) {
+			throw e.getFipException();
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Check the files at the specified paths (relative to the root). A path that is a directory
+	 * is walked, including it's subdirectories. Paths that no longer exist are skipped.
+	 */
+	void walk(Collection<String> relativePaths) throws FipException
+	{
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			for (String relativePath : relativePaths)
+			{
+				if (isIgnoredPath(relativePath))
+					continue;
+				Path path = rootDirectory.resolve(relativePath);
+				BasicFileAttributes attributes;
+				try {
+					attributes = Files.readAttributes(path, BasicFileAttributes.class);
+				} catch (IOException e) {
+					// Removed
+					continue;
+				}
+				if (attributes.isDirectory())
+					pool.invoke(new DirectoryTask(path, relativePath + "/"));
+				else if (attributes.isRegularFile())
+					checkFile(path, attributes, relativePath);
+			}
+		} catch (WalkFailure e) {
+			throw e.getFipException();
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Returns true if a file or directory (relative to the root) is not included in the manifest.
+	 */
+	static boolean isIgnoredPath(String relativePath)
+	{
+		int start = 0;
+		for (int pos = relativePath.indexOf('/'); pos >= 0; pos = relativePath.indexOf('/', start))
+		{
+			if (relativePath.startsWith(Fip.PREFIX, start))
+				return true;
+			start = pos + 1;
+		}
+		String name = relativePath.substring(start);
+		return name.startsWith(Fip.PREFIX) || isIgnored(name);
+	}
+
+	private static boolean isIgnored(String name)
+	{
+		for (String prefix : IGNORED_PREFIXES)
+			if (name.startsWith(prefix))
+				return true;
+		return false;
+	}
+
+	private void checkFile(Path file, BasicFileAttributes attributes, String relativePath)
+	{
+		long length = attributes.size();
+		long lastModified = attributes.lastModifiedTime().toMillis();
+		FipFile fipFile = fipList.foundFile(relativePath, lastModified, length);
+		if (fipFile != null)
+		{
+			// New or modified, so it's checksum is needed
+			checksumPool.submit(fipFile, file.toFile());
+		}
+	}
+
+	/**
+	 * Process the contents of a single directory, forking a task for each subdirectory,
+	 * and for each slice of files as it is read from the directory.
+	 */
+	private class DirectoryTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		private Path directory;
+		private String relativePrefix;
+
+		DirectoryTask(Path directory, String relativePrefix)
+		{
+			this.directory = directory;
+			this.relativePrefix = relativePrefix;
+		}
+
+		@Override
+		protected void compute()
+		{
+			Vector<ForkJoinTask<Void>> subtasks = new Vector<ForkJoinTask<Void>>();
+			FilesTask slice = new FilesTask(relativePrefix);
+			DirectoryStream<Path> stream = null;
+			try {
+				stream = Files.newDirectoryStream(directory);
+				for (Path entry : stream)
+				{
+					String name = entry.getFileName().toString();
+					if (name.startsWith(Fip.PREFIX))
+						continue;
+
+					// One read gets the type, size and modification time
+					BasicFileAttributes attributes;
+					try {
+						attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+					} catch (IOException e) {
+						// Probably a broken symbolic link, or deleted since the directory was read.
+						continue;
+					}
+					if (attributes.isDirectory())
+					{
+						subtasks.add(new DirectoryTask(entry, relativePrefix + name + "/").fork());
+						continue;
+					}
+					if ( !attributes.isRegularFile() || isIgnored(name))
+						continue;
+
+					// Hand off each full slice of files while we carry on reading the directory
+					slice.add(entry, attributes);
+					if (slice.size() >= FILES_PER_TASK)
+					{
+						subtasks.add(slice.fork());
+						slice = new FilesTask(relativePrefix);
+					}
+				}
+			} catch (IOException e) {
+				throw new WalkFailure(new FipException("Cannot read directory: " + directory + ": " + e.toString()));
+			} finally {
+				if (stream != null)
+					try { stream.close(); } catch (IOException e) { /* do nothing */ }
+			}
+
+			// Process the last slice in this thread, then wait for the others
+			slice.invoke();
+			for (ForkJoinTask<Void> task : subtasks)
+				task.join();
+		}
+	}
+
+	/**
+	 * Check a slice of the files in a directory against the manifest.
+	 */
+	private class FilesTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		private Vector<Path> files = new Vector<Path>(FILES_PER_TASK);
+		private Vector<BasicFileAttributes> attributes = new Vector<BasicFileAttributes>(FILES_PER_TASK);
+		private String relativePrefix;
+
+		FilesTask(String relativePrefix)
+		{
+			this.relativePrefix = relativePrefix;
+		}
+
+		void add(Path file, BasicFileAttributes fileAttributes)
+		{
+			files.add(file);
+			attributes.add(fileAttributes);
+		}
+
+		int size()
+		{
+			return files.size();
+		}
+
+		@Override
+		protected void compute()
+		{
+			for (int i = 0; i < files.size(); i++)
+			{
+				Path file = files.get(i);
+				checkFile(file, attributes.get(i), relativePrefix + file.getFileName().toString());
+			}
+		}
+	}
+
+	/**
+	 * Used to carry a FipException out of a fork/join task.
+	 */
+	private static class WalkFailure extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+		private FipException fipException;
+
+		WalkFailure(FipException fipException)
+		{
+			super(fipException.getMessage());
+			this.fipException = fipException;
+		}
+
+		FipException getFipException()
+		{
+			return fipException;
+		}
+	}
+}
@@ -1,166 +1,122 @@
 package tooltwist.fip;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 import tooltwist.fip.FipRule.Op;
 
+/**
+ * A view of one entry in a {@link FipList}. The details of the file are held by the list.
+ */
 class FipFile implements Comparable<FipFile>, FipRuleParameter
 {
-	private String relativePath;
-	private long lastModified;
-	private long fileSize;
-	private String hash;
-	private boolean confirmExists = false;
-	private boolean checkedForDelta;
-	
-	// Fields set by rules
-	private String destinationRelativePath;
-	private Op op = Op.INCLUDE;
-	
+	private FipList list;
+	private int index;
+
 //	ChecksumFile(String installRoot, String relativePath)
 //	{
 //		this.path = relativePath;
 //		this.modifi
 //	}
 
-	public FipFile(String relativePath)
+	FipFile(FipList list, int index)
 	{
-		this.relativePath = relativePath;
-		this.destinationRelativePath = relativePath;
+		this.list = list;
+		this.index = index;
 	}
 
 	public long getLastModified()
 	{
-		return lastModified;
+		return list.getLastModified(index);
 	}
 
 	public void setLastModified(long lastModified)
 	{
-		this.lastModified = lastModified;
+		list.setLastModified(index, lastModified);
 	}
 
 	public long getFileSize()
 	{
-		return fileSize;
+		return list.getFileSize(index);
 	}
 
 	public void setLength(long length)
 	{
-		this.fileSize = length;
+		list.setFileSize(index, length);
 	}
 
 	public String getChecksum()
 	{
-		return hash;
+		return list.getChecksum(index);
 	}
 
 	public void setChecksum(String checksum)
 	{
-		this.hash = checksum;
+		list.setChecksum(index, checksum);
 	}
 
 	public String getSourceRelativePath()
 	{
-		return relativePath;
-	}
-
-	public void calculateChecksum(File file) throws FipException
-	{
-		FileInputStream fis = null;
-		try {
-			fis = new FileInputStream(file);
-			byte[] buf = new byte[4096];
-			MessageDigest m = MessageDigest.getInstance("MD5");
-			for ( ; ; )
-			{
-				int len = fis.read(buf);
-				if (len <= 0)
-					break;
-				m.update(buf, 0, len);
-			}
-			byte[] digest = m.digest();
-			BigInteger bigInt = new BigInteger(1,digest);
-			String hashtext = bigInt.toString(16);
-			
-			// Now we need to zero pad it if you actually want the full 32 chars.
-			while (hashtext.length() < 32 ) {
-			  hashtext = "0"+hashtext;
-			}
-//logger.info("hash is " + hashtext);
-			this.hash = hashtext;
-		}
-		catch (NoSuchAlgorithmException e)
-		{
-			FipException ex = new FipException("Could not find MD5 implementation: " + e.toString());
-			ex.setStackTrace(e.getStackTrace());
-			throw ex;
-		}
-		catch (IOException e)
-		{
-			FipException ex = new FipException("Error calculating MD5 hash: " + e.toString());
-			ex.setStackTrace(e.getStackTrace());
-			throw ex;
-		}
-		finally
-		{
-			if (fis != null)
-				try { fis.close(); } catch (Exception e) { }
-		}
+		return list.getPath(index);
+	}
+
+	public void calculateChecksum(File file, FipChecksum algorithm) throws FipException
+	{
+		list.setCalculatedChecksum(index, algorithm.checksum(file.toPath()));
 	}
 
 	public int compareTo(FipFile o)
 	{
-		return relativePath.compareTo(o.relativePath);
+		return getSourceRelativePath().compareTo(o.getSourceRelativePath());
 	}
 
 	public void setConfirmExists()
 	{
-		this.confirmExists = true;
+		list.setConfirmExists(index);
 	}
 
 	public boolean getConfirmExists()
 	{
-		return confirmExists;
+		return list.getConfirmExists(index);
 	}
 
 	public void setCheckedForDelta(boolean b)
 	{
-		this.checkedForDelta = true;
+		list.setCheckedForDelta(index);
 	}
-	
+
 	public boolean getCheckedForDelta()
 	{
-		return checkedForDelta;
+		return list.getCheckedForDelta(index);
 	}
 
 	public String getDestinationRelativePath()
 	{
-		return destinationRelativePath;
+		return list.getDestinationRelativePath(index);
 	}
 
 	public void setDestinationRelativePath(String destinationRelativePath)
 	{
-		this.destinationRelativePath = destinationRelativePath;
+		list.setDestinationRelativePath(index, destinationRelativePath);
+	}
+
+	public void mapDirectory(String fromDirectory, String toDirectory)
+	{
+		list.mapDirectory(index, fromDirectory, toDirectory);
 	}
 
 	public Op getOp()
 	{
-		return this.op;
+		return list.getOp(index);
 	}
 
 	public void setOp(Op op)
 	{
-		this.op = op;
+		list.setOp(index, op);
 	}
 
-	
+
 	public String toString()
 	{
-		return this.relativePath;
+		return getSourceRelativePath();
 	}
 }
@@ -1,12 +1,17 @@
 package tooltwist.fip;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
 import java.net.ConnectException;
+import java.net.URLEncoder;
+import java.util.BitSet;
 import java.util.Properties;
+import java.util.Vector;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -20,6 +25,7 @@ import org.apache.commons.httpclient.methods.multipart.ByteArrayPartSource;
 import org.apache.commons.httpclient.methods.multipart.FilePart;
 import org.apache.commons.httpclient.methods.multipart.MultipartRequestEntity;
 import org.apache.commons.httpclient.methods.multipart.Part;
+import org.apache.commons.httpclient.methods.multipart.PartSource;
 import org.apache.commons.httpclient.methods.multipart.StringPart;
 import org.apache.commons.httpclient.params.HttpClientParams;
 import org.apache.commons.httpclient.params.HttpMethodParams;
@@ -137,7 +143,19 @@ public class FipHttpServerProxy extends FipServerProxy
 					String salt = properties.getProperty("salt");
 					if (salt==null || salt.equals(""))
 						throw new FipException("Error: remote server did not return salt.");
-					NewTransactionReply reply = new NewTransactionReply(destinationUuid, txId, salt);
+
+					// Older servers don't report their version
+					int protocolVersion = NewTransactionReply.UNREPORTED_VERSION;
+					String version = properties.getProperty("protocolVersion");
+					if (version != null && !version.equals(""))
+					{
+						try {
+							protocolVersion = Integer.parseInt(version.trim());
+						} catch (NumberFormatException e) {
+							throw new FipException("Error: remote server returned an invalid protocolVersion: " + version);
+						}
+					}
+					NewTransactionReply reply = new NewTransactionReply(destinationUuid, txId, salt, protocolVersion);
 					return reply;
 		    	} finally {
 		    		if (stream != null)
@@ -170,10 +188,22 @@ public class FipHttpServerProxy extends FipServerProxy
 //		return realServer.startNewTransaction(sourceUuid);
 	}
 
+	/**
+	 * Get a list of files below the root. If we have the list from last time, only the changes
+	 * since then are fetched.
+	 */
 	@Override
-	public FipList askForFileList(boolean isDestination) throws IOException, FipCorruptionException, FipException
+	public FipList askForFileList(boolean isDestination, String checksumAlgorithm) throws IOException, FipCorruptionException, FipException
 	{
 		String url = "http://" + host + ":" + port + "/getFileList?path=" + this.getRoot() + "&isDestination=" + (isDestination?"Y":"N");
+		if (checksumAlgorithm != null)
+			url += "&checksum=" + checksumAlgorithm;
+		String cacheKey = fileListCacheKey(isDestination);
+		FipList cached = FipRemoteListCache.load(cacheKey);
+		if (cached != null && checksumAlgorithm != null && !checksumAlgorithm.equals(cached.getChecksumAlgorithm().getName()))
+			cached = null;
+		if (cached != null && cached.getGenerationId() != null)
+			url += "&since=" + URLEncoder.encode(cached.getGenerationId(), "UTF-8");
 
 		// Prepare timeouts
 		HttpClientParams params = new HttpClientParams();
@@ -228,6 +258,20 @@ public class FipHttpServerProxy extends FipServerProxy
 			    		String reply = new String(byteArrayOutputStream.toByteArray());
 						BufferedReader in = new BufferedReader(new StringReader(reply));
 						FipList fipList = FipList.deserialize(in);
+
+						// Apply just the changes to the list we had
+						if (fipList.isChangesOnly())
+						{
+							if (cached == null)
+								throw new FipException("The server("+this.host+":"+this.port+") sent changes to a file list we don't have");
+							if (fipList.numFiles() == 0 && fipList.getGenerationId().equals(cached.getGenerationId()))
+								logger.info("File list is unchanged since last time.");
+							else
+								logger.info("Fetched the changes to the file list since last time.");
+							cached.applyChanges(fipList);
+							fipList = cached;
+						}
+						FipRemoteListCache.save(cacheKey, fipList);
 						return fipList;
 			    	}
 			    	throw new FipException("Zip file returned by the server("+this.host+":"+this.port+") contains no file list");
@@ -248,6 +292,185 @@ public class FipHttpServerProxy extends FipServerProxy
 	    }
 	}
 
+	@Override
+	public boolean hasCachedFileList(boolean isDestination)
+	{
+		return FipRemoteListCache.contains(fileListCacheKey(isDestination));
+	}
+
+	@Override
+	public String getKnownChecksumAlgorithm()
+	{
+		return FipRemoteListCache.loadSetting(fileListCacheKey(true) + " checksum");
+	}
+
+	@Override
+	public void setKnownChecksumAlgorithm(String checksumAlgorithm)
+	{
+		FipRemoteListCache.saveSetting(fileListCacheKey(true) + " checksum", checksumAlgorithm);
+	}
+
+	private String fileListCacheKey(boolean isDestination)
+	{
+		return "http://" + host + ":" + port + "/" + this.getRoot() + (isDestination ? " destination" : " source");
+	}
+
+	@Override
+	public FipDirectorySummary askForDirectorySummary(boolean isDestination, String checksumAlgorithm, String directoryPath, String snapshotId) throws IOException, FipCorruptionException, FipException
+	{
+		return askForDirectorySummary(isDestination, checksumAlgorithm, directoryPath, snapshotId, false);
+	}
+
+	@Override
+	public FipDirectorySummary askForSubtreeSummary(boolean isDestination, String checksumAlgorithm, String directoryPath, String snapshotId) throws IOException, FipCorruptionException, FipException
+	{
+		return askForDirectorySummary(isDestination, checksumAlgorithm, directoryPath, snapshotId, true);
+	}
+
+	private FipDirectorySummary askForDirectorySummary(boolean isDestination, String checksumAlgorithm, String directoryPath, String snapshotId, boolean wholeSubtree) throws IOException, FipCorruptionException, FipException
+	{
+		String url = "http://" + host + ":" + port + "/getDirectorySummary?path=" + this.getRoot() + "&isDestination=" + (isDestination?"Y":"N")
+				+ "&directory=" + URLEncoder.encode(directoryPath, "UTF-8");
+		if (wholeSubtree)
+			url += "&subtree=Y";
+		if (checksumAlgorithm != null)
+			url += "&checksum=" + checksumAlgorithm;
+		if (snapshotId != null)
+			url += "&snapshot=" + URLEncoder.encode(snapshotId, "UTF-8");
+
+		// Prepare timeouts. Asking for the root directory indexes the files, which can take a while.
+		HttpClientParams params = new HttpClientParams();
+		params.setConnectionManagerTimeout(30 * 1000); // 30 seconds
+		params.setSoTimeout(10 * 60 * 1000); // 10 minutes
+
+		// Call the server
+		HttpClient client = new HttpClient(params);
+		GetMethod getMethod = new GetMethod(url);
+		HttpMethodParams params2 = getMethod.getParams();
+		params2.setParameter(HttpMethodParams.RETRY_HANDLER, new DefaultHttpMethodRetryHandler(3, false));
+		try {
+			int statusCode = client.executeMethod(getMethod);
+			if (statusCode != HttpStatus.SC_OK)
+				throw new FipException("Unknown response from FIP server: " + statusCode);
+
+			// The server responded okay. Check the response type.
+			Header contentType = getMethod.getResponseHeader("Content-Type");
+			if (contentType==null || !contentType.getValue().equals("application/zip"))
+				throw new FipException("Invalid reply from FIP server");
+
+			// Decompress the zip file and convert it to a summary. An older server does not send a snapshot id.
+			byte[] data = Fip.unzipIt(getMethod.getResponseBodyAsStream(), "data");
+			BufferedReader in = new BufferedReader(new StringReader(new String(data, "UTF-8")));
+			FipDirectorySummary summary = FipDirectorySummary.deserialize(in);
+			Header snapshot = getMethod.getResponseHeader(FipServer.SNAPSHOT_HEADER);
+			if (snapshot != null)
+				summary.setSnapshotId(snapshot.getValue());
+			return summary;
+	    } catch (Exception ex) {
+	    	// Not necessarily an error - older servers don't support this request
+	    	logger.info("Directory summary not available: " + ex.getClass().getName() + " "+ ex.getMessage());
+	        FipException exception = new FipException(ex.toString());
+	        exception.setStackTrace(ex.getStackTrace());
+	        throw exception;
+	    } finally {
+	    	getMethod.releaseConnection();
+	    }
+	}
+
+	@Override
+	public FipBucketSummary askForBucketSummary(boolean isDestination, String checksumAlgorithm, int numBuckets) throws IOException, FipCorruptionException, FipException
+	{
+		String url = "http://" + host + ":" + port + "/getBucketSummary?path=" + this.getRoot() + "&isDestination=" + (isDestination?"Y":"N")
+				+ "&buckets=" + numBuckets;
+		if (checksumAlgorithm != null)
+			url += "&checksum=" + checksumAlgorithm;
+
+		// Prepare timeouts. This indexes the files, which can take a while.
+		HttpClientParams params = new HttpClientParams();
+		params.setConnectionManagerTimeout(30 * 1000); // 30 seconds
+		params.setSoTimeout(10 * 60 * 1000); // 10 minutes
+
+		// Call the server
+		HttpClient client = new HttpClient(params);
+		GetMethod getMethod = new GetMethod(url);
+		HttpMethodParams params2 = getMethod.getParams();
+		params2.setParameter(HttpMethodParams.RETRY_HANDLER, new DefaultHttpMethodRetryHandler(3, false));
+		try {
+			int statusCode = client.executeMethod(getMethod);
+			if (statusCode != HttpStatus.SC_OK)
+				throw new FipException("Unknown response from FIP server: " + statusCode);
+
+			// The server responded okay. Check the response type.
+			Header contentType = getMethod.getResponseHeader("Content-Type");
+			if (contentType==null || !contentType.getValue().equals("application/zip"))
+				throw new FipException("Invalid reply from FIP server");
+
+			// Decompress the zip file and convert it to a summary. An older server does not send a snapshot id.
+			byte[] data = Fip.unzipIt(getMethod.getResponseBodyAsStream(), "data");
+			BufferedReader in = new BufferedReader(new StringReader(new String(data, "UTF-8")));
+			FipBucketSummary summary = FipBucketSummary.deserialize(in);
+			Header snapshot = getMethod.getResponseHeader(FipServer.SNAPSHOT_HEADER);
+			if (snapshot != null)
+				summary.setSnapshotId(snapshot.getValue());
+			return summary;
+	    } catch (Exception ex) {
+	    	// Not necessarily an error - older servers don't support this request
+	    	logger.info("Bucket summary not available: " + ex.getClass().getName() + " "+ ex.getMessage());
+	        FipException exception = new FipException(ex.toString());
+	        exception.setStackTrace(ex.getStackTrace());
+	        throw exception;
+	    } finally {
+	    	getMethod.releaseConnection();
+	    }
+	}
+
+	@Override
+	public FipList askForBucketEntries(boolean isDestination, String checksumAlgorithm, int numBuckets, BitSet buckets, String snapshotId) throws IOException, FipCorruptionException, FipException
+	{
+		String url = "http://" + host + ":" + port + "/getBucketEntries";
+		PostMethod postMethod = new PostMethod(url);
+		try {
+			// Send the bucket numbers, one per line, zipped.
+			byte[] byteArray = FipBucketSummary.serializeBuckets(buckets).getBytes("UTF-8");
+			byte[] compressed = Fip.zipIt(byteArray, byteArray.length);
+			ByteArrayPartSource partSource = new ByteArrayPartSource("data.zipped", compressed);
+			Part[] parts = {
+					new FilePart("data.zipped", partSource),
+					new StringPart("path", this.getRoot(), "ISO-8859-1"),
+					new StringPart("isDestination", isDestination ? "Y" : "N", "ISO-8859-1"),
+					new StringPart("checksum", (checksumAlgorithm == null) ? "" : checksumAlgorithm, "ISO-8859-1"),
+					new StringPart("buckets", "" + numBuckets, "ISO-8859-1"),
+					new StringPart("snapshot", (snapshotId == null) ? "" : snapshotId, "ISO-8859-1"),
+			};
+			postMethod.setRequestEntity(new MultipartRequestEntity(parts, postMethod.getParams()));
+
+			// Prepare timeouts
+			HttpClientParams params = new HttpClientParams();
+			params.setConnectionManagerTimeout(30 * 1000); // 30 seconds
+			params.setSoTimeout(10 * 60 * 1000); // 10 minutes
+
+			HttpClient client = new HttpClient(params);
+			int statusCode = client.executeMethod(postMethod);
+			if (statusCode != HttpStatus.SC_OK)
+				throw new FipException("Unknown response from server: " + statusCode + ": " + HttpStatus.getStatusText(statusCode));
+			Header contentType = postMethod.getResponseHeader("Content-Type");
+			if (contentType==null || !contentType.getValue().equals("application/zip"))
+				throw new FipException("Invalid reply from FIP server");
+
+			// The reply is a file list
+			byte[] reply = Fip.unzipIt(postMethod.getResponseBodyAsStream(), "data");
+			BufferedReader in = new BufferedReader(new StringReader(new String(reply, "UTF-8")));
+			return FipList.deserialize(in);
+	    } catch (Exception ex) {
+	    	logger.info("ERROR: " + ex.getClass().getName() + " "+ ex.getMessage());
+	        FipException exception = new FipException(ex.toString());
+	        exception.setStackTrace(ex.getStackTrace());
+	        throw exception;
+	    } finally {
+	    	postMethod.releaseConnection();
+	    }
+	}
+
 //	@Override
 //	@Deprecated
 //	public FipDeltaList askForInstallDeltaList(FipList filesAtSource) throws IOException, FipCorruptionException, FipException
@@ -279,6 +502,7 @@ public class FipHttpServerProxy extends FipServerProxy
         			new StringPart("destinationUuid", destinationUuid, "ISO-8859-1"),
         			new StringPart("txId", txId, "ISO-8859-1"),
         			new StringPart("salt", salt, "ISO-8859-1"),
+        			new StringPart("destinationVersion", "" + requestList.getDestinationVersion(), "ISO-8859-1"),
             };
             postMethod.setRequestEntity(new MultipartRequestEntity(parts, postMethod.getParams()));
             
@@ -307,9 +531,8 @@ public class FipHttpServerProxy extends FipServerProxy
 				if (contentType==null || !contentType.getValue().equals("application/zip"))
 					throw new FipException("Invalid reply from FIP server");
 				
-				// Decompress the zip file and convert it to an instructions buffer.
-				byte[] updates = Fip.unzipIt(postMethod.getResponseBodyAsStream(), "data");
-				FipBatchOfUpdates instructionsBuffer = new FipBatchOfUpdates(updates);
+				// Decompress the zip file straight into an instructions buffer.
+				FipBatchOfUpdates instructionsBuffer = Fip.unzipBatch(postMethod.getResponseBodyAsStream());
 				return instructionsBuffer;
 				
 			}
@@ -327,27 +550,165 @@ public class FipHttpServerProxy extends FipServerProxy
 	    }
 	}
 
+	/**
+	 * SOURCE: Ask for updates shared by several destinations. The destinations, transactions and salts
+	 * are sent one per line, and the reply is a zipped {@link FipSharedBatch}.
+	 */
+	@Override
+	public FipSharedBatch askForSharedUpdates(FipRequestList requestList, Vector<String> destinationUuids, Vector<String> txIds, Vector<String> salts) throws FipException, IOException, FipCorruptionException
+	{
+		String url = "http://" + host + ":" + port + "/getSharedUpdates";
+        PostMethod postMethod = new PostMethod(url);
+        try {
+    		// Serialize the request, and zip it.
+    		byte[] byteArray = requestList.serialize().getBytes();
+    		byte[] compressed = Fip.zipIt(byteArray, byteArray.length);
+    		
+    		// Add the zipped request and other parameters to the request
+    		ByteArrayPartSource partSource = new ByteArrayPartSource("data.zipped", compressed);		
+            Part[] parts = {
+        			new FilePart("data.zipped", partSource),
+        			new StringPart("sourcePath", this.getRoot(), "ISO-8859-1"),
+        			new StringPart("destinationUuids", lines(destinationUuids), "ISO-8859-1"),
+        			new StringPart("txIds", lines(txIds), "ISO-8859-1"),
+        			new StringPart("salts", lines(salts), "ISO-8859-1"),
+        			new StringPart("destinationVersion", "" + requestList.getDestinationVersion(), "ISO-8859-1"),
+            };
+            postMethod.setRequestEntity(new MultipartRequestEntity(parts, postMethod.getParams()));
+            
+    		// Prepare timeouts
+    		HttpClientParams params = new HttpClientParams();
+    		params.setConnectionManagerTimeout(30 * 1000); // 30 seconds
+    		params.setSoTimeout(10 * 60 * 1000); // 10 minutes
+    		
+            // Call the remote servlet
+            HttpClient client = new HttpClient(params);
+            int statusCode = client.executeMethod(postMethod);
+
+            // Check the reply
+            if (statusCode != HttpStatus.SC_OK)
+			{
+    	    	logger.error("ERROR: askForSharedUpdates: Unknown response from server: " + statusCode + ": " + HttpStatus.getStatusText(statusCode));
+    	    	logger.error("Url was: " + url);
+				throw new FipException("Unknown response from server: " + statusCode + ": " + HttpStatus.getStatusText(statusCode));
+			}
+			Header contentType = postMethod.getResponseHeader("Content-Type");
+			if (contentType==null || !contentType.getValue().equals("application/zip"))
+				throw new FipException("Invalid reply from FIP server");
+			
+			// Decompress the zip file and convert it to a shared batch.
+			byte[] data = Fip.unzipIt(postMethod.getResponseBodyAsStream(), "data");
+			return FipSharedBatch.deserialize(data);
+	    } catch (Exception ex) {
+	    	logger.info("ERROR: " + ex.getClass().getName() + " "+ ex.getMessage());
+	        
+	        FipException exception = new FipException(ex.toString());
+	        exception.setStackTrace(ex.getStackTrace());
+	        throw exception;
+	    } finally {
+	    	postMethod.releaseConnection();
+	    }
+	}
+
+	private static String lines(Vector<String> values)
+	{
+		StringBuffer buf = new StringBuffer();
+		for (String value : values)
+			buf.append(value + "\n");
+		return buf.toString();
+	}
+
+	/**
+	 * DESTINATION: Ask a remote destination for the block signatures of files it already has.
+	 */
+	@Override
+	public Vector<FipBlockSignatures> askForBlockSignatures(Vector<String> destinationRelativePaths) throws FipException
+	{
+		String url = "http://" + host + ":" + port + "/getBlockSignatures";
+		PostMethod postMethod = new PostMethod(url);
+		try {
+			// Send the paths, one per line, zipped.
+			StringBuffer buf = new StringBuffer();
+			for (String relativePath : destinationRelativePaths)
+				buf.append(relativePath + "\n");
+			byte[] byteArray = buf.toString().getBytes("UTF-8");
+			byte[] compressed = Fip.zipIt(byteArray, byteArray.length);
+			ByteArrayPartSource partSource = new ByteArrayPartSource("data.zipped", compressed);
+			Part[] parts = {
+					new FilePart("data.zipped", partSource),
+					new StringPart("path", this.getRoot(), "ISO-8859-1"),
+			};
+			postMethod.setRequestEntity(new MultipartRequestEntity(parts, postMethod.getParams()));
+
+			// Prepare timeouts. The destination reads each file to calculate the signatures.
+			HttpClientParams params = new HttpClientParams();
+			params.setConnectionManagerTimeout(30 * 1000); // 30 seconds
+			params.setSoTimeout(10 * 60 * 1000); // 10 minutes
+
+			HttpClient client = new HttpClient(params);
+			int statusCode = client.executeMethod(postMethod);
+			if (statusCode != HttpStatus.SC_OK)
+				throw new FipException("Unknown response from server: " + statusCode + ": " + HttpStatus.getStatusText(statusCode));
+			Header contentType = postMethod.getResponseHeader("Content-Type");
+			if (contentType==null || !contentType.getValue().equals("application/zip"))
+				throw new FipException("Invalid reply from FIP server");
+
+			// Each line of the reply is the signatures in hex, then the path
+			byte[] reply = Fip.unzipIt(postMethod.getResponseBodyAsStream(), "data");
+			BufferedReader in = new BufferedReader(new StringReader(new String(reply, "UTF-8")));
+			Vector<FipBlockSignatures> list = new Vector<FipBlockSignatures>();
+			for (String line = in.readLine(); line != null; line = in.readLine())
+			{
+				int pos = line.indexOf(':');
+				if (pos < 0)
+					throw new FipException("Invalid block signatures from FIP server");
+				String relativePath = line.substring(pos + 1);
+				list.add(FipBlockSignatures.deserialize(relativePath, line.substring(0, pos)));
+			}
+			return list;
+		} catch (Exception ex) {
+			// Not necessarily an error - older servers don't support this request
+			logger.info("Block signatures not available: " + ex.getClass().getName() + " "+ ex.getMessage());
+			FipException exception = new FipException(ex.toString());
+			exception.setStackTrace(ex.getStackTrace());
+			throw exception;
+		} finally {
+			postMethod.releaseConnection();
+		}
+	}
+
 	/**
 	 * DESTINATION: Send updates to a remote destination.
 	 */
 	@Override
 	public void sendUpdates(String txId, FipBatchOfUpdates updateBuffer) throws FipException
+	{
+		FipZip zip = FipZip.forThisThread();
+		zip.zip(updateBuffer.getBuffer(), updateBuffer.getLength(), updateBuffer.filesAreCompressed() ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+		postUpdates(txId, zip);
+	}
+
+	/**
+	 * The updates are already compressed for each destination, so they are sent as they are.
+	 */
+	@Override
+	public void sendSharedUpdates(String txId, FipSharedBatch batch, int destinationNo) throws FipException
+	{
+		postUpdates(txId, batch.zipForDestination(destinationNo));
+	}
+
+	private void postUpdates(String txId, FipZip compressed) throws FipException
 	{
 		String url = "http://" + host + ":" + port + "/installBatch";
 		PostMethod postMethod = new PostMethod(url);
 
 		// Get the file requests
         try {
-			byte[] byteArray = updateBuffer.getBuffer();
-			int length = updateBuffer.getLength();
-			byte[] compressed = Fip.zipIt(byteArray, length);
-//int len2 = compressed.length;
-		
 
 //        filePost.getParams().setBooleanParameter(HttpMethodParams.USE_EXPECT_CONTINUE, cbxExpectHeader.isSelected());
 //            appendMessage("Uploading " + targetFile.getName() + " to " + targetURL);
 //        	File targetFile = new File("/tmp/,b.zip");
-    		ByteArrayPartSource partSource = new ByteArrayPartSource("data.zipped", compressed);		
+    		PartSource partSource = new ZipPartSource("data.zipped", compressed);
             Part[] parts = {
         			new FilePart("data.zipped", partSource),
         			new StringPart("path", this.getRoot()),
@@ -387,4 +748,34 @@ public class FipHttpServerProxy extends FipServerProxy
 		// TODO Auto-generated method stub
 
 	}
+
+	/**
+	 * Posts a zip straight from it's buffer, rather than a copy of it.
+	 */
+	private static class ZipPartSource implements PartSource
+	{
+		private String fileName;
+		private FipZip zip;
+
+		ZipPartSource(String fileName, FipZip zip)
+		{
+			this.fileName = fileName;
+			this.zip = zip;
+		}
+
+		public long getLength()
+		{
+			return zip.getLength();
+		}
+
+		public String getFileName()
+		{
+			return fileName;
+		}
+
+		public InputStream createInputStream()
+		{
+			return new ByteArrayInputStream(zip.getBuffer(), 0, zip.getLength());
+		}
+	}
 }
@@ -3,17 +3,43 @@ package tooltwist.fip;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.Collections;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.UUID;
 import java.util.Vector;
 
 import tooltwist.fip.FipDelta.Type;
 import tooltwist.fip.FipRule.Op;
 
+/**
+ * The files in a directory hierarchy, with their size, modification time and checksum.
+ *
+ * To allow very large hierarchies to be indexed in a small heap, the list is stored in columns
+ * rather than as an object per file. Directories are stored once, in a {@link FipDirectoryTree},
+ * and a file's entry holds the id of it's directory plus the file name. Modification times and sizes are kept
+ * in primitive arrays, checksums as raw digest bytes, and flags in bit sets. Entries are found by
+ * path using an open addressing hash table of entry numbers. {@link FipFile} objects are only
+ * views onto an entry.
+ *
+ * While the list is being synchronized with the real files it is updated by the walker and
+ * checksum threads, so the methods they use are synchronized. The getters for an entry are
+ * synchronized too, as adding a file can replace the columns and the bit sets grow as they are set.
+ *
+ * Each time a sync finds something has changed, the list's generation number goes up by one, and
+ * each entry records the generation in which it last changed. Files that were removed are remembered
+ * for a while, with the generation they were removed in. The generation id (a random lineage id plus
+ * the generation number) lets someone who has a copy of the list from an earlier generation be sent
+ * just the changes since then (see {@link #getChangesSince(String)}). A new lineage is started if
+ * the list can't say what changed, for example when the checksum algorithm changes.
+ */
 public class FipList
 {
 	/**
@@ -21,140 +47,1221 @@ public class FipList
 	 * Note: don't confuse this with the file system root.
 	 */
 	private static final String FIP_MANIFEST = Fip.PREFIX + "manifest";
-	private static final int INITIAL_CAPACITY = (2 * 1024 * 1024);
-	private HashMap<String, FipFile> list = new HashMap<String, FipFile>(INITIAL_CAPACITY);
-	private boolean listVariedFromRealFiles = false;
+
+	/**
+	 * Header lines at the start of the manifest start with this. A manifest without a
+	 * checksum header line was written before the algorithm was recorded, and uses MD5.
+	 */
+	private static final String HEADER_PREFIX = "#";
+	private static final String CHECKSUM_HEADER = HEADER_PREFIX + "checksum=";
+	private static final int DEFAULT_CAPACITY = 1024;
+	private static final Op[] OPS = Op.values();
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	public static final String INDEX_THREADS_PROPERTY = "fip.indexThreads";
+	private static final String GENERATION_HEADER = HEADER_PREFIX + "generation=";
+	private static final String SINCE_HEADER = HEADER_PREFIX + "since=";
+	private static final String REMOVED_HEADER = HEADER_PREFIX + "removed=";
+
+	/**
+	 * The number of removed files remembered. Once there are more, changes can only be sent to
+	 * lists from after the oldest removal that is still remembered.
+	 */
+	static final int MAX_REMOVALS = 10000;
+	private boolean rewriteManifest = false;
+	private long filesHashed = 0;
+	private long bytesHashed = 0;
+	private long hashingTime = 0;
+	private FipChecksum checksumAlgorithm;
+	private int digestLength;
+
+	// The directory trie
+	private FipDirectoryTree directories = new FipDirectoryTree();
+
+	// The columns
+	private int numFiles = 0;
+	private int[] directoryId;
+	private String[] names;
+	private int[] pathHashes;
+	private long[] lastModified;
+	private long[] sizes;
+	private byte[] digests;
+	private BitSet hasChecksum = new BitSet();
+	private BitSet confirmExists = new BitSet();
+	private BitSet checkedForDelta = new BitSet();
+
+	// Set by rules. These are only allocated if a rule changes something. A file mapped
+	// to a new directory has a destination directory, and only a file that is given a
+	// new name has it's full destination path stored.
+	private byte[] ops = null;
+	private int[] destinationDirectoryId = null;
+	private HashMap<Integer, String> destinationPaths = null;
+
+	// Hash table of (entry number + 1), where zero is an empty slot
+	private int[] table;
+
+	// The hash of each directory's contents and the number of files below it, indexed by
+	// directory id, and the entries and sub-directories of each directory, sorted by name.
+	// These are discarded whenever a file is added, removed or changed.
+	private byte[][] directoryHashes = null;
+	private int[] directoryFileCounts = null;
+	private int[] directoryFiles = null;
+	private int[] directoryFilesStart = null;
+	private int[] directoryChildren = null;
+	private int[] directoryChildrenStart = null;
+
+	// Changes since the manifest was written
+	private FipManifestJournal journal = null;
+	private BitSet removedByJournal = null;
+
+	// Generations. The entries and removals in the current sync are given the next generation once it finishes.
+	// If this list only contains the changes since an earlier generation, sinceGeneration is that generation.
+	private String lineage = null;
+	private long generation = 0;
+	private long oldestGeneration = 0;
+	private long sinceGeneration = -1;
+	private long[] changedIn;
+	private BitSet changedSinceGeneration = new BitSet();
+	private Vector<String> removedPaths = new Vector<String>();
+	private Vector<Long> removedIn = new Vector<Long>();
+	private Vector<String> removedSinceGeneration = new Vector<String>();
+
+	/**
+	 * Create an empty list, using the default checksum algorithm.
+	 */
+	public FipList() throws FipException
+	{
+		this(FipChecksum.getDefault());
+	}
+
+	public FipList(FipChecksum checksumAlgorithm)
+	{
+		this(checksumAlgorithm, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Create an empty list, with room for the expected number of files.
+	 */
+	public FipList(FipChecksum checksumAlgorithm, int expectedFiles)
+	{
+		this.checksumAlgorithm = checksumAlgorithm;
+		this.digestLength = checksumAlgorithm.getDigestLength();
+		int capacity = Math.max(expectedFiles, 16);
+		this.directoryId = new int[capacity];
+		this.names = new String[capacity];
+		this.pathHashes = new int[capacity];
+		this.lastModified = new long[capacity];
+		this.sizes = new long[capacity];
+		this.digests = new byte[capacity * digestLength];
+		this.changedIn = new long[capacity];
+		this.table = new int[tableSizeFor(capacity)];
+	}
+
+	public FipChecksum getChecksumAlgorithm()
+	{
+		return checksumAlgorithm;
+	}
+
+	/**
+	 * Change the checksum algorithm used by this list. If it is different to the current algorithm
+	 * every checksum is discarded, so the next call to syncWithRealFiles will recalculate them all.
+	 */
+	public void useChecksumAlgorithm(FipChecksum algorithm)
+	{
+		if (algorithm.getName().equals(this.checksumAlgorithm.getName()))
+			return;
+		this.checksumAlgorithm = algorithm;
+		this.digestLength = algorithm.getDigestLength();
+		this.digests = new byte[names.length * digestLength];
+		this.hasChecksum.clear();
+		Arrays.fill(this.lastModified, 0, numFiles, -1);
+		this.rewriteManifest = true;
+		contentsChanged();
+
+		// Every checksum will change, so the earlier generations can't be compared with
+		this.lineage = null;
+
+		// The journal must start again, with the new algorithm
+		if (journal != null)
+			journal = journal.restart(algorithm);
+	}
 	
+	/**
+	 * Check the list against the files in the directory hierarchy, using the default
+	 * number of indexing threads.
+	 */
 	public void syncWithRealFiles(File rootDirectory) throws FipException
 	{
-		// Check the list against the actual files
-		loadDirectory_recursive(rootDirectory.getAbsolutePath(), rootDirectory);
-		
-		// Remove any files that don't exist now
-		Vector<String> toRemove = new Vector<String>();
-		for (FipFile f : list.values())
-			if ( !f.getConfirmExists())
-				toRemove.add(f.getSourceRelativePath());
-		for (String key : toRemove)
+		syncWithRealFiles(rootDirectory, defaultIndexParallelism());
+	}
+
+	/**
+	 * Check the list against the files in the directory hierarchy. The hierarchy is
+	 * walked by up to <code>parallelism</code> threads.
+	 */
+	public void syncWithRealFiles(File rootDirectory, int parallelism) throws FipException
+	{
+		syncWithRealFiles(rootDirectory, parallelism, FipChecksumPool.defaultHashParallelism());
+	}
+
+	/**
+	 * Check the list against the files in the directory hierarchy. The hierarchy is
+	 * walked by up to <code>parallelism</code> threads, while checksums for new and
+	 * modified files are calculated by <code>hashParallelism</code> threads.
+	 */
+	public void syncWithRealFiles(File rootDirectory, int parallelism, int hashParallelism) throws FipException
+	{
+		syncWithRealFiles(rootDirectory, null, parallelism, hashParallelism);
+	}
+
+	/**
+	 * Check the list against the files at some paths within the directory hierarchy, which are known to have
+	 * been added, modified or removed. A path that is a directory is checked recursively. Files at other
+	 * paths are assumed to be unchanged. If <code>changedPaths</code> is null the entire hierarchy is checked.
+	 */
+	public void syncWithRealFiles(File rootDirectory, Collection<String> changedPaths, int parallelism, int hashParallelism) throws FipException
+	{
+		// Checksums are added to the journal as they are calculated, so they aren't lost if we're interrupted
+		if (journal == null)
+			journal = new FipManifestJournal(journalFile(rootDirectory), 0, 0, checksumAlgorithm);
+
+		// Files outside the changed paths are known to still exist
+		confirmExists.clear();
+		if (changedPaths != null)
+			confirmAllExcept(changedPaths);
+
+		// Check the list against the actual files
+		FipChecksumPool checksumPool = new FipChecksumPool(checksumAlgorithm, hashParallelism);
+		FipDirectoryWalker walker = new FipDirectoryWalker(this, checksumPool, rootDirectory, parallelism);
+		try {
+			try {
+				if (changedPaths == null)
+					walker.walk();
+				else
+					walker.walk(changedPaths);
+			} catch (FipException e) {
+				checksumPool.abort();
+				throw e;
+			}
+			checksumPool.awaitCompletion();
+		} catch (FipException e) {
+			closeJournal(true);
+			throw e;
+		}
+		this.filesHashed = checksumPool.getFilesHashed();
+		this.bytesHashed = checksumPool.getBytesHashed();
+		this.hashingTime = checksumPool.getDuration();
+		
+		// Remove any files that don't exist now. Once the journal has more records than a quarter
+		// of the number of files, it is compacted into a new manifest. Otherwise the removals are
+		// added to the journal, so a small change doesn't need the whole manifest to be written.
+		// A list without a lineage is given one, and it is saved in the manifest.
+		int removed = numFiles - confirmExists.cardinality();
+		if (rewriteManifest || lineage == null || journal.getNumRecords() + removed > numFiles / 4)
+		{
+			closeJournal(false);
+			removeUnconfirmed();
+			nextGeneration();
+			this.writeToFile(rootDirectory);
+		}
+		else
+		{
+			for (int index = 0; index < numFiles; index++)
+				if ( !confirmExists.get(index))
+					journal.fileRemoved(getPath(index));
+			removeUnconfirmed();
+			if (nextGeneration())
+				journal.generationChanged(lineage, generation);
+			closeJournal(false);
+		}
+	}
+
+	/**
+	 * If anything has changed since the last generation, start a new generation, giving it to the changed
+	 * entries and the removed files. A list without a lineage is given a new one. Returns true if the
+	 * generation changed.
+	 */
+	private synchronized boolean nextGeneration()
+	{
+		if (lineage == null)
+		{
+			startGeneration(UUID.randomUUID().toString(), generation + 1);
+			return true;
+		}
+		if (changedSinceGeneration.isEmpty() && removedSinceGeneration.isEmpty())
+			return false;
+		startGeneration(lineage, generation + 1);
+		return true;
+	}
+
+	/**
+	 * Give the changes since the last generation to a new generation. If the lineage is different the earlier
+	 * generations no longer mean anything, so the changes can't be worked out for lists from before now.
+	 */
+	private void startGeneration(String newLineage, long newGeneration)
+	{
+		for (int index = changedSinceGeneration.nextSetBit(0); index >= 0; index = changedSinceGeneration.nextSetBit(index + 1))
+			changedIn[index] = newGeneration;
+		changedSinceGeneration.clear();
+		if ( !newLineage.equals(lineage))
+		{
+			removedPaths.clear();
+			removedIn.clear();
+			oldestGeneration = newGeneration;
+		}
+		else
+		{
+			for (String relativePath : removedSinceGeneration)
+			{
+				removedPaths.add(relativePath);
+				removedIn.add(newGeneration);
+			}
+		}
+		removedSinceGeneration.clear();
+
+		// Only remember a limited number of removals
+		int excess = removedPaths.size() - MAX_REMOVALS;
+		if (excess > 0)
+		{
+			oldestGeneration = removedIn.get(excess - 1);
+			removedPaths.subList(0, excess).clear();
+			removedIn.subList(0, excess).clear();
+		}
+		this.lineage = newLineage;
+		this.generation = newGeneration;
+	}
+
+	/**
+	 * The lineage and generation of the list, as <code>lineage:generation</code>, or null if it has no lineage.
+	 */
+	public synchronized String getGenerationId()
+	{
+		return (lineage == null) ? null : lineage + ":" + generation;
+	}
+
+	/**
+	 * Returns true if the list only contains the changes since an earlier generation (see {@link #getChangesSince(String)}).
+	 */
+	public boolean isChangesOnly()
+	{
+		return sinceGeneration >= 0;
+	}
+
+	/**
+	 * Mark every file as existing, except those at the specified paths or within those directories.
+	 */
+	private void confirmAllExcept(Collection<String> changedPaths)
+	{
+		confirmExists.set(0, numFiles);
+		Vector<Integer> changedDirectories = new Vector<Integer>();
+		for (String relativePath : changedPaths)
+		{
+			int index = indexOf(relativePath);
+			if (index >= 0)
+				confirmExists.clear(index);
+			int directory = directories.find(relativePath + "/", false);
+			if (directory >= 0)
+				changedDirectories.add(directory);
+		}
+		if (changedDirectories.isEmpty())
+			return;
+		for (int index = 0; index < numFiles; index++)
+		{
+			for (int directory : changedDirectories)
+			{
+				if (directories.isWithin(directoryId[index], directory))
+				{
+					confirmExists.clear(index);
+					break;
+				}
+			}
+		}
+	}
+
+	private synchronized void closeJournal(boolean afterError) throws FipException
+	{
+		if (afterError)
+			journal.abort();
+		else
+			journal.close();
+	}
+
+	private static File journalFile(File directory)
+	{
+		return new File(directory.getAbsolutePath() + File.separator + FIP_MANIFEST + FipManifestJournal.SUFFIX);
+	}
+
+	/**
+	 * A copy of the list, which can be changed (eg. by rules) without affecting this list.
+	 */
+	synchronized FipList copy()
+	{
+		FipList copy = new FipList(checksumAlgorithm, 0);
+		copy.directories = directories.copy();
+		copy.numFiles = numFiles;
+		copy.directoryId = directoryId.clone();
+		copy.names = names.clone();
+		copy.pathHashes = pathHashes.clone();
+		copy.lastModified = lastModified.clone();
+		copy.sizes = sizes.clone();
+		copy.digests = digests.clone();
+		copy.changedIn = changedIn.clone();
+		copy.hasChecksum = (BitSet) hasChecksum.clone();
+		copy.confirmExists = (BitSet) confirmExists.clone();
+		copy.checkedForDelta = (BitSet) checkedForDelta.clone();
+		if (ops != null)
+			copy.ops = ops.clone();
+		if (destinationDirectoryId != null)
+			copy.destinationDirectoryId = destinationDirectoryId.clone();
+		if (destinationPaths != null)
+			copy.destinationPaths = new HashMap<Integer, String>(destinationPaths);
+		copy.table = table.clone();
+		copy.directoryHashes = directoryHashes;
+		copy.directoryFileCounts = directoryFileCounts;
+		copy.directoryFiles = directoryFiles;
+		copy.directoryFilesStart = directoryFilesStart;
+		copy.directoryChildren = directoryChildren;
+		copy.directoryChildrenStart = directoryChildrenStart;
+		copy.filesHashed = filesHashed;
+		copy.bytesHashed = bytesHashed;
+		copy.hashingTime = hashingTime;
+		copy.lineage = lineage;
+		copy.generation = generation;
+		copy.oldestGeneration = oldestGeneration;
+		copy.sinceGeneration = sinceGeneration;
+		copy.changedSinceGeneration = (BitSet) changedSinceGeneration.clone();
+		copy.removedPaths = new Vector<String>(removedPaths);
+		copy.removedIn = new Vector<Long>(removedIn);
+		copy.removedSinceGeneration = new Vector<String>(removedSinceGeneration);
+		return copy;
+	}
+
+	/**
+	 * A rough estimate of the memory used by the list, in bytes.
+	 */
+	synchronized long estimateMemoryUsage()
+	{
+		int capacity = sizes.length;
+		long memory = (long) capacity * (4 + 8 + 4 + 8 + 8 + 8 + digestLength) + table.length * 4L;
+		for (int index = 0; index < numFiles; index++)
+			memory += 40 + names[index].length() * 2;
+		memory += directories.size() * 64L;
+		return memory;
+	}
+
+	/**
+	 * The number of threads used to index a directory, unless told otherwise. This
+	 * can be set using the <code>fip.indexThreads</code> system property.
+	 */
+	public static int defaultIndexParallelism()
+	{
+		int parallelism = Integer.getInteger(INDEX_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+		return (parallelism < 1) ? 1 : parallelism;
+	}
+
+	/**
+	 * The number of files hashed by the last call to syncWithRealFiles.
+	 */
+	public long getFilesHashed()
+	{
+		return filesHashed;
+	}
+
+	/**
+	 * The number of bytes hashed by the last call to syncWithRealFiles.
+	 */
+	public long getBytesHashed()
+	{
+		return bytesHashed;
+	}
+
+	/**
+	 * Elapsed time, in milliseconds, from the start of the walk until the last checksum was calculated.
+	 */
+	public long getHashingTime()
+	{
+		return hashingTime;
+	}
+
+	synchronized FipFile findFile(String relativePath)
+	{
+		int index = indexOf(relativePath);
+		return (index < 0) ? null : new FipFile(this, index);
+	}
+
+	/**
+	 * Called by the directory walker for each file it finds. If the file is new or has been
+	 * modified, the entry is updated and returned so it's checksum can be calculated. Otherwise
+	 * we assume the length and checksum are correct, and null is returned.
+	 */
+	synchronized FipFile foundFile(String relativePath, long lastModified, long length)
+	{
+		int index = indexOf(relativePath);
+		if (index < 0)
+			index = append(relativePath, lastModified, length);
+		else if (this.lastModified[index] == lastModified)
+		{
+			confirmExists.set(index);
+			return null;
+		}
+		else
+		{
+			this.lastModified[index] = lastModified;
+			this.sizes[index] = length;
+			contentsChanged();
+			changedSinceGeneration.set(index);
+		}
+		confirmExists.set(index);
+		return new FipFile(this, index);
+	}
+
+	/**
+	 * Add a file to the list, or update it if it is already in the list. The entry number is returned.
+	 */
+	synchronized int addFile(String relativePath, long lastModified, long length)
+	{
+		int index = indexOf(relativePath);
+		if (index < 0)
+			return append(relativePath, lastModified, length);
+		this.lastModified[index] = lastModified;
+		this.sizes[index] = length;
+		contentsChanged();
+		changedSinceGeneration.set(index);
+		return index;
+	}
+
+	private int append(String relativePath, long lastModified, long length)
+	{
+		if (numFiles == names.length)
+			grow();
+		int index = numFiles++;
+		int slash = relativePath.lastIndexOf('/');
+		String directory = (slash < 0) ? "" : relativePath.substring(0, slash + 1);
+		this.directoryId[index] = directories.find(directory, true);
+		this.names[index] = relativePath.substring(slash + 1);
+		this.pathHashes[index] = relativePath.hashCode();
+		this.lastModified[index] = lastModified;
+		this.sizes[index] = length;
+		this.hasChecksum.clear(index);
+		this.confirmExists.clear(index);
+		this.checkedForDelta.clear(index);
+		if (ops != null)
+			ops[index] = (byte) Op.INCLUDE.ordinal();
+		if (destinationDirectoryId != null)
+			destinationDirectoryId[index] = directoryId[index];
+		insertIntoTable(index);
+		contentsChanged();
+		changedSinceGeneration.set(index);
+		return index;
+	}
+
+	/**
+	 * Make room for more entries, increasing the size of the columns by half.
+	 */
+	private void grow()
+	{
+		int capacity = names.length + (names.length >> 1);
+		this.directoryId = Arrays.copyOf(directoryId, capacity);
+		this.names = Arrays.copyOf(names, capacity);
+		this.pathHashes = Arrays.copyOf(pathHashes, capacity);
+		this.lastModified = Arrays.copyOf(lastModified, capacity);
+		this.sizes = Arrays.copyOf(sizes, capacity);
+		this.digests = Arrays.copyOf(digests, capacity * digestLength);
+		this.changedIn = Arrays.copyOf(changedIn, capacity);
+		if (ops != null)
+			this.ops = Arrays.copyOf(ops, capacity);
+		if (destinationDirectoryId != null)
+			this.destinationDirectoryId = Arrays.copyOf(destinationDirectoryId, capacity);
+		if (table.length < tableSizeFor(capacity))
+			rebuildTable(tableSizeFor(capacity));
+	}
+
+	/**
+	 * Remove the entries for files not found by the last walk, moving the remaining
+	 * entries down to fill the gaps. Returns the number of entries removed.
+	 */
+	private int removeUnconfirmed()
+	{
+		int cnt = 0;
+		for (int index = 0; index < numFiles; index++)
+		{
+			if ( !confirmExists.get(index))
+			{
+				removedSinceGeneration.add(getPath(index));
+				continue;
+			}
+			if (cnt != index)
+			{
+				directoryId[cnt] = directoryId[index];
+				names[cnt] = names[index];
+				pathHashes[cnt] = pathHashes[index];
+				lastModified[cnt] = lastModified[index];
+				sizes[cnt] = sizes[index];
+				System.arraycopy(digests, index * digestLength, digests, cnt * digestLength, digestLength);
+				changedIn[cnt] = changedIn[index];
+				changedSinceGeneration.set(cnt, changedSinceGeneration.get(index));
+				hasChecksum.set(cnt, hasChecksum.get(index));
+				confirmExists.set(cnt);
+				checkedForDelta.set(cnt, checkedForDelta.get(index));
+				if (ops != null)
+					ops[cnt] = ops[index];
+				if (destinationDirectoryId != null)
+					destinationDirectoryId[cnt] = destinationDirectoryId[index];
+				if (destinationPaths != null)
+				{
+					// Don't leave a removed entry's path for the entry moved into it's place
+					if (destinationPaths.containsKey(index))
+						destinationPaths.put(cnt, destinationPaths.remove(index));
+					else
+						destinationPaths.remove(cnt);
+				}
+			}
+			cnt++;
+		}
+		int removed = numFiles - cnt;
+		if (removed > 0)
+		{
+			Arrays.fill(names, cnt, numFiles, null);
+			hasChecksum.clear(cnt, numFiles);
+			changedSinceGeneration.clear(cnt, numFiles);
+			confirmExists.clear(cnt, numFiles);
+			checkedForDelta.clear(cnt, numFiles);
+			if (destinationPaths != null)
+			{
+				for (Iterator<Integer> iter = destinationPaths.keySet().iterator(); iter.hasNext(); )
+					if (iter.next() >= cnt)
+						iter.remove();
+			}
+			numFiles = cnt;
+			rebuildTable(table.length);
+			contentsChanged();
+		}
+		return removed;
+	}
+
+	private static int tableSizeFor(int capacity)
+	{
+		// Keep the table no more than half full
+		int size = 16;
+		while (size < capacity * 2)
+			size <<= 1;
+		return size;
+	}
+
+	private static int slotFor(int hash, int mask)
+	{
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+
+	private void insertIntoTable(int index)
+	{
+		int mask = table.length - 1;
+		int slot = slotFor(pathHashes[index], mask);
+		while (table[slot] != 0)
+			slot = (slot + 1) & mask;
+		table[slot] = index + 1;
+	}
+
+	private void rebuildTable(int size)
+	{
+		this.table = new int[size];
+		for (int index = 0; index < numFiles; index++)
+			insertIntoTable(index);
+	}
+
+	/**
+	 * Find the entry number for a file, or -1 if it is not in the list.
+	 */
+	private int indexOf(String relativePath)
+	{
+		int hash = relativePath.hashCode();
+		int mask = table.length - 1;
+		for (int slot = slotFor(hash, mask); table[slot] != 0; slot = (slot + 1) & mask)
+		{
+			int index = table[slot] - 1;
+			if (pathHashes[index] != hash)
+				continue;
+			String name = names[index];
+			if (relativePath.endsWith(name) && directories.pathEquals(directoryId[index], relativePath, relativePath.length() - name.length()))
+				return index;
+		}
+		return -1;
+	}
+
+	/*
+	 * Access to individual entries, by entry number. These are used by FipFile.
+	 */
+	synchronized String getPath(int index)
+	{
+		return directories.getPath(directoryId[index]) + names[index];
+	}
+
+	synchronized long getLastModified(int index)
+	{
+		return lastModified[index];
+	}
+
+	synchronized void setLastModified(int index, long lastModified)
+	{
+		this.lastModified[index] = lastModified;
+	}
+
+	synchronized long getFileSize(int index)
+	{
+		return sizes[index];
+	}
+
+	synchronized void setFileSize(int index, long length)
+	{
+		this.sizes[index] = length;
+		contentsChanged();
+		changedSinceGeneration.set(index);
+	}
+
+	/**
+	 * The checksum as hex digits, or null if it has not been calculated.
+	 */
+	String getChecksum(int index)
+	{
+		byte[] digest = getDigest(index);
+		return (digest == null) ? null : FipChecksumCalculator.toHex(digest);
+	}
+
+	/**
+	 * Set the checksum from hex digits. A checksum that is not valid for the algorithm is discarded.
+	 */
+	synchronized void setChecksum(int index, String checksum)
+	{
+		setDigest(index, FipChecksumCalculator.fromHex(checksum));
+	}
+
+	/**
+	 * Set a newly calculated checksum, and add it to the journal. The record is written after
+	 * the list is unlocked (the journal has it's own lock), so the other threads aren't held
+	 * up by the journal's I/O.
+	 */
+	void setCalculatedChecksum(int index, String checksum) throws FipException
+	{
+		FipManifestJournal journal;
+		String relativePath;
+		long lastModified;
+		long length;
+		byte[] digest;
+		synchronized (this)
+		{
+			setChecksum(index, checksum);
+			journal = this.journal;
+			if (journal == null || !hasChecksum.get(index))
+				return;
+			relativePath = getPath(index);
+			lastModified = this.lastModified[index];
+			length = this.sizes[index];
+			digest = getDigest(index);
+		}
+		journal.fileChanged(relativePath, lastModified, length, digest);
+	}
+
+	/**
+	 * The checksum as raw bytes, or null if it has not been calculated.
+	 */
+	synchronized byte[] getDigest(int index)
+	{
+		if ( !hasChecksum.get(index))
+			return null;
+		return Arrays.copyOfRange(digests, index * digestLength, (index + 1) * digestLength);
+	}
+
+	synchronized void setDigest(int index, byte[] digest)
+	{
+		contentsChanged();
+		changedSinceGeneration.set(index);
+		if (digest == null || digest.length != digestLength)
+		{
+			hasChecksum.clear(index);
+			return;
+		}
+		System.arraycopy(digest, 0, digests, index * digestLength, digestLength);
+		hasChecksum.set(index);
+	}
+
+	synchronized boolean getConfirmExists(int index)
+	{
+		return confirmExists.get(index);
+	}
+
+	synchronized void setConfirmExists(int index)
+	{
+		confirmExists.set(index);
+	}
+
+	synchronized boolean getCheckedForDelta(int index)
+	{
+		return checkedForDelta.get(index);
+	}
+
+	synchronized void setCheckedForDelta(int index)
+	{
+		checkedForDelta.set(index);
+	}
+
+	Op getOp(int index)
+	{
+		return (ops == null) ? Op.INCLUDE : OPS[ops[index]];
+	}
+
+	void setOp(int index, Op op)
+	{
+		if (ops == null)
+		{
+			if (op == Op.INCLUDE)
+				return;
+			ops = new byte[names.length];
+		}
+		ops[index] = (byte) op.ordinal();
+	}
+
+	String getDestinationRelativePath(int index)
+	{
+		if (destinationPaths != null)
+		{
+			String path = destinationPaths.get(index);
+			if (path != null)
+				return path;
+		}
+		if (destinationDirectoryId != null)
+			return directories.getPath(destinationDirectoryId[index]) + names[index];
+		return getPath(index);
+	}
+
+	void setDestinationRelativePath(int index, String destinationRelativePath)
+	{
+		// If the file keeps it's name, only the directory needs to be recorded
+		int slash = destinationRelativePath.lastIndexOf('/');
+		if (destinationRelativePath.substring(slash + 1).equals(names[index]))
 		{
-			this.list.remove(key);
-			this.listVariedFromRealFiles = true;
+			setDestinationDirectory(index, directories.find(destinationRelativePath.substring(0, slash + 1), true));
+			return;
 		}
-		
-		// Maybe re-write the list file
-		if (this.listVariedFromRealFiles)
-			this.writeToFile(rootDirectory);
+		if (destinationPaths == null)
+			destinationPaths = new HashMap<Integer, String>();
+		destinationPaths.put(index, destinationRelativePath);
+	}
+
+	/**
+	 * If a file is within the directory <code>fromDirectory</code>, it's destination becomes the equivalent
+	 * location within <code>toDirectory</code>. This moves the directory in the trie, rather than building
+	 * a new path for each file.
+	 */
+	void mapDirectory(int index, String fromDirectory, String toDirectory)
+	{
+		int from = directories.find(fromDirectory, false);
+		if (from < 0 || !directories.isWithin(directoryId[index], from))
+			return;
+		int to = directories.find(toDirectory, true);
+		setDestinationDirectory(index, directories.reparent(directoryId[index], from, to));
+	}
+
+	private void setDestinationDirectory(int index, int directory)
+	{
+		if (destinationDirectoryId == null)
+			destinationDirectoryId = Arrays.copyOf(directoryId, directoryId.length);
+		destinationDirectoryId[index] = directory;
+		if (destinationPaths != null)
+			destinationPaths.remove(index);
 	}
 
-	private void loadDirectory_recursive(String rootPath, File directory) throws FipException
+	/**
+	 * The entry numbers, sorted by directory and then by file name.
+	 */
+	int[] sortedIndexes()
 	{
-		if ( !rootPath.endsWith("/"))
-			rootPath += "/";
+		// Rank the directories by path
+		int numDirectories = directories.size();
+		String[] directoryPaths = new String[numDirectories];
+		int[] sortedDirectories = new int[numDirectories];
+		for (int directory = 0; directory < numDirectories; directory++)
+		{
+			directoryPaths[directory] = directories.getPath(directory);
+			sortedDirectories[directory] = directory;
+		}
+		sort(sortedDirectories, new int[numDirectories], 0, numDirectories, directoryPaths);
+		int[] rank = new int[numDirectories];
+		for (int i = 0; i < numDirectories; i++)
+			rank[sortedDirectories[i]] = i;
 
-		// Ignore files with these prefixes
-		String p0 = FipServer_updateExecuter.FIP_FILE_PREFIX;
-		String p1 = FipServer_updateExecuter.UNDERSTUDY_PREFIX_NEW_FILE;
-		String p2 = FipServer_updateExecuter.UNDERSTUDY_PREFIX_CHANGE_FILE;
-		String p3 = FipServer_updateExecuter.UNDERSTUDY_PREFIX_DELETE_FILE;
-		String p4 = FipServer_updateExecuter.ROLLBACK_FILE_PREFIX + FipServer_updateExecuter.UNDERSTUDY_PREFIX_NEW_FILE;
-		String p5 = FipServer_updateExecuter.ROLLBACK_FILE_PREFIX + FipServer_updateExecuter.UNDERSTUDY_PREFIX_CHANGE_FILE;
-		String p6 = FipServer_updateExecuter.ROLLBACK_FILE_PREFIX + FipServer_updateExecuter.UNDERSTUDY_PREFIX_DELETE_FILE;
+		// Group the entries by directory
+		int[] start = new int[numDirectories + 1];
+		for (int index = 0; index < numFiles; index++)
+			start[rank[directoryId[index]] + 1]++;
+		for (int i = 0; i < numDirectories; i++)
+			start[i + 1] += start[i];
+		int[] order = new int[numFiles];
+		int[] next = Arrays.copyOf(start, numDirectories);
+		for (int index = 0; index < numFiles; index++)
+			order[next[rank[directoryId[index]]]++] = index;
 
+		// Then sort each directory by name
+		int[] tmp = new int[numFiles];
+		for (int i = 0; i < numDirectories; i++)
+			sort(order, tmp, start[i], start[i + 1], names);
+		return order;
+	}
 
-		for (File file : directory.listFiles())
+	/**
+	 * Merge sort part of an array of numbers, using each number's key.
+	 */
+	private static void sort(int[] order, int[] tmp, int from, int to, String[] keys)
+	{
+		if (to - from < 2)
+			return;
+		int middle = (from + to) >>> 1;
+		sort(order, tmp, from, middle, keys);
+		sort(order, tmp, middle, to, keys);
+		if (keys[order[middle - 1]].compareTo(keys[order[middle]]) <= 0)
+			return;
+		System.arraycopy(order, from, tmp, from, to - from);
+		int left = from;
+		int right = middle;
+		for (int i = from; i < to; i++)
 		{
-			String name = file.getName();
-			if (name.startsWith(Fip.PREFIX))
-				continue;
-			if (file.isDirectory())
-			{
-				loadDirectory_recursive(rootPath, file);
-				continue;
-			}
-			
-			// See if it already exists
-			String path = file.getAbsolutePath();
-			if (path.endsWith("/" + FIP_MANIFEST))
-				continue;
-			if (name.startsWith(p0) || name.startsWith(p1) || name.startsWith(p2) || name.startsWith(p3) || name.startsWith(p4) || name.startsWith(p5) || name.startsWith(p6))
-				continue;
-			String relativePath = path.substring(rootPath.length());
-			long length = file.length();
-			long lastModified = file.lastModified();
-			FipFile fipFile = list.get(relativePath);
-			if (fipFile == null)
-			{
-				fipFile = new FipFile(relativePath);
-				fipFile.setLastModified(lastModified);
-				fipFile.setLength(length);
-				fipFile.calculateChecksum(file);
-				fipFile.setConfirmExists();
-				this.list.put(relativePath, fipFile);
-				this.listVariedFromRealFiles = true;
-			}
-			else if (fipFile.getLastModified() != lastModified)
+			if (right >= to || (left < middle && keys[tmp[left]].compareTo(keys[tmp[right]]) <= 0))
+				order[i] = tmp[left++];
+			else
+				order[i] = tmp[right++];
+		}
+	}
+
+	/**
+	 * A file has been added, removed or changed, so the directory hashes must be recalculated.
+	 */
+	private void contentsChanged()
+	{
+		directoryHashes = null;
+		directoryFileCounts = null;
+		directoryFiles = null;
+		directoryFilesStart = null;
+		directoryChildren = null;
+		directoryChildrenStart = null;
+	}
+
+	/**
+	 * Group the entries and the sub-directories by directory, sorted by name.
+	 */
+	private void groupByDirectory()
+	{
+		int numDirectories = directories.size();
+		if (directoryFiles != null && directoryFilesStart.length == numDirectories + 1)
+			return;
+
+		// Sub-directories
+		String[] directoryNames = new String[numDirectories];
+		int[] childStart = new int[numDirectories + 1];
+		directoryNames[FipDirectoryTree.ROOT] = "";
+		for (int directory = 1; directory < numDirectories; directory++)
+		{
+			directoryNames[directory] = directories.getName(directory);
+			childStart[directories.getParent(directory) + 1]++;
+		}
+		for (int i = 0; i < numDirectories; i++)
+			childStart[i + 1] += childStart[i];
+		int[] children = new int[numDirectories];
+		int[] next = Arrays.copyOf(childStart, numDirectories);
+		for (int directory = 1; directory < numDirectories; directory++)
+			children[next[directories.getParent(directory)]++] = directory;
+		int[] tmp = new int[Math.max(numDirectories, numFiles)];
+		for (int i = 0; i < numDirectories; i++)
+			sort(children, tmp, childStart[i], childStart[i + 1], directoryNames);
+
+		// Files
+		int[] fileStart = new int[numDirectories + 1];
+		for (int index = 0; index < numFiles; index++)
+			fileStart[directoryId[index] + 1]++;
+		for (int i = 0; i < numDirectories; i++)
+			fileStart[i + 1] += fileStart[i];
+		int[] files = new int[numFiles];
+		next = Arrays.copyOf(fileStart, numDirectories);
+		for (int index = 0; index < numFiles; index++)
+			files[next[directoryId[index]]++] = index;
+		for (int i = 0; i < numDirectories; i++)
+			sort(files, tmp, fileStart[i], fileStart[i + 1], names);
+
+		this.directoryChildren = children;
+		this.directoryChildrenStart = childStart;
+		this.directoryFiles = files;
+		this.directoryFilesStart = fileStart;
+	}
+
+	/**
+	 * Calculate the hash of each directory, if they are not already known.
+	 *
+	 * A directory's hash is calculated from it's files, sorted by name, followed by it's sub-directories,
+	 * sorted by name. A file contributes it's name, size and checksum, and a sub-directory it's name,
+	 * the number of files below it and it's hash. Modification times are not included, as they differ
+	 * between the source and destination. Directories are numbered after their parent, so working down
+	 * from the highest numbered directory means each sub-directory's hash is known before it's parent's
+	 * hash is calculated. A directory with no files below it is left out, and if any file below a
+	 * directory has no checksum the directory's hash is null.
+	 */
+	private void computeDirectoryHashes()
+	{
+		int numDirectories = directories.size();
+		if (directoryHashes != null && directoryHashes.length == numDirectories)
+			return;
+		groupByDirectory();
+
+		byte[][] hashes = new byte[numDirectories][];
+		int[] counts = new int[numDirectories];
+		FipChecksum.Hasher hasher = checksumAlgorithm.getHasher();
+		ByteBuffer buf = ByteBuffer.allocate(1024);
+		for (int directory = numDirectories - 1; directory >= 0; directory--)
+		{
+			boolean known = true;
+			int count = 0;
+			hasher.reset();
+			for (int i = directoryFilesStart[directory]; i < directoryFilesStart[directory + 1]; i++)
 			{
-				// We have the file already. Check it's size and/or checksum
-				fipFile.setLastModified(lastModified);
-				fipFile.setLength(length);
-				fipFile.calculateChecksum(file);
-				fipFile.setConfirmExists();
-				this.listVariedFromRealFiles = true;
+				int index = directoryFiles[i];
+				count++;
+				if ( !hasChecksum.get(index))
+				{
+					known = false;
+					continue;
+				}
+				byte[] name = names[index].getBytes(UTF8);
+				buf = hashEntry(hasher, buf, 'F', name, sizes[index], digests, index * digestLength, digestLength);
 			}
-			else
+			for (int i = directoryChildrenStart[directory]; i < directoryChildrenStart[directory + 1]; i++)
 			{
-				// The file has not been modified - assume the length and checksum are correct.
-				fipFile.setConfirmExists();
+				int child = directoryChildren[i];
+				if (counts[child] == 0)
+					continue;
+				count += counts[child];
+				if (hashes[child] == null)
+				{
+					known = false;
+					continue;
+				}
+				byte[] name = directories.getName(child).getBytes(UTF8);
+				buf = hashEntry(hasher, buf, 'D', name, counts[child], hashes[child], 0, hashes[child].length);
 			}
+			counts[directory] = count;
+			hashes[directory] = known ? hasher.digest() : null;
 		}
+		hasher.reset();
+		this.directoryHashes = hashes;
+		this.directoryFileCounts = counts;
 	}
-	
+
+	private static ByteBuffer hashEntry(FipChecksum.Hasher hasher, ByteBuffer buf, char type, byte[] name, long size, byte[] digest, int offset, int length)
+	{
+		int required = 1 + 4 + name.length + 8 + length;
+		if (buf.capacity() < required)
+			buf = ByteBuffer.allocate(required);
+		buf.clear();
+		buf.put((byte) type);
+		buf.putInt(name.length);
+		buf.put(name);
+		buf.putLong(size);
+		buf.put(digest, offset, length);
+		buf.flip();
+		hasher.update(buf);
+		return buf;
+	}
+
+	/**
+	 * The hash of a directory, or null if it is not known (see {@link #computeDirectoryHashes()}).
+	 * Used when writing the manifest.
+	 */
+	synchronized byte[] getDirectoryHash(int directory)
+	{
+		computeDirectoryHashes();
+		return directoryHashes[directory];
+	}
+
+	/**
+	 * The number of files below a directory.
+	 */
+	synchronized int getDirectoryFileCount(int directory)
+	{
+		computeDirectoryHashes();
+		return directoryFileCounts[directory];
+	}
+
+	FipDirectoryTree getDirectories()
+	{
+		return directories;
+	}
+
+	/**
+	 * Set the directory hashes read from the manifest, indexed by directory id. Once the manifest
+	 * has been read the hashes are used as they are, until a file changes.
+	 */
+	void setDirectoryHashes(byte[][] hashes, int[] fileCounts)
+	{
+		this.directoryHashes = hashes;
+		this.directoryFileCounts = fileCounts;
+	}
+
+	/**
+	 * The files and sub-directories in a directory, with the sub-directories' hashes.
+	 * A directory that does not exist is returned as an empty directory.
+	 */
+	synchronized FipDirectorySummary getDirectorySummary(String directoryPath)
+	{
+		computeDirectoryHashes();
+		groupByDirectory();
+		int directory = directories.find(directoryPath, false);
+		if (directory < 0 || directory >= directoryHashes.length)
+		{
+			FipChecksum.Hasher hasher = checksumAlgorithm.getHasher();
+			hasher.reset();
+			return new FipDirectorySummary(checksumAlgorithm.getName(), directoryPath, FipChecksumCalculator.toHex(hasher.digest()));
+		}
+		byte[] hash = directoryHashes[directory];
+		FipDirectorySummary summary = new FipDirectorySummary(checksumAlgorithm.getName(), directoryPath, (hash == null) ? null : FipChecksumCalculator.toHex(hash));
+		for (int i = directoryFilesStart[directory]; i < directoryFilesStart[directory + 1]; i++)
+		{
+			int index = directoryFiles[i];
+			summary.addFile(names[index], sizes[index], getChecksum(index));
+		}
+		for (int i = directoryChildrenStart[directory]; i < directoryChildrenStart[directory + 1]; i++)
+		{
+			int child = directoryChildren[i];
+			if (directoryFileCounts[child] == 0)
+				continue;
+			byte[] childHash = directoryHashes[child];
+			summary.addDirectory(directories.getName(child), directoryFileCounts[child], (childHash == null) ? null : FipChecksumCalculator.toHex(childHash));
+		}
+		return summary;
+	}
+
+	/**
+	 * Every file below a directory, named by it's path relative to the directory, so the whole
+	 * subtree can be sent at once. A directory that does not exist is returned as an empty directory.
+	 */
+	synchronized FipDirectorySummary getSubtreeSummary(String directoryPath)
+	{
+		computeDirectoryHashes();
+		groupByDirectory();
+		int directory = directories.find(directoryPath, false);
+		if (directory < 0 || directory >= directoryHashes.length)
+			return getDirectorySummary(directoryPath);
+		byte[] hash = directoryHashes[directory];
+		FipDirectorySummary summary = new FipDirectorySummary(checksumAlgorithm.getName(), directoryPath, (hash == null) ? null : FipChecksumCalculator.toHex(hash));
+		addSubtreeToSummary(summary, directory, "");
+		return summary;
+	}
+
+	private void addSubtreeToSummary(FipDirectorySummary summary, int directory, String prefix)
+	{
+		for (int i = directoryFilesStart[directory]; i < directoryFilesStart[directory + 1]; i++)
+		{
+			int index = directoryFiles[i];
+			summary.addFile(prefix + names[index], sizes[index], getChecksum(index));
+		}
+		for (int i = directoryChildrenStart[directory]; i < directoryChildrenStart[directory + 1]; i++)
+		{
+			int child = directoryChildren[i];
+			addSubtreeToSummary(summary, child, prefix + directories.getName(child) + "/");
+		}
+	}
+
+	/**
+	 * The number of files that would be installed (ie. not excluded or ignored by the rules).
+	 */
+	synchronized int numIncludedFiles()
+	{
+		int cnt = 0;
+		for (int index = 0; index < numFiles; index++)
+			if (isIncluded(index))
+				cnt++;
+		return cnt;
+	}
+
+	private boolean isIncluded(int index)
+	{
+		Op op = getOp(index);
+		return op != Op.EXCLUDE && op != Op.IGNORE;
+	}
+
+	/**
+	 * Summarize the files that would be installed, by their destination paths (see {@link FipBucketSummary}).
+	 */
+	synchronized FipBucketSummary getBucketSummary(int numBuckets)
+	{
+		FipBucketSummary summary = new FipBucketSummary(checksumAlgorithm.getName(), numBuckets);
+		FipChecksum.Hasher hasher = FipChecksum_xxh64.newHasher();
+		for (int index = 0; index < numFiles; index++)
+			if (isIncluded(index))
+				summary.addFile(hasher, getDestinationRelativePath(index), sizes[index], getDigest(index));
+		return summary;
+	}
+
+	/**
+	 * A list of just the files in some of the buckets of a {@link FipBucketSummary}.
+	 */
+	synchronized FipList getBucketEntries(int numBuckets, BitSet buckets)
+	{
+		FipList list = new FipList(checksumAlgorithm);
+		for (int index = 0; index < numFiles; index++)
+		{
+			if ( !isIncluded(index))
+				continue;
+			String relativePath = getDestinationRelativePath(index);
+			if ( !buckets.get(FipBucketSummary.bucketFor(relativePath, numBuckets)))
+				continue;
+			int newIndex = list.append(relativePath, lastModified[index], sizes[index]);
+			list.setDigest(newIndex, getDigest(index));
+		}
+		return list;
+	}
+
 	public String serialize(boolean showRuleDebugStuff)
 	{
-		// Create a sorted list
-		Vector<FipFile> newList = new Vector<FipFile>();
-		for (FipFile f : this.list.values())
-			newList.add(f);
-		Collections.sort(newList);
-		
-		// Write them out
+		// Write them out in order, after the header
 		StringBuffer buf = new StringBuffer();
-		for (FipFile f : newList)
+		buf.append(CHECKSUM_HEADER + checksumAlgorithm.getName() + "\n");
+		if (lineage != null)
+			buf.append(GENERATION_HEADER + lineage + ":" + generation + "\n");
+		if (isChangesOnly())
+		{
+			buf.append(SINCE_HEADER + lineage + ":" + sinceGeneration + "\n");
+			for (String relativePath : removedSinceGeneration)
+				buf.append(REMOVED_HEADER + relativePath + "\n");
+		}
+		for (int index : sortedIndexes())
 		{
 			// Note that the path must be at the end, because it might contain the separator character.
+			String path = getPath(index);
 			String debugStuff = "";
 			if (showRuleDebugStuff)
 			{
-				Op op = f.getOp();
+				Op op = getOp(index);
 				if (op == Op.EXCLUDE)
 					debugStuff += " (EXCLUDE)";
 				else if (op == Op.IGNORE)
 					debugStuff += " (IGNORE)";
-				String s = f.getSourceRelativePath();
-				String d = f.getDestinationRelativePath();
-				if ( !s.equals(d))
-					debugStuff += " -> " + f.getDestinationRelativePath();
+				String d = getDestinationRelativePath(index);
+				if ( !path.equals(d))
+					debugStuff += " -> " + d;
 			}
-			buf.append(f.getLastModified() + ":" + f.getFileSize() + ":" + f.getChecksum() + ":" + f.getSourceRelativePath() + debugStuff + "\n");
+			buf.append(lastModified[index] + ":" + sizes[index] + ":" + getChecksum(index) + ":" + path + debugStuff + "\n");
 		}
 		return buf.toString();
 	}
 
 	/**
-	 * Write the contents of the list to a hidden file in the top directory
+	 * Write the contents of the list to a hidden file in the top directory, replacing the journal.
 	 * @param directory
-	 * @throws FileNotFoundException 
+	 * @throws FipException 
 	 */
 	public void writeToFile(File directory) throws FipException
 	{
-		String path = directory.getAbsolutePath() + File.separator + FIP_MANIFEST;
-		try {
-			PrintWriter pw = new PrintWriter(new FileOutputStream(path));
-			pw.write(serialize(false));
-			pw.close();
-		} catch (FileNotFoundException e) {
-			throw new FipException("Error writing fip index file: " + path + ": "+ e.toString());
-		}
+		File file = new File(directory.getAbsolutePath() + File.separator + FIP_MANIFEST);
+		FipManifest.write(this, file);
+		File journalFile = journalFile(directory);
+		journalFile.delete();
+		this.journal = new FipManifestJournal(journalFile, 0, 0, checksumAlgorithm);
+		this.rewriteManifest = false;
 	}
 
 	static FipList loadListFromFile(File directory) throws IOException, FipCorruptionException, FipException
@@ -163,21 +1270,225 @@ public class FipList
 			throw new FipException("Unknown directory");
 
 		String fipFilePath = directory.getAbsolutePath() + File.separator + FIP_MANIFEST;
+		FipList fipList;
 		try {
-			BufferedReader in = new BufferedReader(new FileReader(fipFilePath));
-			return deserialize(in);
+			fipList = FipManifest.read(new File(fipFilePath));
 		} catch (FipCorruptionException e) {
 			e.setFilepath(fipFilePath);
 			throw e;
 		} catch (FileNotFoundException e) {
-			// If the manifest file isn't found, that's okay. We'll return an empty list. 
-			return new FipList();
+			// If the manifest file isn't found, that's okay. We'll start with an empty list. 
+			fipList = new FipList(FipChecksum.getDefault());
+		}
+
+		// Apply any changes recorded since the manifest was written
+		fipList.journal = FipManifestJournal.replay(fipList, journalFile(directory));
+		return fipList;
+	}
+
+	/**
+	 * The list was loaded from an old format manifest, so the manifest should be
+	 * re-written the next time the list is synchronized with the real files.
+	 */
+	void setNeedsRewrite()
+	{
+		this.rewriteManifest = true;
+	}
+
+	/**
+	 * Apply a journal record for a file whose checksum was calculated.
+	 */
+	void replayChanged(String relativePath, long lastModified, long length, byte[] digest)
+	{
+		int index = addFile(relativePath, lastModified, length);
+		setDigest(index, digest);
+		if ( !hasChecksum.get(index))
+			setLastModified(index, -1);
+		if (removedByJournal != null)
+			removedByJournal.clear(index);
+	}
+
+	/**
+	 * Apply a journal record for a file that was removed.
+	 */
+	void replayRemoved(String relativePath)
+	{
+		int index = indexOf(relativePath);
+		if (index < 0)
+			return;
+		if (removedByJournal == null)
+			removedByJournal = new BitSet();
+		removedByJournal.set(index);
+	}
+
+	/**
+	 * Apply a journal record saying a sync finished, and the changes before it are in a new generation.
+	 */
+	void replayGeneration(String lineage, long generation)
+	{
+		removeFilesRemovedByJournal();
+		startGeneration(lineage, generation);
+	}
+
+	/**
+	 * Remove the files the journal said were removed. If there are changes after the last generation
+	 * in the journal, they were made by a sync that did not finish, and might be made again differently
+	 * by the next sync, so the list is given a new lineage.
+	 */
+	void finishReplay()
+	{
+		removeFilesRemovedByJournal();
+		if (lineage != null && ( !changedSinceGeneration.isEmpty() || !removedSinceGeneration.isEmpty()))
+			startGeneration(UUID.randomUUID().toString(), generation + 1);
+	}
+
+	private void removeFilesRemovedByJournal()
+	{
+		if (removedByJournal == null)
+			return;
+		confirmExists.set(0, numFiles);
+		confirmExists.andNot(removedByJournal);
+		removeUnconfirmed();
+		confirmExists.clear();
+		removedByJournal = null;
+	}
+
+	/*
+	 * Access to the generations, used by FipManifest.
+	 */
+	long getGeneration()
+	{
+		return generation;
+	}
+
+	long getOldestGeneration()
+	{
+		return oldestGeneration;
+	}
+
+	String getLineage()
+	{
+		return lineage;
+	}
+
+	long getChangedIn(int index)
+	{
+		return changedIn[index];
+	}
+
+	void setChangedIn(int index, long generation)
+	{
+		changedIn[index] = generation;
+	}
+
+	int numRemovals()
+	{
+		return removedPaths.size();
+	}
+
+	String getRemovedPath(int removal)
+	{
+		return removedPaths.get(removal);
+	}
+
+	long getRemovedIn(int removal)
+	{
+		return removedIn.get(removal);
+	}
+
+	void addRemoval(String relativePath, long generation)
+	{
+		removedPaths.add(relativePath);
+		removedIn.add(generation);
+	}
+
+	/**
+	 * Set the generation of a list that has just been loaded, after it's entries have been added.
+	 */
+	void setGeneration(String lineage, long generation, long oldestGeneration)
+	{
+		this.lineage = lineage;
+		this.generation = generation;
+		this.oldestGeneration = oldestGeneration;
+		changedSinceGeneration.clear();
+		removedSinceGeneration.clear();
+	}
+
+	/**
+	 * A list of just the entries that have changed since an earlier generation, and the files removed since
+	 * then. Returns null if the changes are not known, because the generation is from a different lineage,
+	 * is too old, or the list has changed since it's last generation.
+	 */
+	synchronized FipList getChangesSince(String generationId)
+	{
+		if (lineage == null || generationId == null || !changedSinceGeneration.isEmpty() || !removedSinceGeneration.isEmpty())
+			return null;
+		int pos = generationId.lastIndexOf(':');
+		if (pos < 0 || !generationId.substring(0, pos).equals(lineage))
+			return null;
+		long since;
+		try {
+			since = Long.parseLong(generationId.substring(pos + 1));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		if (since < oldestGeneration || since > generation)
+			return null;
+
+		FipList changes = new FipList(checksumAlgorithm);
+		for (int index = 0; index < numFiles; index++)
+		{
+			if (changedIn[index] <= since)
+				continue;
+			int newIndex = changes.append(getPath(index), lastModified[index], sizes[index]);
+			changes.setDigest(newIndex, getDigest(index));
+		}
+		for (int removal = 0; removal < removedPaths.size(); removal++)
+		{
+			String relativePath = removedPaths.get(removal);
+			if (removedIn.get(removal) > since && indexOf(relativePath) < 0 && !changes.removedSinceGeneration.contains(relativePath))
+				changes.removedSinceGeneration.add(relativePath);
 		}
+		changes.lineage = lineage;
+		changes.generation = generation;
+		changes.sinceGeneration = since;
+		changes.changedSinceGeneration.clear();
+		return changes;
+	}
+
+	/**
+	 * Update this list with the changes since it's generation (see {@link #getChangesSince(String)}), so it
+	 * becomes the same as the list the changes were taken from.
+	 */
+	synchronized void applyChanges(FipList changes) throws FipException
+	{
+		if ( !changes.isChangesOnly() || lineage == null || !lineage.equals(changes.lineage) || changes.sinceGeneration != generation)
+			throw new FipException("The changes to the file list are not from generation " + getGenerationId());
+		if ( !checksumAlgorithm.getName().equals(changes.checksumAlgorithm.getName()))
+			throw new FipException("The changes to the file list use a different checksum algorithm (" + changes.checksumAlgorithm.getName() + ")");
+		for (int index = 0; index < changes.numFiles; index++)
+		{
+			int newIndex = addFile(changes.getPath(index), changes.lastModified[index], changes.sizes[index]);
+			setDigest(newIndex, changes.getDigest(index));
+		}
+		confirmExists.set(0, numFiles);
+		for (String relativePath : changes.removedSinceGeneration)
+		{
+			int index = indexOf(relativePath);
+			if (index >= 0)
+				confirmExists.clear(index);
+		}
+		removeUnconfirmed();
+		confirmExists.clear();
+		startGeneration(lineage, changes.generation);
 	}
 
 	public static FipList deserialize(BufferedReader in) throws IOException, FipCorruptionException
 	{
-		FipList fipList = new FipList();
+		FipList fipList = new FipList(new FipChecksum_md5());
+		String generationId = null;
+		String sinceGenerationId = null;
+		Vector<String> removed = new Vector<String>();
 		for (int lineNo = 1; ; lineNo++)
 		{
 			String fullLine = in.readLine();
@@ -185,6 +1496,27 @@ public class FipList
 				break;
 			String line = fullLine;
 
+			// Header lines
+			if (line.startsWith(HEADER_PREFIX))
+			{
+				if (line.startsWith(CHECKSUM_HEADER))
+				{
+					String name = line.substring(CHECKSUM_HEADER.length());
+					try {
+						fipList.useChecksumAlgorithm(FipChecksum.forName(name));
+					} catch (FipException e) {
+						throw new FipCorruptionException(lineNo, "unknown checksum algorithm: " + name);
+					}
+				}
+				else if (line.startsWith(GENERATION_HEADER))
+					generationId = line.substring(GENERATION_HEADER.length());
+				else if (line.startsWith(SINCE_HEADER))
+					sinceGenerationId = line.substring(SINCE_HEADER.length());
+				else if (line.startsWith(REMOVED_HEADER))
+					removed.add(line.substring(REMOVED_HEADER.length()));
+				continue;
+			}
+
 			// Get lastModified
 			int pos = line.indexOf(":");
 			if (pos < 0)
@@ -220,12 +1552,34 @@ public class FipList
 			// Get the name. This must be at the end, because it might contain a colon.
 			String path = line.substring(pos + 1);
 			
-			// Create the new record in the list
-			FipFile fipFile = new FipFile(path);
-			fipFile.setLastModified(lastModified);
-			fipFile.setLength(length);
-			fipFile.setChecksum(checksum);
-			fipList.list.put(path, fipFile);
+			// Create the new record in the list. A checksum that can't be used will be recalculated.
+			int index = fipList.addFile(path, lastModified, length);
+			fipList.setChecksum(index, checksum);
+			if ( !fipList.hasChecksum.get(index))
+				fipList.setLastModified(index, -1);
+		}
+
+		// The generation, and whether this is only the changes since an earlier generation
+		if (generationId != null)
+		{
+			int pos = generationId.lastIndexOf(':');
+			int sincePos = (sinceGenerationId == null) ? -1 : sinceGenerationId.lastIndexOf(':');
+			try {
+				String lineage = generationId.substring(0, pos);
+				long generation = Long.parseLong(generationId.substring(pos + 1));
+				fipList.setGeneration(lineage, generation, generation);
+				if (sinceGenerationId != null)
+				{
+					if ( !sinceGenerationId.substring(0, sincePos).equals(lineage))
+						throw new FipCorruptionException(0, "changes are from a different lineage: " + sinceGenerationId);
+					fipList.sinceGeneration = Long.parseLong(sinceGenerationId.substring(sincePos + 1));
+					fipList.removedSinceGeneration.addAll(removed);
+				}
+			} catch (IndexOutOfBoundsException e) {
+				throw new FipCorruptionException(0, "invalid generation: " + generationId);
+			} catch (NumberFormatException e) {
+				throw new FipCorruptionException(0, "invalid generation: " + generationId);
+			}
 		}
 		return fipList;
 	}
@@ -235,89 +1589,152 @@ public class FipList
 	 * @param list2
 	 * @return 
 	 */
-	FipDeltaList getDelta(FipList list2)
+	FipDeltaList getDelta(FipList list2) throws FipException
+	{
+		return getDelta(list2, 0, null);
+	}
+
+	/**
+	 * Compare two lists, where list2 only contains the files in some buckets of a
+	 * {@link FipBucketSummary}. Files in this list that are in other buckets are
+	 * already known to be the same at the destination, so are skipped.
+	 */
+	FipDeltaList getDelta(FipList list2, int numBuckets, BitSet buckets) throws FipException
 	{
+		// The checksums can only be compared if they were calculated the same way
+		if ( !checksumAlgorithm.getName().equals(list2.checksumAlgorithm.getName()))
+			throw new FipException("Cannot compare file lists that use different checksum algorithms (" + checksumAlgorithm.getName() + " and " + list2.checksumAlgorithm.getName() + ")");
+
 		FipDeltaList deltaList = new FipDeltaList();
+		BitSet changed = new BitSet(list2.numFiles);
 		
 		// For each file in list1, check it is the same in list2
-		for (FipFile f1 : this.files())
+		for (int index1 = 0; index1 < this.numFiles; index1++)
 		{
-			
-			Op op = f1.getOp();
+			Op op = this.getOp(index1);
 			if (op == Op.EXCLUDE)
 				continue;
 			if (op == Op.IGNORE)
 				continue;
-			long fileSize = f1.getFileSize();
-			
+			long fileSize = this.sizes[index1];
+			String sourceRelativePath = this.getPath(index1);
+			String destinationRelativePath = this.getDestinationRelativePath(index1);
+			if (buckets != null && !buckets.get(FipBucketSummary.bucketFor(destinationRelativePath, numBuckets)))
+				continue;
 
-//{
-//String s = f1.getSourceRelativePath();
-//String d = f1.getDestinationRelativePath();
-//if ( !s.equals(d))
-//{
-//	int abc = 123;
-//	int def = abc;
-//}
-//}
-			String sourceRelativePath = f1.getSourceRelativePath();
-			String destinationRelativePath = f1.getDestinationRelativePath();
-
-			FipFile f2 = list2.list.get(destinationRelativePath);
-			if (f2 == null) {
+			int index2 = list2.indexOf(destinationRelativePath);
+			if (index2 < 0) {
 				
 				// The is a new file
-				deltaList.addDelta(sourceRelativePath, destinationRelativePath, fileSize, FipDelta.Type.NEW);
+				deltaList.addDelta(sourceRelativePath, destinationRelativePath, fileSize, FipDelta.Type.NEW, this.getChecksum(index1));
 				
 			} else { 
 								
 				// This might be a changed file
-				if (f2.getOp() != Op.IGNORE) {
+				if (list2.getOp(index2) != Op.IGNORE) {
 					
 					// Compare the length and checksum
-					long length1 = f1.getFileSize();
-					long length2 = f2.getFileSize();
-					String checksum1 = f1.getChecksum();
-					String checksum2 = f2.getChecksum();
-	
-					if (length2 != length1 || !checksum2.equals(checksum1))
-						deltaList.addDelta(sourceRelativePath, destinationRelativePath, fileSize, FipDelta.Type.CHANGE);
+					if (list2.sizes[index2] != fileSize || !sameChecksum(index1, list2, index2))
+					{
+						deltaList.addDelta(sourceRelativePath, destinationRelativePath, fileSize, FipDelta.Type.CHANGE, this.getChecksum(index1));
+						changed.set(index2);
+					}
 				}
 				
-				f2.setCheckedForDelta(true);
+				list2.checkedForDelta.set(index2);
 			}
 		}
 
 		// Look for records in list2, that were not checked (ie. are not in list1)
-		for (FipFile f2 : list2.files())
+		for (int index2 = 0; index2 < list2.numFiles; index2++)
 		{
 
 			// If the file is not being ignored, and wasn't in the source list, it'll need to be deleted.
-			boolean notCheckedYet = !f2.getCheckedForDelta();
-			boolean notIgnored = f2.getOp() != Op.IGNORE;
+			boolean notCheckedYet = !list2.checkedForDelta.get(index2);
+			boolean notIgnored = list2.getOp(index2) != Op.IGNORE;
 			if (notCheckedYet && notIgnored)
 			{
-				String relativePath = f2.getSourceRelativePath();
-				long fileSize = f2.getFileSize();
-				deltaList.addDelta(relativePath, relativePath, fileSize, Type.DELETE);
+				String relativePath = list2.getPath(index2);
+				long fileSize = list2.sizes[index2];
+				deltaList.addDelta(relativePath, relativePath, fileSize, Type.DELETE, list2.getChecksum(index2));
+			}
+		}
+
+		// New files might be copies of files already at the destination. Only
+		// files the same size as a new file need to be considered.
+		HashSet<Long> sizes = deltaList.sizesOfNewFiles();
+		if ( !sizes.isEmpty())
+		{
+			HashMap<String, String> unchangedFiles = new HashMap<String, String>();
+			for (int index2 = 0; index2 < list2.numFiles; index2++)
+			{
+				if ( !list2.checkedForDelta.get(index2) || changed.get(index2) || list2.getOp(index2) == Op.IGNORE)
+					continue;
+				if ( !sizes.contains(list2.sizes[index2]) || !list2.hasChecksum.get(index2))
+					continue;
+				unchangedFiles.put(FipDeltaList.contentKey(list2.sizes[index2], list2.getChecksum(index2)), list2.getPath(index2));
 			}
+			deltaList.findCopies(unchangedFiles);
 		}
 		
 		return deltaList;
 	}
 
+	/**
+	 * Compare the checksums of an entry in this list and an entry in another list, which
+	 * uses the same algorithm. A missing checksum never matches.
+	 */
+	private boolean sameChecksum(int index1, FipList list2, int index2)
+	{
+		if ( !this.hasChecksum.get(index1) || !list2.hasChecksum.get(index2))
+			return false;
+		int offset1 = index1 * digestLength;
+		int offset2 = index2 * digestLength;
+		for (int i = 0; i < digestLength; i++)
+			if (this.digests[offset1 + i] != list2.digests[offset2 + i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * A view of each file in the list.
+	 */
 	Iterable<FipFile> files()
 	{
-		return this.list.values();
+		return new Iterable<FipFile>() {
+			public Iterator<FipFile> iterator()
+			{
+				return new Iterator<FipFile>() {
+					private int next = 0;
+
+					public boolean hasNext()
+					{
+						return next < numFiles;
+					}
+
+					public FipFile next()
+					{
+						if (next >= numFiles)
+							throw new NoSuchElementException();
+						return new FipFile(FipList.this, next++);
+					}
+
+					public void remove()
+					{
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
 	}
 
 	public boolean containsFile(String relativePath)
 	{
-		return this.list.containsKey(relativePath);
+		return indexOf(relativePath) >= 0;
 	}
 
 	public int numFiles() {
-		return list.size();
+		return numFiles;
 	}
 
 }
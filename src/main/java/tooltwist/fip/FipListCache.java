@@ -0,0 +1,199 @@
+package tooltwist.fip;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shares file lists between requests, so a directory hierarchy is not walked more often than necessary.
+ *
+ * <ul>
+ * <li>Each batch of updates requested from a source checks that the requested files are in the
+ * 		source's file list. Rather than walking the hierarchy for every batch, the list is kept as a
+ * 		snapshot for the rest of the transaction. A snapshot is discarded once the transaction ends,
+ * 		or if it has not been used for 10 minutes (or as set by the <code>fip.snapshotSeconds</code>
+ * 		system property). The snapshots are limited to 256MB in total (or as set by
+ * 		<code>fip.snapshotMegabytes</code>), with the least recently used discarded first.</li>
+ * <li>If a hierarchy is asked to be indexed while it is already being indexed, the second request
+ * 		waits for the first to finish and is given a copy of it's list, rather than walking the
+ * 		hierarchy again at the same time.</li>
+ * </ul>
+ *
+ * @author philipcallender
+ *
+ */
+class FipListCache
+{
+	private static Logger logger = LoggerFactory.getLogger(FipListCache.class);
+	public static final String SNAPSHOT_SECONDS_PROPERTY = "fip.snapshotSeconds";
+	public static final String SNAPSHOT_MEGABYTES_PROPERTY = "fip.snapshotMegabytes";
+	private static final long DEFAULT_SNAPSHOT_SECONDS = 10 * 60;
+	private static final long DEFAULT_SNAPSHOT_MEGABYTES = 256;
+
+	// Snapshots by root directory and transaction, least recently used first
+	private static LinkedHashMap<String, Snapshot> snapshots = new LinkedHashMap<String, Snapshot>(16, 0.75f, true);
+	private static long snapshotMemory = 0;
+
+	// Hierarchies being indexed, by root directory and checksum algorithm
+	private static HashMap<String, Walk> walks = new HashMap<String, Walk>();
+
+	/**
+	 * Something that indexes a directory hierarchy.
+	 */
+	interface Indexer
+	{
+		FipList index() throws IOException, FipCorruptionException, FipException;
+	}
+
+	private FipListCache()
+	{
+	}
+
+	/**
+	 * The snapshot of a source's file list for a transaction, or null if there is none.
+	 */
+	static synchronized FipList getSnapshot(String rootDirectory, String transactionKey)
+	{
+		removeExpiredSnapshots();
+		Snapshot snapshot = snapshots.get(snapshotKey(rootDirectory, transactionKey));
+		if (snapshot == null)
+			return null;
+		snapshot.lastUsed = System.currentTimeMillis();
+		return snapshot.list;
+	}
+
+	/**
+	 * Keep a file list for the rest of a transaction. The list must not be changed afterwards.
+	 */
+	static synchronized void putSnapshot(String rootDirectory, String transactionKey, FipList list)
+	{
+		removeSnapshot(rootDirectory, transactionKey);
+		long memory = list.estimateMemoryUsage();
+		long maxMemory = Long.getLong(SNAPSHOT_MEGABYTES_PROPERTY, DEFAULT_SNAPSHOT_MEGABYTES) * 1024 * 1024;
+		if (memory > maxMemory)
+		{
+			logger.info("File list for " + rootDirectory + " is too large to keep between batches.");
+			return;
+		}
+
+		// Make room, discarding the least recently used first
+		for (Iterator<Snapshot> iterator = snapshots.values().iterator(); snapshotMemory + memory > maxMemory && iterator.hasNext(); )
+		{
+			snapshotMemory -= iterator.next().memory;
+			iterator.remove();
+		}
+		snapshots.put(snapshotKey(rootDirectory, transactionKey), new Snapshot(list, memory));
+		snapshotMemory += memory;
+	}
+
+	/**
+	 * Discard the snapshot for a transaction, once it has finished.
+	 */
+	static synchronized void removeSnapshot(String rootDirectory, String transactionKey)
+	{
+		Snapshot snapshot = snapshots.remove(snapshotKey(rootDirectory, transactionKey));
+		if (snapshot != null)
+			snapshotMemory -= snapshot.memory;
+	}
+
+	private static void removeExpiredSnapshots()
+	{
+		long expiry = System.currentTimeMillis() - Long.getLong(SNAPSHOT_SECONDS_PROPERTY, DEFAULT_SNAPSHOT_SECONDS) * 1000;
+		for (Iterator<Snapshot> iterator = snapshots.values().iterator(); iterator.hasNext(); )
+		{
+			Snapshot snapshot = iterator.next();
+			if (snapshot.lastUsed < expiry)
+			{
+				snapshotMemory -= snapshot.memory;
+				iterator.remove();
+			}
+		}
+	}
+
+	private static String snapshotKey(String rootDirectory, String transactionKey)
+	{
+		return rootDirectory + "\n" + transactionKey;
+	}
+
+	/**
+	 * Index a hierarchy, unless it is already being indexed using the same checksum algorithm, in
+	 * which case wait for that to finish and use it's list. Each caller gets a list it can change.
+	 */
+	static FipList index(String rootDirectory, String checksumAlgorithm, Indexer indexer) throws IOException, FipCorruptionException, FipException
+	{
+		String key = rootDirectory + "\n" + ((checksumAlgorithm == null) ? "" : checksumAlgorithm);
+		Walk walk;
+		synchronized (walks)
+		{
+			for ( ; ; )
+			{
+				walk = walks.get(key);
+				if (walk == null)
+					break;
+				walk.numWaiting++;
+				waitFor(walk);
+				if (walk.list != null)
+					return walk.list.copy();
+				// The other request failed, so try ourselves
+			}
+			walk = new Walk();
+			walks.put(key, walk);
+		}
+
+		// Do the indexing
+		FipList list = null;
+		try {
+			list = indexer.index();
+		} finally {
+			synchronized (walks)
+			{
+				walks.remove(key);
+				walk.list = list;
+				walk.done = true;
+				walks.notifyAll();
+
+				// Anyone waiting will copy the list, so it mustn't be changed until they have
+				if (list != null && walk.numWaiting > 0)
+					list = list.copy();
+			}
+		}
+		return list;
+	}
+
+	private static void waitFor(Walk walk) throws FipException
+	{
+		while ( !walk.done)
+		{
+			try {
+				walks.wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new FipException("Interrupted while waiting for the file list");
+			}
+		}
+	}
+
+	private static class Snapshot
+	{
+		private FipList list;
+		private long memory;
+		private long lastUsed = System.currentTimeMillis();
+
+		Snapshot(FipList list, long memory)
+		{
+			this.list = list;
+			this.memory = memory;
+		}
+	}
+
+	private static class Walk
+	{
+		private FipList list = null;
+		private boolean done = false;
+		private int numWaiting = 0;
+	}
+}
@@ -0,0 +1,456 @@
+package tooltwist.fip;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the file list for a directory hierarchy up to date, by watching for changes rather than
+ * walking the entire hierarchy each time the list is needed.
+ *
+ * Every directory in the hierarchy is registered with a {@link WatchService}. A background thread
+ * collects the paths of files and directories that are created, modified or removed, and once
+ * things have been quiet for a moment, checks just those paths and calculates checksums for the
+ * files that changed. The list is written to the manifest and journal as usual.
+ *
+ * As a safety net, the entire hierarchy is checked if the watch service reports that events were
+ * lost, if a watched directory is removed or renamed, and periodically (every 15 minutes, or as
+ * set by the <code>fip.reconcileMinutes</code> system property). If the directories cannot be
+ * watched (eg. the operating system's limit on watches is reached), the hierarchy is checked
+ * every time the list is requested, the same as without a live index.
+ *
+ * There are two ways to use a live index:
+ * <ul>
+ * <li>Within a server, {@link FipServer#getFileList(String, boolean, String, String)} uses a
+ * 		live index for each root if live indexing is turned on, using
+ * 		{@link FipServer#setLiveIndexing(boolean)} or the <code>fip.liveIndex</code> system property.</li>
+ * <li>As a standalone agent (<code>fip -d directory</code>). The agent keeps the manifest up to
+ * 		date, and writes a status file that tells other FIP processes they can use the manifest as
+ * 		it is, without checking the files (see {@link #loadFromAgent(File)}). The status file is
+ * 		rewritten as soon as a change is seen, so it never says there is nothing pending while
+ * 		the manifest is out of date.</li>
+ * </ul>
+ *
+ * @author philipcallender
+ *
+ */
+public class FipLiveIndex
+{
+	private static Logger logger = LoggerFactory.getLogger(FipLiveIndex.class);
+	public static final String LIVE_INDEX_PROPERTY = "fip.liveIndex";
+	public static final String RECONCILE_MINUTES_PROPERTY = "fip.reconcileMinutes";
+	private static final int DEFAULT_RECONCILE_MINUTES = 15;
+
+	/**
+	 * Changes are applied once no events have arrived for this long (in milliseconds).
+	 */
+	private static final long SETTLE_TIME = 500;
+
+	/**
+	 * An agent updates it's status file this often (in milliseconds). The status file is
+	 * ignored if it has not been updated for three times this long.
+	 */
+	private static final long HEARTBEAT_INTERVAL = 5000;
+	static final String STATUS_FILE = Fip.PREFIX + "live";
+
+	private static HashMap<String, FipLiveIndex> liveIndexes = new HashMap<String, FipLiveIndex>();
+
+	private File rootDirectory;
+	private Path rootPath;
+	private int parallelism;
+	private boolean isAgent;
+	private long reconcileInterval;
+	private FipList list = null;
+	private WatchService watchService = null;
+	private HashMap<WatchKey, Path> watchedDirectories = new HashMap<WatchKey, Path>();
+	private HashSet<String> changedPaths = new HashSet<String>();
+	private boolean reconcileNeeded = true;
+	private boolean rewatchNeeded = true;
+	private long lastEvent = 0;
+	private long lastReconcile = 0;
+	private long lastStatus = 0;
+	private long generation = 0;
+	private Thread thread = null;
+	private volatile boolean stopped = false;
+
+	/**
+	 * Create a live index for a directory. It does nothing until {@link #start()} is called.
+	 */
+	public FipLiveIndex(File rootDirectory, int parallelism, boolean isAgent)
+	{
+		this.rootDirectory = rootDirectory.getAbsoluteFile();
+		this.rootPath = this.rootDirectory.toPath();
+		this.parallelism = parallelism;
+		this.isAgent = isAgent;
+		int minutes = Integer.getInteger(RECONCILE_MINUTES_PROPERTY, DEFAULT_RECONCILE_MINUTES);
+		this.reconcileInterval = (minutes <= 0) ? Long.MAX_VALUE : minutes * 60L * 1000L;
+	}
+
+	/**
+	 * Get the live index for a directory, starting it if this is the first time it has been used.
+	 */
+	public static FipLiveIndex getLiveIndex(File rootDirectory, int parallelism) throws IOException, FipCorruptionException, FipException
+	{
+		String key = rootDirectory.getAbsolutePath();
+		FipLiveIndex liveIndex;
+		synchronized (liveIndexes)
+		{
+			liveIndex = liveIndexes.get(key);
+			if (liveIndex == null)
+			{
+				liveIndex = new FipLiveIndex(rootDirectory, parallelism, false);
+				liveIndexes.put(key, liveIndex);
+			}
+		}
+		liveIndex.start();
+		return liveIndex;
+	}
+
+	/**
+	 * Load the manifest, index the hierarchy, and start watching for changes. Does nothing if already started.
+	 */
+	public synchronized void start() throws IOException, FipCorruptionException, FipException
+	{
+		if (thread != null)
+			return;
+		this.watchService = rootPath.getFileSystem().newWatchService();
+		this.list = FipList.loadListFromFile(rootDirectory);
+		reconcile();
+
+		thread = new Thread("fip-live-index " + rootDirectory.getPath()) {
+			@Override
+			public void run()
+			{
+				watchForChanges();
+			}
+		};
+		thread.setDaemon( !isAgent);
+		thread.start();
+	}
+
+	/**
+	 * Stop watching for changes.
+	 */
+	public void stop()
+	{
+		stopped = true;
+		if (thread != null)
+			thread.interrupt();
+		try {
+			watchService.close();
+		} catch (IOException e) {
+			// do nothing
+		}
+		if (isAgent)
+			new File(rootDirectory, STATUS_FILE).delete();
+	}
+
+	/**
+	 * Wait until the index is stopped.
+	 */
+	public void join() throws InterruptedException
+	{
+		if (thread != null)
+			thread.join();
+	}
+
+	/**
+	 * Get an up to date copy of the file list, with checksums calculated using the named algorithm.
+	 * If checksumAlgorithm is null, the manifest's existing algorithm is used.
+	 */
+	public synchronized FipList getFileList(String checksumAlgorithm) throws FipException
+	{
+		if (checksumAlgorithm != null && !checksumAlgorithm.equals(list.getChecksumAlgorithm().getName()))
+		{
+			list.useChecksumAlgorithm(FipChecksum.forName(checksumAlgorithm));
+			reconcileNeeded = true;
+		}
+
+		// Pick up any events that have not been seen by the background thread yet
+		WatchKey key;
+		while ((key = watchService.poll()) != null)
+			processEvents(key);
+		applyChanges();
+		return list.copy();
+	}
+
+	/**
+	 * The background thread.
+	 */
+	private void watchForChanges()
+	{
+		while ( !stopped)
+		{
+			try {
+				WatchKey key = watchService.poll(pollTimeout(), TimeUnit.MILLISECONDS);
+				synchronized (this)
+				{
+					for ( ; key != null; key = watchService.poll())
+						processEvents(key);
+
+					long now = System.currentTimeMillis();
+					if (now - lastReconcile >= reconcileInterval)
+						reconcileNeeded = true;
+					if (reconcileNeeded || ( !changedPaths.isEmpty() && now - lastEvent >= SETTLE_TIME))
+						applyChanges();
+					if (isAgent && now - lastStatus >= HEARTBEAT_INTERVAL)
+						writeStatusFile();
+				}
+			} catch (InterruptedException e) {
+				break;
+			} catch (Exception e) {
+				// Includes ClosedWatchServiceException when stopped
+				if (stopped)
+					break;
+				logger.error("Error updating live index for " + rootDirectory + ": " + e.toString());
+				synchronized (this)
+				{
+					reconcileNeeded = true;
+					if (isAgent)
+						writeStatusFile();
+				}
+				try {
+					Thread.sleep(HEARTBEAT_INTERVAL);
+				} catch (InterruptedException e2) {
+					break;
+				}
+			}
+		}
+	}
+
+	private synchronized long pollTimeout()
+	{
+		long timeout = isAgent ? HEARTBEAT_INTERVAL : 60 * 1000L;
+		if ( !changedPaths.isEmpty())
+			timeout = SETTLE_TIME;
+		return timeout;
+	}
+
+	/**
+	 * Record the paths mentioned by the events for a watched directory.
+	 */
+	private void processEvents(WatchKey key)
+	{
+		boolean wasPending = isPending();
+		Path directory = watchedDirectories.get(key);
+		for (WatchEvent<?> event : key.pollEvents())
+		{
+			if (event.kind() == OVERFLOW || directory == null)
+			{
+				// Events have been lost
+				reconcileNeeded = true;
+				continue;
+			}
+			Path path = directory.resolve((Path) event.context());
+			String relativePath = rootPath.relativize(path).toString().replace(File.separatorChar, '/');
+			if (FipDirectoryWalker.isIgnoredPath(relativePath))
+				continue;
+			changedPaths.add(relativePath);
+			lastEvent = System.currentTimeMillis();
+
+			if (event.kind() == ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS))
+			{
+				// Watch the new directory. Anything created before this is found when the directory is checked.
+				try {
+					watchTree(path);
+				} catch (IOException e) {
+					rewatchNeeded = true;
+					reconcileNeeded = true;
+				}
+			}
+			else if (event.kind() == ENTRY_DELETE && watchedDirectories.containsValue(path))
+			{
+				// A watched directory was removed or renamed. Start again, so that the
+				// watches are registered with the directories' new paths.
+				rewatchNeeded = true;
+				reconcileNeeded = true;
+			}
+		}
+		if ( !key.reset())
+			watchedDirectories.remove(key);
+
+		// Tell other processes straight away that the manifest is out of date
+		if (isAgent && !wasPending && isPending())
+			writeStatusFile();
+	}
+
+	/**
+	 * Returns true if there are changes that have not been applied to the list yet.
+	 */
+	private boolean isPending()
+	{
+		return reconcileNeeded || !changedPaths.isEmpty();
+	}
+
+	/**
+	 * Check the paths that have changed, or the whole hierarchy if necessary, and then update the manifest.
+	 */
+	private synchronized void applyChanges() throws FipException
+	{
+		if (reconcileNeeded || watchService == null)
+		{
+			reconcile();
+			return;
+		}
+		if (changedPaths.isEmpty())
+			return;
+		Vector<String> paths = new Vector<String>(changedPaths);
+		changedPaths.clear();
+		list.syncWithRealFiles(rootDirectory, paths, parallelism, FipChecksumPool.defaultHashParallelism());
+		generation++;
+		if (isAgent)
+			writeStatusFile();
+	}
+
+	/**
+	 * Check the entire hierarchy, registering the watches again if required.
+	 */
+	private synchronized void reconcile() throws FipException
+	{
+		if (rewatchNeeded)
+		{
+			for (WatchKey key : watchedDirectories.keySet())
+				key.cancel();
+			watchedDirectories.clear();
+			try {
+				watchTree(rootPath);
+				rewatchNeeded = false;
+			} catch (IOException e) {
+				logger.warn("Cannot watch " + rootDirectory + " for changes, so it will be checked each time it is used: " + e.toString());
+			}
+		}
+		changedPaths.clear();
+		reconcileNeeded = rewatchNeeded;
+		list.syncWithRealFiles(rootDirectory, parallelism);
+		lastReconcile = System.currentTimeMillis();
+		generation++;
+		if (isAgent)
+			writeStatusFile();
+	}
+
+	/**
+	 * Register a directory and it's subdirectories with the watch service.
+	 */
+	private void watchTree(Path top) throws IOException
+	{
+		Files.walkFileTree(top, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
+			{
+				if ( !dir.equals(rootPath) && dir.getFileName().toString().startsWith(Fip.PREFIX))
+					return FileVisitResult.SKIP_SUBTREE;
+				WatchKey key = dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+				watchedDirectories.put(key, dir);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e)
+			{
+				// Probably removed since the directory was read
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Tell other processes that the manifest is up to date.
+	 */
+	private void writeStatusFile()
+	{
+		long now = System.currentTimeMillis();
+		Properties prop = new Properties();
+		prop.setProperty("updated", "" + now);
+		prop.setProperty("generation", "" + generation);
+		prop.setProperty("pending", "" + (changedPaths.size() + (reconcileNeeded ? 1 : 0)));
+		File file = new File(rootDirectory, STATUS_FILE);
+		File tmpFile = new File(rootDirectory, STATUS_FILE + ".tmp");
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(tmpFile);
+			prop.store(out, "FIP live index agent");
+			out.close();
+			out = null;
+			try {
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			lastStatus = now;
+		} catch (IOException e) {
+			logger.error("Cannot write " + file + ": " + e.toString());
+		} finally {
+			if (out != null)
+				try { out.close(); } catch (IOException e) { /* do nothing */ }
+		}
+	}
+
+	private static Properties readStatusFile(File rootDirectory)
+	{
+		File file = new File(rootDirectory, STATUS_FILE);
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			Properties prop = new Properties();
+			prop.load(in);
+			return prop;
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (in != null)
+				try { in.close(); } catch (IOException e) { /* do nothing */ }
+		}
+	}
+
+	/**
+	 * If an agent is keeping the manifest for a directory up to date, load the list from
+	 * the manifest without checking the files. Returns null if there is no agent running,
+	 * it has changes it has not finished applying, or it changed the manifest while it was
+	 * being loaded.
+	 */
+	public static FipList loadFromAgent(File rootDirectory) throws IOException, FipCorruptionException, FipException
+	{
+		Properties before = readStatusFile(rootDirectory);
+		if (before == null)
+			return null;
+		try {
+			long updated = Long.parseLong(before.getProperty("updated", "0"));
+			if (System.currentTimeMillis() - updated > 3 * HEARTBEAT_INTERVAL)
+				return null;
+			if ( !before.getProperty("pending", "").equals("0"))
+				return null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		FipList fipList = FipList.loadListFromFile(rootDirectory);
+		Properties after = readStatusFile(rootDirectory);
+		if (after == null || !after.getProperty("generation", "").equals(before.getProperty("generation")) || !after.getProperty("pending", "").equals("0"))
+			return null;
+		return fipList;
+	}
+}
@@ -0,0 +1,402 @@
+package tooltwist.fip;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Reads and writes the binary manifest file.
+ *
+ * The manifest starts with a magic number and a format version, followed by the name of
+ * the checksum algorithm and the number of entries. Each entry then contains:
+ * <ul>
+ * <li>the number of leading bytes of the path shared with the previous entry,</li>
+ * <li>the length of the rest of the path, followed by it's UTF-8 bytes,</li>
+ * <li>lastModified (zig-zag encoded, as it can be -1),</li>
+ * <li>the file size,</li>
+ * <li>the length of the digest, followed by the raw digest bytes.</li>
+ * </ul>
+ * All numbers are variable length (7 bits per byte, low order first). Entries are written
+ * in path order, so most paths only need their file name.
+ *
+ * Version 2 adds the directory hashes (see {@link FipDirectorySummary}) after the entries:
+ * the number of directories, then for each directory (parents before their sub-directories)
+ * the number of it's parent and it's name (except for the root), the number of files below
+ * it, and the length of the hash followed by the hash (zero length if it is not known). The
+ * file ends with a CRC32 of everything before it.
+ *
+ * Version 3 adds the list's generation (see {@link FipList#getGenerationId()}). The header has the
+ * lineage (zero length if there is none), the generation and the oldest generation the changes are
+ * known from. Each entry ends with the generation it last changed in, and after the directory hashes
+ * are the number of removed files that are remembered, then each one's path and the generation it
+ * was removed in.
+ *
+ * The file is written to a temporary file, synced to the disk, and then renamed, so a crash
+ * or power failure never leaves a half written manifest. A manifest in the old text format is
+ * recognised and read using {@link FipList#deserialize(BufferedReader)}.
+ *
+ * @author philipcallender
+ *
+ */
+final class FipManifest
+{
+	private static final byte[] MAGIC = { 'F', 'I', 'P', 'M' };
+	private static final int FORMAT_VERSION = 3;
+	private static final int FIRST_VERSION_WITH_DIRECTORY_HASHES = 2;
+	private static final int FIRST_VERSION_WITH_GENERATIONS = 3;
+	private static final int BUFFER_SIZE = 256 * 1024;
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final int MIN_ENTRY_LENGTH = 5;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private FipManifest()
+	{
+	}
+
+	/**
+	 * Write a list to a manifest file.
+	 */
+	static void write(FipList fipList, File file) throws FipException
+	{
+		// Sort the entries, so adjacent paths share their prefix
+		int[] order = fipList.sortedIndexes();
+
+		File tmpFile = new File(file.getPath() + TEMP_SUFFIX);
+		FileOutputStream os = null;
+		try {
+			os = new FileOutputStream(tmpFile);
+			CRC32 crc = new CRC32();
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(os, crc), BUFFER_SIZE));
+
+			// Header
+			out.write(MAGIC);
+			out.writeByte(FORMAT_VERSION);
+			writeBytes(out, fipList.getChecksumAlgorithm().getName().getBytes(UTF8));
+			String lineage = fipList.getLineage();
+			writeBytes(out, (lineage == null) ? new byte[0] : lineage.getBytes(UTF8));
+			writeVarint(out, fipList.getGeneration());
+			writeVarint(out, fipList.getOldestGeneration());
+			writeVarint(out, order.length);
+
+			// Entries
+			byte[] previousPath = new byte[0];
+			for (int index : order)
+			{
+				byte[] path = fipList.getPath(index).getBytes(UTF8);
+				int shared = 0;
+				int max = Math.min(path.length, previousPath.length);
+				while (shared < max && path[shared] == previousPath[shared])
+					shared++;
+				writeVarint(out, shared);
+				writeVarint(out, path.length - shared);
+				out.write(path, shared, path.length - shared);
+
+				// If the checksum can't be stored, make sure it gets recalculated
+				byte[] digest = fipList.getDigest(index);
+				long lastModified = (digest == null) ? -1 : fipList.getLastModified(index);
+				writeVarint(out, (lastModified << 1) ^ (lastModified >> 63));
+				writeVarint(out, fipList.getFileSize(index));
+				writeBytes(out, (digest == null) ? new byte[0] : digest);
+				writeVarint(out, fipList.getChangedIn(index));
+				previousPath = path;
+			}
+
+			// Directory hashes
+			FipDirectoryTree directories = fipList.getDirectories();
+			int numDirectories = directories.size();
+			writeVarint(out, numDirectories);
+			for (int directory = 0; directory < numDirectories; directory++)
+			{
+				if (directory != FipDirectoryTree.ROOT)
+				{
+					writeVarint(out, directories.getParent(directory));
+					writeBytes(out, directories.getName(directory).getBytes(UTF8));
+				}
+				byte[] hash = fipList.getDirectoryHash(directory);
+				writeVarint(out, fipList.getDirectoryFileCount(directory));
+				writeBytes(out, (hash == null) ? new byte[0] : hash);
+			}
+
+			// Removed files
+			int numRemovals = fipList.numRemovals();
+			writeVarint(out, numRemovals);
+			for (int removal = 0; removal < numRemovals; removal++)
+			{
+				writeBytes(out, fipList.getRemovedPath(removal).getBytes(UTF8));
+				writeVarint(out, fipList.getRemovedIn(removal));
+			}
+
+			// The CRC of everything above
+			out.flush();
+			out.writeInt((int) crc.getValue());
+
+			// Make sure the contents are on the disk before the rename, or after a power failure
+			// the rename might be there without the data.
+			out.flush();
+			os.getFD().sync();
+			out.close();
+			os = null;
+
+			// Replace the old manifest
+			try {
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			syncDirectory(file.getAbsoluteFile().getParentFile());
+		} catch (IOException e) {
+			tmpFile.delete();
+			FipException ex = new FipException("Error writing fip index file: " + file.getAbsolutePath() + ": " + e.toString());
+			ex.setStackTrace(e.getStackTrace());
+			throw ex;
+		} finally {
+			if (os != null)
+			{
+				try { os.close(); } catch (IOException e) { /* do nothing */ }
+				tmpFile.delete();
+			}
+		}
+	}
+
+	/**
+	 * Sync a directory, so a rename in it is on the disk. Not all platforms allow a directory to be
+	 * opened (eg. Windows), in which case this does nothing.
+	 */
+	private static void syncDirectory(File directory)
+	{
+		if (directory == null)
+			return;
+		FileChannel channel = null;
+		try {
+			channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+			channel.force(true);
+		} catch (IOException e) {
+			// Not supported on this platform
+		} finally {
+			if (channel != null)
+				try { channel.close(); } catch (IOException e) { /* do nothing */ }
+		}
+	}
+
+	/**
+	 * Read a manifest file, in either the binary or the old text format.
+	 *
+	 * @throws FileNotFoundException if there is no manifest.
+	 */
+	static FipList read(File file) throws IOException, FipCorruptionException
+	{
+		InputStream is = new FileInputStream(file);
+		try {
+			BufferedInputStream in = new BufferedInputStream(is, BUFFER_SIZE);
+			in.mark(MAGIC.length);
+			byte[] magic = new byte[MAGIC.length];
+			int len = 0;
+			while (len < magic.length)
+			{
+				int cnt = in.read(magic, len, magic.length - len);
+				if (cnt < 0)
+					break;
+				len += cnt;
+			}
+			if (len == magic.length && Arrays.equals(magic, MAGIC))
+				return readBinary(in, file.length());
+
+			// Must be the text format
+			in.reset();
+			FipList fipList = FipList.deserialize(new BufferedReader(new InputStreamReader(in)));
+			fipList.setNeedsRewrite();
+			return fipList;
+		} finally {
+			try { is.close(); } catch (IOException e) { /* do nothing */ }
+		}
+	}
+
+	private static FipList readBinary(InputStream is, long fileLength) throws IOException, FipCorruptionException
+	{
+		CRC32 crc = new CRC32();
+		crc.update(MAGIC);
+		DataInputStream in = new DataInputStream(new CheckedInputStream(is, crc));
+		int entryNo = 0;
+		try {
+			// Header
+			int version = in.readUnsignedByte();
+			if (version < 1 || version > FORMAT_VERSION)
+				throw new FipCorruptionException(0, "unsupported manifest version " + version);
+			String name = new String(readBytes(in), UTF8);
+			FipChecksum algorithm;
+			try {
+				algorithm = FipChecksum.forName(name);
+			} catch (FipException e) {
+				throw new FipCorruptionException(0, "unknown checksum algorithm: " + name);
+			}
+			String lineage = null;
+			long generation = 0;
+			long oldestGeneration = 0;
+			if (version >= FIRST_VERSION_WITH_GENERATIONS)
+			{
+				byte[] bytes = readBytes(in);
+				lineage = (bytes.length == 0) ? null : new String(bytes, UTF8);
+				generation = readVarint(in);
+				oldestGeneration = readVarint(in);
+			}
+			long numEntries = readVarint(in);
+
+			// Size the list for the number of entries, but don't trust a damaged header
+			// to say there are more entries than will fit in the file.
+			long maxEntries = fileLength / MIN_ENTRY_LENGTH;
+			FipList fipList = new FipList(algorithm, (int) Math.min(numEntries, maxEntries));
+
+			// Entries
+			byte[] path = new byte[256];
+			int pathLength = 0;
+			for (entryNo = 1; entryNo <= numEntries; entryNo++)
+			{
+				int shared = (int) readVarint(in);
+				int suffixLength = (int) readVarint(in);
+				if (shared < 0 || shared > pathLength || suffixLength < 0)
+					throw new FipCorruptionException(entryNo, "invalid path length");
+				pathLength = shared + suffixLength;
+				if (pathLength > path.length)
+					path = Arrays.copyOf(path, Math.max(pathLength, path.length * 2));
+				in.readFully(path, shared, suffixLength);
+				String relativePath = new String(path, 0, pathLength, UTF8);
+
+				long zigzag = readVarint(in);
+				long lastModified = (zigzag >>> 1) ^ -(zigzag & 1);
+				long length = readVarint(in);
+				byte[] digest = readBytes(in);
+
+				int index = fipList.addFile(relativePath, lastModified, length);
+				if (digest.length == algorithm.getDigestLength())
+					fipList.setDigest(index, digest);
+				else
+					fipList.setLastModified(index, -1);
+				if (version >= FIRST_VERSION_WITH_GENERATIONS)
+					fipList.setChangedIn(index, readVarint(in));
+			}
+
+			// Directory hashes. The directories are numbered differently in the list we've just loaded.
+			if (version >= FIRST_VERSION_WITH_DIRECTORY_HASHES)
+				readDirectoryHashes(in, fipList, algorithm, fileLength);
+
+			// Removed files
+			fipList.setGeneration(lineage, generation, oldestGeneration);
+			if (version >= FIRST_VERSION_WITH_GENERATIONS)
+			{
+				long numRemovals = readVarint(in);
+				if (numRemovals < 0 || numRemovals > fileLength)
+					throw new FipCorruptionException(0, "invalid number of removed files");
+				for (long removal = 0; removal < numRemovals; removal++)
+				{
+					String relativePath = new String(readBytes(in), UTF8);
+					fipList.addRemoval(relativePath, readVarint(in));
+				}
+			}
+
+			// Check the CRC
+			int expected = (int) crc.getValue();
+			if (in.readInt() != expected)
+				throw new FipCorruptionException(entryNo, "checksum mismatch");
+			return fipList;
+		} catch (EOFException e) {
+			throw new FipCorruptionException(entryNo, "unexpected end of file");
+		}
+	}
+
+	private static void readDirectoryHashes(DataInputStream in, FipList fipList, FipChecksum algorithm, long fileLength) throws IOException, FipCorruptionException
+	{
+		FipDirectoryTree directories = fipList.getDirectories();
+		long numDirectories = readVarint(in);
+		if (numDirectories < 1 || numDirectories > fileLength)
+			throw new FipCorruptionException(0, "invalid number of directories");
+		int[] ids = new int[(int) numDirectories];
+		int[] counts = new int[(int) numDirectories];
+		byte[][] hashes = new byte[(int) numDirectories][];
+		ids[0] = FipDirectoryTree.ROOT;
+		for (int directory = 0; directory < numDirectories; directory++)
+		{
+			if (directory != FipDirectoryTree.ROOT)
+			{
+				long parent = readVarint(in);
+				if (parent < 0 || parent >= directory)
+					throw new FipCorruptionException(0, "invalid parent directory");
+				String name = new String(readBytes(in), UTF8);
+				ids[directory] = directories.child(ids[(int) parent], name, true);
+			}
+			counts[directory] = (int) readVarint(in);
+			byte[] hash = readBytes(in);
+			if (hash.length != 0 && hash.length != algorithm.getDigestLength())
+				throw new FipCorruptionException(0, "invalid directory hash");
+			hashes[directory] = (hash.length == 0) ? null : hash;
+		}
+
+		// Index them by the list's directory numbers
+		int[] listCounts = new int[directories.size()];
+		byte[][] listHashes = new byte[directories.size()][];
+		for (int directory = 0; directory < numDirectories; directory++)
+		{
+			listCounts[ids[directory]] = counts[directory];
+			listHashes[ids[directory]] = hashes[directory];
+		}
+		fipList.setDirectoryHashes(listHashes, listCounts);
+	}
+
+	static void writeVarint(DataOutputStream out, long value) throws IOException
+	{
+		while ((value & ~0x7fL) != 0)
+		{
+			out.writeByte((int) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	static long readVarint(DataInputStream in) throws IOException, FipCorruptionException
+	{
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new FipCorruptionException(0, "invalid number");
+	}
+
+	static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException
+	{
+		writeVarint(out, bytes.length);
+		out.write(bytes);
+	}
+
+	static byte[] readBytes(DataInputStream in) throws IOException, FipCorruptionException
+	{
+		long len = readVarint(in);
+		if (len < 0 || len > 64 * 1024)
+			throw new FipCorruptionException(0, "invalid field length " + len);
+		byte[] bytes = new byte[(int) len];
+		in.readFully(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,337 @@
+package tooltwist.fip;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of changes to the manifest, stored beside it as <code>.fip-manifest-journal</code>.
+ *
+ * While a directory is being indexed, a record is appended each time a checksum is calculated, and
+ * when a file is found to have been removed. If indexing is interrupted the journal is replayed on
+ * top of the manifest the next time the directory is indexed, so the checksums already calculated
+ * are not lost. Once the journal grows large enough it is compacted into a new manifest, and removed.
+ *
+ * The journal starts with a magic number, a format version and the name of the checksum algorithm.
+ * Each record is then the length of the record's data, the data, and a CRC32 of the data. The data
+ * contains a record type and the path, followed for a changed file by lastModified, the size and
+ * the digest, encoded as in {@link FipManifest}. A record that was only partly written when the
+ * process stopped is detected by it's CRC, and it and anything after it are discarded.
+ *
+ * When a sync that changed something finishes, a generation record is added with the list's lineage
+ * in place of the path, followed by the new generation. The records before it are in that generation.
+ *
+ * The journal has it's own lock, so the checksum threads can add records without holding the list's lock.
+ * Once a journal has been restarted, records added to the old journal are ignored.
+ *
+ * @author philipcallender
+ *
+ */
+final class FipManifestJournal
+{
+	static final String SUFFIX = "-journal";
+	private static final byte[] MAGIC = { 'F', 'I', 'P', 'J' };
+	private static final int FORMAT_VERSION = 1;
+	private static final int RECORD_CHANGED = 1;
+	private static final int RECORD_REMOVED = 2;
+	private static final int RECORD_GENERATION = 3;
+	private static final int MAX_RECORD_LENGTH = 64 * 1024;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Buffered records are written out at least this often (in milliseconds), so little
+	 * work is lost if the process is killed.
+	 */
+	private static final long FLUSH_INTERVAL = 1000;
+
+	private File file;
+	private long validLength;
+	private FipChecksum algorithm;
+	private int numRecords;
+	private FileOutputStream os = null;
+	private DataOutputStream out = null;
+	private ByteArrayOutputStream record = new ByteArrayOutputStream();
+	private DataOutputStream recordOut = new DataOutputStream(record);
+	private CRC32 crc = new CRC32();
+	private long lastFlush = 0;
+	private boolean discarded = false;
+
+	/**
+	 * Prepare to append to a journal. The file is not opened until the first record is added.
+	 * Anything after the first <code>validLength</code> bytes is discarded. If validLength is zero
+	 * a new journal is started.
+	 */
+	FipManifestJournal(File file, long validLength, int numRecords, FipChecksum algorithm)
+	{
+		this.file = file;
+		this.validLength = validLength;
+		this.numRecords = (validLength == 0) ? 0 : numRecords;
+		this.algorithm = algorithm;
+	}
+
+	/**
+	 * A new, empty journal using a different checksum algorithm. The existing journal
+	 * is discarded when the first record is added.
+	 */
+	synchronized FipManifestJournal restart(FipChecksum newAlgorithm)
+	{
+		abort();
+		discarded = true;
+		return new FipManifestJournal(file, 0, 0, newAlgorithm);
+	}
+
+	/**
+	 * The number of records in the journal, including those there before it was opened.
+	 */
+	synchronized int getNumRecords()
+	{
+		return numRecords;
+	}
+
+	/**
+	 * Record a file's size, lastModified and checksum.
+	 */
+	synchronized void fileChanged(String relativePath, long lastModified, long length, byte[] digest) throws FipException
+	{
+		if (discarded)
+			return;
+		try {
+			recordOut.writeByte(RECORD_CHANGED);
+			FipManifest.writeBytes(recordOut, relativePath.getBytes(UTF8));
+			FipManifest.writeVarint(recordOut, (lastModified << 1) ^ (lastModified >> 63));
+			FipManifest.writeVarint(recordOut, length);
+			FipManifest.writeBytes(recordOut, digest);
+			writeRecord();
+		} catch (IOException e) {
+			throw journalError(e);
+		}
+	}
+
+	/**
+	 * Record that a file no longer exists.
+	 */
+	synchronized void fileRemoved(String relativePath) throws FipException
+	{
+		if (discarded)
+			return;
+		try {
+			recordOut.writeByte(RECORD_REMOVED);
+			FipManifest.writeBytes(recordOut, relativePath.getBytes(UTF8));
+			writeRecord();
+		} catch (IOException e) {
+			throw journalError(e);
+		}
+	}
+
+	/**
+	 * Record that a sync finished, and the changes before this are in a new generation.
+	 */
+	synchronized void generationChanged(String lineage, long generation) throws FipException
+	{
+		if (discarded)
+			return;
+		try {
+			recordOut.writeByte(RECORD_GENERATION);
+			FipManifest.writeBytes(recordOut, lineage.getBytes(UTF8));
+			FipManifest.writeVarint(recordOut, generation);
+			writeRecord();
+		} catch (IOException e) {
+			throw journalError(e);
+		}
+	}
+
+	private void writeRecord() throws IOException
+	{
+		if (out == null)
+			openForAppend();
+		recordOut.flush();
+		byte[] data = record.toByteArray();
+		record.reset();
+		crc.reset();
+		crc.update(data);
+		FipManifest.writeVarint(out, data.length);
+		out.write(data);
+		out.writeInt((int) crc.getValue());
+		numRecords++;
+
+		long now = System.currentTimeMillis();
+		if (now - lastFlush >= FLUSH_INTERVAL)
+		{
+			out.flush();
+			lastFlush = now;
+		}
+	}
+
+	private void openForAppend() throws IOException
+	{
+		// Remove anything after the last good record
+		if (validLength > 0)
+		{
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(validLength);
+			} finally {
+				raf.close();
+			}
+		}
+		os = new FileOutputStream(file, validLength > 0);
+		out = new DataOutputStream(new BufferedOutputStream(os, BUFFER_SIZE));
+		if (validLength == 0)
+		{
+			out.write(MAGIC);
+			out.writeByte(FORMAT_VERSION);
+			FipManifest.writeBytes(out, algorithm.getName().getBytes(UTF8));
+		}
+		lastFlush = System.currentTimeMillis();
+	}
+
+	/**
+	 * Write out any buffered records and close the file.
+	 */
+	synchronized void close() throws FipException
+	{
+		if (out == null)
+			return;
+		try {
+			out.close();
+		} catch (IOException e) {
+			throw journalError(e);
+		} finally {
+			// Any further records are appended
+			out = null;
+			os = null;
+			validLength = file.length();
+		}
+	}
+
+	/**
+	 * Close the file after an error, ignoring any further problems.
+	 */
+	synchronized void abort()
+	{
+		try {
+			close();
+		} catch (FipException e) {
+			if (os != null)
+				try { os.close(); } catch (IOException e2) { /* do nothing */ }
+		}
+	}
+
+	private FipException journalError(IOException e)
+	{
+		FipException ex = new FipException("Error writing fip journal file: " + file.getAbsolutePath() + ": " + e.toString());
+		ex.setStackTrace(e.getStackTrace());
+		return ex;
+	}
+
+	/**
+	 * Apply the records in a journal to a list that was loaded from the manifest. If the journal
+	 * uses a different checksum algorithm to the list (the algorithm changed while indexing), the list
+	 * is switched to the journal's algorithm. Returns the journal, ready for more records to be added.
+	 */
+	static FipManifestJournal replay(FipList fipList, File file) throws IOException
+	{
+		InputStream is;
+		try {
+			is = new FileInputStream(file);
+		} catch (FileNotFoundException e) {
+			return new FipManifestJournal(file, 0, 0, fipList.getChecksumAlgorithm());
+		}
+		long validLength = 0;
+		int numRecords = 0;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(is, BUFFER_SIZE));
+
+			// Check the header
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			if ( !Arrays.equals(magic, MAGIC) || in.readUnsignedByte() != FORMAT_VERSION)
+				return new FipManifestJournal(file, 0, 0, fipList.getChecksumAlgorithm());
+			byte[] name = FipManifest.readBytes(in);
+			FipChecksum algorithm;
+			try {
+				algorithm = FipChecksum.forName(new String(name, UTF8));
+			} catch (FipException e) {
+				return new FipManifestJournal(file, 0, 0, fipList.getChecksumAlgorithm());
+			}
+			fipList.useChecksumAlgorithm(algorithm);
+			validLength = MAGIC.length + 1 + varintLength(name.length) + name.length;
+
+			// Apply each record, until the end of the file or a damaged record
+			CRC32 crc = new CRC32();
+			for ( ; ; )
+			{
+				long length;
+				try {
+					length = FipManifest.readVarint(in);
+				} catch (EOFException e) {
+					break;
+				}
+				if (length <= 0 || length > MAX_RECORD_LENGTH)
+					break;
+				byte[] data = new byte[(int) length];
+				in.readFully(data);
+				crc.reset();
+				crc.update(data);
+				if (in.readInt() != (int) crc.getValue())
+					break;
+				applyRecord(fipList, data);
+				validLength += varintLength(length) + length + 4;
+				numRecords++;
+			}
+		} catch (EOFException e) {
+			// A record was only partly written
+		} catch (FipCorruptionException e) {
+			// Treat the same as a damaged record
+		} finally {
+			try { is.close(); } catch (IOException e) { /* do nothing */ }
+		}
+		fipList.finishReplay();
+		return new FipManifestJournal(file, validLength, numRecords, fipList.getChecksumAlgorithm());
+	}
+
+	private static void applyRecord(FipList fipList, byte[] data) throws IOException, FipCorruptionException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		int type = in.readUnsignedByte();
+		String relativePath = new String(FipManifest.readBytes(in), UTF8);
+		if (type == RECORD_CHANGED)
+		{
+			long zigzag = FipManifest.readVarint(in);
+			long lastModified = (zigzag >>> 1) ^ -(zigzag & 1);
+			long length = FipManifest.readVarint(in);
+			byte[] digest = FipManifest.readBytes(in);
+			fipList.replayChanged(relativePath, lastModified, length, digest);
+		}
+		else if (type == RECORD_REMOVED)
+			fipList.replayRemoved(relativePath);
+		else if (type == RECORD_GENERATION)
+			fipList.replayGeneration(relativePath, FipManifest.readVarint(in));
+	}
+
+	private static int varintLength(long value)
+	{
+		int len = 1;
+		while ((value & ~0x7fL) != 0)
+		{
+			value >>>= 7;
+			len++;
+		}
+		return len;
+	}
+}
@@ -0,0 +1,276 @@
+package tooltwist.fip;
+
+import java.io.IOException;
+import java.util.LinkedList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends batches of updates to the destination in the background, so the next batch can be fetched
+ * from the source while the previous one is being installed.
+ *
+ * The batches are installed one at a time, in the order they were fetched. Fetching stops while
+ * the number of batches fetched but not yet installed reaches the depth of the pipeline (2, or as
+ * set by the <code>fip.pipelineDepth</code> system property), or while they take up more than
+ * 128MB (or as set by <code>fip.pipelineMegabytes</code>), shared between the lanes if there are
+ * several (see {@link Fip#LANES_PROPERTY}). A depth of 1 fetches and installs each batch in turn,
+ * without a background thread. Once a batch fails no more are installed, and the error is thrown
+ * to the caller the next time it sends a batch or calls {@link #finish()}.
+ *
+ * The time taken to fetch and install each batch is passed to a {@link FipBufferCapacityCalculator},
+ * so it can adjust the size of the batches that follow.
+ *
+ * @author philipcallender
+ *
+ */
+class FipPipeline
+{
+	private static Logger logger = LoggerFactory.getLogger(FipPipeline.class);
+	public static final String PIPELINE_DEPTH_PROPERTY = "fip.pipelineDepth";
+	public static final String PIPELINE_MEGABYTES_PROPERTY = "fip.pipelineMegabytes";
+	private static final int DEFAULT_PIPELINE_DEPTH = 2;
+	private static final long DEFAULT_PIPELINE_MEGABYTES = 128;
+
+	/**
+	 * Something that fetches a batch of updates from the source.
+	 */
+	interface Fetcher
+	{
+		FipBatchOfUpdates fetch(FipRequestList requestList) throws FipException, IOException, FipCorruptionException;
+	}
+
+	/**
+	 * Something that installs a batch of updates at the destination (or destinations).
+	 */
+	interface Installer
+	{
+		void install(FipBatchOfUpdates updates) throws FipException, IOException, FipCorruptionException;
+	}
+
+	private String name;
+	private Fetcher fetcher;
+	private Installer installer;
+	private FipBufferCapacityCalculator bcc;
+	private int maxBatches;
+	private long maxBytes;
+
+	// Batches fetched but not yet installed, oldest first
+	private LinkedList<Batch> batches = new LinkedList<Batch>();
+	private long bytesInFlight = 0;
+	private Exception error = null;
+	private boolean closed = false;
+	private Thread installerThread = null;
+
+	FipPipeline(String name, Fetcher fetcher, Installer installer, FipBufferCapacityCalculator bcc, int numPipelines)
+	{
+		this.name = name;
+		this.fetcher = fetcher;
+		this.installer = installer;
+		this.bcc = bcc;
+		this.maxBatches = Math.max(1, Integer.getInteger(PIPELINE_DEPTH_PROPERTY, DEFAULT_PIPELINE_DEPTH));
+		this.maxBytes = Long.getLong(PIPELINE_MEGABYTES_PROPERTY, DEFAULT_PIPELINE_MEGABYTES) * 1024 * 1024 / Math.max(1, numPipelines);
+	}
+
+	/**
+	 * Fetch the updates for a list of requests, and queue them to be installed. If <code>retry</code>
+	 * is set, a failure to fetch or install the batch is retried up to {@link Fip#RANGE_ATTEMPTS} times.
+	 * The request list is copied, so the caller can reuse it.
+	 */
+	void send(FipRequestList requestList, boolean retry) throws FipException, IOException, FipCorruptionException
+	{
+		Batch batch = new Batch(requestList.copy(), retry ? Fip.RANGE_ATTEMPTS : 1);
+		if (maxBatches == 1)
+		{
+			transfer(batch, true);
+			return;
+		}
+
+		// Wait for room before fetching, so we don't hold more than the limits
+		synchronized (this)
+		{
+			while (error == null && batches.size() > 0 && (batches.size() >= maxBatches || bytesInFlight >= maxBytes))
+				waitForInstaller();
+			throwError();
+		}
+		transfer(batch, false);
+
+		synchronized (this)
+		{
+			throwError();
+			batch.length = batch.updates.getLength();
+			batches.add(batch);
+			bytesInFlight += batch.length;
+			if (installerThread == null)
+				startInstaller();
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Wait until every batch sent so far has been installed.
+	 */
+	synchronized void finish() throws FipException, IOException, FipCorruptionException
+	{
+		while (error == null && batches.size() > 0)
+			waitForInstaller();
+		throwError();
+	}
+
+	/**
+	 * Stop installing batches. The batch being installed, if any, is allowed to finish.
+	 */
+	void close()
+	{
+		Thread thread;
+		synchronized (this)
+		{
+			closed = true;
+			notifyAll();
+			thread = installerThread;
+		}
+		if (thread == null)
+			return;
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void startInstaller()
+	{
+		installerThread = new Thread("fip-installer " + name) {
+			@Override
+			public void run()
+			{
+				installBatches();
+			}
+		};
+		installerThread.setDaemon(true);
+		installerThread.start();
+	}
+
+	private void installBatches()
+	{
+		for ( ; ; )
+		{
+			Batch batch;
+			synchronized (this)
+			{
+				while ( !closed && batches.isEmpty())
+				{
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						closed = true;
+					}
+				}
+				if (closed)
+					return;
+				batch = batches.getFirst();
+			}
+
+			try {
+				transfer(batch, true);
+			} catch (Exception e) {
+				synchronized (this)
+				{
+					error = e;
+					batches.clear();
+					bytesInFlight = 0;
+					notifyAll();
+				}
+				return;
+			}
+
+			synchronized (this)
+			{
+				batches.removeFirst();
+				bytesInFlight -= batch.length;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Fetch a batch (unless it has been already), and if <code>install</code> is set install it at the
+	 * destination. If either fails, the batch is fetched and sent again while it has attempts left.
+	 */
+	private void transfer(Batch batch, boolean install) throws FipException, IOException, FipCorruptionException
+	{
+		for (int attempt = 1; ; attempt++)
+		{
+			try {
+				if (batch.updates == null)
+				{
+					long start = System.currentTimeMillis();
+					batch.updates = fetcher.fetch(batch.requestList);
+					batch.millis = System.currentTimeMillis() - start;
+				}
+				if (install)
+				{
+					long length = batch.updates.getLength();
+					long start = System.currentTimeMillis();
+					installer.install(batch.updates);
+					bcc.batchSent(length, batch.millis + System.currentTimeMillis() - start);
+
+					// The buffer can be used for the next batch
+					batch.updates.release();
+				}
+				return;
+			} catch (FipException e) {
+				bcc.batchFailed();
+				if (attempt >= batch.attempts)
+					throw e;
+				logger.info("  Sending part of a file failed, trying again: " + e.getMessage());
+			} catch (IOException e) {
+				bcc.batchFailed();
+				if (attempt >= batch.attempts)
+					throw e;
+				logger.info("  Sending part of a file failed, trying again: " + e.toString());
+			}
+			batch.updates = null;
+		}
+	}
+
+	private void waitForInstaller() throws FipException
+	{
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new FipException("Interrupted while waiting for updates to be installed");
+		}
+	}
+
+	private void throwError() throws FipException, IOException, FipCorruptionException
+	{
+		if (error == null)
+			return;
+		if (error instanceof FipException)
+			throw (FipException) error;
+		if (error instanceof IOException)
+			throw (IOException) error;
+		if (error instanceof FipCorruptionException)
+			throw (FipCorruptionException) error;
+		FipException fipException = new FipException("Error installing updates: " + error.toString());
+		fipException.setStackTrace(error.getStackTrace());
+		throw fipException;
+	}
+
+	private static class Batch
+	{
+		private FipRequestList requestList;
+		private int attempts;
+		private FipBatchOfUpdates updates = null;
+		private long length = 0;
+		private long millis = 0; // Time taken to fetch the updates
+
+		Batch(FipRequestList requestList, int attempts)
+		{
+			this.requestList = requestList;
+			this.attempts = attempts;
+		}
+	}
+}
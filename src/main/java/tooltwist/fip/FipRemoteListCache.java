@@ -0,0 +1,131 @@
+package tooltwist.fip;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a copy of each file list fetched from a remote server, so the next time the list is needed
+ * only the changes since then have to be fetched (see {@link FipList#getChangesSince(String)}).
+ * Small settings, such as the checksum algorithm an older server uses, are kept the same way.
+ *
+ * The lists are saved as manifests in <code>.fip-cache</code> in the user's home directory (or the
+ * directory set by the <code>fip.cacheDirectory</code> system property), named from a hash of the
+ * server and the root directory. A list that can't be read is ignored, and the full list fetched.
+ *
+ * @author philipcallender
+ *
+ */
+class FipRemoteListCache
+{
+	private static Logger logger = LoggerFactory.getLogger(FipRemoteListCache.class);
+	public static final String CACHE_DIRECTORY_PROPERTY = "fip.cacheDirectory";
+	private static final String DEFAULT_CACHE_DIRECTORY = Fip.PREFIX + "cache";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private FipRemoteListCache()
+	{
+	}
+
+	/**
+	 * Returns true if there is a saved list for a key.
+	 */
+	static boolean contains(String key)
+	{
+		return fileFor(key).exists();
+	}
+
+	/**
+	 * The saved list for a key, or null if there is none.
+	 */
+	static FipList load(String key)
+	{
+		File file = fileFor(key);
+		try {
+			return FipManifest.read(file);
+		} catch (FileNotFoundException e) {
+			return null;
+		} catch (IOException e) {
+			logger.info("Ignoring cached file list " + file.getAbsolutePath() + ": " + e.toString());
+		} catch (FipCorruptionException e) {
+			logger.info("Ignoring cached file list " + file.getAbsolutePath() + ": " + e.toString());
+		}
+		file.delete();
+		return null;
+	}
+
+	/**
+	 * Save a list for next time. A list without a generation can't be updated with changes, so isn't saved.
+	 */
+	static void save(String key, FipList list)
+	{
+		File file = fileFor(key);
+		if (list.getGenerationId() == null)
+		{
+			file.delete();
+			return;
+		}
+		try {
+			File directory = file.getParentFile();
+			if ( !directory.exists() && !directory.mkdirs())
+				throw new FipException("Cannot create directory " + directory.getAbsolutePath());
+			FipManifest.write(list, file);
+		} catch (FipException e) {
+			logger.info("Could not save the file list for next time: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * A setting saved for a key, or null if there is none.
+	 */
+	static String loadSetting(String key)
+	{
+		File file = fileFor(key);
+		if ( !file.exists())
+			return null;
+		try {
+			byte[] bytes = java.nio.file.Files.readAllBytes(file.toPath());
+			String value = new String(bytes, UTF8).trim();
+			return (value.length() == 0) ? null : value;
+		} catch (IOException e) {
+			logger.info("Ignoring cached setting " + file.getAbsolutePath() + ": " + e.toString());
+			return null;
+		}
+	}
+
+	/**
+	 * Save a setting for next time, or remove it if the value is null.
+	 */
+	static void saveSetting(String key, String value)
+	{
+		File file = fileFor(key);
+		if (value == null)
+		{
+			file.delete();
+			return;
+		}
+		try {
+			File directory = file.getParentFile();
+			if ( !directory.exists() && !directory.mkdirs())
+				throw new IOException("Cannot create directory " + directory.getAbsolutePath());
+			java.nio.file.Files.write(file.toPath(), value.getBytes(UTF8));
+		} catch (IOException e) {
+			logger.info("Could not save setting for next time: " + e.getMessage());
+		}
+	}
+
+	private static File fileFor(String key)
+	{
+		String directory = System.getProperty(CACHE_DIRECTORY_PROPERTY);
+		if (directory == null)
+			directory = System.getProperty("user.home") + File.separator + DEFAULT_CACHE_DIRECTORY;
+		FipChecksum.Hasher hasher = FipChecksum_xxh64.newHasher();
+		hasher.update(ByteBuffer.wrap(key.getBytes(UTF8)));
+		return new File(directory, FipChecksumCalculator.toHex(hasher.digest()));
+	}
+}
@@ -3,7 +3,7 @@ package tooltwist.fip;
 public class FipRequest
 {
 	enum RequestType {
-		UPDATE("U"), DELETE("D"), COMMIT("C"), ABORT("A"), END_OF_TRANSACTION("T");
+		UPDATE("U"), DELETE("D"), COMMIT("C"), ABORT("A"), END_OF_TRANSACTION("T"), PATCH("P"), COPY("Y"), REFERENCE("R"), RANGE("B");
 		
 		private String code;
 		private RequestType(String code) { this.code = code; }
@@ -20,6 +20,10 @@ public class FipRequest
 	private RequestType type;
 	private String sourceRelativePath;
 	private String destinationRelativePath;
+	private FipBlockSignatures signatures = null;
+	private String copyFromRelativePath = null;
+	private long offset = 0;
+	private int rangeLength = 0;
 
 	private FipRequest(RequestType type, String sourceRelativePath, String destinationRelativePath)
 	{
@@ -33,6 +37,47 @@ public class FipRequest
 		return new FipRequest(RequestType.UPDATE, sourceRelativePath, destinationRelativePath);
 	}
 
+	/**
+	 * Ask for just the changes to a file, compared with the destination's copy. The destination's
+	 * block signatures must be set before the request is sent (see {@link #setSignatures}).
+	 */
+	public static FipRequest newPatchRequest(String sourceRelativePath, String destinationRelativePath)
+	{
+		return new FipRequest(RequestType.PATCH, sourceRelativePath, destinationRelativePath);
+	}
+
+	/**
+	 * Ask the destination to install a file by copying a file it already has with the same contents.
+	 */
+	public static FipRequest newCopyRequest(String sourceRelativePath, String destinationRelativePath, String copyFromRelativePath)
+	{
+		FipRequest request = new FipRequest(RequestType.COPY, sourceRelativePath, destinationRelativePath);
+		request.copyFromRelativePath = copyFromRelativePath;
+		return request;
+	}
+
+	/**
+	 * Install a file with the same contents as a file sent earlier in the transaction. The destination
+	 * uses the file it has already been sent, rather than the contents being sent again.
+	 */
+	public static FipRequest newReferenceRequest(String sourceRelativePath, String destinationRelativePath, String earlierDestinationRelativePath)
+	{
+		FipRequest request = new FipRequest(RequestType.REFERENCE, sourceRelativePath, destinationRelativePath);
+		request.copyFromRelativePath = earlierDestinationRelativePath;
+		return request;
+	}
+
+	/**
+	 * Ask for part of a file that is too large to be sent in a single batch.
+	 */
+	public static FipRequest newRangeRequest(String sourceRelativePath, String destinationRelativePath, long offset, int rangeLength)
+	{
+		FipRequest request = new FipRequest(RequestType.RANGE, sourceRelativePath, destinationRelativePath);
+		request.offset = offset;
+		request.rangeLength = rangeLength;
+		return request;
+	}
+
 	public static FipRequest newDeleteRequest(String sourceRelativePath)
 	{
 		return new FipRequest(RequestType.DELETE, sourceRelativePath, sourceRelativePath);
@@ -53,8 +98,16 @@ public class FipRequest
 		return new FipRequest(RequestType.ABORT, "", "");
 	}
 
-	public String serialize()
+	public String serialize() throws FipException
 	{
+		// The signatures go before the paths, as they contain no separators
+		if (type == RequestType.PATCH)
+			return type.getCode() + SEPARATOR + signatures.serialize() + SEPARATOR + sourceRelativePath + SEPARATOR + destinationRelativePath + "\n";
+		if (type == RequestType.COPY || type == RequestType.REFERENCE)
+			return type.getCode() + SEPARATOR + copyFromRelativePath + SEPARATOR + sourceRelativePath + SEPARATOR + destinationRelativePath + "\n";
+		if (type == RequestType.RANGE)
+			return type.getCode() + SEPARATOR + offset + "," + rangeLength + SEPARATOR + sourceRelativePath + SEPARATOR + destinationRelativePath + "\n";
+
 //		if (this.op == Op.DELETE)
 //			return "D" + SEPARATOR + sourceRelativePath;
 //		else
@@ -77,6 +130,42 @@ public class FipRequest
 
 		if (op == null)
 			throw new FipException("Invalid line in serialized FipRequestList");
+		String signatures = null;
+		String copyFromRelativePath = null;
+		long offset = 0;
+		int rangeLength = 0;
+		if (op == RequestType.COPY || op == RequestType.REFERENCE)
+		{
+			pos = line.indexOf(SEPARATOR);
+			if (pos < 0)
+				throw new FipException("Invalid line in serialized FipRequestList");
+			copyFromRelativePath = line.substring(0, pos);
+			line = line.substring(pos + SEPARATOR.length());
+		}
+		else if (op == RequestType.PATCH)
+		{
+			pos = line.indexOf(SEPARATOR);
+			if (pos < 0)
+				throw new FipException("Invalid line in serialized FipRequestList");
+			signatures = line.substring(0, pos);
+			line = line.substring(pos + SEPARATOR.length());
+		}
+		else if (op == RequestType.RANGE)
+		{
+			pos = line.indexOf(SEPARATOR);
+			int comma = line.indexOf(',');
+			if (pos < 0 || comma < 0 || comma > pos)
+				throw new FipException("Invalid line in serialized FipRequestList");
+			try {
+				offset = Long.parseLong(line.substring(0, comma));
+				rangeLength = Integer.parseInt(line.substring(comma + 1, pos));
+			} catch (NumberFormatException e) {
+				throw new FipException("Invalid range in serialized FipRequestList");
+			}
+			if (offset < 0 || rangeLength < 0)
+				throw new FipException("Invalid range in serialized FipRequestList");
+			line = line.substring(pos + SEPARATOR.length());
+		}
 		
 //		if (op.equals("D"))
 //		{
@@ -91,7 +180,13 @@ public class FipRequest
 			String sourceRelativePath = line.substring(0, pos);
 			String destinationRelativePath = line.substring(pos + SEPARATOR.length());
 			
-			return new FipRequest(op, sourceRelativePath, destinationRelativePath);
+			FipRequest request = new FipRequest(op, sourceRelativePath, destinationRelativePath);
+			if (signatures != null)
+				request.signatures = FipBlockSignatures.deserialize(destinationRelativePath, signatures);
+			request.copyFromRelativePath = copyFromRelativePath;
+			request.offset = offset;
+			request.rangeLength = rangeLength;
+			return request;
 //			return newUpdateRequest(sourceRelativePath, destinationRelativePath);
 //		}
 	}
@@ -115,6 +210,47 @@ public class FipRequest
 	{
 		return destinationRelativePath;
 	}
+
+	/**
+	 * For a copy request, the file at the destination to be copied. For a reference request,
+	 * the file sent earlier in the transaction.
+	 */
+	public String getCopyFromRelativePath()
+	{
+		return copyFromRelativePath;
+	}
+
+	/**
+	 * For a range request, the position in the file of the first byte wanted.
+	 */
+	public long getOffset()
+	{
+		return offset;
+	}
+
+	/**
+	 * For a range request, the number of bytes wanted.
+	 */
+	public int getRangeLength()
+	{
+		return rangeLength;
+	}
+
+	public FipBlockSignatures getSignatures()
+	{
+		return signatures;
+	}
+
+	/**
+	 * Set the destination's signatures for a patch request. If the destination can't provide
+	 * them (eg. the file has gone) the request becomes a request for the whole file.
+	 */
+	public void setSignatures(FipBlockSignatures signatures)
+	{
+		this.signatures = signatures;
+		if (signatures == null && type == RequestType.PATCH)
+			type = RequestType.UPDATE;
+	}
 	
 	public String toString()
 	{
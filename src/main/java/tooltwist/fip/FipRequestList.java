@@ -20,6 +20,9 @@ public class FipRequestList
 {
 	private Vector<FipRequest> list = new Vector<FipRequest>();
 
+	// The protocol version of the destination (see NewTransactionReply#getProtocolVersion)
+	private int destinationVersion = Fip.MINOR_VERSION_NUMBER;
+
 	public void clear()
 	{
 		list.clear();
@@ -31,6 +34,30 @@ public class FipRequestList
 		list.add(request);
 	}
 
+	public void addRequestForPatch(String sourceRelativePath, String destinationRelativePath)
+	{
+		FipRequest request = FipRequest.newPatchRequest(sourceRelativePath, destinationRelativePath);
+		list.add(request);
+	}
+
+	public void addRequestForCopy(String sourceRelativePath, String destinationRelativePath, String copyFromRelativePath)
+	{
+		FipRequest request = FipRequest.newCopyRequest(sourceRelativePath, destinationRelativePath, copyFromRelativePath);
+		list.add(request);
+	}
+
+	public void addRequestForReference(String sourceRelativePath, String destinationRelativePath, String earlierDestinationRelativePath)
+	{
+		FipRequest request = FipRequest.newReferenceRequest(sourceRelativePath, destinationRelativePath, earlierDestinationRelativePath);
+		list.add(request);
+	}
+
+	public void addRequestForRange(String sourceRelativePath, String destinationRelativePath, long offset, int rangeLength)
+	{
+		FipRequest request = FipRequest.newRangeRequest(sourceRelativePath, destinationRelativePath, offset, rangeLength);
+		list.add(request);
+	}
+
 	public void addRequestForDelete(String destinationRelativePath)
 	{
 		FipRequest request = FipRequest.newDeleteRequest(destinationRelativePath);
@@ -55,6 +82,31 @@ public class FipRequestList
 		list.add(request);
 	}
 
+	/**
+	 * A copy of the list. The requests themselves are shared.
+	 */
+	public FipRequestList copy()
+	{
+		FipRequestList copy = new FipRequestList();
+		copy.list.addAll(list);
+		copy.destinationVersion = destinationVersion;
+		return copy;
+	}
+
+	/**
+	 * The minor version of the batches the destination understands. This is not serialized, and is
+	 * sent to a remote source separately.
+	 */
+	public int getDestinationVersion()
+	{
+		return destinationVersion;
+	}
+
+	public void setDestinationVersion(int destinationVersion)
+	{
+		this.destinationVersion = destinationVersion;
+	}
+
 	public Iterable<FipRequest> list()
 	{
 		return list;
@@ -65,7 +117,7 @@ public class FipRequestList
 		return list.size();
 	}
 	
-	public String serialize()
+	public String serialize() throws FipException
 	{
 		// Write them out
 		StringBuffer buf = new StringBuffer();
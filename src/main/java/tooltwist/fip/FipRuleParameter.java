@@ -14,5 +14,11 @@ public interface FipRuleParameter
 
 	public void setOp(Op op);
 
+	/**
+	 * If the file is within the directory <code>fromDirectory</code>, set it's destination to the
+	 * same relative location within <code>toDirectory</code>. Both paths end with '/'.
+	 */
+	public void mapDirectory(String fromDirectory, String toDirectory);
+
 	
 }
@@ -17,14 +17,7 @@ public class FipRule_mapDirectory extends FipRule
 	@Override
 	public void setRuleParametersForFile(FipRuleParameter param)
 	{
-		String sourceRelativePath = param.getSourceRelativePath();
-		int pos = sourceRelativePath.indexOf(subPath);
-		if (pos == 0)
-		{
-			String after = sourceRelativePath.substring(pos + subPath.length());
-			String newRelativePath = newSubPath + after;
-			param.setDestinationRelativePath(newRelativePath);
-		}
+		param.mapDirectory(subPath, newSubPath);
 	}
 	
 	public String toString() {
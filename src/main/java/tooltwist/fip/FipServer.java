@@ -3,10 +3,15 @@ package tooltwist.fip;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.text.SimpleDateFormat;
+import java.util.BitSet;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Random;
+import java.util.UUID;
+import java.util.Vector;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import tooltwist.fip.FipRequest.RequestType;
 
@@ -22,6 +27,41 @@ import tooltwist.fip.FipRequest.RequestType;
  */
 public class FipServer
 {
+	private int indexParallelism = FipList.defaultIndexParallelism();
+	private boolean liveIndexing = Boolean.getBoolean(FipLiveIndex.LIVE_INDEX_PROPERTY);
+
+	/**
+	 * The HTTP reply header containing the id of the snapshot a summary was taken from.
+	 */
+	public static final String SNAPSHOT_HEADER = "X-Fip-Snapshot";
+
+	/**
+	 * Set the number of threads used to walk a directory when preparing a file list.
+	 */
+	public void setIndexParallelism(int indexParallelism)
+	{
+		this.indexParallelism = indexParallelism;
+	}
+
+	public int getIndexParallelism()
+	{
+		return indexParallelism;
+	}
+
+	/**
+	 * Keep the file list for each directory up to date by watching for changes (see {@link FipLiveIndex}),
+	 * rather than checking every file each time the list is requested.
+	 */
+	public void setLiveIndexing(boolean liveIndexing)
+	{
+		this.liveIndexing = liveIndexing;
+	}
+
+	public boolean getLiveIndexing()
+	{
+		return liveIndexing;
+	}
+
 	/**
 	 * DESTINATION: Start a new transaction.
 	 *
@@ -80,7 +120,7 @@ public class FipServer
 //		if (salt == null || salt.equals(""))
 //			throw new FipException("Error: uuid is not defined in " + path);
 		String destinationUuid = destinationProperties.getDestinationUuid();
-		return new NewTransactionReply(destinationUuid, txId, salt);
+		return new NewTransactionReply(destinationUuid, txId, salt, Fip.MINOR_VERSION_NUMBER);
 	}
 
 	public NewTransactionReply destination_askForTransactionDetails(String sourceUuid, String destinationRoot, String txId, String ipaddr) throws FipException
@@ -100,7 +140,7 @@ public class FipServer
 		TransactionProperties txProperties = TransactionProperties.loadTransactionProperties(destinationRoot, txId);
 		String salt = txProperties.getSalt();
 
-		return new NewTransactionReply(destinationUuid, txId, salt);
+		return new NewTransactionReply(destinationUuid, txId, salt, Fip.MINOR_VERSION_NUMBER);
 	}
 
 	/**
@@ -113,6 +153,26 @@ public class FipServer
 	 * @throws FipException
 	 */
 	public FipList getFileList(String rootDirectory, boolean isDestination, String ipaddr) throws IOException, FipCorruptionException, FipException
+	{
+		return getFileList(rootDirectory, isDestination, ipaddr, null);
+	}
+
+	/**
+	 * SOURCE and DESTINATION: get the list of files at a location, with the checksums
+	 * calculated using the named algorithm. If the manifest uses a different algorithm,
+	 * every checksum is recalculated. If checksumAlgorithm is null, the manifest's
+	 * existing algorithm is used.
+	 */
+	public FipList getFileList(String rootDirectory, boolean isDestination, String ipaddr, String checksumAlgorithm) throws IOException, FipCorruptionException, FipException
+	{
+		checkProperties(rootDirectory, isDestination, ipaddr);
+		return indexFiles(rootDirectory, checksumAlgorithm);
+	}
+
+	/**
+	 * Check the source or destination properties allow the caller to use a location.
+	 */
+	private void checkProperties(String rootDirectory, boolean isDestination, String ipaddr) throws FipException
 	{
 		if (isDestination)
 		{
@@ -124,14 +184,138 @@ public class FipServer
 			// Check the source properties are okay
 			new SourceProperties(rootDirectory, ipaddr); // will throw an exception if there is a problem.
 		}
+	}
+
+	/**
+	 * Get the file list for a location, once the caller has been checked.
+	 */
+	private FipList indexFiles(String rootDirectory, final String checksumAlgorithm) throws IOException, FipCorruptionException, FipException
+	{
+		final File rootDir = new File(rootDirectory);
+		if (liveIndexing)
+			return FipLiveIndex.getLiveIndex(rootDir, indexParallelism).getFileList(checksumAlgorithm);
+
+		// If an agent is keeping the manifest up to date, there's no need to check the files
+		FipList list = FipLiveIndex.loadFromAgent(rootDir);
+		if (list != null && (checksumAlgorithm == null || checksumAlgorithm.equals(list.getChecksumAlgorithm().getName())))
+			return list;
 
-		// Get the file list
-		File rootDir = new File(rootDirectory);
-		FipList list = FipList.loadListFromFile(rootDir);
-		list.syncWithRealFiles(rootDir);
+		// Only walk the hierarchy once, if several requests arrive at the same time
+		return FipListCache.index(rootDir.getAbsolutePath(), checksumAlgorithm, new FipListCache.Indexer() {
+			public FipList index() throws IOException, FipCorruptionException, FipException
+			{
+				FipList list = FipList.loadListFromFile(rootDir);
+				if (checksumAlgorithm != null)
+					list.useChecksumAlgorithm(FipChecksum.forName(checksumAlgorithm));
+				list.syncWithRealFiles(rootDir, indexParallelism);
+				return list;
+			}
+		});
+	}
+
+	/**
+	 * SOURCE and DESTINATION: get the list of files at a location, or if the caller already has the
+	 * list from an earlier generation (see {@link FipList#getGenerationId()}), just the changes since
+	 * then. The full list is returned if the changes since that generation are not known.
+	 */
+	public FipList getFileList(String rootDirectory, boolean isDestination, String ipaddr, String checksumAlgorithm, String sinceGenerationId) throws IOException, FipCorruptionException, FipException
+	{
+		FipList list = getFileList(rootDirectory, isDestination, ipaddr, checksumAlgorithm);
+		if (sinceGenerationId != null)
+		{
+			FipList changes = list.getChangesSince(sinceGenerationId);
+			if (changes != null)
+				return changes;
+		}
 		return list;
 	}
 
+	/**
+	 * SOURCE and DESTINATION: get the files and sub-directories in one directory, with
+	 * the sub-directories' hashes (see {@link FipDirectorySummary}).
+	 *
+	 * Asking for the root directory (an empty path) indexes the files, and keeps the list as a
+	 * snapshot for the caller (see {@link FipListCache}). The summary has the snapshot's id, and
+	 * when the caller passes it back the same list is used for the summaries of other directories,
+	 * so the summaries are consistent as the caller works down through the directories that differ.
+	 * If the snapshot has expired or the checksum algorithm is different, the files are indexed again.
+	 */
+	public FipDirectorySummary getDirectorySummary(String rootDirectory, boolean isDestination, String ipaddr, String checksumAlgorithm, String directoryPath, String snapshotId) throws IOException, FipCorruptionException, FipException
+	{
+		return getDirectorySummary(rootDirectory, isDestination, ipaddr, checksumAlgorithm, directoryPath, snapshotId, false);
+	}
+
+	/**
+	 * SOURCE and DESTINATION: as {@link #getDirectorySummary(String, boolean, String, String, String, String)}, but if
+	 * <code>wholeSubtree</code> is set the summary lists every file below the directory, named by it's path relative to
+	 * the directory, rather than the sub-directories. Used for a directory that only exists at one end.
+	 */
+	public FipDirectorySummary getDirectorySummary(String rootDirectory, boolean isDestination, String ipaddr, String checksumAlgorithm, String directoryPath, String snapshotId, boolean wholeSubtree) throws IOException, FipCorruptionException, FipException
+	{
+		checkProperties(rootDirectory, isDestination, ipaddr);
+		FipList list = null;
+		if (directoryPath.equals(""))
+			snapshotId = UUID.randomUUID().toString();
+		else if (snapshotId != null)
+			list = FipListCache.getSnapshot(rootDirectory, summaryKey(isDestination, ipaddr, snapshotId));
+		if (list == null || (checksumAlgorithm != null && !checksumAlgorithm.equals(list.getChecksumAlgorithm().getName())))
+		{
+			list = indexFiles(rootDirectory, checksumAlgorithm);
+			if (snapshotId != null)
+				FipListCache.putSnapshot(rootDirectory, summaryKey(isDestination, ipaddr, snapshotId), list);
+		}
+		FipDirectorySummary summary = wholeSubtree ? list.getSubtreeSummary(directoryPath) : list.getDirectorySummary(directoryPath);
+		summary.setSnapshotId(snapshotId);
+		return summary;
+	}
+
+	/**
+	 * The key of a snapshot kept for a caller's summaries. Including the caller means one caller
+	 * can't use another's snapshot.
+	 */
+	private static String summaryKey(boolean isDestination, String ipaddr, String snapshotId)
+	{
+		return (isDestination ? "destination" : "source") + " summary " + ipaddr + " " + snapshotId;
+	}
+
+	/**
+	 * SOURCE and DESTINATION: get a summary of the files, with the files split into buckets by their
+	 * paths (see {@link FipBucketSummary}). This indexes the files, and keeps the list as a snapshot for
+	 * the caller. When the summary's snapshot id is passed to {@link #getBucketEntries}, the same list
+	 * is used, so the entries are consistent with the summary.
+	 */
+	public FipBucketSummary getBucketSummary(String rootDirectory, boolean isDestination, String ipaddr, String checksumAlgorithm, int numBuckets) throws IOException, FipCorruptionException, FipException
+	{
+		if (numBuckets < 1 || numBuckets > FipBucketSummary.MAX_BUCKETS || Integer.bitCount(numBuckets) != 1)
+			throw new FipException("Invalid number of buckets: " + numBuckets);
+		FipList list = getFileList(rootDirectory, isDestination, ipaddr, checksumAlgorithm);
+		String snapshotId = UUID.randomUUID().toString();
+		FipListCache.putSnapshot(rootDirectory, summaryKey(isDestination, ipaddr, snapshotId), list);
+		FipBucketSummary summary = list.getBucketSummary(numBuckets);
+		summary.setSnapshotId(snapshotId);
+		return summary;
+	}
+
+	/**
+	 * SOURCE and DESTINATION: get the files in some of the buckets of a bucket summary. The summary's
+	 * snapshot is discarded afterwards. If there is no snapshot (eg. it has expired) or it uses a
+	 * different checksum algorithm, the files are indexed again.
+	 */
+	public FipList getBucketEntries(String rootDirectory, boolean isDestination, String ipaddr, String checksumAlgorithm, int numBuckets, BitSet buckets, String snapshotId) throws IOException, FipCorruptionException, FipException
+	{
+		checkProperties(rootDirectory, isDestination, ipaddr);
+		FipList list = null;
+		if (snapshotId != null)
+		{
+			String key = summaryKey(isDestination, ipaddr, snapshotId);
+			list = FipListCache.getSnapshot(rootDirectory, key);
+			FipListCache.removeSnapshot(rootDirectory, key);
+		}
+		if (list == null || (checksumAlgorithm != null && !checksumAlgorithm.equals(list.getChecksumAlgorithm().getName())))
+			list = indexFiles(rootDirectory, checksumAlgorithm);
+		return list.getBucketEntries(numBuckets, buckets);
+	}
+
 	/**
 	 * DESTINATION: Prepare the updates. They will be committed in a separate request.
 	 * 
@@ -195,19 +379,141 @@ public class FipServer
 		helper.executeUpdates(destinationRoot, destinationProperties, txId);
 	}
 
+	/**
+	 * DESTINATION: get the block signatures of existing files, so the source can send just
+	 * the changes to them. Files that don't exist or are protected are left out.
+	 */
+	public Vector<FipBlockSignatures> destination_getBlockSignatures(String destinationRoot, Vector<String> relativePaths, String ipaddr) throws FipException
+	{
+		DestinationProperties destinationProperties = new DestinationProperties(destinationRoot, ipaddr);
+		Vector<FipBlockSignatures> list = new Vector<FipBlockSignatures>();
+		for (String relativePath : relativePaths)
+		{
+			// Check there is nothing dangerous in the path
+			if (relativePath.startsWith("../") || relativePath.indexOf("/../") >= 0)
+			{
+				log(destinationRoot, true, "WARNING: POTENTIAL HACKING ATTEMPT! Path of file to sign contains '/../': " + relativePath + " (ipaddr="+ipaddr+")");
+				throw new FipException("WARNING: POTENTIAL HACKING ATTEMPT! Path of file to sign contains '/../': " + relativePath + " (ipaddr="+ipaddr+")");
+			}
+			if (destinationProperties.isProtected(relativePath))
+				continue;
+			File file = new File(destinationRoot + File.separator + relativePath);
+			if ( !file.isFile())
+				continue;
+			try {
+				list.add(FipBlockSignatures.calculate(file, relativePath));
+			} catch (IOException e) {
+				// The whole file will be sent instead
+				log(destinationRoot, true, "Cannot calculate signatures for " + relativePath + ": " + e.toString());
+			}
+		}
+		return list;
+	}
+
 	/**
 	 * SOURCE: create a buffer containing requested updates and deletes.
 	 */
 	public FipBatchOfUpdates source_getRequestedUpdates(String sourceRoot, FipRequestList requestList, String destinationUuid, String txId, String salt, String ipaddr) throws IOException, FipException, FipCorruptionException
+	{
+		FipBatchOfUpdates updateList = new FipBatchOfUpdates();
+		addRequestedUpdates(sourceRoot, requestList, destinationUuid, txId, salt, ipaddr, updateList);
+		return updateList;
+	}
+
+	/**
+	 * SOURCE: write the requested updates and deletes straight to a stream (eg. the reply), rather than
+	 * holding the whole batch in memory. The stream is not closed.
+	 */
+	public void source_writeRequestedUpdates(String sourceRoot, FipRequestList requestList, String destinationUuid, String txId, String salt, String ipaddr, OutputStream out) throws IOException, FipException, FipCorruptionException
+	{
+		FipBatchOfUpdates updateList = new FipBatchOfUpdates(out);
+		addRequestedUpdates(sourceRoot, requestList, destinationUuid, txId, salt, ipaddr, updateList);
+	}
+
+	private void addRequestedUpdates(String sourceRoot, FipRequestList requestList, String destinationUuid, String txId, String salt, String ipaddr, FipBatchOfUpdates updateList) throws IOException, FipException, FipCorruptionException
 	{
 		log(sourceRoot, true, "getRequestUpdates (destination: "+destinationUuid+", txId: "+txId+", paddr: "+ipaddr+")");
 		SourceProperties sourceProperties = new SourceProperties(sourceRoot, ipaddr);
 		
-		// Load the manifest first. We only want to provide files in this list. Anyone asking for different files is potentially snooping.
-		FipList fileList = getFileList(sourceRoot, false, ipaddr);
+		String transactionKey = destinationUuid + ":" + txId;
+		FipList fileList = getTransactionSnapshot(sourceRoot, transactionKey, ipaddr);
+		boolean endOfTransaction = addRequestsToBuffer(sourceRoot, requestList, fileList, ipaddr, updateList);
+		
+		// Get the passphrase for the destination uuid, and seal the buffer.
+		String passphrase = sourceProperties.getPassphrase(destinationUuid);
+		if (passphrase == null){
+			log(sourceRoot, false, "  No passphrase defined for this destination in .fip-source");
+			throw new FipException("No passphrase defined for this destination in .fip-source");
+		}
+		updateList.sealTheBuffer(txId, salt, passphrase);
+		if (endOfTransaction)
+			FipListCache.removeSnapshot(sourceRoot, transactionKey);
+		
+		log(sourceRoot, false, "  - complete -");
+	}
 
-		// Read the updates
+	/**
+	 * SOURCE: create a buffer containing requested updates and deletes, sealed for several destinations
+	 * that need the same changes (see {@link FipSharedBatch}). The transaction of the first destination
+	 * is used to keep the file list between batches.
+	 */
+	public FipSharedBatch source_getSharedUpdates(String sourceRoot, FipRequestList requestList, Vector<String> destinationUuids, Vector<String> txIds, Vector<String> salts, String ipaddr) throws IOException, FipException, FipCorruptionException
+	{
+		log(sourceRoot, true, "getSharedUpdates (destinations: "+destinationUuids+", txIds: "+txIds+", paddr: "+ipaddr+")");
+		if (destinationUuids.size() == 0 || txIds.size() != destinationUuids.size() || salts.size() != destinationUuids.size())
+			throw new FipException("Invalid list of destinations");
+		SourceProperties sourceProperties = new SourceProperties(sourceRoot, ipaddr);
+		
+		String transactionKey = destinationUuids.get(0) + ":" + txIds.get(0);
+		FipList fileList = getTransactionSnapshot(sourceRoot, transactionKey, ipaddr);
 		FipBatchOfUpdates updateList = new FipBatchOfUpdates();
+		boolean endOfTransaction = addRequestsToBuffer(sourceRoot, requestList, fileList, ipaddr, updateList);
+		
+		// Get the passphrase for each destination uuid, and seal the buffer for each.
+		Vector<String> passphrases = new Vector<String>();
+		for (String destinationUuid : destinationUuids)
+		{
+			String passphrase = sourceProperties.getPassphrase(destinationUuid);
+			if (passphrase == null){
+				log(sourceRoot, false, "  No passphrase defined for destination "+destinationUuid+" in .fip-source");
+				throw new FipException("No passphrase defined for destination "+destinationUuid+" in .fip-source");
+			}
+			passphrases.add(passphrase);
+		}
+		FipSharedBatch batch = FipSharedBatch.seal(updateList, txIds, salts, passphrases);
+		if (endOfTransaction)
+			FipListCache.removeSnapshot(sourceRoot, transactionKey);
+		
+		log(sourceRoot, false, "  - complete -");
+		return batch;
+	}
+
+	/**
+	 * Load the manifest first. We only want to provide files in this list. Anyone asking for different files is potentially snooping.
+	 * The list is kept between batches in the same transaction, so the files are only checked once.
+	 */
+	private FipList getTransactionSnapshot(String sourceRoot, String transactionKey, String ipaddr) throws IOException, FipException, FipCorruptionException
+	{
+		FipList fileList = FipListCache.getSnapshot(sourceRoot, transactionKey);
+		if (fileList == null)
+		{
+			fileList = getFileList(sourceRoot, false, ipaddr);
+			FipListCache.putSnapshot(sourceRoot, transactionKey, fileList);
+		}
+		return fileList;
+	}
+
+	/**
+	 * Add the requested updates to a buffer. Returns true if the transaction ends with this batch.
+	 */
+	private boolean addRequestsToBuffer(String sourceRoot, FipRequestList requestList, FipList fileList, String ipaddr, FipBatchOfUpdates updateList) throws IOException, FipException, FipCorruptionException
+	{
+		boolean endOfTransaction = false;
+
+		// Files are only compressed individually if the destination can decompress them
+		boolean compress = requestList.getDestinationVersion() >= FipBatchOfUpdates.FIRST_MINOR_VERSION_WITH_CODECS;
+
+		// Read the updates
 		for (FipRequest request : requestList.list())
 		{
 			RequestType type = request.getType();
@@ -241,14 +547,79 @@ public class FipServer
 				
 				// Add it to the buffer
 				String destinationRelativePath = request.getDestinationRelativePath();
-				updateList.addInstallToBuffer(sourceRoot, sourceRelativePath, destinationRelativePath); // ZZZZZZZZZZZZZZ add dest to buffer
+				updateList.addInstallToBuffer(sourceRoot, sourceRelativePath, destinationRelativePath, compress); // ZZZZZZZZZZZZZZ add dest to buffer
 				log(sourceRoot, false, "  + "+destinationRelativePath);
 			}
+			else if (type == RequestType.PATCH)
+			{
+				// Send the changes to a file, compared with the destination's copy.
+				String sourceRelativePath = request.getSourceRelativePath();
+				
+				// Check it is in the manifest file.
+				if ( !fileList.containsFile(sourceRelativePath))
+				{
+					log(sourceRoot, true, "WARNING: POTENTIAL HACKING ATTEMPT! Asking for file not in file list: " + sourceRelativePath + " (ipaddr="+ipaddr+")");
+					throw new FipException("WARNING: POTENTIAL HACKING ATTEMPT! Asking for file not in file list: " + sourceRelativePath + " (ipaddr="+ipaddr+")");
+				}
+				
+				// Add it to the buffer
+				String destinationRelativePath = request.getDestinationRelativePath();
+				updateList.addPatchToBuffer(sourceRoot, sourceRelativePath, destinationRelativePath, request.getSignatures(), fileList.getChecksumAlgorithm());
+				log(sourceRoot, false, "  ~ "+destinationRelativePath);
+			}
+			else if (type == RequestType.COPY || type == RequestType.REFERENCE)
+			{
+				// The destination already has a file with the same contents, or has been sent one in this transaction.
+				String sourceRelativePath = request.getSourceRelativePath();
+				
+				// Check it is in the manifest file.
+				FipFile file = fileList.findFile(sourceRelativePath);
+				if (file == null)
+				{
+					log(sourceRoot, true, "WARNING: POTENTIAL HACKING ATTEMPT! Asking for file not in file list: " + sourceRelativePath + " (ipaddr="+ipaddr+")");
+					throw new FipException("WARNING: POTENTIAL HACKING ATTEMPT! Asking for file not in file list: " + sourceRelativePath + " (ipaddr="+ipaddr+")");
+				}
+				
+				// Check there is nothing dangerous in the path of the file to copy
+				String copyFromRelativePath = request.getCopyFromRelativePath();
+				if (copyFromRelativePath.startsWith("../") || copyFromRelativePath.indexOf("/../") >= 0)
+				{
+					log(sourceRoot, true, "WARNING: POTENTIAL HACKING ATTEMPT! Path of file to copy contains '/../': " + copyFromRelativePath + " (ipaddr="+ipaddr+")");
+					throw new FipException("WARNING: POTENTIAL HACKING ATTEMPT! Path of file to copy contains '/../': " + copyFromRelativePath + " (ipaddr="+ipaddr+")");
+				}
+				
+				// Add it to the buffer
+				String destinationRelativePath = request.getDestinationRelativePath();
+				if (type == RequestType.COPY)
+					updateList.addCopyToBuffer(sourceRoot, sourceRelativePath, destinationRelativePath, copyFromRelativePath, fileList.getChecksumAlgorithm(), file.getChecksum());
+				else
+					updateList.addReferenceToBuffer(sourceRoot, sourceRelativePath, destinationRelativePath, copyFromRelativePath, fileList.getChecksumAlgorithm(), file.getChecksum());
+				log(sourceRoot, false, "  = "+destinationRelativePath+" (from "+copyFromRelativePath+")");
+			}
+			else if (type == RequestType.RANGE)
+			{
+				// Part of a file too large to send in one batch.
+				String sourceRelativePath = request.getSourceRelativePath();
+				
+				// Check it is in the manifest file.
+				FipFile file = fileList.findFile(sourceRelativePath);
+				if (file == null)
+				{
+					log(sourceRoot, true, "WARNING: POTENTIAL HACKING ATTEMPT! Asking for file not in file list: " + sourceRelativePath + " (ipaddr="+ipaddr+")");
+					throw new FipException("WARNING: POTENTIAL HACKING ATTEMPT! Asking for file not in file list: " + sourceRelativePath + " (ipaddr="+ipaddr+")");
+				}
+				
+				// Add it to the buffer
+				String destinationRelativePath = request.getDestinationRelativePath();
+				updateList.addRangeToBuffer(sourceRoot, sourceRelativePath, destinationRelativePath, request.getOffset(), request.getRangeLength(), fileList.getChecksumAlgorithm(), file.getChecksum());
+				log(sourceRoot, false, "  + "+destinationRelativePath+" (bytes "+request.getOffset()+" to "+(request.getOffset() + request.getRangeLength())+")");
+			}
 			else if (type == RequestType.END_OF_TRANSACTION)
 			{
 				// Commit request.
 				updateList.addEndOfTransactionToBuffer();
 				log(sourceRoot, false, "  End of transaction");
+				endOfTransaction = true;
 			}
 			else if (type == RequestType.COMMIT)
 			{
@@ -261,6 +632,7 @@ public class FipServer
 				// Abort request.
 				updateList.addAbortToBuffer();
 				log(sourceRoot, false, "  Abort");
+				endOfTransaction = true;
 			}
 			else
 			{
@@ -268,26 +640,25 @@ public class FipServer
 				throw new FipException("Unknown request type: " + type);
 			}
 		}
-		
-		// Get the passphrase for the destination uuid, and seal the buffer.
-		String passphrase = sourceProperties.getPassphrase(destinationUuid);
-		if (passphrase == null){
-			log(sourceRoot, false, "  No passphrase defined for this destination in .fip-source");
-			throw new FipException("No passphrase defined for this destination in .fip-source");
-		}
-		updateList.sealTheBuffer(txId, salt, passphrase);
-		
-		log(sourceRoot, false, "  - complete -");
-
-
-		// Return the updates
-		return updateList;
+		return endOfTransaction;
 	}
 
 	public void abortTransaction(String destinationRoot, String txId) throws FipException
 	{
 		log(destinationRoot, true, "Aborting transaction " + txId);
-		FipServer_updateExecuter.abortTransaction(destinationRoot, txId);
+
+		// Wait for any batches still being installed
+		ReentrantReadWriteLock lock = FipServer_updateExecuter.transactionLock(destinationRoot, txId);
+		try {
+			lock.writeLock().lock();
+			try {
+				FipServer_updateExecuter.abortTransaction(destinationRoot, txId);
+			} finally {
+				lock.writeLock().unlock();
+			}
+		} finally {
+			FipServer_updateExecuter.releaseTransactionLock(destinationRoot, txId);
+		}
 	}
 	
 	public static void log(String sourceOrDestinationRoot, boolean prefixWithDate, String message) throws FipException
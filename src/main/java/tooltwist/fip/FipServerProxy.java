@@ -1,6 +1,8 @@
 package tooltwist.fip;
 
 import java.io.IOException;
+import java.util.BitSet;
+import java.util.Vector;
 
 /**
  * This abstract class defines all the methods used by the main FIP class, related to
@@ -46,7 +48,81 @@ public abstract class FipServerProxy
 	/**
 	 * Get a list of files below the root.
 	 */
-	public abstract FipList askForFileList(boolean isDestination) throws IOException, FipCorruptionException, FipException;
+	public FipList askForFileList(boolean isDestination) throws IOException, FipCorruptionException, FipException
+	{
+		return askForFileList(isDestination, null);
+	}
+
+	/**
+	 * Get a list of files below the root, with checksums calculated using the named algorithm.
+	 * If checksumAlgorithm is null, the algorithm already used by the manifest is used.
+	 * Note that an older server may ignore the requested algorithm, so the caller should check
+	 * the algorithm of the list returned.
+	 */
+	public abstract FipList askForFileList(boolean isDestination, String checksumAlgorithm) throws IOException, FipCorruptionException, FipException;
+
+	/**
+	 * The checksum algorithm this server used last time, if it could not use the one asked for (eg. an
+	 * older server that only uses md5), so the source can be indexed with it in the first place. Returns
+	 * null if the server is not known to need a particular algorithm.
+	 */
+	public String getKnownChecksumAlgorithm()
+	{
+		return null;
+	}
+
+	/**
+	 * Remember the checksum algorithm this server needs, or forget it if <code>checksumAlgorithm</code> is null.
+	 */
+	public void setKnownChecksumAlgorithm(String checksumAlgorithm)
+	{
+	}
+
+	/**
+	 * Returns true if a copy of the file list from an earlier request is kept, so {@link #askForFileList}
+	 * only needs to fetch the changes since then.
+	 */
+	public boolean hasCachedFileList(boolean isDestination)
+	{
+		return false;
+	}
+
+	/**
+	 * Get the files and sub-directories in one directory below the root, with the sub-directories'
+	 * hashes. Asking for the root directory (an empty path) indexes the files, and later requests
+	 * for other directories given the root summary's snapshot id (see {@link FipDirectorySummary#getSnapshotId()})
+	 * use the same index. An older server will not support this, so the caller should fall back to
+	 * comparing the full file lists if an exception is thrown.
+	 */
+	public abstract FipDirectorySummary askForDirectorySummary(boolean isDestination, String checksumAlgorithm, String directoryPath, String snapshotId) throws IOException, FipCorruptionException, FipException;
+
+	/**
+	 * Get every file below a directory in one summary, named by it's path relative to the directory, for a
+	 * directory that only exists at one end. An older server ignores the request for the whole subtree and
+	 * returns the directory's summary, with it's sub-directories, which the caller then looks inside.
+	 */
+	public abstract FipDirectorySummary askForSubtreeSummary(boolean isDestination, String checksumAlgorithm, String directoryPath, String snapshotId) throws IOException, FipCorruptionException, FipException;
+
+	/**
+	 * Get a summary of the files below the root, split into buckets by path (see {@link FipBucketSummary}).
+	 * This indexes the files, and a following {@link #askForBucketEntries} uses the same index. An older
+	 * server will not support this, so the caller should fall back to fetching the full file list if an
+	 * exception is thrown.
+	 */
+	public abstract FipBucketSummary askForBucketSummary(boolean isDestination, String checksumAlgorithm, int numBuckets) throws IOException, FipCorruptionException, FipException;
+
+	/**
+	 * Get the files in some of the buckets of a bucket summary, given the summary's snapshot id
+	 * (see {@link FipBucketSummary#getSnapshotId()}).
+	 */
+	public abstract FipList askForBucketEntries(boolean isDestination, String checksumAlgorithm, int numBuckets, BitSet buckets, String snapshotId) throws IOException, FipCorruptionException, FipException;
+
+	/**
+	 * Get the block signatures of files at the destination, so that just the changes to those files
+	 * can be sent. Files the destination does not have are left out of the list. An older server will
+	 * not support this, so the caller should send whole files if an exception is thrown.
+	 */
+	public abstract Vector<FipBlockSignatures> askForBlockSignatures(Vector<String> destinationRelativePaths) throws FipException;
 
 	/**
 	 * Install: Transfer updates, to install on server
@@ -58,6 +134,22 @@ public abstract class FipServerProxy
 	 */
 	public abstract FipBatchOfUpdates askForUpdates(FipRequestList requestList, String destinationUuid, String txId, String salt) throws FipException, IOException, FipCorruptionException;
 
+	/**
+	 * Ask for a list of update instructions for several destinations that need the same updates, sealed
+	 * for each destination's transaction. The three lists are in the same order.
+	 */
+	public abstract FipSharedBatch askForSharedUpdates(FipRequestList requestList, Vector<String> destinationUuids, Vector<String> txIds, Vector<String> salts) throws FipException, IOException, FipCorruptionException;
+
+	/**
+	 * Install: Transfer updates shared with other destinations, using the seal for one of them.
+	 */
+	public void sendSharedUpdates(String txId, FipSharedBatch batch, int destinationNo) throws FipException
+	{
+		FipBatchOfUpdates updates = batch.forDestination(destinationNo);
+		sendUpdates(txId, updates);
+		updates.release();
+	}
+
 	/**
 	 * Abort the transaction.
 	 * @throws FipException 
@@ -3,8 +3,13 @@ package tooltwist.fip;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -52,6 +57,7 @@ public class FipServer_updateExecuter
 	public static final String UNDERSTUDY_PREFIX_NEW_FILE = "+fip_";
 	public static final String UNDERSTUDY_PREFIX_CHANGE_FILE = "@fip_";
 	public static final String UNDERSTUDY_PREFIX_DELETE_FILE = "-fip_";
+	public static final String UNDERSTUDY_PREFIX_PARTIAL_FILE = "%fip_";
 	public static final String ROLLBACK_FILE_PREFIX = "!";
 	public static final String SEPARATOR_FOR_AFTER_txId = ":";
 	public static final String FIP_FILE_PREFIX = ".fip-";
@@ -59,6 +65,12 @@ public class FipServer_updateExecuter
 	private int length;
 	private int currentPos;
 
+	// Batches for the same transaction can be installed at the same time, but a commit or abort waits for them.
+	// Each lock is discarded once nothing is using it, however the transaction ends (or if it never does).
+	private static HashMap<String, ReentrantReadWriteLock> transactionLocks = new HashMap<String, ReentrantReadWriteLock>();
+	private static HashMap<String, Integer> transactionLockUsers = new HashMap<String, Integer>();
+	private ReentrantReadWriteLock transactionLock = null;
+
 //	public FipUpdateExecuter(byte[] buf, int len)
 //	{
 ////logger.info("Received buffer " + len + " long");
@@ -141,7 +153,20 @@ public class FipServer_updateExecuter
 //		else if (major == Fip.MAJOR_VERSION_NUMBER && minor == Fip.MINOR_VERSION_NUMBER)
 		else if (major == Fip.MAJOR_VERSION_NUMBER)
 		{
-			return prepareUpdates_1_3(destinationRoot, destinationProperties, txId);
+			transactionLock = transactionLock(destinationRoot, txId);
+			try {
+				transactionLock.readLock().lock();
+				try {
+					return prepareUpdates_1_3(destinationRoot, destinationProperties, txId);
+				} finally {
+					if (transactionLock.isWriteLockedByCurrentThread())
+						transactionLock.writeLock().unlock();
+					else
+						transactionLock.readLock().unlock();
+				}
+			} finally {
+				releaseTransactionLock(destinationRoot, txId);
+			}
 		}
 		
 		throw new FipException("Unknown protocol version: " + major + "." + minor);
@@ -187,11 +212,150 @@ public class FipServer_updateExecuter
 							FipServer.log(destinationRoot, false, "  I " + relativePath);
 							
 							// Create the understudy file
-							prepareInstallUnderstudyFile(destinationRoot, txId, relativePath, positionOfContents, fileLength, canExecute);
+							prepareInstallUnderstudyFile(destinationRoot, txId, relativePath, this.buf, positionOfContents, fileLength, canExecute);
 						}
 					}
 					break;
 					
+				case FipBatchOfUpdates.OP_INSTALL_COMPRESSED:
+					{
+						// Path
+						String relativePath = getString();
+						// Get the flags
+						byte flags = getByte();
+						boolean canExecute = (flags & FipBatchOfUpdates.FLAG_EXECUTABLE) != 0x0;
+						// How the contents were compressed
+						String codecName = getString();
+						int fileLength = getFileLength();
+						int compressedLength = getFileLength();
+						// Compressed file contents
+						expect(FipBatchOfUpdates.MAGIC_BEFORE_FILE_CONTENTS, "MAGIC_START_FILE missing");
+						if (compressedLength < 0 || currentPos + compressedLength > length)
+							throw new FipException("Invalid compressed contents of " + relativePath);
+						int positionOfContents = currentPos;
+						currentPos += compressedLength;
+						expect(FipBatchOfUpdates.MAGIC_AFTER_FILE_CONTENTS, "MAGIC_END_FILE missing");
+
+						if (destinationProperties.isProtected(relativePath))
+						{
+							FipServer.log(destinationRoot, false, "  Ignoring I " + relativePath + " (protected file)");
+						}
+						else
+						{
+							// Write to the log file
+							FipServer.log(destinationRoot, false, "  I " + relativePath);
+
+							// Decompress, and create the understudy file
+							byte[] contents = FipCodec.forName(codecName).decode(this.buf, positionOfContents, compressedLength, fileLength);
+							prepareInstallUnderstudyFile(destinationRoot, txId, relativePath, contents, 0, fileLength, canExecute);
+						}
+					}
+					break;
+
+				case FipBatchOfUpdates.OP_INSTALL_RANGE:
+					{
+						// Path
+						String relativePath = getString();
+						// Get the flags
+						byte flags = getByte();
+						boolean canExecute = (flags & FipBatchOfUpdates.FLAG_EXECUTABLE) != 0x0;
+						// The length of the whole file, and the part in this batch
+						long fileLength = getLong();
+						long offset = getLong();
+						int rangeLength = getFileLength();
+						// The checksum the whole file should have
+						String checksumAlgorithm = getString();
+						String checksum = getString();
+						// The part of the file
+						expect(FipBatchOfUpdates.MAGIC_BEFORE_FILE_CONTENTS, "MAGIC_START_FILE missing");
+						if (offset < 0 || rangeLength < 0 || offset + rangeLength > fileLength || currentPos + rangeLength > length)
+							throw new FipException("Invalid range of file " + relativePath);
+						int positionOfContents = currentPos;
+						currentPos += rangeLength;
+						expect(FipBatchOfUpdates.MAGIC_AFTER_FILE_CONTENTS, "MAGIC_END_FILE missing");
+
+						if (destinationProperties.isProtected(relativePath))
+						{
+							FipServer.log(destinationRoot, false, "  Ignoring I " + relativePath + " (protected file)");
+						}
+						else
+						{
+							// Write to the log file
+							FipServer.log(destinationRoot, false, "  I " + relativePath + " (bytes " + offset + " to " + (offset + rangeLength) + " of " + fileLength + ")");
+
+							// Add to the partial file, and install it once it is complete
+							prepareRangeOfUnderstudyFile(destinationRoot, txId, relativePath, fileLength, offset, positionOfContents, rangeLength, checksumAlgorithm, checksum, canExecute);
+						}
+					}
+					break;
+
+				case FipBatchOfUpdates.OP_PATCH_FILE:
+					{
+						// Path
+						String relativePath = getString();
+						// Get the flags
+						byte flags = getByte();
+						boolean canExecute = (flags & FipBatchOfUpdates.FLAG_EXECUTABLE) != 0x0;
+						// The checksum the rebuilt file should have
+						String checksumAlgorithm = getString();
+						String checksum = getString();
+						// File length and block size
+						int fileLength = getFileLength();
+						int blockSize = getFileLength();
+						// Instructions
+						expect(FipBatchOfUpdates.MAGIC_BEFORE_FILE_CONTENTS, "MAGIC_START_FILE missing");
+						int positionOfInstructions = currentPos;
+						skipPatchInstructions();
+						expect(FipBatchOfUpdates.MAGIC_AFTER_FILE_CONTENTS, "MAGIC_END_FILE missing");
+
+						if (destinationProperties.isProtected(relativePath))
+						{
+							FipServer.log(destinationRoot, false, "  Ignoring P " + relativePath + " (protected file)");
+						}
+						else
+						{
+							// Write to the log file
+							FipServer.log(destinationRoot, false, "  P " + relativePath);
+
+							// Create the understudy file from the existing file and the changes
+							preparePatchedUnderstudyFile(destinationRoot, txId, relativePath, positionOfInstructions, fileLength, blockSize, checksumAlgorithm, checksum, canExecute);
+						}
+					}
+					break;
+
+				case FipBatchOfUpdates.OP_COPY_FILE:
+				case FipBatchOfUpdates.OP_REFERENCE_FILE:
+					{
+						// Path, and the path of the existing file (or the file sent earlier) with the same contents
+						String relativePath = getString();
+						String copyFromRelativePath = getString();
+						// Get the flags
+						byte flags = getByte();
+						boolean canExecute = (flags & FipBatchOfUpdates.FLAG_EXECUTABLE) != 0x0;
+						// The checksum the copy should have
+						String checksumAlgorithm = getString();
+						String checksum = getString();
+						expect(FipBatchOfUpdates.MAGIC_AFTER_COPY, "MAGIC_AFTER_COPY missing");
+
+						String code = (type == FipBatchOfUpdates.OP_COPY_FILE) ? "Y" : "R";
+						if (destinationProperties.isProtected(relativePath))
+						{
+							FipServer.log(destinationRoot, false, "  Ignoring " + code + " " + relativePath + " (protected file)");
+						}
+						else
+						{
+							// Write to the log file
+							FipServer.log(destinationRoot, false, "  " + code + " " + relativePath + " (from " + copyFromRelativePath + ")");
+
+							// Create the understudy file from the existing file
+							if (type == FipBatchOfUpdates.OP_REFERENCE_FILE)
+								prepareReferencedUnderstudyFile(destinationRoot, destinationProperties, txId, relativePath, copyFromRelativePath, checksumAlgorithm, checksum, canExecute);
+							else
+								prepareCopiedUnderstudyFile(destinationRoot, txId, relativePath, copyFromRelativePath, checksumAlgorithm, checksum, canExecute);
+						}
+					}
+					break;
+
 				case FipBatchOfUpdates.OP_DELETE_FILE:
 					{
 						String relativePath = getString();
@@ -225,6 +389,7 @@ public class FipServer_updateExecuter
 		//				logger.info("End of transfer file");
 						if (destinationProperties.getCommitMode() == CommitMode.COMMIT_AFTER_EVERY_FILE)
 						{
+							waitForOtherBatches();
 							logger.info("Committing files in this transfer");
 							long start = System.currentTimeMillis();
 							commitTransaction(destinationRoot, destinationProperties, txId);
@@ -244,6 +409,7 @@ public class FipServer_updateExecuter
 						// Change the transaction status
 						if (destinationProperties.getCommitMode() == CommitMode.COMMIT_AS_A_TRANSACTION)
 						{
+							waitForOtherBatches();
 FipServer.log(destinationRoot, false, "  End of transaction - ok 1");
 							TransactionProperties txProperties = TransactionProperties.loadTransactionProperties(destinationRoot, txId);
 							txProperties.changeStatus(destinationRoot, TransactionStatus.READY_TO_COMMIT);
@@ -265,6 +431,7 @@ FipServer.log(destinationRoot, false, "  End of transaction - ok 4");
 						// Write to the log file
 						FipServer.log(destinationRoot, false, "  Manual commit");
 
+						waitForOtherBatches();
 						logger.info("Manually committing");
 						long start = System.currentTimeMillis();
 						commitTransaction(destinationRoot, destinationProperties, txId);
@@ -279,6 +446,7 @@ FipServer.log(destinationRoot, false, "  End of transaction - ok 4");
 						// Write to the log file
 						FipServer.log(destinationRoot, false, "  Abort transaction");
 
+						waitForOtherBatches();
 						logger.info("Aborting transaction");
 						long start = System.currentTimeMillis();
 						abortTransaction(destinationRoot, txId);
@@ -303,6 +471,56 @@ FipServer.log(destinationRoot, false, "  End of transaction - ok 4");
 		
 	}
 
+	/**
+	 * The lock shared by the batches being installed for a transaction. Each call must be
+	 * followed by a call to {@link #releaseTransactionLock}, once the lock is no longer held.
+	 */
+	protected static synchronized ReentrantReadWriteLock transactionLock(String destinationRoot, String txId)
+	{
+		String key = destinationRoot + "\n" + txId;
+		ReentrantReadWriteLock lock = transactionLocks.get(key);
+		if (lock == null)
+		{
+			lock = new ReentrantReadWriteLock();
+			transactionLocks.put(key, lock);
+			transactionLockUsers.put(key, 1);
+		}
+		else
+			transactionLockUsers.put(key, transactionLockUsers.get(key) + 1);
+		return lock;
+	}
+
+	/**
+	 * Finished with a transaction's lock. Once nobody is using it, it is forgotten.
+	 */
+	protected static synchronized void releaseTransactionLock(String destinationRoot, String txId)
+	{
+		String key = destinationRoot + "\n" + txId;
+		Integer users = transactionLockUsers.get(key);
+		if (users == null)
+			return;
+		if (users > 1)
+			transactionLockUsers.put(key, users - 1);
+		else
+		{
+			transactionLockUsers.remove(key);
+			transactionLocks.remove(key);
+		}
+	}
+
+	/**
+	 * Wait for any other batches for this transaction to finish being installed, before committing
+	 * or aborting. Batches that arrive afterwards wait until we have finished.
+	 */
+	private void waitForOtherBatches()
+	{
+		if ( !transactionLock.isWriteLockedByCurrentThread())
+		{
+			transactionLock.readLock().unlock();
+			transactionLock.writeLock().lock();
+		}
+	}
+
 	protected static void commitTransaction(String destinationRoot, DestinationProperties destinationProperties, String txId) throws IOException, FipException
 	{
 
@@ -509,7 +727,7 @@ FipServer.log(destinationRoot, false, "SJSJSJS commitTransaction ok 5");
 //		}
 //	}
 
-	private void prepareInstallUnderstudyFile(String destinationRoot, String txId, String relativePath, int positionOfContents, int length, boolean canExecute) throws IOException
+	private void prepareInstallUnderstudyFile(String destinationRoot, String txId, String relativePath, byte[] data, int positionOfContents, int length, boolean canExecute) throws IOException
 	{
 		// Separate the path in the directory and the file name.
 		String transactionDirectory = TransactionProperties.transactionDirectory(destinationRoot, txId, TransactionStatus.PREPARING);
@@ -535,7 +753,7 @@ FipServer.log(destinationRoot, false, "SJSJSJS commitTransaction ok 5");
 		FileOutputStream fis = null;
 		try {
 			fis = new FileOutputStream(newPath);
-			fis.write(this.buf, positionOfContents, length);
+			fis.write(data, positionOfContents, length);
 		} finally {
 			if (fis != null)
 				try { fis.close(); } catch (IOException e) { }
@@ -550,6 +768,273 @@ FipServer.log(destinationRoot, false, "SJSJSJS commitTransaction ok 5");
 //		logger.info(" creating " + newPath);
 	}
 
+	/**
+	 * Write part of a file that is too large to be sent in a single batch (see {@link FipBatchOfUpdates#addRangeToBuffer}).
+	 * The parts are written to a partial file, which becomes the understudy file once the last part has arrived
+	 * and the whole file has the checksum calculated at the source. Anything already in the partial file from the
+	 * offset onwards is discarded, so a part that failed can be sent again without sending the earlier parts.
+	 */
+	private void prepareRangeOfUnderstudyFile(String destinationRoot, String txId, String relativePath, long fileLength, long offset, int positionOfContents, int rangeLength, String checksumAlgorithm, String checksum, boolean canExecute) throws IOException, FipException
+	{
+		// Work out the name of the partial file
+		String transactionDirectory = TransactionProperties.transactionDirectory(destinationRoot, txId, TransactionStatus.PREPARING);
+		File file = new File(transactionDirectory + File.separator + relativePath);
+		File dirfile = file.getParentFile();
+		if ( !dirfile.exists())
+			dirfile.mkdirs();
+		File partialFile = new File(dirfile.getAbsolutePath() + File.separator + UNDERSTUDY_PREFIX_PARTIAL_FILE + file.getName());
+
+		// Add this part
+		RandomAccessFile os = new RandomAccessFile(partialFile, "rw");
+		try {
+			if (os.length() < offset)
+				throw new FipException("Cannot install part of " + relativePath + ", the bytes before " + offset + " have not been received");
+			os.setLength(offset);
+			os.seek(offset);
+			os.write(this.buf, positionOfContents, rangeLength);
+		} finally {
+			try { os.close(); } catch (IOException e) { }
+		}
+		if (offset + rangeLength < fileLength)
+			return;
+
+		// That was the last part, so check we have the same file as the source
+		String newChecksum = FipChecksum.forName(checksumAlgorithm).checksum(partialFile.toPath());
+		if ( !newChecksum.equals(checksum))
+		{
+			partialFile.delete();
+			FipServer.log(destinationRoot, true, "ERROR: Parts of " + relativePath + " did not produce the expected checksum");
+			throw new FipException("Parts of " + relativePath + " did not produce the expected checksum");
+		}
+
+		// It's complete, so it can be committed like any other file
+		File newFile = understudyFile(destinationRoot, txId, relativePath);
+		Files.move(partialFile.toPath(), newFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		newFile.setExecutable(canExecute);
+	}
+
+	/**
+	 * Rebuild a changed file from the existing file and the patch instructions (see
+	 * {@link FipBatchOfUpdates#addPatchToBuffer}). The new file is only kept if it has
+	 * the checksum calculated at the source.
+	 */
+	private void preparePatchedUnderstudyFile(String destinationRoot, String txId, String relativePath, int positionOfInstructions, int length, int blockSize, String checksumAlgorithm, String checksum, boolean canExecute) throws IOException, FipException
+	{
+		// The existing file
+		File existingFile = new File(destinationRoot + File.separator + relativePath);
+		if ( !existingFile.isFile())
+			throw new FipException("Cannot apply changes, the file does not exist: " + relativePath);
+
+		// Work out a new "pending commit" filename.
+		String transactionDirectory = TransactionProperties.transactionDirectory(destinationRoot, txId, TransactionStatus.PREPARING);
+		File file = new File(transactionDirectory + File.separator + relativePath);
+		File dirfile = file.getParentFile();
+		if ( !dirfile.exists())
+			dirfile.mkdirs();
+		File newFile = new File(dirfile.getAbsolutePath() + File.separator + UNDERSTUDY_PREFIX_CHANGE_FILE + file.getName());
+
+		// Follow the instructions
+		RandomAccessFile existing = null;
+		FileOutputStream os = null;
+		try {
+			existing = new RandomAccessFile(existingFile, "r");
+			os = new FileOutputStream(newFile);
+			byte[] block = new byte[blockSize];
+			int pos = positionOfInstructions;
+			long written = 0;
+			for ( ; ; )
+			{
+				byte instruction = buf[pos++];
+				if (instruction == FipBatchOfUpdates.PATCH_END)
+					break;
+				if (instruction == FipBatchOfUpdates.PATCH_COPY)
+				{
+					int firstBlock = getInt(pos);
+					int numBlocks = getInt(pos + 4);
+					existing.seek((long) firstBlock * blockSize);
+					for (int i = 0; i < numBlocks; i++)
+					{
+						existing.readFully(block);
+						os.write(block);
+					}
+					written += (long) numBlocks * blockSize;
+					pos += 8;
+				}
+				else
+				{
+					int literalLength = getInt(pos);
+					os.write(buf, pos + 4, literalLength);
+					written += literalLength;
+					pos += 4 + literalLength;
+				}
+			}
+			os.close();
+			os = null;
+			if (written != length)
+				throw new FipException("Changes to " + relativePath + " produced " + written + " bytes, expected " + length);
+		} catch (IOException e) {
+			newFile.delete();
+			throw e;
+		} catch (FipException e) {
+			newFile.delete();
+			throw e;
+		} finally {
+			if (existing != null)
+				try { existing.close(); } catch (IOException e) { }
+			if (os != null)
+				try { os.close(); } catch (IOException e) { }
+		}
+
+		// Check we have the same file as the source
+		String newChecksum = FipChecksum.forName(checksumAlgorithm).checksum(newFile.toPath());
+		if ( !newChecksum.equals(checksum))
+		{
+			newFile.delete();
+			FipServer.log(destinationRoot, true, "ERROR: Changes to " + relativePath + " did not produce the expected checksum");
+			throw new FipException("Changes to " + relativePath + " did not produce the expected checksum");
+		}
+
+		// Set the file mode
+		if (canExecute)
+			newFile.setExecutable(true);
+	}
+
+	/**
+	 * Install a new file by copying a file the destination already has. Files being deleted in this
+	 * transaction are still in place until it is committed, so a moved file can be copied from it's
+	 * old location. The copy is only kept if it has the checksum calculated at the source.
+	 */
+	private void prepareCopiedUnderstudyFile(String destinationRoot, String txId, String relativePath, String copyFromRelativePath, String checksumAlgorithm, String checksum, boolean canExecute) throws IOException, FipException
+	{
+		// The existing file
+		File existingFile = new File(destinationRoot + File.separator + copyFromRelativePath);
+		if ( !existingFile.isFile())
+			throw new FipException("Cannot copy, the file does not exist: " + copyFromRelativePath);
+
+		// Copy the file, and check we have the same file as the source
+		File newFile = understudyFile(destinationRoot, txId, relativePath);
+		Files.copy(existingFile.toPath(), newFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		String newChecksum = FipChecksum.forName(checksumAlgorithm).checksum(newFile.toPath());
+		if ( !newChecksum.equals(checksum))
+		{
+			newFile.delete();
+			FipServer.log(destinationRoot, true, "ERROR: Copy of " + copyFromRelativePath + " to " + relativePath + " did not produce the expected checksum");
+			throw new FipException("Copy of " + copyFromRelativePath + " to " + relativePath + " did not produce the expected checksum");
+		}
+
+		// Set the file mode
+		newFile.setExecutable(canExecute);
+	}
+
+	/**
+	 * Install a file with the same contents as a file sent earlier in the transaction. If the earlier
+	 * file is still waiting to be committed, the new file is a hard link to it (or a copy, if that is not
+	 * possible). When each batch is committed as it arrives, the earlier file may already have been
+	 * committed, in which case the installed file is copied instead, and it's checksum checked. Otherwise
+	 * the earlier file was not installed (eg. it is protected), and the contents are not here.
+	 */
+	private void prepareReferencedUnderstudyFile(String destinationRoot, DestinationProperties destinationProperties, String txId, String relativePath, String earlierRelativePath, String checksumAlgorithm, String checksum, boolean canExecute) throws IOException, FipException
+	{
+		File stagedFile = stagedFile(destinationRoot, txId, earlierRelativePath);
+		if (stagedFile == null)
+		{
+			if (destinationProperties.getCommitMode() != CommitMode.COMMIT_AFTER_EVERY_FILE)
+			{
+				String reason = destinationProperties.isProtected(earlierRelativePath) ? "is protected" : "was not installed in this transaction";
+				FipServer.log(destinationRoot, false, "ERROR: Cannot install " + relativePath + ": the file with the same contents (" + earlierRelativePath + ") " + reason);
+				throw new FipException("Cannot install " + relativePath + ": the file with the same contents (" + earlierRelativePath + ") " + reason);
+			}
+			prepareCopiedUnderstudyFile(destinationRoot, txId, relativePath, earlierRelativePath, checksumAlgorithm, checksum, canExecute);
+			return;
+		}
+
+		// The two files can only share the file mode if they need the same mode
+		File newFile = understudyFile(destinationRoot, txId, relativePath);
+		newFile.delete();
+		if (stagedFile.canExecute() == canExecute)
+		{
+			try {
+				Files.createLink(newFile.toPath(), stagedFile.toPath());
+				return;
+			} catch (IOException e) {
+				// Copy it instead
+			} catch (UnsupportedOperationException e) {
+				// Copy it instead
+			}
+		}
+		Files.copy(stagedFile.toPath(), newFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		newFile.setExecutable(canExecute);
+	}
+
+	/**
+	 * Find the understudy for a file installed in this transaction, or null if there is none.
+	 */
+	private static File stagedFile(String destinationRoot, String txId, String relativePath)
+	{
+		String transactionDirectory = TransactionProperties.transactionDirectory(destinationRoot, txId, TransactionStatus.PREPARING);
+		File file = new File(transactionDirectory + File.separator + relativePath);
+		String dir = file.getParentFile().getAbsolutePath();
+		File newFile = new File(dir + File.separator + UNDERSTUDY_PREFIX_NEW_FILE + file.getName());
+		if (newFile.isFile())
+			return newFile;
+		File changedFile = new File(dir + File.separator + UNDERSTUDY_PREFIX_CHANGE_FILE + file.getName());
+		if (changedFile.isFile())
+			return changedFile;
+		return null;
+	}
+
+	/**
+	 * Work out the "pending commit" filename for a file being installed by copying another file,
+	 * creating it's directory if necessary.
+	 */
+	private static File understudyFile(String destinationRoot, String txId, String relativePath)
+	{
+		String transactionDirectory = TransactionProperties.transactionDirectory(destinationRoot, txId, TransactionStatus.PREPARING);
+		File file = new File(transactionDirectory + File.separator + relativePath);
+		File dirfile = file.getParentFile();
+		if ( !dirfile.exists())
+			dirfile.mkdirs();
+		boolean isNew = !new File(destinationRoot + File.separator + relativePath).exists();
+		String prefix = isNew ? UNDERSTUDY_PREFIX_NEW_FILE : UNDERSTUDY_PREFIX_CHANGE_FILE;
+		return new File(dirfile.getAbsolutePath() + File.separator + prefix + file.getName());
+	}
+
+	/**
+	 * Move past the patch instructions, checking they are all within the buffer.
+	 */
+	private void skipPatchInstructions() throws FipException
+	{
+		for ( ; ; )
+		{
+			if (currentPos >= length)
+				throw new FipException("Ran off end of buffer");
+			byte instruction = getByte();
+			if (instruction == FipBatchOfUpdates.PATCH_END)
+				return;
+			else if (instruction == FipBatchOfUpdates.PATCH_COPY)
+			{
+				int firstBlock = getFileLength();
+				int numBlocks = getFileLength();
+				if (firstBlock < 0 || numBlocks < 0)
+					throw new FipException("Invalid copy instruction in patch");
+			}
+			else if (instruction == FipBatchOfUpdates.PATCH_LITERAL)
+			{
+				int literalLength = getFileLength();
+				if (literalLength < 0 || currentPos + literalLength > length)
+					throw new FipException("Invalid literal in patch");
+				currentPos += literalLength;
+			}
+			else
+				throw new FipException("Unknown instruction in patch");
+		}
+	}
+
+	private int getInt(int pos)
+	{
+		return ((buf[pos] & 0xff) << 24) | ((buf[pos + 1] & 0xff) << 16) | ((buf[pos + 2] & 0xff) << 8) | (buf[pos + 3] & 0xff);
+	}
+
 	public static void prepareDeleteUnderstudyFile(String destinationRoot, String txId, String relativePath) throws IOException
 	{
 		// Separate the path in the directory and the file name.
@@ -598,6 +1083,13 @@ FipServer.log(destinationRoot, false, "SJSJSJS commitTransaction ok 5");
 		return len;
 	}
 
+	private long getLong()
+	{
+		long high = getFileLength() & 0xffffffffL;
+		long low = getFileLength() & 0xffffffffL;
+		return (high << 32) | low;
+	}
+
 	private byte getByte()
 	{
 		return buf[currentPos++];
@@ -0,0 +1,205 @@
+package tooltwist.fip;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Vector;
+import java.util.zip.Deflater;
+
+/**
+ * A batch of updates for several destinations that need the same changes. The updates are only
+ * read and compressed once, and are then sealed separately for each destination's transaction
+ * (see {@link FipBatchOfUpdates#sealTheBuffer}).
+ *
+ * The seal is calculated from a copy of the digest of the updates, taken as they were added to
+ * the batch, so sealing for each destination only hashes the transaction details. The updates are
+ * compressed without finishing the deflate stream, so a zip for a destination (see {@link FipZip})
+ * only needs it's seal added on the end, as a final uncompressed block.
+ *
+ * @author philipcallender
+ *
+ */
+public class FipSharedBatch extends FipBatchOfUpdates
+{
+	private byte[] updates;
+	private int length;
+	private Vector<String> txIds;
+	private byte[][] seals;
+	private boolean filesAreCompressed;
+
+	// The updates compressed (without the zip headers), and their CRC, shared by all the destinations
+	private FipZip deflated = null;
+	private long crc = 0;
+
+	private FipSharedBatch(byte[] updates, int length, Vector<String> txIds, byte[][] seals, boolean filesAreCompressed) throws FipException
+	{
+		super(updates);
+		this.updates = updates;
+		this.length = length;
+		this.txIds = txIds;
+		this.seals = seals;
+		this.filesAreCompressed = filesAreCompressed;
+	}
+
+	/**
+	 * Seal a batch of updates for each of the destinations' transactions.
+	 */
+	public static FipSharedBatch seal(FipBatchOfUpdates updateList, Vector<String> txIds, Vector<String> salts, Vector<String> passphrases) throws FipException
+	{
+		if (updateList.isSealed())
+			throw new FipException("Internal error: Buffer is already sealed");
+		byte[] updates = updateList.getBuffer();
+		int length = updateList.getLength();
+		byte[][] seals = new byte[txIds.size()][];
+		try {
+			MessageDigest digestOfUpdates = updateList.digestOfContents();
+			for (int i = 0; i < seals.length; i++)
+			{
+				MessageDigest m = (MessageDigest) digestOfUpdates.clone();
+				m.update(txIds.get(i).getBytes("iso-8859-1"));
+				m.update(salts.get(i).getBytes("iso-8859-1"));
+				m.update(passphrases.get(i).getBytes("iso-8859-1"));
+				seals[i] = m.digest();
+				if (seals[i].length != SEAL_LENGTH)
+					throw new FipException("Seal hash value is not the expected length");
+			}
+		} catch (FipException e) {
+			throw e;
+		} catch (Exception e) {
+			FipException fipException = new FipException("Could not seal buffer: " + e.toString());
+			fipException.setStackTrace(e.getStackTrace());
+			throw fipException;
+		}
+		return new FipSharedBatch(updates, length, new Vector<String>(txIds), seals, updateList.filesAreCompressed());
+	}
+
+	/**
+	 * The position of a transaction in the list this batch was sealed for, or -1 if it is not there.
+	 */
+	public int indexOf(String txId)
+	{
+		return txIds.indexOf(txId);
+	}
+
+	@Override
+	public int getLength()
+	{
+		return length;
+	}
+
+	/**
+	 * As decided when the updates were added to the batch this was sealed from.
+	 */
+	@Override
+	public boolean filesAreCompressed()
+	{
+		return filesAreCompressed;
+	}
+
+	/**
+	 * The batch as it would have been sealed for just one of the destinations.
+	 */
+	public FipBatchOfUpdates forDestination(int destinationNo) throws FipException
+	{
+		byte[] contents = spareBuffer(length + SEAL_LENGTH);
+		System.arraycopy(updates, 0, contents, 0, length);
+		System.arraycopy(seals[destinationNo], 0, contents, length, SEAL_LENGTH);
+		return new FipBatchOfUpdates(contents, length + SEAL_LENGTH);
+	}
+
+	/**
+	 * The zipped batch for one of the destinations, in this thread's zip (see {@link FipZip#forThisThread()}).
+	 */
+	FipZip zipForDestination(int destinationNo)
+	{
+		synchronized (this)
+		{
+			if (deflated == null)
+				deflateUpdates();
+		}
+		byte[] seal = seals[destinationNo];
+		FipZip zip = FipZip.forThisThread();
+		zip.startEntry();
+
+		// The compressed updates, then the seal as the final (uncompressed) block
+		zip.write(deflated.getBuffer(), 0, deflated.getLength());
+		byte[] finalBlock = { 0x01, (byte) SEAL_LENGTH, (byte) (SEAL_LENGTH >> 8), (byte) ~SEAL_LENGTH, (byte) (~SEAL_LENGTH >> 8) };
+		zip.write(finalBlock, 0, finalBlock.length);
+		zip.write(seal, 0, SEAL_LENGTH);
+		zip.finishEntry(FipZip.updateCrc(crc, seal, 0, SEAL_LENGTH), length + SEAL_LENGTH);
+		return zip;
+	}
+
+	/**
+	 * Compress the updates, leaving the deflate stream open so each destination's seal can be added.
+	 */
+	private void deflateUpdates()
+	{
+		Deflater deflater = new Deflater(filesAreCompressed() ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION, true);
+		try {
+			deflated = new FipZip();
+			crc = deflated.deflate(deflater, updates, 0, length, false);
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * The updates are shared by the destinations, so they are left for the garbage collector.
+	 */
+	@Override
+	public void release()
+	{
+	}
+
+	/**
+	 * The batch and it's seals, for sending from a remote source: the number of seals (4 bytes),
+	 * then for each the transaction id and the seal, then the updates.
+	 */
+	public byte[] serialize() throws FipException
+	{
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(length + txIds.size() * 64 + 4);
+			java.io.DataOutputStream out = new java.io.DataOutputStream(bytes);
+			out.writeInt(txIds.size());
+			for (int i = 0; i < txIds.size(); i++)
+			{
+				out.writeUTF(txIds.get(i));
+				out.write(seals[i]);
+			}
+			out.write(updates, 0, length);
+			out.close();
+			return bytes.toByteArray();
+		} catch (java.io.IOException e) {
+			throw new FipException("Error serializing batch: " + e.toString());
+		}
+	}
+
+	public static FipSharedBatch deserialize(byte[] data) throws FipException
+	{
+		ByteBuffer in = ByteBuffer.wrap(data);
+		try {
+			int numSeals = in.getInt();
+			if (numSeals < 0 || numSeals > data.length / SEAL_LENGTH)
+				throw new FipException("Invalid shared batch");
+			Vector<String> txIds = new Vector<String>();
+			byte[][] seals = new byte[numSeals][];
+			for (int i = 0; i < numSeals; i++)
+			{
+				byte[] txId = new byte[in.getShort() & 0xffff];
+				in.get(txId);
+				txIds.add(new String(txId, "UTF-8"));
+				seals[i] = new byte[SEAL_LENGTH];
+				in.get(seals[i]);
+			}
+			byte[] updates = new byte[in.remaining()];
+			in.get(updates);
+			// How the files were added is not known, so they are compressed again
+			return new FipSharedBatch(updates, updates.length, txIds, seals, false);
+		} catch (java.nio.BufferUnderflowException e) {
+			throw new FipException("Invalid shared batch");
+		} catch (java.io.UnsupportedEncodingException e) {
+			throw new FipException("Invalid shared batch");
+		}
+	}
+}
@@ -1,6 +1,8 @@
 package tooltwist.fip;
 
 import java.io.IOException;
+import java.util.BitSet;
+import java.util.Vector;
 
 /**
  * This class provides an adaptor to let the source talk to the destination within the same process.
@@ -17,6 +19,14 @@ public class FipThisMachineServerProxy extends FipServerProxy
 		super(root);
 	}
 
+	/**
+	 * Set the number of threads used to index the directory on this machine.
+	 */
+	public void setIndexParallelism(int indexParallelism)
+	{
+		realServer.setIndexParallelism(indexParallelism);
+	}
+
 	@Override
 	public String askForUuid() throws FipException
 	{
@@ -44,7 +54,6 @@ public class FipThisMachineServerProxy extends FipServerProxy
 	public void sendUpdates(String txId, FipBatchOfUpdates updateBuffer) throws FipException
 	{
 		realServer.destination_installBatchOfFiles(getRoot(), txId, updateBuffer, "localhost");
-		updateBuffer.initializeEmptyBuffer();
 	}
 
 	@Override
@@ -56,12 +65,48 @@ public class FipThisMachineServerProxy extends FipServerProxy
 	}
 
 	@Override
-	public FipList askForFileList(boolean isDestination) throws IOException, FipCorruptionException, FipException
+	public FipSharedBatch askForSharedUpdates(FipRequestList requestList, Vector<String> destinationUuids, Vector<String> txIds, Vector<String> salts) throws FipException, IOException, FipCorruptionException
+	{
+		return realServer.source_getSharedUpdates(getRoot(), requestList, destinationUuids, txIds, salts, "localhost");
+	}
+
+	@Override
+	public FipList askForFileList(boolean isDestination, String checksumAlgorithm) throws IOException, FipCorruptionException, FipException
 	{
-		FipList list = realServer.getFileList(getRoot(), isDestination, "localhost");
+		FipList list = realServer.getFileList(getRoot(), isDestination, "localhost", checksumAlgorithm);
 		return list;
 	}
 
+	@Override
+	public FipDirectorySummary askForDirectorySummary(boolean isDestination, String checksumAlgorithm, String directoryPath, String snapshotId) throws IOException, FipCorruptionException, FipException
+	{
+		return realServer.getDirectorySummary(getRoot(), isDestination, "localhost", checksumAlgorithm, directoryPath, snapshotId);
+	}
+
+	@Override
+	public FipDirectorySummary askForSubtreeSummary(boolean isDestination, String checksumAlgorithm, String directoryPath, String snapshotId) throws IOException, FipCorruptionException, FipException
+	{
+		return realServer.getDirectorySummary(getRoot(), isDestination, "localhost", checksumAlgorithm, directoryPath, snapshotId, true);
+	}
+
+	@Override
+	public FipBucketSummary askForBucketSummary(boolean isDestination, String checksumAlgorithm, int numBuckets) throws IOException, FipCorruptionException, FipException
+	{
+		return realServer.getBucketSummary(getRoot(), isDestination, "localhost", checksumAlgorithm, numBuckets);
+	}
+
+	@Override
+	public FipList askForBucketEntries(boolean isDestination, String checksumAlgorithm, int numBuckets, BitSet buckets, String snapshotId) throws IOException, FipCorruptionException, FipException
+	{
+		return realServer.getBucketEntries(getRoot(), isDestination, "localhost", checksumAlgorithm, numBuckets, buckets, snapshotId);
+	}
+
+	@Override
+	public Vector<FipBlockSignatures> askForBlockSignatures(Vector<String> destinationRelativePaths) throws FipException
+	{
+		return realServer.destination_getBlockSignatures(getRoot(), destinationRelativePaths, "localhost");
+	}
+
 	@Override
 	public void abortTransaction(String txId) throws FipException
 	{
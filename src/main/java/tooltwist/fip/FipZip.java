@@ -0,0 +1,256 @@
+package tooltwist.fip;
+
+import java.util.Calendar;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A zip file containing a single entry, built straight into a buffer. This is the same format
+ * {@link Fip#unzipIt} reads, but the data is only passed over once: each chunk is added to the
+ * CRC and compressed while it is still in the cache, and the compressed data is written directly
+ * into the buffer, with the sizes and CRC filled in at the end.
+ *
+ * Each thread has a zip it can reuse (see {@link #forThisThread()}), so the buffer does not need
+ * to be allocated again for each batch of updates that is sent.
+ *
+ * @author philipcallender
+ *
+ */
+class FipZip
+{
+	static final String ENTRY_NAME = "data";
+	private static final byte[] ENTRY_NAME_BYTES = { 'd', 'a', 't', 'a' };
+	private static final int CHUNK = 64 * 1024;
+	private static final int LOCAL_HEADER_LENGTH = 30;
+	private static final int RETAINED_LENGTH = FipBatchOfUpdates.PREFERRED_MAX_TRANSMISSION * 2;
+
+	private static final int[] CRC_TABLE = new int[256];
+	static
+	{
+		for (int n = 0; n < 256; n++)
+		{
+			int c = n;
+			for (int k = 0; k < 8; k++)
+				c = ((c & 1) != 0) ? 0xedb88320 ^ (c >>> 1) : c >>> 1;
+			CRC_TABLE[n] = c;
+		}
+	}
+
+	private static ThreadLocal<FipZip> zipForThread = new ThreadLocal<FipZip>() {
+		@Override
+		protected FipZip initialValue()
+		{
+			return new FipZip();
+		}
+	};
+
+	private byte[] buf = new byte[CHUNK];
+	private int count = 0;
+
+	/**
+	 * An empty zip belonging to this thread. Anything built in it previously is discarded.
+	 */
+	static FipZip forThisThread()
+	{
+		FipZip zip = zipForThread.get();
+		if (zip.buf.length > RETAINED_LENGTH)
+			zip.buf = new byte[CHUNK];
+		zip.count = 0;
+		return zip;
+	}
+
+	byte[] getBuffer()
+	{
+		return buf;
+	}
+
+	int getLength()
+	{
+		return count;
+	}
+
+	byte[] toByteArray()
+	{
+		byte[] bytes = new byte[count];
+		System.arraycopy(buf, 0, bytes, 0, count);
+		return bytes;
+	}
+
+	/**
+	 * Zip some data, at a given compression level.
+	 */
+	void zip(byte[] data, int length, int level)
+	{
+		startEntry();
+		Deflater deflater = new Deflater(level, true);
+		try {
+			long crc = deflate(deflater, data, 0, length, true);
+			finishEntry(crc, length);
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Start the zip, with the header of it's entry. The sizes and CRC are filled in by {@link #finishEntry}.
+	 */
+	void startEntry()
+	{
+		count = 0;
+		makeRoom(LOCAL_HEADER_LENGTH + ENTRY_NAME_BYTES.length);
+		int[] dosTime = dosTime(System.currentTimeMillis());
+		putInt(0x04034b50);
+		putShort(20); // version needed
+		putShort(0); // flags
+		putShort(8); // deflated
+		putShort(dosTime[0]);
+		putShort(dosTime[1]);
+		putInt(0); // CRC
+		putInt(0); // compressed size
+		putInt(0); // size
+		putShort(ENTRY_NAME_BYTES.length);
+		putShort(0); // extra field length
+		write(ENTRY_NAME_BYTES, 0, ENTRY_NAME_BYTES.length);
+	}
+
+	/**
+	 * Compress some data onto the end of the zip, and return it's CRC. If <code>finish</code> is not
+	 * set the deflate stream is flushed but left open, so more can be added after it.
+	 */
+	long deflate(Deflater deflater, byte[] data, int offset, int length, boolean finish)
+	{
+		CRC32 crc32 = new CRC32();
+		for (int pos = offset; pos < offset + length; )
+		{
+			int cnt = Math.min(CHUNK, offset + length - pos);
+			crc32.update(data, pos, cnt);
+			deflater.setInput(data, pos, cnt);
+			while ( !deflater.needsInput())
+				deflateIntoBuffer(deflater, Deflater.NO_FLUSH);
+			pos += cnt;
+		}
+		if (finish)
+		{
+			deflater.finish();
+			while ( !deflater.finished())
+				deflateIntoBuffer(deflater, Deflater.NO_FLUSH);
+		}
+		else
+		{
+			while (deflateIntoBuffer(deflater, Deflater.SYNC_FLUSH))
+				;
+		}
+		return crc32.getValue();
+	}
+
+	/**
+	 * Returns true if the compressed output filled the space available, so there may be more.
+	 */
+	private boolean deflateIntoBuffer(Deflater deflater, int flush)
+	{
+		makeRoom(CHUNK);
+		int space = buf.length - count;
+		int cnt = deflater.deflate(buf, count, space, flush);
+		count += cnt;
+		return cnt == space;
+	}
+
+	void write(byte[] b, int offset, int length)
+	{
+		makeRoom(length);
+		System.arraycopy(b, offset, buf, count, length);
+		count += length;
+	}
+
+	/**
+	 * Fill in the sizes and CRC of the entry, and add the central directory.
+	 */
+	void finishEntry(long crc, int size)
+	{
+		int compressedSize = count - LOCAL_HEADER_LENGTH - ENTRY_NAME_BYTES.length;
+		setInt(14, (int) crc);
+		setInt(18, compressedSize);
+		setInt(22, size);
+
+		// Central directory
+		makeRoom(46 + ENTRY_NAME_BYTES.length + 22);
+		int centralDirectoryOffset = count;
+		putInt(0x02014b50);
+		putShort(20); // version made by
+		putShort(20); // version needed
+		putShort(0); // flags
+		putShort(8); // deflated
+		write(buf, 10, 4); // time and date, the same as the local header
+		putInt((int) crc);
+		putInt(compressedSize);
+		putInt(size);
+		putShort(ENTRY_NAME_BYTES.length);
+		putShort(0); // extra field length
+		putShort(0); // comment length
+		putShort(0); // disk number
+		putShort(0); // internal attributes
+		putInt(0); // external attributes
+		putInt(0); // offset of local header
+		write(ENTRY_NAME_BYTES, 0, ENTRY_NAME_BYTES.length);
+		int centralDirectoryLength = count - centralDirectoryOffset;
+
+		// End of central directory
+		putInt(0x06054b50);
+		putShort(0);
+		putShort(0);
+		putShort(1);
+		putShort(1);
+		putInt(centralDirectoryLength);
+		putInt(centralDirectoryOffset);
+		putShort(0); // comment length
+	}
+
+	/**
+	 * Continue a CRC-32 value over some more bytes.
+	 */
+	static long updateCrc(long crc, byte[] bytes, int offset, int length)
+	{
+		int c = ~(int) crc;
+		for (int i = offset; i < offset + length; i++)
+			c = CRC_TABLE[(c ^ bytes[i]) & 0xff] ^ (c >>> 8);
+		return (~c) & 0xffffffffL;
+	}
+
+	private void makeRoom(int length)
+	{
+		if (count + length <= buf.length)
+			return;
+		byte[] newBuf = new byte[Math.max(count + length, buf.length * 2)];
+		System.arraycopy(buf, 0, newBuf, 0, count);
+		buf = newBuf;
+	}
+
+	private void putShort(int value)
+	{
+		buf[count++] = (byte) value;
+		buf[count++] = (byte) (value >> 8);
+	}
+
+	private void putInt(int value)
+	{
+		setInt(count, value);
+		count += 4;
+	}
+
+	private void setInt(int pos, int value)
+	{
+		buf[pos] = (byte) value;
+		buf[pos + 1] = (byte) (value >> 8);
+		buf[pos + 2] = (byte) (value >> 16);
+		buf[pos + 3] = (byte) (value >> 24);
+	}
+
+	private static int[] dosTime(long time)
+	{
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(time);
+		int dosTime = (calendar.get(Calendar.HOUR_OF_DAY) << 11) | (calendar.get(Calendar.MINUTE) << 5) | (calendar.get(Calendar.SECOND) >> 1);
+		int dosDate = ((calendar.get(Calendar.YEAR) - 1980) << 9) | ((calendar.get(Calendar.MONTH) + 1) << 5) | calendar.get(Calendar.DAY_OF_MONTH);
+		return new int[] { dosTime, dosDate };
+	}
+}
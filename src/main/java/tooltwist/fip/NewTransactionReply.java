@@ -10,13 +10,26 @@ public class NewTransactionReply
 	private String destinationUuid;
 	private String txId;
 	private String salt;
+	private int protocolVersion;
+
+	/**
+	 * Destinations that don't report their version are assumed to be the last version before they did,
+	 * so only the original operations are sent to them.
+	 */
+	public static final int UNREPORTED_VERSION = 0x05;
 
 	public NewTransactionReply(String destinationUuid, String txId, String salt)
+	{
+		this(destinationUuid, txId, salt, UNREPORTED_VERSION);
+	}
+
+	public NewTransactionReply(String destinationUuid, String txId, String salt, int protocolVersion)
 	{
 		super();
 		this.destinationUuid = destinationUuid;
 		this.txId = txId;
 		this.salt = salt;
+		this.protocolVersion = protocolVersion;
 	}
 
 	public String getDestinationUuid()
@@ -34,4 +47,12 @@ public class NewTransactionReply
 		return salt;
 	}
 
+	/**
+	 * The minor version of the batches the destination understands (the major version must be the same).
+	 */
+	public int getProtocolVersion()
+	{
+		return protocolVersion;
+	}
+
 }
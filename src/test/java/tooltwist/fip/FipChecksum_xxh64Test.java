@@ -0,0 +1,137 @@
+package tooltwist.fip;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import tooltwist.fip.FipChecksum.Hasher;
+
+/**
+ * Known answers for xxHash64 (seed 0), from the reference implementation, and checks that
+ * the tree variant is calculated as documented either side of a leaf boundary.
+ */
+public class FipChecksum_xxh64Test
+{
+	private File file = null;
+
+	@After
+	public void deleteFile()
+	{
+		if (file != null)
+			file.delete();
+	}
+
+	@Test
+	public void emptyInput()
+	{
+		assertEquals("ef46db3751d8e999", xxh64(new byte[0]));
+	}
+
+	@Test
+	public void shortInput() throws Exception
+	{
+		assertEquals("d24ec4f1a98c6e5b", xxh64("a".getBytes("US-ASCII")));
+		assertEquals("44bc2cf5ad770999", xxh64("abc".getBytes("US-ASCII")));
+	}
+
+	@Test
+	public void inputLongerThanAStripe() throws Exception
+	{
+		assertEquals("fbcea83c8a378bf1", xxh64("Nobody inspects the spammish repetition".getBytes("US-ASCII")));
+		assertEquals("0b242d361fda71bc", xxh64("The quick brown fox jumps over the lazy dog".getBytes("US-ASCII")));
+	}
+
+	@Test
+	public void sameResultFedInPieces()
+	{
+		byte[] data = FipTestData.randomBytes(1000, 1);
+		String expected = xxh64(data);
+		for (int pieceLength : new int[] { 1, 7, 31, 32, 33, 100 })
+		{
+			Hasher hasher = FipChecksum_xxh64.newHasher();
+			for (int pos = 0; pos < data.length; pos += pieceLength)
+				hasher.update(ByteBuffer.wrap(data, pos, Math.min(pieceLength, data.length - pos)));
+			assertEquals("pieces of " + pieceLength, expected, FipChecksumCalculator.toHex(hasher.digest()));
+		}
+	}
+
+	@Test
+	public void fileChecksumMatchesBytes() throws Exception
+	{
+		byte[] data = FipTestData.randomBytes(100000, 2);
+		writeFile(data);
+		assertEquals(xxh64(data), FipChecksum.forName(FipChecksum.XXH64).checksum(file.toPath()));
+	}
+
+	@Test
+	public void treeIsPlainXxh64UpToOneLeaf() throws Exception
+	{
+		byte[] data = FipTestData.randomBytes((int) FipChecksum_xxh64Tree.LEAF_SIZE, 3);
+		writeFile(data);
+		assertEquals(xxh64(data), FipChecksum.forName(FipChecksum.XXH64_TREE).checksum(file.toPath()));
+	}
+
+	@Test
+	public void treeJustOverOneLeaf() throws Exception
+	{
+		byte[] data = FipTestData.randomBytes((int) FipChecksum_xxh64Tree.LEAF_SIZE + 1, 4);
+		writeFile(data);
+		FipChecksum tree = FipChecksum.forName(FipChecksum.XXH64_TREE);
+		String checksum = tree.checksum(file.toPath());
+		assertEquals(treeChecksum(data), checksum);
+		assertEquals("checksum is stable", checksum, tree.checksum(file.toPath()));
+	}
+
+	@Test
+	public void treeOfExactLeaves() throws Exception
+	{
+		byte[] data = FipTestData.randomBytes((int) FipChecksum_xxh64Tree.LEAF_SIZE * 2, 5);
+		writeFile(data);
+		assertEquals(treeChecksum(data), FipChecksum.forName(FipChecksum.XXH64_TREE).checksum(file.toPath()));
+	}
+
+	/**
+	 * The tree checksum, as documented: the xxh64 of the leaf digests, then the length (high order first).
+	 */
+	private static String treeChecksum(byte[] data)
+	{
+		int leafSize = (int) FipChecksum_xxh64Tree.LEAF_SIZE;
+		int numLeaves = (data.length + leafSize - 1) / leafSize;
+		ByteBuffer tree = ByteBuffer.allocate(numLeaves * 8 + 8);
+		for (int pos = 0; pos < data.length; pos += leafSize)
+		{
+			Hasher leaf = FipChecksum_xxh64.newHasher();
+			leaf.update(ByteBuffer.wrap(data, pos, Math.min(leafSize, data.length - pos)));
+			tree.put(leaf.digest());
+		}
+		tree.putLong(data.length);
+		tree.flip();
+		Hasher hasher = FipChecksum_xxh64.newHasher();
+		hasher.update(tree);
+		return FipChecksumCalculator.toHex(hasher.digest());
+	}
+
+	private static String xxh64(byte[] data)
+	{
+		Hasher hasher = FipChecksum_xxh64.newHasher();
+		hasher.update(ByteBuffer.wrap(data));
+		return FipChecksumCalculator.toHex(hasher.digest());
+	}
+
+	private void writeFile(byte[] data) throws IOException
+	{
+		file = File.createTempFile("fip-checksum", ".tmp");
+		FileOutputStream os = new FileOutputStream(file);
+		try {
+			os.write(data);
+		} finally {
+			os.close();
+		}
+	}
+}
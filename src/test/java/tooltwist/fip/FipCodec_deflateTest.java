@@ -0,0 +1,160 @@
+package tooltwist.fip;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.junit.Test;
+
+/**
+ * Compressing and decompressing with the deflate codecs, and checks that contents that are corrupt,
+ * cut short, too long or followed by extra bytes are rejected.
+ */
+public class FipCodec_deflateTest
+{
+	@Test
+	public void roundTrip() throws Exception
+	{
+		for (String name : new String[] { FipCodec.DEFLATE, FipCodec.DEFLATE_FAST })
+		{
+			FipCodec codec = FipCodec.forName(name);
+			for (byte[] data : new byte[][] { new byte[0], "a".getBytes("US-ASCII"), textBytes(200000), FipTestData.randomBytes(100000, 1) })
+			{
+				byte[] compressed = codec.encode(data, 0, data.length);
+				assertArrayEquals(name + " " + data.length, data, codec.decode(compressed, 0, compressed.length, data.length));
+			}
+		}
+	}
+
+	@Test
+	public void partOfAnArray() throws Exception
+	{
+		FipCodec codec = FipCodec.forName(FipCodec.DEFLATE);
+		byte[] data = textBytes(5000);
+		byte[] compressed = codec.encode(data, 1000, 3000);
+		byte[] surrounded = new byte[compressed.length + 20];
+		System.arraycopy(compressed, 0, surrounded, 7, compressed.length);
+		byte[] expected = new byte[3000];
+		System.arraycopy(data, 1000, expected, 0, 3000);
+		assertArrayEquals(expected, codec.decode(surrounded, 7, compressed.length, 3000));
+	}
+
+	@Test
+	public void shrinksText() throws Exception
+	{
+		byte[] data = textBytes(100000);
+		assertTrue(FipCodec.forName(FipCodec.DEFLATE_FAST).encode(data, 0, data.length).length < data.length / 4);
+	}
+
+	@Test
+	public void wrongOriginalLength() throws Exception
+	{
+		byte[] data = textBytes(10000);
+		byte[] compressed = compress(data);
+		assertCorrupt("expected fewer bytes", compressed, compressed.length, data.length - 1);
+		assertCorrupt("expected more bytes", compressed, compressed.length, data.length + 1);
+		assertCorrupt("negative length", compressed, compressed.length, -1);
+	}
+
+	@Test
+	public void truncated() throws Exception
+	{
+		byte[] data = textBytes(10000);
+		byte[] compressed = compress(data);
+		for (int length : new int[] { compressed.length - 1, compressed.length - 4, compressed.length / 2, 2, 0 })
+			assertCorrupt("truncated to " + length, compressed, length, data.length);
+	}
+
+	@Test
+	public void trailingBytes() throws Exception
+	{
+		byte[] data = textBytes(10000);
+		byte[] compressed = compress(data);
+		byte[] longer = new byte[compressed.length + 3];
+		System.arraycopy(compressed, 0, longer, 0, compressed.length);
+		assertCorrupt("trailing bytes", longer, longer.length, data.length);
+	}
+
+	@Test
+	public void flippedByte() throws Exception
+	{
+		byte[] data = FipTestData.randomBytes(10000, 2);
+		byte[] compressed = compress(data);
+		for (int position : new int[] { 0, compressed.length / 2, compressed.length - 1 })
+		{
+			byte[] damaged = compressed.clone();
+			damaged[position] ^= 0x01;
+			assertCorrupt("flipped byte at " + position, damaged, damaged.length, data.length);
+		}
+	}
+
+	@Test
+	public void randomContentsLookIncompressible() throws Exception
+	{
+		assertTrue(FipCodec.looksIncompressible(FipTestData.randomBytes(100000, 3), 100000));
+		assertFalse(FipCodec.looksIncompressible(textBytes(100000), 100000));
+	}
+
+	@Test
+	public void samplesReadFromAFile() throws Exception
+	{
+		assertTrue(looksIncompressible(FipTestData.randomBytes(100000, 4)));
+		assertFalse(looksIncompressible(textBytes(100000)));
+		assertFalse(looksIncompressible(textBytes(700)));
+	}
+
+	@Test
+	public void largeFilesAreNotCompressed() throws Exception
+	{
+		assertNull(FipCodec.forFile("big.txt", FipCodec.MAX_SIZE_TO_COMPRESS + 1L));
+		assertNull(FipCodec.forFile("small.txt", FipCodec.MIN_SIZE_TO_COMPRESS - 1L));
+		assertNull(FipCodec.forFile("image.jpg", 100000));
+	}
+
+	private static byte[] compress(byte[] data) throws FipException
+	{
+		return FipCodec.forName(FipCodec.DEFLATE).encode(data, 0, data.length);
+	}
+
+	private static boolean looksIncompressible(byte[] data) throws Exception
+	{
+		File file = File.createTempFile("fip-codec", ".bin");
+		try {
+			FileOutputStream os = new FileOutputStream(file);
+			try {
+				os.write(data);
+			} finally {
+				os.close();
+			}
+			return FipCodec.looksIncompressible(file, data.length);
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static void assertCorrupt(String description, byte[] compressed, int length, int originalLength) throws FipException
+	{
+		try {
+			FipCodec.forName(FipCodec.DEFLATE).decode(compressed, 0, length, originalLength);
+			fail(description + ": the contents should not be decompressed");
+		} catch (FipException e) {
+			// Expected
+		}
+	}
+
+	private static byte[] textBytes(int length) throws Exception
+	{
+		StringBuffer text = new StringBuffer();
+		for (int line = 0; text.length() < length; line++)
+			text.append("Line " + line + " of some text that compresses well.\n");
+		byte[] bytes = text.toString().getBytes("US-ASCII");
+		byte[] data = new byte[length];
+		System.arraycopy(bytes, 0, data, 0, length);
+		return data;
+	}
+}
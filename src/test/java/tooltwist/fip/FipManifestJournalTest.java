@@ -0,0 +1,204 @@
+package tooltwist.fip;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Replaying the journal, including one that was cut off part way through a record or has a
+ * damaged record, and appending to it afterwards.
+ */
+public class FipManifestJournalTest
+{
+	private static final byte[] DIGEST = { 1, 2, 3, 4, 5, 6, 7, 8 };
+
+	private File file = null;
+
+	@After
+	public void deleteFile()
+	{
+		if (file != null)
+			file.delete();
+	}
+
+	@Test
+	public void replayAllRecords() throws Exception
+	{
+		long[] ends = writeJournal("a.txt", "b.txt", "c.txt");
+		assertEquals(ends[2], file.length());
+
+		FipList list = newList();
+		FipManifestJournal journal = FipManifestJournal.replay(list, file);
+		assertEquals(3, journal.getNumRecords());
+		assertEquals(3, list.numFiles());
+		assertTrue(list.containsFile("c.txt"));
+		assertEquals(1003L, list.getFileSize(indexOf(list, "c.txt")));
+	}
+
+	@Test
+	public void removedRecord() throws Exception
+	{
+		FipManifestJournal journal = new FipManifestJournal(newFile(), 0, 0, algorithm());
+		journal.fileChanged("a.txt", 1000L, 1L, DIGEST);
+		journal.fileChanged("b.txt", 2000L, 2L, DIGEST);
+		journal.fileRemoved("a.txt");
+		journal.close();
+
+		FipList list = newList();
+		assertEquals(3, FipManifestJournal.replay(list, file).getNumRecords());
+		assertEquals(1, list.numFiles());
+		assertFalse(list.containsFile("a.txt"));
+	}
+
+	@Test
+	public void cutMidRecord() throws Exception
+	{
+		long[] ends = writeJournal("a.txt", "b.txt", "c.txt");
+		for (long newLength : new long[] { ends[2] - 1, ends[1] + 1, ends[1] + 3 })
+		{
+			writeJournal("a.txt", "b.txt", "c.txt");
+			setLength(newLength);
+
+			// Only the complete records are applied
+			FipList list = newList();
+			FipManifestJournal journal = FipManifestJournal.replay(list, file);
+			assertEquals("cut at " + newLength, 2, journal.getNumRecords());
+			assertEquals(2, list.numFiles());
+			assertFalse(list.containsFile("c.txt"));
+
+			// The partial record is removed before anything more is added
+			journal.fileChanged("d.txt", 3000L, 1003L, DIGEST);
+			journal.close();
+			assertEquals(ends[2], file.length());
+			list = newList();
+			assertEquals(3, FipManifestJournal.replay(list, file).getNumRecords());
+			assertTrue(list.containsFile("d.txt"));
+			assertFalse(list.containsFile("c.txt"));
+		}
+	}
+
+	@Test
+	public void badCrc() throws Exception
+	{
+		long[] ends = writeJournal("a.txt", "b.txt", "c.txt");
+		flipByte(ends[1] - 1);
+
+		// The damaged record and everything after it are discarded
+		FipList list = newList();
+		FipManifestJournal journal = FipManifestJournal.replay(list, file);
+		assertEquals(1, journal.getNumRecords());
+		assertEquals(1, list.numFiles());
+		assertTrue(list.containsFile("a.txt"));
+
+		journal.fileChanged("d.txt", 2000L, 1002L, DIGEST);
+		journal.close();
+		assertEquals(ends[1], file.length());
+		list = newList();
+		assertEquals(2, FipManifestJournal.replay(list, file).getNumRecords());
+		assertTrue(list.containsFile("d.txt"));
+		assertFalse(list.containsFile("b.txt"));
+	}
+
+	@Test
+	public void damagedHeaderStartsAgain() throws Exception
+	{
+		writeJournal("a.txt");
+		flipByte(0);
+
+		FipList list = newList();
+		FipManifestJournal journal = FipManifestJournal.replay(list, file);
+		assertEquals(0, journal.getNumRecords());
+		assertEquals(0, list.numFiles());
+
+		journal.fileChanged("b.txt", 2000L, 2L, DIGEST);
+		journal.close();
+		list = newList();
+		assertEquals(1, FipManifestJournal.replay(list, file).getNumRecords());
+		assertTrue(list.containsFile("b.txt"));
+	}
+
+	@Test
+	public void restartedJournalIgnoresRecords() throws Exception
+	{
+		FipManifestJournal journal = new FipManifestJournal(newFile(), 0, 0, algorithm());
+		journal.fileChanged("a.txt", 1000L, 1L, DIGEST);
+		FipManifestJournal restarted = journal.restart(FipChecksum.forName(FipChecksum.MD5));
+		long length = file.length();
+		journal.fileChanged("b.txt", 2000L, 2L, DIGEST);
+		journal.close();
+		assertEquals(length, file.length());
+		assertEquals(0, restarted.getNumRecords());
+	}
+
+	/**
+	 * Write a journal with a record for each path, returning the length of the file after each record.
+	 */
+	private long[] writeJournal(String... paths) throws Exception
+	{
+		if (file == null)
+			newFile();
+		long[] ends = new long[paths.length];
+		FipManifestJournal journal = new FipManifestJournal(file, 0, 0, algorithm());
+		for (int i = 0; i < paths.length; i++)
+		{
+			journal.fileChanged(paths[i], 1000L * (i + 1), 1000L + i + 1, DIGEST);
+			journal.close();
+			ends[i] = file.length();
+		}
+		return ends;
+	}
+
+	private static FipChecksum algorithm() throws FipException
+	{
+		return FipChecksum.forName(FipChecksum.XXH64);
+	}
+
+	private static FipList newList() throws FipException
+	{
+		return new FipList(algorithm());
+	}
+
+	private static int indexOf(FipList list, String path)
+	{
+		for (int index = 0; index < list.numFiles(); index++)
+			if (list.getPath(index).equals(path))
+				return index;
+		return -1;
+	}
+
+	private File newFile() throws IOException
+	{
+		file = File.createTempFile("fip-journal", ".bin");
+		return file;
+	}
+
+	private void setLength(long length) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(length);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void flipByte(long position) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(position);
+			int b = raf.read();
+			raf.seek(position);
+			raf.write(b ^ 0x01);
+		} finally {
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package tooltwist.fip;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Round trips through the binary manifest, and checks that a damaged manifest is detected
+ * rather than loaded.
+ */
+public class FipManifestTest
+{
+	private File file = null;
+
+	@After
+	public void deleteFile()
+	{
+		if (file != null)
+		{
+			file.delete();
+			new File(file.getPath() + ".tmp").delete();
+		}
+	}
+
+	@Test
+	public void roundTrip() throws Exception
+	{
+		FipList list = sampleList();
+		FipManifest.write(list, manifestFile());
+		assertFalse("temporary file removed", new File(file.getPath() + ".tmp").exists());
+
+		FipList read = FipManifest.read(file);
+		assertEquals(list.numFiles(), read.numFiles());
+		assertEquals(list.getGenerationId(), read.getGenerationId());
+		assertEquals(list.serialize(false), read.serialize(false));
+	}
+
+	@Test
+	public void rewriteReplacesTheOldManifest() throws Exception
+	{
+		FipManifest.write(sampleList(), manifestFile());
+		FipList smaller = new FipList(FipChecksum.forName(FipChecksum.XXH64));
+		smaller.setDigest(smaller.addFile("only.txt", 1000L, 1L), new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+		FipManifest.write(smaller, file);
+		assertEquals(smaller.serialize(false), FipManifest.read(file).serialize(false));
+	}
+
+	@Test
+	public void truncatedFile() throws Exception
+	{
+		FipManifest.write(sampleList(), manifestFile());
+		long length = file.length();
+		for (long newLength : new long[] { length - 1, length - 4, length / 2, 12 })
+		{
+			FipManifest.write(sampleList(), file);
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(newLength);
+			} finally {
+				raf.close();
+			}
+			assertCorrupt("truncated to " + newLength);
+		}
+	}
+
+	@Test
+	public void flippedCrcByte() throws Exception
+	{
+		FipManifest.write(sampleList(), manifestFile());
+		flipByte(file.length() - 1);
+		assertCorrupt("bad CRC");
+	}
+
+	@Test
+	public void flippedContentByte() throws Exception
+	{
+		FipManifest.write(sampleList(), manifestFile());
+		flipByte(file.length() / 2);
+		assertCorrupt("bad content");
+	}
+
+	@Test
+	public void upgradeFromTextFormat() throws Exception
+	{
+		String text = "1300000000000:123:0123456789abcdef0123456789abcdef:a/b.txt\n"
+				+ "1300000001000:0:d41d8cd98f00b204e9800998ecf8427e:a/empty.txt\n"
+				+ "1300000002000:45678:fedcba9876543210fedcba9876543210:c:with colon.txt\n";
+		FileOutputStream os = new FileOutputStream(manifestFile());
+		try {
+			os.write(text.getBytes("UTF-8"));
+		} finally {
+			os.close();
+		}
+
+		FipList old = FipManifest.read(file);
+		assertEquals(FipChecksum.MD5, old.getChecksumAlgorithm().getName());
+		assertEquals(3, old.numFiles());
+		assertTrue(old.containsFile("c:with colon.txt"));
+
+		// Write it again in the binary format
+		FipManifest.write(old, file);
+		FipList upgraded = FipManifest.read(file);
+		assertEquals(old.serialize(false), upgraded.serialize(false));
+		int index = indexOf(upgraded, "a/b.txt");
+		assertEquals(123L, upgraded.getFileSize(index));
+		assertEquals(1300000000000L, upgraded.getLastModified(index));
+		assertEquals("0123456789abcdef0123456789abcdef", upgraded.getChecksum(index));
+	}
+
+	private FipList sampleList() throws Exception
+	{
+		FipList list = new FipList(FipChecksum.forName(FipChecksum.XXH64));
+		String[] paths = { "a.txt", "dir/b.txt", "dir/c.txt", "dir/sub/d.bin", "e f/\u00e9t\u00e9.txt", "z.txt" };
+		for (int i = 0; i < paths.length; i++)
+		{
+			int index = list.addFile(paths[i], 1300000000000L + i * 1000, i * 1000 + 7);
+			byte[] digest = new byte[8];
+			for (int j = 0; j < digest.length; j++)
+				digest[j] = (byte) (i * 31 + j);
+			list.setDigest(index, digest);
+		}
+		list.setGeneration("lineage1", 5, 2);
+		return list;
+	}
+
+	private static int indexOf(FipList list, String path)
+	{
+		for (int index = 0; index < list.numFiles(); index++)
+			if (list.getPath(index).equals(path))
+				return index;
+		fail("missing " + path);
+		return -1;
+	}
+
+	private File manifestFile() throws IOException
+	{
+		file = File.createTempFile("fip-manifest", ".bin");
+		return file;
+	}
+
+	private void flipByte(long position) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(position);
+			int b = raf.read();
+			raf.seek(position);
+			raf.write(b ^ 0x01);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void assertCorrupt(String description) throws IOException
+	{
+		try {
+			FipManifest.read(file);
+			fail(description + ": the manifest should not be readable");
+		} catch (FipCorruptionException e) {
+			// Expected
+		}
+	}
+}
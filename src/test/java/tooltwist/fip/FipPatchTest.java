@@ -0,0 +1,230 @@
+package tooltwist.fip;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Changes encoded by {@link FipBatchOfUpdates#addPatchToBuffer} and installed at a destination rebuild
+ * the source's file, and changes that don't apply to the destination's file, or that have been cut
+ * short, are rejected without leaving a file to be committed.
+ */
+public class FipPatchTest
+{
+	private static final String PASSPHRASE = "pass phrase";
+	private static final String PATH = "dir/file.bin";
+
+	private String userName;
+	private File sourceRoot;
+	private File destinationRoot;
+	private FipServer server = new FipServer();
+	private String txId;
+	private String salt;
+
+	@Before
+	public void createRoots() throws Exception
+	{
+		// The destination refuses to run as root
+		userName = System.getProperty("user.name");
+		if ("root".equals(userName))
+			System.setProperty("user.name", "fip-test");
+
+		sourceRoot = newDirectory();
+		destinationRoot = newDirectory();
+		File properties = new File(destinationRoot, ".fip-destination");
+		writeFile(properties, ("destinationUuid=D1\npassphrase=" + PASSPHRASE + "\nsourceUuid=S1\n").getBytes("US-ASCII"));
+		NewTransactionReply reply = server.destination_startNewTransaction("S1", destinationRoot.getPath(), "localhost");
+		txId = reply.getTxId();
+		salt = reply.getSalt();
+	}
+
+	@After
+	public void deleteRoots()
+	{
+		if (userName != null)
+			System.setProperty("user.name", userName);
+		deleteTree(sourceRoot);
+		deleteTree(destinationRoot);
+	}
+
+	@Test
+	public void insertedAndChangedBytes() throws Exception
+	{
+		byte[] existing = FipTestData.randomBytes(100000, 1);
+		byte[] changed = new byte[existing.length + 10];
+		System.arraycopy(existing, 0, changed, 0, 1000);
+		System.arraycopy("inserted!!".getBytes("US-ASCII"), 0, changed, 1000, 10);
+		System.arraycopy(existing, 1000, changed, 1010, existing.length - 1000);
+		changed[60000] ^= 0x55;
+		assertPatched(existing, changed);
+	}
+
+	@Test
+	public void movedBlocksAndShorterFile() throws Exception
+	{
+		byte[] existing = FipTestData.randomBytes(50000, 2);
+		byte[] changed = new byte[40001];
+		System.arraycopy(existing, 25000, changed, 0, 20000);
+		System.arraycopy(existing, 0, changed, 20000, 20001);
+		assertPatched(existing, changed);
+	}
+
+	@Test
+	public void unchangedFile() throws Exception
+	{
+		byte[] existing = FipTestData.randomBytes(30000, 3);
+		assertPatched(existing, existing);
+	}
+
+	@Test
+	public void nothingInCommon() throws Exception
+	{
+		assertPatched(FipTestData.randomBytes(20000, 4), FipTestData.randomBytes(25000, 5));
+	}
+
+	@Test
+	public void destinationFileChanged() throws Exception
+	{
+		byte[] existing = FipTestData.randomBytes(50000, 6);
+		FipBatchOfUpdates batch = patch(existing, changedCopy(existing));
+
+		// The same length, so the blocks can be copied, but the rebuilt file has the wrong checksum
+		byte[] different = existing.clone();
+		different[100] ^= 0x01;
+		writeFile(new File(destinationRoot, PATH), different);
+		assertRejected(batch);
+	}
+
+	@Test
+	public void destinationFileShorter() throws Exception
+	{
+		byte[] existing = FipTestData.randomBytes(50000, 7);
+		FipBatchOfUpdates batch = patch(existing, changedCopy(existing));
+		byte[] shorter = new byte[10000];
+		System.arraycopy(existing, 0, shorter, 0, shorter.length);
+		writeFile(new File(destinationRoot, PATH), shorter);
+		assertRejected(batch);
+	}
+
+	@Test
+	public void truncatedInstructions() throws Exception
+	{
+		FipBatchOfUpdates batch = patch(FipTestData.randomBytes(20000, 8), FipTestData.randomBytes(20000, 9));
+
+		// Cut the batch part way through the literal bytes, and seal what is left
+		int length = batch.getLength() / 2;
+		byte[] contents = new byte[length + FipBatchOfUpdates.SEAL_LENGTH];
+		System.arraycopy(batch.getBuffer(), 0, contents, 0, length);
+		MessageDigest m = MessageDigest.getInstance("SHA-1");
+		m.update(contents, 0, length);
+		m.update(txId.getBytes("iso-8859-1"));
+		m.update(salt.getBytes("iso-8859-1"));
+		m.update(PASSPHRASE.getBytes("iso-8859-1"));
+		System.arraycopy(m.digest(), 0, contents, length, FipBatchOfUpdates.SEAL_LENGTH);
+		assertRejected(new FipBatchOfUpdates(contents));
+	}
+
+	/**
+	 * Send the changes from the destination's file to the source's, and check the file ready to be
+	 * committed is the same as the source's.
+	 */
+	private void assertPatched(byte[] existing, byte[] changed) throws Exception
+	{
+		FipBatchOfUpdates batch = patch(existing, changed);
+		server.destination_installBatchOfFiles(destinationRoot.getPath(), txId, batch, "localhost");
+		assertArrayEquals(changed, readFile(understudyFile()));
+	}
+
+	/**
+	 * A sealed batch with the changes to the destination's file (which is written with the existing contents).
+	 */
+	private FipBatchOfUpdates patch(byte[] existing, byte[] changed) throws Exception
+	{
+		File destinationFile = new File(destinationRoot, PATH);
+		writeFile(destinationFile, existing);
+		writeFile(new File(sourceRoot, PATH), changed);
+		FipBlockSignatures signatures = FipBlockSignatures.calculate(destinationFile, PATH);
+		FipBatchOfUpdates batch = new FipBatchOfUpdates();
+		batch.addPatchToBuffer(sourceRoot.getPath(), PATH, PATH, signatures, FipChecksum.forName(FipChecksum.XXH64));
+		batch.sealTheBuffer(txId, salt, PASSPHRASE);
+		return batch;
+	}
+
+	private void assertRejected(FipBatchOfUpdates batch) throws Exception
+	{
+		try {
+			server.destination_installBatchOfFiles(destinationRoot.getPath(), txId, batch, "localhost");
+			fail("The changes should not be installed");
+		} catch (FipException e) {
+			// Expected
+		}
+		assertFalse("no file left to commit", understudyFile().exists());
+	}
+
+	private File understudyFile()
+	{
+		String transactionDirectory = TransactionProperties.transactionDirectory(destinationRoot.getPath(), txId, TransactionStatus.PREPARING);
+		File file = new File(transactionDirectory, PATH);
+		return new File(file.getParentFile(), FipServer_updateExecuter.UNDERSTUDY_PREFIX_CHANGE_FILE + file.getName());
+	}
+
+	private static byte[] changedCopy(byte[] data)
+	{
+		byte[] changed = data.clone();
+		changed[data.length / 2] ^= 0x01;
+		return changed;
+	}
+
+	private File newDirectory() throws IOException
+	{
+		File dir = File.createTempFile("fip-patch", "");
+		dir.delete();
+		dir.mkdir();
+		return dir;
+	}
+
+	private static void writeFile(File file, byte[] data) throws IOException
+	{
+		file.getParentFile().mkdirs();
+		FileOutputStream os = new FileOutputStream(file);
+		try {
+			os.write(data);
+		} finally {
+			os.close();
+		}
+	}
+
+	private static byte[] readFile(File file) throws IOException
+	{
+		byte[] data = new byte[(int) file.length()];
+		FileInputStream is = new FileInputStream(file);
+		try {
+			for (int pos = 0; pos < data.length; )
+				pos += is.read(data, pos, data.length - pos);
+		} finally {
+			is.close();
+		}
+		return data;
+	}
+
+	private static void deleteTree(File file)
+	{
+		if (file == null)
+			return;
+		File[] children = file.listFiles();
+		if (children != null)
+			for (File child : children)
+				deleteTree(child);
+		file.delete();
+	}
+}
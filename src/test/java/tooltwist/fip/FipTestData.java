@@ -0,0 +1,19 @@
+package tooltwist.fip;
+
+import java.util.Random;
+
+/**
+ * Contents for the tests to work with.
+ */
+class FipTestData
+{
+	/**
+	 * Bytes that look random, but are the same each time for the same seed.
+	 */
+	static byte[] randomBytes(int length, long seed)
+	{
+		byte[] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+}
@@ -0,0 +1,204 @@
+package tooltwist.fip;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Vector;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Zips built by {@link FipZip}, including the zips of a shared batch for each destination, are read
+ * back by {@link Fip#unzipIt} and {@link java.util.zip.ZipFile} with the same contents and CRC.
+ */
+public class FipZipTest
+{
+	private Vector<File> files = new Vector<File>();
+
+	@After
+	public void deleteFiles()
+	{
+		for (int i = files.size() - 1; i >= 0; i--)
+			files.get(i).delete();
+	}
+
+	@Test
+	public void emptyContents() throws Exception
+	{
+		assertRoundTrip(new byte[0]);
+	}
+
+	@Test
+	public void smallContents() throws Exception
+	{
+		assertRoundTrip("hello, world".getBytes("US-ASCII"));
+	}
+
+	@Test
+	public void contentsLargerThanAChunk() throws Exception
+	{
+		assertRoundTrip(FipTestData.randomBytes(200000, 1));
+		assertRoundTrip(repeatedBytes(200000));
+	}
+
+	@Test
+	public void crcContinuesOverMoreBytes() throws Exception
+	{
+		byte[] data = FipTestData.randomBytes(1000, 2);
+		CRC32 crc32 = new CRC32();
+		crc32.update(data);
+		long crc = FipZip.updateCrc(0, data, 0, 300);
+		crc = FipZip.updateCrc(crc, data, 300, data.length - 300);
+		assertEquals(crc32.getValue(), crc);
+	}
+
+	@Test
+	public void damagedCrcIsDetected() throws Exception
+	{
+		byte[] zipped = Fip.zipIt(repeatedBytes(10000), 10000);
+		zipped[14] ^= 0x01; // The CRC in the local header
+		try {
+			Fip.unzipIt(new ByteArrayInputStream(zipped), FipZip.ENTRY_NAME);
+			fail("The CRC should not match");
+		} catch (FipException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void emptySharedBatch() throws Exception
+	{
+		assertSharedRoundTrip(new FipBatchOfUpdates(), new FipBatchOfUpdates());
+	}
+
+	@Test
+	public void sharedBatchLargerThanAChunk() throws Exception
+	{
+		File root = newDirectory();
+		writeFile(root, "random.bin", FipTestData.randomBytes(150000, 3));
+		writeFile(root, "repeated.txt", repeatedBytes(100000));
+		FipBatchOfUpdates[] batches = new FipBatchOfUpdates[2];
+		for (int i = 0; i < batches.length; i++)
+		{
+			batches[i] = new FipBatchOfUpdates();
+			batches[i].addInstallToBuffer(root.getPath(), "random.bin", "random.bin", true);
+			batches[i].addInstallToBuffer(root.getPath(), "repeated.txt", "repeated.txt", false);
+			batches[i].addDeleteToBuffer("old.txt");
+		}
+		assertSharedRoundTrip(batches[0], batches[1]);
+	}
+
+	/**
+	 * Zip some contents, at both compression levels, and check they are read back the same.
+	 */
+	private void assertRoundTrip(byte[] data) throws Exception
+	{
+		for (int level : new int[] { Deflater.DEFAULT_COMPRESSION, Deflater.NO_COMPRESSION })
+		{
+			byte[] zipped = Fip.zipIt(data, data.length, level);
+			assertArrayEquals(data, Fip.unzipIt(new ByteArrayInputStream(zipped), FipZip.ENTRY_NAME));
+			assertZipFileReads(zipped, data);
+		}
+	}
+
+	/**
+	 * Seal a batch for two destinations, and check each destination's zip unzips to the batch as it would
+	 * be sealed for just that destination (the same as <code>expected</code> sealed for it).
+	 */
+	private void assertSharedRoundTrip(FipBatchOfUpdates batch, FipBatchOfUpdates expected) throws Exception
+	{
+		Vector<String> txIds = new Vector<String>();
+		Vector<String> salts = new Vector<String>();
+		Vector<String> passphrases = new Vector<String>();
+		for (int i = 0; i < 2; i++)
+		{
+			txIds.add("tx" + i);
+			salts.add("salt" + i);
+			passphrases.add("pass phrase " + i);
+		}
+		FipSharedBatch shared = FipSharedBatch.seal(batch, txIds, salts, passphrases);
+		expected.sealTheBuffer(txIds.get(1), salts.get(1), passphrases.get(1));
+		byte[] sealed = contents(expected);
+
+		for (int i = 0; i < txIds.size(); i++)
+		{
+			byte[] zipped = shared.zipForDestination(i).toByteArray();
+			byte[] unzipped = contents(Fip.unzipBatch(new ByteArrayInputStream(zipped)));
+			assertArrayEquals(contents(shared.forDestination(i)), unzipped);
+			assertZipFileReads(zipped, unzipped);
+			if (i == 1)
+				assertArrayEquals(sealed, unzipped);
+		}
+	}
+
+	/**
+	 * Check the central directory is readable, and has the right size and CRC for the contents.
+	 */
+	private void assertZipFileReads(byte[] zipped, byte[] data) throws IOException
+	{
+		File file = File.createTempFile("fip-zip", ".zip");
+		files.add(file);
+		FileOutputStream os = new FileOutputStream(file);
+		try {
+			os.write(zipped);
+		} finally {
+			os.close();
+		}
+		ZipFile zipFile = new ZipFile(file);
+		try {
+			ZipEntry entry = zipFile.getEntry(FipZip.ENTRY_NAME);
+			assertEquals(data.length, entry.getSize());
+			CRC32 crc32 = new CRC32();
+			crc32.update(data);
+			assertEquals(crc32.getValue(), entry.getCrc());
+		} finally {
+			zipFile.close();
+		}
+	}
+
+	private static byte[] contents(FipBatchOfUpdates batch)
+	{
+		byte[] contents = new byte[batch.getLength()];
+		System.arraycopy(batch.getBuffer(), 0, contents, 0, contents.length);
+		return contents;
+	}
+
+	private static byte[] repeatedBytes(int length)
+	{
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++)
+			data[i] = (byte) ('a' + i % 23);
+		return data;
+	}
+
+	private File newDirectory() throws IOException
+	{
+		File dir = File.createTempFile("fip-zip", "");
+		dir.delete();
+		dir.mkdir();
+		files.add(dir);
+		return dir;
+	}
+
+	private void writeFile(File dir, String name, byte[] data) throws IOException
+	{
+		File file = new File(dir, name);
+		files.add(file);
+		FileOutputStream os = new FileOutputStream(file);
+		try {
+			os.write(data);
+		} finally {
+			os.close();
+		}
+	}
+}